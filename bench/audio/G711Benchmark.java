@@ -0,0 +1,162 @@
+
+package audio;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import utils.OctetBuffer;
+
+/**
+ *  Compares the per-sample G.711 conversion (through OctetBuffer, as the CODECs
+ *  used to do) with the table-driven bulk kernels.
+ *
+ *  Run with <code>make bench BENCH_ARGS="-prof gc G711Benchmark"</code>.
+ */
+@State( Scope.Thread )
+@BenchmarkMode( Mode.Throughput )
+@OutputTimeUnit( TimeUnit.SECONDS )
+@Warmup( iterations = 5, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+@Fork( 1 )
+public class G711Benchmark
+{
+    /** Number of samples in the frame (160 = 20 ms at 8 kHz) */
+    @Param( { "160", "1600" } )
+    public int samples;
+
+    /** Big-endian 16-bit linear PCM frame */
+    private byte[] pcm;
+
+    /** Encoded frame */
+    private byte[] law;
+
+    /** Output PCM frame */
+    private byte[] pcmOut;
+
+    /**
+     *  Fills the frame with speech-like (mostly low-amplitude) samples
+     */
+    @Setup
+    public void setup ()
+    {
+        Random random = new Random( 711 );
+
+        this.pcm = new byte[ 2 * this.samples ];
+        this.law = new byte[ this.samples ];
+        this.pcmOut = new byte[ 2 * this.samples ];
+
+        for ( int i = 0; i < this.samples; ++i )
+        {
+            int s = (int) ( random.nextGaussian () * 4000 );
+            s = Math.max( -32768, Math.min( 32767, s ) );
+            this.pcm[ 2 * i ] = (byte) ( s >> 8 );
+            this.pcm[ 2 * i + 1 ] = (byte) s;
+        }
+
+        AudioCodecUlaw.encode( this.pcm, 0, this.law, 0, this.samples );
+    }
+
+    /**
+     *  u-law encoding, one sample at a time
+     */
+    @Benchmark
+    public byte[] ulawEncodePerSample ()
+    {
+        OctetBuffer bb = OctetBuffer.wrap( this.pcm );
+        for ( int i = 0; i < this.law.length; ++i ) {
+            this.law[i] = AudioCodecUlaw.linear2ulaw( bb.getShort () );
+        }
+        return this.law;
+    }
+
+    /**
+     *  u-law encoding, table-driven bulk kernel
+     */
+    @Benchmark
+    public byte[] ulawEncodeTable ()
+    {
+        AudioCodecUlaw.encode( this.pcm, 0, this.law, 0, this.samples );
+        return this.law;
+    }
+
+    /**
+     *  u-law decoding, one sample at a time
+     */
+    @Benchmark
+    public byte[] ulawDecodePerSample ()
+    {
+        OctetBuffer bb = OctetBuffer.wrap( this.pcmOut );
+        for ( int i = 0; i < this.law.length; ++i ) {
+            bb.putShort( AudioCodecUlaw.ulaw2linear( this.law[i] ) );
+        }
+        return this.pcmOut;
+    }
+
+    /**
+     *  u-law decoding, bulk kernel
+     */
+    @Benchmark
+    public byte[] ulawDecodeTable ()
+    {
+        AudioCodecUlaw.decode( this.law, 0, this.pcmOut, 0, this.samples );
+        return this.pcmOut;
+    }
+
+    /**
+     *  A-law encoding, one sample at a time
+     */
+    @Benchmark
+    public byte[] alawEncodePerSample ()
+    {
+        OctetBuffer bb = OctetBuffer.wrap( this.pcm );
+        for ( int i = 0; i < this.law.length; ++i ) {
+            this.law[i] = AudioCodecAlaw.linear2alaw( bb.getShort () );
+        }
+        return this.law;
+    }
+
+    /**
+     *  A-law encoding, table-driven bulk kernel
+     */
+    @Benchmark
+    public byte[] alawEncodeTable ()
+    {
+        AudioCodecAlaw.encode( this.pcm, 0, this.law, 0, this.samples );
+        return this.law;
+    }
+
+    /**
+     *  A-law decoding, one sample at a time
+     */
+    @Benchmark
+    public byte[] alawDecodePerSample ()
+    {
+        OctetBuffer bb = OctetBuffer.wrap( this.pcmOut );
+        for ( int i = 0; i < this.law.length; ++i ) {
+            bb.putShort( AudioCodecAlaw.alaw2linear( this.law[i] ) );
+        }
+        return this.pcmOut;
+    }
+
+    /**
+     *  A-law decoding, table-driven bulk kernel
+     */
+    @Benchmark
+    public byte[] alawDecodeTable ()
+    {
+        AudioCodecAlaw.decode( this.law, 0, this.pcmOut, 0, this.samples );
+        return this.pcmOut;
+    }
+}
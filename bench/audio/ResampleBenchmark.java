@@ -0,0 +1,165 @@
+
+package audio;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import utils.OctetBuffer;
+
+/**
+ *  Compares the down-samplers of the microphone path for one 20 ms frame:
+ *  the bucket averaging (as the audio interface used to do) with the polyphase
+ *  resampler, from 8 kHz mono (copy), 8 kHz stereo (left channel), 44.1 kHz mono,
+ *  and (polyphase only) from 48 kHz and 16 kHz mono. The up-sampling to 48 kHz
+ *  is measured for the playback direction.
+ *
+ *  Run with <code>make bench BENCH_ARGS="-prof gc ResampleBenchmark"</code>.
+ */
+@State( Scope.Thread )
+@BenchmarkMode( Mode.Throughput )
+@OutputTimeUnit( TimeUnit.SECONDS )
+@Warmup( iterations = 5, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+@Fork( 1 )
+public class ResampleBenchmark
+{
+    /** Source format */
+    @Param( { "mono8k", "stereo8k", "mono44k", "mono48k", "mono16k" } )
+    public String source;
+
+    /** Source frame */
+    private byte[] src;
+
+    /** Destination frame (8 kHz mono) */
+    private byte[] dest;
+
+    /** Polyphase resampler from the source format */
+    private PolyphaseResampler resampler;
+
+    /** Polyphase resampler from 8 kHz to 48 kHz */
+    private PolyphaseResampler upsampler;
+
+    /** Up-sampled frame (48 kHz mono) */
+    private byte[] up;
+
+    /**
+     *  Fills the source frame with noise
+     */
+    @Setup
+    public void setup ()
+    {
+        int rate = 8000;
+        int channels = 1;
+        if ( "stereo8k".equals( this.source ) ) {
+            channels = 2;
+        } else if ( "mono44k".equals( this.source ) ) {
+            rate = 44100;
+        } else if ( "mono48k".equals( this.source ) ) {
+            rate = 48000;
+        } else if ( "mono16k".equals( this.source ) ) {
+            rate = 16000;
+        }
+
+        this.src = new byte[ rate / 50 * 2 * channels ];
+        this.dest = new byte[ 320 ];
+        this.up = new byte[ 48000 / 50 * 2 ];
+
+        new Random( 8000 ).nextBytes( this.src );
+
+        this.resampler = new PolyphaseResampler( rate, 8000, channels );
+        this.upsampler = new PolyphaseResampler( 8000, 48000 );
+    }
+
+    /**
+     *  Down-samples one frame by bucket averaging
+     */
+    @Benchmark
+    public byte[] bucketAveraging ()
+    {
+        bucketAverage( this.src, this.dest );
+        return this.dest;
+    }
+
+    /**
+     *  Down-samples one frame by the polyphase resampler
+     */
+    @Benchmark
+    public byte[] polyphase ()
+    {
+        this.resampler.resample( this.src, this.dest );
+        return this.dest;
+    }
+
+    /**
+     *  Up-samples one 8 kHz frame to 48 kHz by the polyphase resampler
+     */
+    @Benchmark
+    public byte[] polyphaseUp ()
+    {
+        this.upsampler.resample( this.dest, this.up );
+        return this.up;
+    }
+
+    /**
+     *  The former down-sampler of AudioInterfacePCM: copies 8 kHz mono, takes
+     *  the left channel of 8 kHz stereo and otherwise averages 44.1 kHz samples
+     *  in the buckets of the 8 kHz samples (without anti-aliasing).
+     */
+    private static void bucketAverage( byte[] src, byte[] dest ) 
+    {
+        if ( src.length == dest.length ) 
+        {
+            System.arraycopy( src, 0, dest, 0, src.length );
+            return;
+        }
+        else if ( src.length / 2 == dest.length )
+        {
+            for ( int i = 0; i < dest.length / 2; i++ ) 
+            {
+                dest[i * 2] = src[i * 4];
+                dest[i * 2 + 1] = src[i * 4 + 1];
+            }
+            return;
+        }
+
+        OctetBuffer srcBuffer = OctetBuffer.wrap( src );
+        OctetBuffer destBuffer = OctetBuffer.wrap( dest );
+        
+        int drange = dest.length / 2;
+        double v[] = new double[ drange ];
+        double w[] = new double[ drange ];
+
+        double frequencyRatio = 8000.0 / 44100.0;
+        int top = src.length / 2;
+        for ( int eo = 0; eo < top; ++eo ) 
+        {
+            int samp = (int) Math.floor( eo * frequencyRatio );
+            if ( samp >= drange ) {
+                samp = drange - 1;
+            }
+            v[ samp ] += srcBuffer.getShort( eo * 2 );
+            w[ samp ]++;
+        }
+        
+        short vw = 0;
+        for ( int ei = 0; ei < drange; ++ei ) 
+        {
+            if ( w[ei] != 0 ) {
+                vw = (short) ( v[ei] / w[ei] );
+            }
+            destBuffer.putShort( ei * 2, vw );
+        }
+    }
+}
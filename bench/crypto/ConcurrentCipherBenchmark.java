@@ -0,0 +1,145 @@
+
+package crypto;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ *  Measures the throughput of concurrent calls, each enciphering an outbound 
+ *  and deciphering an inbound voice PDU per operation, with one benchmark thread
+ *  per call: either all calls share one packet cipher context under a lock (as
+ *  the calls used to share the Cipher of the SymmetricCipher), or each call uses
+ *  its own context (VoicePDUEncoder) and the thread's context (decryptPacket).
+ *  Run with e.g. <code>-t 1</code>, <code>-t 2</code>, <code>-t 4</code> to see 
+ *  the scaling with the number of calls.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.Throughput )
+@OutputTimeUnit( TimeUnit.SECONDS )
+@Warmup( iterations = 5, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+@Fork( 1 )
+@Threads( 4 )
+public class ConcurrentCipherBenchmark
+{
+    /** Key algorithm */
+    @Param( { "Blowfish", "AES" } )
+    public String algorithm;
+
+    /** PDU length (12 octet header + 160 octets) */
+    private final static int PDU_LENGTH = 172;
+
+    /** The cipher shared by all calls */
+    private SymmetricCipher cipher;
+
+    /** The packet cipher context shared by all calls (guarded by itself) */
+    private PacketCipher sharedContext;
+
+    /** Enciphered inbound PDU */
+    private byte[] inbound;
+
+    /**
+     *  State of a call (i.e. of a benchmark thread)
+     */
+    @State( Scope.Thread )
+    public static class Call
+    {
+        /** The call's own context enciphering outbound PDUs */
+        PacketCipher context;
+
+        /** Outbound PDU */
+        byte[] pdu;
+
+        /** Outbound datagram */
+        byte[] datagram;
+
+        /** View of the inbound datagram */
+        ByteBuffer inbound;
+
+        /** Deciphered inbound PDU */
+        ByteBuffer plainText;
+
+        /**
+         *  Sets up the call's buffers and context
+         */
+        @Setup
+        public void setup( ConcurrentCipherBenchmark b )
+        {
+            this.context = b.cipher.newPacketCipher ();
+
+            this.pdu = new byte[ PDU_LENGTH ];
+            new Random( 172 ).nextBytes( this.pdu );
+
+            this.datagram = new byte[ this.context.getOutputSize( PDU_LENGTH ) ];
+            this.inbound = ByteBuffer.wrap( b.inbound );
+            this.plainText = ByteBuffer.allocateDirect( b.inbound.length );
+        }
+    }
+
+    /**
+     *  Generates the key and enciphers the inbound PDU
+     */
+    @Setup
+    public void setup ()
+    {
+        this.cipher = new SymmetricCipher( this.algorithm, 128, false );
+        this.sharedContext = this.cipher.newPacketCipher ();
+
+        byte[] pdu = new byte[ PDU_LENGTH ];
+        new Random( 17 ).nextBytes( pdu );
+        this.inbound = this.cipher.encryptPacket( pdu );
+    }
+
+    /**
+     *  All calls share one context under a lock
+     */
+    @Benchmark
+    public int sharedContext( Call call )
+    {
+        int len;
+        
+        synchronized( this.sharedContext ) {
+            len = this.sharedContext.encrypt( call.pdu, PDU_LENGTH, call.datagram );
+        }
+
+        call.inbound.clear ();
+        call.plainText.clear ();
+        
+        synchronized( this.sharedContext ) {
+            len += this.sharedContext.decrypt( call.inbound, call.plainText );
+        }
+        
+        return len;
+    }
+
+    /**
+     *  Each call enciphers with its own context and deciphers with the context
+     *  of the thread
+     */
+    @Benchmark
+    public int perCallContext( Call call )
+    {
+        int len = call.context.encrypt( call.pdu, PDU_LENGTH, call.datagram );
+
+        call.inbound.clear ();
+        call.plainText.clear ();
+        
+        len += this.cipher.decryptPacket( call.inbound, call.plainText );
+        
+        return len;
+    }
+}
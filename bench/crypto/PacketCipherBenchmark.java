@@ -0,0 +1,92 @@
+
+package crypto;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ *  Measures enciphering and deciphering of voice PDUs in the packet mode selected
+ *  by the key algorithm: Blowfish/CBC with random preamble, AES/GCM and
+ *  ChaCha20-Poly1305 (AEAD packet mode), using preallocated buffers.
+ */
+@State( Scope.Thread )
+@BenchmarkMode( Mode.Throughput )
+@OutputTimeUnit( TimeUnit.SECONDS )
+@Warmup( iterations = 5, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+@Fork( 1 )
+public class PacketCipherBenchmark
+{
+    /** Key algorithm */
+    @Param( { "Blowfish", "AES", "ChaCha20" } )
+    public String algorithm;
+
+    /** PDU length (12 octet header + 160 or 320 octets) */
+    @Param( { "172", "332" } )
+    public int pduLength;
+
+    /** The cipher */
+    private SymmetricCipher cipher;
+
+    /** Plain PDU */
+    private byte[] pdu;
+
+    /** Preallocated datagram buffer */
+    private byte[] datagramBuf;
+
+    /** View of the enciphered PDU */
+    private ByteBuffer datagramView;
+
+    /** Direct buffer receiving deciphered PDU */
+    private ByteBuffer pduView;
+
+    /**
+     *  Generates the key and enciphers the PDU once
+     */
+    @Setup
+    public void setup ()
+    {
+        int keySize = this.algorithm.equals( "ChaCha20" ) ? 256 : 128;
+        this.cipher = new SymmetricCipher( this.algorithm, keySize, false );
+
+        this.pdu = new byte[ this.pduLength ];
+        new Random( 172 ).nextBytes( this.pdu );
+
+        this.datagramBuf = new byte[ this.cipher.getPacketOutputSize( this.pduLength ) ];
+        this.datagramView = ByteBuffer.wrap( this.cipher.encryptPacket( this.pdu ) );
+        this.pduView = ByteBuffer.allocateDirect( this.datagramBuf.length );
+    }
+
+    /**
+     *  Enciphers into the preallocated array
+     */
+    @Benchmark
+    public int encryptPacket ()
+    {
+        return this.cipher.encryptPacket( this.pdu, this.pduLength, this.datagramBuf );
+    }
+
+    /**
+     *  Deciphers between buffers
+     */
+    @Benchmark
+    public int decryptPacket ()
+    {
+        this.datagramView.clear ();
+        this.pduView.clear ();
+        return this.cipher.decryptPacket( this.datagramView, this.pduView );
+    }
+}
@@ -0,0 +1,113 @@
+
+package crypto;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ *  Measures enciphering and deciphering of voice PDUs with the default
+ *  symmetric cipher (Blowfish/CBC, 8 octet random preamble): both the allocating
+ *  byte[] variants and the variants working on preallocated buffers.
+ */
+@State( Scope.Thread )
+@BenchmarkMode( Mode.Throughput )
+@OutputTimeUnit( TimeUnit.SECONDS )
+@Warmup( iterations = 5, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+@Fork( 1 )
+public class SymmetricCipherBenchmark
+{
+    /** The length of random preamble (as used for voice PDUs) */
+    private final static int PREAMBLE = 8;
+
+    /** Plain text length (voice PDU: 12 octet header + 160 or 320 octets) */
+    @Param( { "160", "320" } )
+    public int payload;
+
+    /** The cipher */
+    private SymmetricCipher cipher;
+
+    /** Plain text */
+    private byte[] plainText;
+
+    /** Preallocated cipher text buffer */
+    private byte[] cipherTextBuf;
+
+    /** Cipher text of the plain text */
+    private byte[] cipherText;
+
+    /** Cipher text view used by decrypt into buffer */
+    private ByteBuffer cipherTextView;
+
+    /** Direct buffer receiving deciphered plain text */
+    private ByteBuffer plainTextView;
+
+    /**
+     *  Generates the key and enciphers the plain text once
+     */
+    @Setup
+    public void setup ()
+    {
+        this.cipher = new SymmetricCipher( "Blowfish", 128, false );
+
+        this.plainText = new byte[ this.payload ];
+        new Random( 320 ).nextBytes( this.plainText );
+
+        this.cipherTextBuf = new byte[ this.cipher.getPacketOutputSize( this.payload ) ];
+        this.cipherText = this.cipher.encrypt( PREAMBLE, this.plainText );
+
+        this.cipherTextView = ByteBuffer.wrap( this.cipherText );
+        this.plainTextView = ByteBuffer.allocateDirect( this.cipherText.length );
+    }
+
+    /**
+     *  Enciphers into newly allocated array
+     */
+    @Benchmark
+    public byte[] encrypt ()
+    {
+        return this.cipher.encrypt( PREAMBLE, this.plainText );
+    }
+
+    /**
+     *  Enciphers into the preallocated array (packet cipher context of the thread)
+     */
+    @Benchmark
+    public int encryptInto ()
+    {
+        return this.cipher.encryptPacket( this.plainText, this.payload, this.cipherTextBuf );
+    }
+
+    /**
+     *  Deciphers into newly allocated array
+     */
+    @Benchmark
+    public byte[] decrypt ()
+    {
+        return this.cipher.decrypt( PREAMBLE, this.cipherText );
+    }
+
+    /**
+     *  Deciphers between buffers (packet cipher context of the thread)
+     */
+    @Benchmark
+    public int decryptInto ()
+    {
+        this.cipherTextView.clear ();
+        this.plainTextView.clear ();
+        return this.cipher.decryptPacket( this.cipherTextView, this.plainTextView );
+    }
+}
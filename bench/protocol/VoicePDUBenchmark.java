@@ -0,0 +1,151 @@
+
+package protocol;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import audio.AudioInterface;
+import crypto.SymmetricCipher;
+
+/**
+ *  Measures parsing of inbound voice PDUs with ProtocolDataUnit.create() and
+ *  encoding (and enciphering) of outbound voice PDUs with VoicePDUEncoder.
+ *  The call is bound to a UDP channel on an ephemeral port; nothing is sent.
+ */
+@State( Scope.Thread )
+@BenchmarkMode( Mode.Throughput )
+@OutputTimeUnit( TimeUnit.SECONDS )
+@Warmup( iterations = 5, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+@Fork( 1 )
+public class VoicePDUBenchmark
+{
+    /** Audio sample size (160 = G.711, 320 = 16-bit linear) */
+    @Param( { "160", "320" } )
+    public int sampleSize;
+
+    /** The UDP channel */
+    private DatagramChannel channel;
+
+    /** The call */
+    private CallContext call;
+
+    /** The encoder of outbound voice PDUs */
+    private VoicePDUEncoder encoder;
+
+    /** The cipher */
+    private SymmetricCipher cipher;
+
+    /** Audio sample */
+    private byte[] audioSample;
+
+    /** Encoded voice PDU */
+    private byte[] pduOctets;
+
+    /** Time-stamp of the next PDU */
+    private int timestamp = 0;
+
+    /**
+     *  Creates the call and encodes one PDU
+     */
+    @Setup
+    public void setup () throws IOException
+    {
+        this.channel = new DatagramChannel( 0 );
+
+        RemotePeer peer = new RemotePeer( this.channel, "bench",
+                InetAddress.getByName( "127.0.0.1" ), 9 );
+        this.call = new CallContext( peer, new NullAudio () );
+
+        this.encoder = new VoicePDUEncoder( this.call, VoicePDU.ALAW, this.sampleSize );
+        this.cipher = new SymmetricCipher( "Blowfish", 128, false );
+
+        this.audioSample = new byte[ this.sampleSize ];
+        new Random( 12 ).nextBytes( this.audioSample );
+
+        this.encoder.encode( 0, this.audioSample, false );
+        this.pduOctets = this.encoder.getFrame ().clone ();
+    }
+
+    /**
+     *  Releases the call and the channel
+     */
+    @TearDown
+    public void tearDown ()
+    {
+        this.call.cleanUp ();
+        this.channel.stop ();
+    }
+
+    /**
+     *  Parses inbound voice PDU
+     */
+    @Benchmark
+    public ProtocolDataUnit create ()
+    {
+        return ProtocolDataUnit.create( this.call, this.pduOctets );
+    }
+
+    /**
+     *  Encodes outbound voice PDU
+     */
+    @Benchmark
+    public byte[] encode ()
+    {
+        this.timestamp += 20;
+        this.encoder.encode( this.timestamp, this.audioSample, false );
+        return this.encoder.getFrame ();
+    }
+
+    /**
+     *  Encodes and enciphers outbound voice PDU
+     */
+    @Benchmark
+    public boolean encodeEncrypt ()
+    {
+        this.timestamp += 20;
+        this.encoder.encode( this.timestamp, this.audioSample, false );
+        return this.encoder.encrypt( this.cipher );
+    }
+
+    /**
+     *  Audio interface that discards everything
+     */
+    static class NullAudio implements AudioInterface
+    {
+        public int getSampleSize () { return 160; }
+        public long readWithTimestamp( byte[] buff ) { return 0; }
+        public void stopRecording () {}
+        public long startRecording () { return 0; }
+        public void startPlay () {}
+        public void stopPlay () {}
+        public void startRinging () {}
+        public void stopRinging () {}
+        public void writeBuffered( byte[] buff, long timestamp ) {}
+        public void writeBuffered( ByteBuffer buff, long timestamp ) {}
+        public void writeComfortNoise( int level, long timestamp ) {}
+        public int getNoiseLevel () { return -1; }
+        public void markTalkspurt () {}
+        public void writeDirectly( byte[] buff ) {}
+        public int getVoicePduSubclass () { return VoicePDU.ALAW; }
+        public void setAudioSender( AudioInterface.Packetizer as ) {}
+        public void cleanUp () {}
+        public AudioInterface getByFormat( Integer format ) { return this; }
+    }
+}
@@ -23,8 +23,10 @@ import java.net.URL;
 import java.net.UnknownHostException;
 import java.text.SimpleDateFormat;
 import java.util.Calendar;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Set;
 
 import javax.swing.GroupLayout;
 import javax.swing.JCheckBox;
@@ -48,9 +50,10 @@ import pbx.PBXClient;
 import protocol.CallContext;
 import protocol.DatagramChannel;
 import protocol.RemotePeer;
-import protocol.VoicePDU;
+import protocol.RtpSession;
 
 import audio.AudioInterface;
+import audio.CodecRegistry;
 
 import ui.JImageButton;
 import ui.JSecState;
@@ -140,6 +143,11 @@ public class CryptoPhoneApp extends JFrame
      */
     private AudioInterface audioInterface = null;
 
+    /**
+     *  CODECs supported above the audio interface, negotiated with the remote peer
+     */
+    private CodecRegistry codecRegistry = null;
+
     /**
      *  The last PBX control message sent to us (waiting to be handled)
      */
@@ -156,6 +164,18 @@ public class CryptoPhoneApp extends JFrame
      */
     private String currentInvite = null;
     
+    /**
+     *  Our SSRC offered with RTP framing in the current invite.
+     *  Null if we did not offer RTP framing.
+     */
+    private Integer offeredRtpSsrc = null;
+    
+    /**
+     *  Remote peers (their lower-case user ids) that have sent us call options,
+     *  i.e. that do not take the options of a plain invite for the public key.
+     */
+    private Set<String> optionAwarePeers = new HashSet<String> ();
+    
     /**
      *  Timer used to detect unresolved invite (i.e. invite to non-existing peer). 
      *  Value -1 means 'disabled'.
@@ -532,6 +552,7 @@ public class CryptoPhoneApp extends JFrame
     public void startKryptofonServices ()
     {
         audioInterface = new audio.AudioInterfacePCM ();
+        codecRegistry = new CodecRegistry( audioInterface );
         udpChannel = new DatagramChannel( localUdpPort );
         
         /* Now, check if UDP channel is bound to the the local port that we requested.
@@ -1153,8 +1174,8 @@ public class CryptoPhoneApp extends JFrame
      *  <pre>
      *  VoIP Calls:
      *  
-     *     :inv[ite]    username             aliases: :ca[ll]
-     *     :inv[ite]+   username             aliases: :ca[ll]+
+     *     :inv[ite]    username [ rtp ]     aliases: :ca[ll]
+     *     :inv[ite]+   username [ rtp ]     aliases: :ca[ll]+
      *     :acc[ept]                         aliases: :ans[wer]
      *     :by[e]                            aliases: :ha[ngup]
      *     :shk[ey]
@@ -1176,10 +1197,19 @@ public class CryptoPhoneApp extends JFrame
      *     :cl[ear]s[creen]
      *     :reauth
      *     :newsecret  [ algorithm [ keysize ] ]
+     *     :codecs     [ codec ... ]
      *     :du[mp]
      *     :ex[it]                           aliases: :qu[it]
      *     :he[lp]
      *  </pre>
+     *  The optional <code>rtp</code> argument of :invite offers RTP framing of voice
+     *  PDUs (SRTP for encrypted calls) instead of IAX-style PDUs; the call uses it
+     *  if the remote peer accepts it.
+     *  
+     *  The :codecs command lists the CODECs offered to and accepted from remote peers
+     *  (dvi4, alaw, ulaw, lin16) in the order of preference, or sets them if given.
+     *  The plain :invite offers them only to peers that have sent us CODECs before
+     *  (older peers would take the offer for the public key).
      *  
      *  @param cmd  command name; must begin with ":"
      *  @param args command arguments; may be null or empty array
@@ -1300,7 +1330,8 @@ public class CryptoPhoneApp extends JFrame
                 userId.setEnabled( false ); // disable changing user ID
 
                 pbxChannel.sendInvite( currentInvite, pbxChannel.getLocalAddress (),
-                        udpChannel.getLocalPort (), CipherEngine.getSignedPublicKey () );
+                        udpChannel.getLocalPort (), CipherEngine.getSignedPublicKey (),
+                        getInviteOptions( args, /*secured*/ true ) );
 
                 executed = true;
             }
@@ -1330,7 +1361,7 @@ public class CryptoPhoneApp extends JFrame
                 userId.setEnabled( false ); // disable changing user ID
 
                 pbxChannel.sendInvite( args[0], pbxChannel.getLocalAddress (),
-                        udpChannel.getLocalPort (), null );
+                        udpChannel.getLocalPort (), null, getInviteOptions( args, /*secured*/ false ) );
 
                 executed = true;
             }
@@ -1459,6 +1490,19 @@ public class CryptoPhoneApp extends JFrame
             executed = true;
         }
         /*------------------------------------------------------------------------------*/
+        else if ( cmd.equals( ":codecs" ) )
+        {
+            if ( args.length >= 1 && ! codecRegistry.setPreference( args ) ) 
+            {
+                report( "logError", "Unknown CODEC; use dvi4, alaw, ulaw or lin16." );
+                return false;
+            }
+            
+            report( "logInfo", "CODECs: " + codecRegistry.getOffer () );
+
+            executed = true;
+        }
+        /*------------------------------------------------------------------------------*/
         else if ( cmd.equals( ":cls" )
                || cmd.matches( "^:cl(ear)?s(c(r(e(en?)?)?)?)?$" ) )
         {
@@ -1517,6 +1561,7 @@ public class CryptoPhoneApp extends JFrame
         }
 
         this.lastMessageFromPBX = m;
+        rememberOptionAwarePeer( m );
         
         logMessage( "<hr/>" );
         report( "logInfo", "User " + verboseRemote + " is inviting us..." );
@@ -1637,6 +1682,7 @@ public class CryptoPhoneApp extends JFrame
         
         inviteTimeout = -1;
         currentInvite = null;
+        rememberOptionAwarePeer( m );
         
         /* Resolve peers IP address
          */
@@ -1674,9 +1720,29 @@ public class CryptoPhoneApp extends JFrame
         RemotePeer remotePeer = new RemotePeer( this.udpChannel, m.peerUserId, 
                 peerAddr, m.peerPort );
         
-        AudioInterface codec = this.audioInterface.getByFormat( VoicePDU.ALAW );
+        /* Use the CODEC answered by the remote peer
+         */
+        int format = this.codecRegistry.select( m.getOption( "codecs", null ) );
+        
+        AudioInterface codec = this.audioInterface.getByFormat( format );
+        report( "logInfo", "Using CODEC " + CodecRegistry.getName( format ) );
         
         CallContext call = new CallContext( remotePeer, codec );
+        
+        /* Use RTP framing if we offered it and the remote peer accepted it
+         */
+        if ( this.offeredRtpSsrc != null 
+                && m.getOption( "framing", "iax" ).equalsIgnoreCase( "rtp" ) )
+        {
+            startRtpFraming( call, this.offeredRtpSsrc, m.getOption( "ssrc", null ), cipher );
+        }
+        this.offeredRtpSsrc = null;
+        
+        /* Do not send voice during silence if the remote peer agreed to it
+         */
+        call.useDiscontinuousTransmission( 
+                m.getOption( "dtx", "off" ).equalsIgnoreCase( "on" ) );
+        
         call.setCallEstablished( true );
         monitorIfPeerIsSendingVoice = true;
 
@@ -1902,10 +1968,41 @@ public class CryptoPhoneApp extends JFrame
             }
         }
 
+        /* Choose the CODEC from the offered ones (if offered) and answer it
+         */
+        String options = null;
+        int format = this.codecRegistry.select( m.getOption( "codecs", null ) );
+        
+        if ( m.getOption( "codecs", null ) != null ) {
+            options = "@codecs=" + this.codecRegistry.getAnswer( format );
+        }
+        
+        /* Agree to discontinuous transmission if offered
+         */
+        boolean dtx = m.getOption( "dtx", "off" ).equalsIgnoreCase( "on" );
+        
+        if ( dtx ) {
+            options = ( options != null ? options + " " : "" ) + "@dtx=on";
+        }
+        
+        /* Answer RTP framing (if offered) with our SSRC
+         */
+        Integer localSsrc = null;
+        
+        if ( m.getOption( "framing", "iax" ).equalsIgnoreCase( "rtp" ) )
+        {
+            do {
+                localSsrc = RtpSession.newSsrc( RemotePeer.DEFAULT_SOURCE_CALL_NUMBER );
+            } while( Integer.toHexString( localSsrc ).equalsIgnoreCase( m.getOption( "ssrc", "" ) ) );
+            
+            options = ( options != null ? options + " " : "" )
+                    + "@framing=rtp @ssrc=" + Integer.toHexString( localSsrc );
+        }
+        
         /* Send accepting message to remote peer
          */
         pbxChannel.sendAccept( m.peerUserId,  pbxChannel.getLocalAddress (), 
-                udpChannel.getLocalPort (), mySecret );
+                udpChannel.getLocalPort (), mySecret, options );
 
         /* Create necessary objects needed to establish the call:
          * instances of the RemotePeer and CallContext. 
@@ -1913,9 +2010,18 @@ public class CryptoPhoneApp extends JFrame
         RemotePeer remotePeer = new RemotePeer( this.udpChannel, 
                 m.peerUserId, peerAddr, m.peerPort );
         
-        AudioInterface codec = this.audioInterface.getByFormat( VoicePDU.ALAW );
+        AudioInterface codec = this.audioInterface.getByFormat( format );
+        report( "logInfo", "Using CODEC " + CodecRegistry.getName( format ) );
         
         CallContext call = new CallContext( remotePeer, codec );
+        
+        if ( localSsrc != null ) {
+            startRtpFraming( call, localSsrc, m.getOption( "ssrc", null ), 
+                    udpChannel.getUsedSymmetricCipher () );
+        }
+        
+        call.useDiscontinuousTransmission( dtx );
+        
         call.setCallEstablished( true );
         monitorIfPeerIsSendingVoice = true;
         
@@ -1942,6 +2048,72 @@ public class CryptoPhoneApp extends JFrame
         this.lastMessageFromPBX = null;
     }
 
+    /**
+     *  Remembers the remote peer as the one that understands call options
+     *  if the INVITE or ACCEPT message carries any.
+     */
+    private void rememberOptionAwarePeer( PBXClient.ControlMessage m )
+    {
+        if ( ! m.options.isEmpty () && m.peerUserId != null ) {
+            optionAwarePeers.add( m.peerUserId.toLowerCase () );
+        }
+    }
+
+    /**
+     *  Returns options of the INVITE message: our CODECs in the order of preference,
+     *  discontinuous transmission with comfort noise and, if requested by the :invite
+     *  command arguments (username followed by 'rtp'), RTP framing with our new SSRC.
+     *  
+     *  Older peers take the first argument after the UDP port for the public key,
+     *  so the plain (not secured) invite carries options only to peers that have 
+     *  sent us options before or if RTP framing is requested explicitly; 
+     *  returns null otherwise.
+     */
+    private String getInviteOptions( String[] args, boolean secured )
+    {
+        boolean rtp = args.length >= 2 && args[1].equalsIgnoreCase( "rtp" );
+        
+        this.offeredRtpSsrc = null;
+        
+        if ( ! secured && ! rtp && ! optionAwarePeers.contains( args[0].toLowerCase () ) ) {
+            return null;
+        }
+        
+        String options = "@codecs=" + this.codecRegistry.getOffer () + " @dtx=on";
+        
+        if ( rtp ) 
+        {
+            this.offeredRtpSsrc = RtpSession.newSsrc( RemotePeer.DEFAULT_SOURCE_CALL_NUMBER );
+            report( "logInfo", "Offering RTP framing..." );
+            options += " @framing=rtp @ssrc=" + Integer.toHexString( this.offeredRtpSsrc );
+        }
+        
+        return options;
+    }
+
+    /**
+     *  Switches the call to RTP framing with our SSRC and the remote SSRC 
+     *  (hexadecimal) negotiated over PBX. Packets are protected as SRTP 
+     *  if the cipher is not null.
+     */
+    private void startRtpFraming( CallContext call, int localSsrc, String remoteSsrc,
+            SymmetricCipher cipher )
+    {
+        try
+        {
+            if ( call.useRtpFraming( localSsrc, (int) Long.parseLong( remoteSsrc, 16 ), cipher ) ) {
+                report( "logInfo", "Using " + ( cipher != null ? "SRTP" : "RTP" ) + " framing" );
+                return;
+            }
+        }
+        catch( NumberFormatException e )
+        {
+            /* fall through */
+        }
+        
+        report( "logError", "Failed to set up RTP framing; remote SSRC " + remoteSsrc );
+    }
+
     //////////////////////////////////////////////////////////////////////////////////////
     
     /**
@@ -2,12 +2,21 @@
 package audio;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 /**
  *  Base class for CODECs that can convert to and from PCM.
- *  The class wraps underlying AudioInterfacePCM that can find and talk to PCM hardware.
+ *  The class wraps underlying PCM audio interface (e.g. AudioInterfacePCM that can find
+ *  and talk to PCM hardware, or AudioInterfaceHeadless).
  *  Derived classes should only implement encoding/decoding part from/to PCM
  *  (methods AbstractCODEC.convertFromPCM() and AbstractCODEC.convertToPCM()).
+ *
+ *  A coded frame (getSampleSize() octets) carries one PCM frame of the underlying
+ *  audio interface; the ratio between coded and PCM octets is up to the CODEC
+ *  (see getPcmLength()). CODECs keeping state between frames (e.g. ADPCM predictors)
+ *  reset it in resetEncoder() and resetDecoder(), which are called when recording, 
+ *  respectively playing starts. The encoder is used only by the recording thread
+ *  and the decoder only by the thread delivering received frames.
  */
 public abstract class AbstractCODEC implements AudioInterface
 {
@@ -21,6 +30,13 @@ public abstract class AbstractCODEC implements AudioInterface
      */
     public abstract void convertToPCM( byte[] in, byte[] out );
 
+    /**
+     *  Decodes data from PCM, i.e. converts samples found between the position
+     *  and the limit of the input buffer from CODEC to PCM format.
+     *  Output samples not covered by the input are set to silence.
+     */
+    public abstract void convertToPCM( ByteBuffer in, byte[] out );
+
     /**
      * Gets the VoicePDU subclass attribute of the AbstractAudio object
      */
@@ -30,7 +46,7 @@ public abstract class AbstractCODEC implements AudioInterface
      *  Instance of the audio interface that provides access to 
      *  PCM (signed 16-bit linear) samples.
      */
-    protected AudioInterfacePCM audio;
+    protected AudioInterface audio;
 
     /**
      *  Output PCM buffer (converted from CODEC) written to audio interface
@@ -42,6 +58,41 @@ public abstract class AbstractCODEC implements AudioInterface
      */
     protected byte[] inputPcmBuf;
 
+    /**
+     *  Creates the packet loss concealer suited to the CODEC. By default, missing
+     *  frames are concealed by pitch waveform replication (ITU-T G.711 Appendix I).
+     *  CODECs having their own concealment may override this and return null.
+     */
+    public PacketLossConcealer createPacketLossConcealer ()
+    {
+        return new PitchWaveformConcealer ();
+    }
+
+    /**
+     *  Returns the number of PCM octets decoded from the given number of coded octets.
+     *  By default, each coded octet is one 16-bit PCM sample (G.711).
+     */
+    public int getPcmLength( int codedLength )
+    {
+        return 2 * codedLength;
+    }
+
+    /**
+     *  Resets the state of the encoder before the first frame is encoded.
+     *  Stateless CODECs need not override this.
+     */
+    protected void resetEncoder ()
+    {
+    }
+
+    /**
+     *  Resets the state of the decoder before the first frame is decoded.
+     *  Stateless CODECs need not override this.
+     */
+    protected void resetDecoder ()
+    {
+    }
+
     /**
      *  Stops the recorder - but don't throw it away.
      */
@@ -55,6 +106,7 @@ public abstract class AbstractCODEC implements AudioInterface
      */
     public long startRecording () 
     {
+        resetEncoder ();
         return audio.startRecording ();
     }
 
@@ -63,6 +115,7 @@ public abstract class AbstractCODEC implements AudioInterface
      */
     public void startPlay ()
     {
+        resetDecoder ();
         audio.startPlay();
     }
 
@@ -100,6 +153,16 @@ public abstract class AbstractCODEC implements AudioInterface
         audio.writeBuffered( outputPcmBuf, timestamp );
     }
 
+    /**
+     *  Plays the sample found between the position and the limit of the given 
+     *  buffer assuming that it's timestamp is long
+     */
+    public void writeBuffered( ByteBuffer buf, long timestamp ) throws IOException
+    {
+        convertToPCM( buf, outputPcmBuf );
+        audio.writeBuffered( outputPcmBuf, timestamp );
+    }
+
     /**
      *  Reads from the microphone, using the buffer provided,
      *  but <em>only</em> filling getSampSize() bytes.
@@ -112,12 +175,37 @@ public abstract class AbstractCODEC implements AudioInterface
         return ret;
     }
 
+    /**
+     *  Plays comfort noise of the given level from the given time-stamp
+     */
+    public void writeComfortNoise( int level, long timestamp ) throws IOException
+    {
+        audio.writeComfortNoise( level, timestamp );
+    }
+
+    /**
+     *  Returns the level of the background noise if the last sample read 
+     *  carried no voice; -1 if it carried voice
+     */
+    public int getNoiseLevel ()
+    {
+        return audio.getNoiseLevel ();
+    }
+
+    /**
+     *  Notifies the player that the next sample starts a talkspurt
+     */
+    public void markTalkspurt ()
+    {
+        audio.markTalkspurt ();
+    }
+
     /**
      *  Writes directly to source line without buffering
      */
-    public void writeDirectly( byte[] f )
+    public void writeDirectly( byte[] f ) throws IOException
     {
-        byte[] tf = new byte[ 2 * f.length ];
+        byte[] tf = new byte[ getPcmLength( f.length ) ];
         convertToPCM( f, tf );
         audio.writeDirectly( tf );
     }
@@ -0,0 +1,295 @@
+
+package audio;
+
+/**
+ *  Adaptive playout policy that follows the network jitter.
+ *
+ *  The inter-arrival jitter is estimated as in RFC 3550 (section 6.4.1): for each
+ *  frame the difference of relative transit times <i>D</i> is computed and
+ *  the estimate is updated as <i>J</i> += ( |<i>D</i>| - <i>J</i> ) / 16.
+ *  The desired depth covers several times the jitter and it is raised by
+ *  underruns (decaying again while the playout runs without underruns).
+ *
+ *  Frames are inserted or dropped to reach the desired depth only at talkspurt
+ *  boundaries signalled by the call (voice resuming after comfort noise, the RTP
+ *  marker bit, or a time-stamp jump with contiguous sequence numbers), where it is
+ *  not audible. Within a talkspurt no frames are inserted or dropped: a late
+ *  arrival (jitter spike) raises the target at once and otherwise the target is
+ *  moved by a single frame at most every few seconds; the player reaches
+ *  the target by time-scaling the playout.
+ *
+ *  The time constants of the adaptation are measured by the arrival clock
+ *  of the frames, so they do not depend on how often the player runs.
+ *
+ *  Setting the minimum and the maximum depth to the same value gives a static
+ *  (non-adaptive) de-jitter buffer.
+ */
+public class AdaptiveJitterBuffer implements JitterBuffer
+{
+    /** The jitter estimate is multiplied by this factor to get the desired delay */
+    private final static double JITTER_FACTOR = 4.0;
+
+    /** The time without boundary after which the target is moved (ms) */
+    private final static long FORCED_ADAPTATION_MILLIS = 5000;
+
+    /** The time without underruns after which the floor decays (ms) */
+    private final static long FLOOR_DECAY_MILLIS = 10000;
+
+    /** An arrival gap longer than this number of frames is a jitter spike */
+    private final static int SPIKE_GAP_FRAMES = 2;
+
+    /** Frame interval in milliseconds */
+    private final int frameInterval;
+
+    /** The minimum depth */
+    private final int minDepth;
+
+    /** The maximum depth */
+    private final int maxDepth;
+
+    /** Jitter estimate in milliseconds */
+    private double jitter = 0;
+
+    /** Indicates that there is a previous frame (for jitter and boundaries) */
+    private boolean havePrevious = false;
+
+    /** The relative transit time of the previous frame */
+    private long lastTransit = 0;
+
+    /** The time-stamp of the previous frame */
+    private long lastTimestamp = 0;
+
+    /** The arrival time of the previous frame */
+    private long lastArrival = 0;
+
+    /** The latest arrival time of any frame, i.e. the elapsed media time (ms) */
+    private long now = 0;
+
+    /** Indicates that the talkspurt boundary has been signalled */
+    private boolean boundary = true;
+
+    /** Indicates that a jitter spike has been seen within the talkspurt */
+    private boolean spike = false;
+
+    /** The depth raised by underruns */
+    private int floor;
+
+    /** The current target depth */
+    private int target;
+
+    /** The depth seen on the last playout run */
+    private int depth = 0;
+
+    /** The arrival time at which the target was last moved */
+    private long lastAdaptation = 0;
+
+    /** The arrival time of the last underrun (or of the floor decay) */
+    private long lastUnderrun = 0;
+
+    /** Number of underruns */
+    private long underrunCount = 0;
+
+    /**
+     *  Creates policy with the given frame interval and depth limits (in frames).
+     */
+    public AdaptiveJitterBuffer( int frameInterval, int minDepth, int maxDepth )
+    {
+        this.frameInterval = frameInterval;
+        this.minDepth = Math.max( 1, minDepth );
+        this.maxDepth = Math.max( this.minDepth, maxDepth );
+
+        reset ();
+    }
+
+    /**
+     *  Resets the state (except the underrun counter)
+     */
+    public synchronized void reset ()
+    {
+        this.jitter = 0;
+        this.havePrevious = false;
+        this.boundary = true;
+        this.spike = false;
+        this.floor = this.minDepth;
+        this.target = this.minDepth + 1 <= this.maxDepth ? this.minDepth + 1 : this.minDepth;
+        this.depth = 0;
+    }
+
+    /**
+     *  Updates the jitter estimate and detects jitter spikes
+     */
+    public synchronized void onFrameArrived( long timestamp, long arrivalTime )
+    {
+        long transit = arrivalTime - timestamp;
+
+        if ( ! this.havePrevious || arrivalTime - this.now > 0 ) {
+            this.now = arrivalTime;
+        }
+
+        if ( ! this.havePrevious )
+        {
+            this.lastAdaptation = arrivalTime;
+            this.lastUnderrun = arrivalTime;
+        }
+        else
+        {
+            if ( timestamp - this.lastTimestamp < 0 ) {
+                return; // reordered frame; keep the estimate monotonic in media time
+            }
+
+            long d = Math.abs( transit - this.lastTransit );
+            this.jitter += ( d - this.jitter ) / 16.0;
+
+            /* A late arrival is jitter, not a pause of the sender
+             */
+            if ( arrivalTime - this.lastArrival > SPIKE_GAP_FRAMES * this.frameInterval ) {
+                this.spike = true;
+            }
+        }
+
+        this.havePrevious = true;
+        this.lastTransit = transit;
+        this.lastTimestamp = timestamp;
+        this.lastArrival = arrivalTime;
+    }
+
+    /**
+     *  Marks the talkspurt boundary
+     */
+    public synchronized void onTalkspurt ()
+    {
+        this.boundary = true;
+    }
+
+    /**
+     *  Returns the depth covering the current jitter estimate and underruns
+     */
+    private int getDesiredDepth ()
+    {
+        int d = 1 + (int) Math.ceil( JITTER_FACTOR * this.jitter / this.frameInterval );
+        d = Math.max( d, this.floor );
+        return Math.min( this.maxDepth, Math.max( this.minDepth, d ) );
+    }
+
+    /**
+     *  Returns the depth covering the jitter observed so far
+     */
+    public synchronized int getStartDepth ()
+    {
+        return getDesiredDepth ();
+    }
+
+    /**
+     *  Conceals missing frame if the audio output holds less than two frames
+     */
+    public int getConcealDepth ()
+    {
+        return 2;
+    }
+
+    /**
+     *  Counts the underrun and raises the floor of the desired depth
+     */
+    public synchronized void onUnderrun ()
+    {
+        ++this.underrunCount;
+        this.lastUnderrun = this.now;
+
+        if ( this.floor < this.maxDepth ) {
+            ++this.floor;
+        }
+    }
+
+    /**
+     *  Moves the target towards the desired depth at talkspurt boundaries
+     *  and returns the number of frames to be inserted or dropped.
+     */
+    public synchronized int adjustPlayout( int depth )
+    {
+        this.depth = depth;
+
+        if ( this.now - this.lastUnderrun >= FLOOR_DECAY_MILLIS )
+        {
+            this.lastUnderrun = this.now;
+            if ( this.floor > this.minDepth ) {
+                --this.floor;
+            }
+        }
+
+        if ( ! this.boundary )
+        {
+            /* Raise the target after a jitter spike; the player glides to it
+             */
+            if ( this.spike )
+            {
+                this.spike = false;
+                this.target = Math.max( this.target, getDesiredDepth () );
+            }
+
+            /* Move the target by one frame; the player glides to it
+             */
+            if ( this.now - this.lastAdaptation >= FORCED_ADAPTATION_MILLIS )
+            {
+                this.lastAdaptation = this.now;
+
+                int desired = getDesiredDepth ();
+                if ( desired > this.target ) {
+                    ++this.target;
+                } else if ( desired < this.target ) {
+                    --this.target;
+                }
+            }
+
+            return 0;
+        }
+
+        int maxStep = this.maxDepth; // not audible; move all the way
+
+        this.boundary = false;
+        this.spike = false;
+        this.lastAdaptation = this.now;
+        this.target = getDesiredDepth ();
+
+        int diff = this.target - depth;
+
+        if ( diff > 0 ) {
+            return Math.min( diff, maxStep );
+        } else if ( diff < -1 ) { // allow one frame of hysteresis when shrinking
+            return Math.max( diff + 1, -maxStep );
+        }
+
+        return 0;
+    }
+
+    /**
+     *  Returns the depth seen on the last playout run
+     */
+    public synchronized int getDepth ()
+    {
+        return this.depth;
+    }
+
+    /**
+     *  Returns the current target depth
+     */
+    public synchronized int getTargetDepth ()
+    {
+        return this.target;
+    }
+
+    /**
+     *  Returns the estimated inter-arrival jitter in milliseconds
+     */
+    public synchronized double getJitter ()
+    {
+        return this.jitter;
+    }
+
+    /**
+     *  Returns the number of underruns
+     */
+    public synchronized long getUnderrunCount ()
+    {
+        return this.underrunCount;
+    }
+}
@@ -1,7 +1,8 @@
 
 package audio;
 
-import utils.OctetBuffer;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 
 /**
  *  Converts a 16-bit linear PCM stream from and to 8-bit A-law.
@@ -15,7 +16,7 @@ public class AudioCodecAlaw extends AbstractCODEC
     /**
      *  Constructs A-Law CODEC above existing PCM audio interface
      */
-    public AudioCodecAlaw( AudioInterfacePCM audio ) 
+    public AudioCodecAlaw( AudioInterface audio ) 
     {
         this.audio = audio;
         this.sampleSize = this.audio.getSampleSize ();
@@ -44,12 +45,33 @@ public class AudioCodecAlaw extends AbstractCODEC
      */
     public void convertToPCM( byte[] in, byte[] out )
     {
-        OctetBuffer bb = OctetBuffer.wrap( out );
+        decode( in, 0, out, 0, in.length );
+    }
+
+    /**
+     *  Decodes data from PCM, i.e. converts samples between the position and 
+     *  the limit of the input buffer from A-Law to PCM format.
+     */
+    public void convertToPCM( ByteBuffer in, byte[] out )
+    {
+        int start = in.position ();
+        int count = Math.min( in.remaining (), out.length / 2 );
 
-        for ( int i = 0; i < in.length; ++i ) 
+        if ( in.hasArray () )
+        {
+            decode( in.array (), in.arrayOffset () + start, out, 0, count );
+        }
+        else
         {
-            bb.putShort( alaw2linear( in[i] ) );
+            for ( int i = 0; i < count; ++i ) 
+            {
+                short s = alaw2linear( in.get( start + i ) );
+                out[ 2 * i ] = (byte) ( s >> 8 );
+                out[ 2 * i + 1 ] = (byte) s;
+            }
         }
+
+        Arrays.fill( out, 2 * count, out.length, (byte) 0 );
     }
 
     /**
@@ -57,11 +79,36 @@ public class AudioCodecAlaw extends AbstractCODEC
      */
     public void convertFromPCM( byte[] in, byte[] out ) 
     {
-        OctetBuffer bb = OctetBuffer.wrap( in );
+        encode( in, 0, out, 0, in.length / 2 );
+    }
+
+    /**
+     *  Encodes <code>count</code> big-endian 16-bit linear PCM samples 
+     *  to A-law using the lookup table.
+     */
+    public static void encode( byte[] pcm, int pcmOffset, byte[] out, int outOffset, int count )
+    {
+        final byte[] table = lin2alaw_table;
 
-        for( int i = 0; i < in.length / 2; ++i )
+        for ( int i = 0, j = pcmOffset; i < count; ++i, j += 2 ) 
         {
-            out[i] = linear2alaw( bb.getShort () );
+            out[ outOffset + i ] = table[ ( ( pcm[j] << 8 ) | ( pcm[j + 1] & 0xFF ) ) & 0xFFFF ];
+        }
+    }
+
+    /**
+     *  Decodes <code>count</code> A-law samples to big-endian 16-bit linear PCM 
+     *  using the lookup table.
+     */
+    public static void decode( byte[] in, int inOffset, byte[] pcm, int pcmOffset, int count )
+    {
+        final short[] table = alaw2lin_table;
+
+        for ( int i = 0, j = pcmOffset; i < count; ++i, j += 2 ) 
+        {
+            short s = table[ in[ inOffset + i ] & 0xFF ];
+            pcm[j] = (byte) ( s >> 8 );
+            pcm[j + 1] = (byte) s;
         }
     }
 
@@ -106,7 +153,7 @@ public class AudioCodecAlaw extends AbstractCODEC
     /**
      *  Converts a 16-bit linear PCM value to 8-bit A-law
      */
-    private static byte linear2alaw( short pcm_value ) 
+    public static byte linear2alaw( short pcm_value ) 
     {
         
         int pcm = pcm_value >> 3;
@@ -153,7 +200,7 @@ public class AudioCodecAlaw extends AbstractCODEC
     /**
      *  Converts an 8-bit A-law value to 16-bit linear PCM
      */
-    private static short alaw2linear( byte alaw_value )
+    public static short alaw2linear( byte alaw_value )
     {
         
         int a_val = ( ( alaw_value + 0x100 ) & 0xFF ) ^ 0x55;
@@ -176,5 +223,23 @@ public class AudioCodecAlaw extends AbstractCODEC
 
         return (short)( ( a_val & SIGN_BIT ) != 0 ? t : -t );        
     }
+
+    /* Linear to A-Law conversion table indexed by the 16-bit sample as unsigned
+     */
+    private static final byte[] lin2alaw_table = new byte[ 65536 ];
+
+    /* A-Law to linear conversion table
+     */
+    private static final short[] alaw2lin_table = new short[ 256 ];
+
+    static 
+    {
+        for ( int i = 0; i < lin2alaw_table.length; ++i ) {
+            lin2alaw_table[i] = linear2alaw( (short) i );
+        }
+        for ( int i = 0; i < alaw2lin_table.length; ++i ) {
+            alaw2lin_table[i] = alaw2linear( (byte) i );
+        }
+    }
 }
 
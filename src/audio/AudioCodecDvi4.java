@@ -0,0 +1,256 @@
+
+package audio;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ *  Converts a 16-bit linear PCM stream from and to 4-bit IMA ADPCM, framed as
+ *  DVI4 (RFC 3551, 4.5.1): 32 kbit/s at 8 kHz, i.e. half the bit rate of G.711.
+ *
+ *  Each coded frame starts with a 4-octet header carrying the state of the encoder
+ *  at the start of the frame (the predicted value as 16-bit big-endian sample,
+ *  the step index and a reserved octet), followed by the samples as 4-bit codes,
+ *  the first sample in the most significant nibble. The encoder carries its state
+ *  from frame to frame, while the decoder restarts from the header of every frame,
+ *  so a lost frame does not disturb decoding of the following frames.
+ */
+public class AudioCodecDvi4 extends AbstractCODEC
+{
+    /** Length of the frame header */
+    private final static int HEADER_LENGTH = 4;
+
+    /** Number of PCM samples per frame */
+    private final int samplesPerFrame;
+
+    /** The predicted value of the encoder */
+    private int encoderPredictor = 0;
+
+    /** The step index of the encoder */
+    private int encoderIndex = 0;
+
+    /** Copy of the frame received in a buffer without accessible array */
+    private final byte[] inputCopy;
+
+    /**
+     *  Constructs DVI4 CODEC above existing PCM audio interface
+     */
+    public AudioCodecDvi4( AudioInterface audio )
+    {
+        this.audio = audio;
+        this.samplesPerFrame = this.audio.getSampleSize () / 2;
+        this.outputPcmBuf = new byte[ this.audio.getSampleSize () ];
+        this.inputPcmBuf = new byte[ this.audio.getSampleSize () ];
+        this.inputCopy = new byte[ getSampleSize () ];
+    }
+
+    /**
+     * Gets the VoicePDU subclass attribute of the AbstractAudio object
+     */
+    public int getVoicePduSubclass ()
+    {
+        return protocol.VoicePDU.DVI4;
+    }
+
+    /**
+     *  Returns the size of the coded frame: the header and two samples per octet
+     */
+    public int getSampleSize ()
+    {
+        return HEADER_LENGTH + ( this.samplesPerFrame + 1 ) / 2;
+    }
+
+    /**
+     *  Returns the number of PCM octets decoded from the given number of coded octets
+     */
+    public int getPcmLength( int codedLength )
+    {
+        return 4 * Math.max( 0, codedLength - HEADER_LENGTH );
+    }
+
+    /**
+     *  Resets the state of the encoder
+     */
+    protected void resetEncoder ()
+    {
+        this.encoderPredictor = 0;
+        this.encoderIndex = 0;
+    }
+
+    /**
+     *  Decodes data from DVI4 to PCM format.
+     */
+    public void convertToPCM( byte[] in, byte[] out )
+    {
+        int count = decode( in, 0, in.length, out );
+        Arrays.fill( out, 2 * count, out.length, (byte) 0 );
+    }
+
+    /**
+     *  Decodes data from DVI4 to PCM, i.e. converts samples between the position and
+     *  the limit of the input buffer.
+     */
+    public void convertToPCM( ByteBuffer in, byte[] out )
+    {
+        int start = in.position ();
+        int length = in.remaining ();
+        int count = 0;
+
+        if ( in.hasArray () )
+        {
+            count = decode( in.array (), in.arrayOffset () + start, length, out );
+        }
+        else
+        {
+            length = Math.min( length, this.inputCopy.length );
+            in.duplicate ().get( this.inputCopy, 0, length );
+            count = decode( this.inputCopy, 0, length, out );
+        }
+
+        Arrays.fill( out, 2 * count, out.length, (byte) 0 );
+    }
+
+    /**
+     *  Encodes data from PCM to DVI4 format.
+     */
+    public void convertFromPCM( byte[] in, byte[] out )
+    {
+        int count = Math.min( in.length / 2, 2 * ( out.length - HEADER_LENGTH ) );
+
+        /* Header: the state of the encoder at the start of the frame
+         */
+        out[0] = (byte) ( this.encoderPredictor >> 8 );
+        out[1] = (byte) this.encoderPredictor;
+        out[2] = (byte) this.encoderIndex;
+        out[3] = 0;
+
+        int predictor = this.encoderPredictor;
+        int index = this.encoderIndex;
+
+        for ( int i = 0; i < count; ++i )
+        {
+            int sample = (short) ( ( in[ 2 * i ] << 8 ) | ( in[ 2 * i + 1 ] & 0xFF ) );
+
+            /* Quantize the difference from the prediction with the current step
+             */
+            int step = STEP_TABLE[ index ];
+            int diff = sample - predictor;
+            int code = 0;
+
+            if ( diff < 0 ) {
+                code = 8;
+                diff = -diff;
+            }
+
+            int vpdiff = step >> 3;
+
+            if ( diff >= step ) {
+                code |= 4;
+                diff -= step;
+                vpdiff += step;
+            }
+            step >>= 1;
+            if ( diff >= step ) {
+                code |= 2;
+                diff -= step;
+                vpdiff += step;
+            }
+            step >>= 1;
+            if ( diff >= step ) {
+                code |= 1;
+                vpdiff += step;
+            }
+
+            /* Track the decoder's reconstruction
+             */
+            predictor += ( code & 8 ) != 0 ? -vpdiff : vpdiff;
+            predictor = Math.max( -32768, Math.min( 32767, predictor ) );
+
+            index += INDEX_TABLE[ code ];
+            index = Math.max( 0, Math.min( STEP_TABLE.length - 1, index ) );
+
+            int j = HEADER_LENGTH + i / 2;
+            if ( ( i & 1 ) == 0 ) {
+                out[j] = (byte) ( code << 4 );
+            } else {
+                out[j] |= (byte) code;
+            }
+        }
+
+        this.encoderPredictor = predictor;
+        this.encoderIndex = index;
+    }
+
+    /**
+     *  Decodes the DVI4 frame of the given length into big-endian 16-bit PCM.
+     *
+     *  @return number of decoded samples
+     */
+    public static int decode( byte[] in, int offset, int length, byte[] pcm )
+    {
+        if ( length < HEADER_LENGTH ) {
+            return 0;
+        }
+
+        int predictor = (short) ( ( in[ offset ] << 8 ) | ( in[ offset + 1 ] & 0xFF ) );
+        int index = Math.min( STEP_TABLE.length - 1, in[ offset + 2 ] & 0xFF );
+
+        int count = Math.min( 2 * ( length - HEADER_LENGTH ), pcm.length / 2 );
+
+        for ( int i = 0; i < count; ++i )
+        {
+            int octet = in[ offset + HEADER_LENGTH + i / 2 ];
+            int code = ( i & 1 ) == 0 ? ( octet >> 4 ) & 0x0F : octet & 0x0F;
+
+            int step = STEP_TABLE[ index ];
+            int vpdiff = step >> 3;
+
+            if ( ( code & 4 ) != 0 ) {
+                vpdiff += step;
+            }
+            if ( ( code & 2 ) != 0 ) {
+                vpdiff += step >> 1;
+            }
+            if ( ( code & 1 ) != 0 ) {
+                vpdiff += step >> 2;
+            }
+
+            predictor += ( code & 8 ) != 0 ? -vpdiff : vpdiff;
+            predictor = Math.max( -32768, Math.min( 32767, predictor ) );
+
+            index += INDEX_TABLE[ code ];
+            index = Math.max( 0, Math.min( STEP_TABLE.length - 1, index ) );
+
+            pcm[ 2 * i ] = (byte) ( predictor >> 8 );
+            pcm[ 2 * i + 1 ] = (byte) predictor;
+        }
+
+        return count;
+    }
+
+    ///////////////////////////////////////////////////////////// ALGORITHM //////////////
+    /*
+     *  IMA ADPCM step size adaptation (IMA Digital Audio Focus and Technical Working
+     *  Group, Recommended Practices for Enhancing Digital Audio Compatibility in
+     *  Multimedia Systems, 1992).
+     */
+
+    /* Step index adjustment indexed by the 4-bit code */
+    private final static int[] INDEX_TABLE = {
+            -1, -1, -1, -1, 2, 4, 6, 8,
+            -1, -1, -1, -1, 2, 4, 6, 8
+            };
+
+    /* Quantizer step sizes */
+    private final static int[] STEP_TABLE = {
+                7,     8,     9,    10,    11,    12,    13,    14,    16,    17,
+               19,    21,    23,    25,    28,    31,    34,    37,    41,    45,
+               50,    55,    60,    66,    73,    80,    88,    97,   107,   118,
+              130,   143,   157,   173,   190,   209,   230,   253,   279,   307,
+              337,   371,   408,   449,   494,   544,   598,   658,   724,   796,
+              876,   963,  1060,  1166,  1282,  1411,  1552,  1707,  1878,  2066,
+             2272,  2499,  2749,  3024,  3327,  3660,  4026,  4428,  4871,  5358,
+             5894,  6484,  7132,  7845,  8630,  9493, 10442, 11487, 12635, 13899,
+            15289, 16818, 18500, 20350, 22385, 24623, 27086, 29794, 32767
+            };
+}
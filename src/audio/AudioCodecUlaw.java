@@ -1,7 +1,8 @@
 
 package audio;
 
-import utils.OctetBuffer;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 
 /**
  *  Converts a 16-bit linear PCM stream from and to 8-bit u-law.
@@ -15,7 +16,7 @@ public class AudioCodecUlaw extends AbstractCODEC
     /**
      *  Constructs A-Law CODEC above existing PCM audio interface
      */
-    public AudioCodecUlaw( AudioInterfacePCM audio ) 
+    public AudioCodecUlaw( AudioInterface audio ) 
     {
         this.audio = audio;
         this.sampleSize = this.audio.getSampleSize ();
@@ -44,10 +45,33 @@ public class AudioCodecUlaw extends AbstractCODEC
      */
     public void convertToPCM( byte[] in, byte[] out )
     {
-        OctetBuffer bb = OctetBuffer.wrap(out);
-        for (int i = 0; i < in.length; i++) {
-          bb.putShort( ulaw2linear( in[i] ) );
+        decode( in, 0, out, 0, in.length );
+    }
+
+    /**
+     *  Decodes data from PCM, i.e. converts samples between the position and 
+     *  the limit of the input buffer from u-Law to PCM format.
+     */
+    public void convertToPCM( ByteBuffer in, byte[] out )
+    {
+        int start = in.position ();
+        int count = Math.min( in.remaining (), out.length / 2 );
+
+        if ( in.hasArray () )
+        {
+            decode( in.array (), in.arrayOffset () + start, out, 0, count );
+        }
+        else
+        {
+            for ( int i = 0; i < count; ++i ) 
+            {
+                short s = ulaw2linear( in.get( start + i ) );
+                out[ 2 * i ] = (byte) ( s >> 8 );
+                out[ 2 * i + 1 ] = (byte) s;
+            }
         }
+
+        Arrays.fill( out, 2 * count, out.length, (byte) 0 );
     }
 
     /**
@@ -55,10 +79,36 @@ public class AudioCodecUlaw extends AbstractCODEC
      */
     public void convertFromPCM( byte[] in, byte[] out )
     {
-        OctetBuffer bb = OctetBuffer.wrap(in);
-        for ( int i = 0; i < out.length; ++i )
+        encode( in, 0, out, 0, out.length );
+    }
+
+    /**
+     *  Encodes <code>count</code> big-endian 16-bit linear PCM samples 
+     *  to u-law using the lookup table.
+     */
+    public static void encode( byte[] pcm, int pcmOffset, byte[] out, int outOffset, int count )
+    {
+        final byte[] table = lin2ulaw_table;
+
+        for ( int i = 0, j = pcmOffset; i < count; ++i, j += 2 ) 
         {
-            out[i] = linear2ulaw( bb.getShort () );
+            out[ outOffset + i ] = table[ ( ( pcm[j] << 8 ) | ( pcm[j + 1] & 0xFF ) ) & 0xFFFF ];
+        }
+    }
+
+    /**
+     *  Decodes <code>count</code> u-law samples to big-endian 16-bit linear PCM 
+     *  using the lookup table.
+     */
+    public static void decode( byte[] in, int inOffset, byte[] pcm, int pcmOffset, int count )
+    {
+        final short[] table = ulaw2lin_table;
+
+        for ( int i = 0, j = pcmOffset; i < count; ++i, j += 2 ) 
+        {
+            short s = table[ in[ inOffset + i ] & 0xFF ];
+            pcm[j] = (byte) ( s >> 8 );
+            pcm[j + 1] = (byte) s;
         }
     }
 
@@ -187,4 +237,15 @@ public class AudioCodecUlaw extends AbstractCODEC
     {
         return ulaw2lin_table[ ulawbyte & 0xFF ];
     }
+
+    /* Linear to u-Law conversion table indexed by the 16-bit sample as unsigned
+     */
+    private static final byte[] lin2ulaw_table = new byte[ 65536 ];
+
+    static 
+    {
+        for ( int i = 0; i < lin2ulaw_table.length; ++i ) {
+            lin2ulaw_table[i] = linear2ulaw( (short) i );
+        }
+    }
 }
@@ -5,6 +5,7 @@
 package audio;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 /**
  *  The abstract audio interface.
@@ -70,6 +71,34 @@ public interface AudioInterface
      */
     public abstract void writeBuffered( byte[] buff, long timestamp ) throws IOException;
     
+    /**
+     *  Plays the sample found between the position and the limit of the given buffer.
+     *  The sample is copied (or decoded) into the de-jitter buffer before the method 
+     *  returns, so the caller may reuse the buffer afterwards.
+     */
+    public abstract void writeBuffered( ByteBuffer buff, long timestamp ) throws IOException;
+    
+    /**
+     *  Plays comfort noise of the given level (0 to 127, in -dBov) from the given
+     *  time-stamp until the next sample written with writeBuffered(); the remote peer 
+     *  does not send samples while its user is silent (see ComfortNoise).
+     */
+    public abstract void writeComfortNoise( int level, long timestamp ) throws IOException;
+    
+    /**
+     *  Returns the level of the background noise (0 to 127, in -dBov) if the last
+     *  sample returned by readWithTimestamp() carried no voice; -1 if it carried voice
+     *  (see VoiceActivityDetector).
+     */
+    public abstract int getNoiseLevel ();
+    
+    /**
+     *  Notifies the player that the next sample written with writeBuffered() starts
+     *  a talkspurt after a pause of the remote peer, where the playout delay may be
+     *  changed without clipping the voice (see JitterBuffer).
+     */
+    public abstract void markTalkspurt ();
+    
     /**
      *  Writes directly to source line without buffering
      */
@@ -0,0 +1,642 @@
+
+package audio;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import protocol.VoicePDU;
+import utils.Log;
+import utils.MediaClock;
+import utils.MediaScheduler;
+
+/**
+ *  Audio interface that does not need any sound hardware: captured audio is read
+ *  from a PCM source and played audio is written to a PCM sink (in memory, WAV or
+ *  raw files). Samples are 16-bit signed big-endian mono at 8 kHz.
+ *
+ *  As with the javax.sound based interface, every 20 ms tick sends one captured
+ *  frame through the audio sender and plays one frame from the de-jitter buffer
+ *  (concealing missing frames). Ticks of all instances are driven by the shared
+ *  media scheduler, so thousands of simulated endpoints can run in a single process.
+ */
+public class AudioInterfaceHeadless implements AudioInterface
+{
+    //////////////////////////////////////////////////////////////////////////////////////
+    /* Constants
+     */
+    /** Audio buffering depth in number of frames */
+    private static final int FRAME_COUNT = 10;
+
+    /** Frame interval in milliseconds */
+    private static final int FRAME_INTERVAL = 20;
+
+    /** Frame size in octets (20 ms of 16-bit samples at 8 kHz) */
+    private static final int SAMPLE_SIZE = 320;
+
+    //////////////////////////////////////////////////////////////////////////////////////
+    /* Audio input
+     */
+    private final PcmSource source;
+    private volatile Packetizer audioSender = null;
+    private volatile boolean recording = false;
+    private long mediaTime = 0; // milliseconds; advanced by ticks
+    private final VoiceActivityDetector vad = new VoiceActivityDetector ();
+    private int noiseLevel = -1; // of the last read frame; -1 if voice
+
+    //////////////////////////////////////////////////////////////////////////////////////
+    /* Audio output
+     */
+    private final PcmSink sink;
+    private final AudioBuffer[] playBuffer = new AudioBuffer[ FRAME_COUNT + FRAME_COUNT ];
+    private int jitBufPut = 0; // the last received frame number
+    private int jitBufGet = 0; // the next played frame number
+    private boolean receiving = false; // at least one frame has been received
+    private boolean playing = false; // frames are played
+    private final byte[] silence = new byte[ SAMPLE_SIZE ];
+
+    /** The playout policy; decides the depth of the dejitter buffer */
+    private volatile JitterBuffer jitterBuffer =
+        new AdaptiveJitterBuffer( FRAME_INTERVAL, 1, FRAME_COUNT - 1 );
+
+    /** Packet loss concealment of the played samples; null if none */
+    private volatile PacketLossConcealer concealer = new PitchWaveformConcealer ();
+    private final short[] concealerSamples = new short[ SAMPLE_SIZE / 2 ];
+
+    /** Comfort noise filling the pauses of the remote peer's transmission */
+    private final ComfortNoise comfortNoise = new ComfortNoise ();
+    private final byte[] noiseFrame = new byte[ SAMPLE_SIZE ];
+    private boolean noisePlaying = false; // missing frames are filled with comfort noise
+    private boolean noiseEnding = false; // voice resumes with the frame noiseEndFrame
+    private int noiseEndFrame = 0;
+
+    /** Monotonic clock time-stamping arrival of frames */
+    private final MediaClock arrivalClock = new MediaClock( 8000 );
+
+    /** Number of frames written to the sink */
+    private volatile long playedFrameCount = 0;
+
+    /** Number of frames read from the source and sent */
+    private volatile long sentFrameCount = 0;
+
+    /** The scheduled tick */
+    private volatile MediaScheduler.Handle tick = null;
+
+    //////////////////////////////////////////////////////////////////////////////////////
+
+    /**
+     *  Creates interface reading captured audio from the source and writing
+     *  played audio to the sink (either may be null) and starts ticking.
+     */
+    public AudioInterfaceHeadless( PcmSource source, PcmSink sink )
+    {
+        this.source = source;
+        this.sink = sink;
+
+        for ( int i = 0; i < this.playBuffer.length; ++i ) {
+            this.playBuffer[i] = new AudioBuffer( SAMPLE_SIZE );
+        }
+
+        Runnable thread = new Runnable () {
+            public void run () {
+                try {
+                    onTick ();
+                } catch( Exception e ) {
+                    Log.exception( Log.WARN, e ); // keep ticking
+                }
+            }
+        };
+
+        this.tick = MediaScheduler.getDefault ().scheduleAtFixedRate( 
+                thread, FRAME_INTERVAL * 1000000L );
+    }
+
+    /**
+     *  Called every FRAME_INTERVAL ms: sends one captured frame and plays one frame
+     */
+    private void onTick () throws IOException
+    {
+        Packetizer sender = this.audioSender;
+        if ( sender != null && this.recording ) {
+            sender.send ();
+        }
+
+        this.mediaTime += FRAME_INTERVAL;
+
+        playFrame ();
+    }
+
+    //////////////////////////////////////////////////////////////////////////////////////
+
+    /**
+     *  Returns the sample size (20 ms of 16-bit linear samples)
+     */
+    public int getSampleSize ()
+    {
+        return SAMPLE_SIZE;
+    }
+
+    /**
+     *  Returns our VoicePDU format
+     */
+    public int getVoicePduSubclass ()
+    {
+        return VoicePDU.LIN16;
+    }
+
+    /**
+     *  Reads the next frame from the source (silence if not recording or
+     *  if the source is exhausted) and detects voice in it. Returns the media time.
+     */
+    public long readWithTimestamp( byte[] buff ) throws IOException
+    {
+        int len = 0;
+
+        if ( this.recording && this.source != null ) {
+            len = Math.max( 0, this.source.read( buff ) );
+        }
+
+        for ( int i = len; i < buff.length; ++i ) {
+            buff[i] = 0;
+        }
+
+        this.noiseLevel = this.vad.process( buff, 0, buff.length ) 
+                        ? -1 : this.vad.getNoiseLevel ();
+
+        ++this.sentFrameCount;
+
+        return this.mediaTime;
+    }
+
+    /**
+     *  Starts recording (reading from the source)
+     */
+    public long startRecording ()
+    {
+        this.vad.reset ();
+        this.recording = true;
+        return this.mediaTime;
+    }
+
+    /**
+     *  Stops recording
+     */
+    public void stopRecording ()
+    {
+        this.recording = false;
+    }
+
+    /**
+     *  Returns the level of the background noise if the last read frame
+     *  carried no voice; -1 if it carried voice
+     */
+    public int getNoiseLevel ()
+    {
+        return this.noiseLevel;
+    }
+
+    /**
+     *  Sets the audio sender called on every tick
+     */
+    public void setAudioSender( Packetizer as )
+    {
+        this.audioSender = as;
+    }
+
+    //////////////////////////////////////////////////////////////////////////////////////
+
+    /**
+     *  Enqueues frame for playing into the de-jitter buffer
+     */
+    public void writeBuffered( byte[] buff, long timestamp ) throws IOException
+    {
+        AudioBuffer ab = enqueue( timestamp );
+        if ( ab == null ) {
+            return;
+        }
+
+        byte[] nbuff = ab.getByteArray ();
+        int len = Math.min( nbuff.length, buff.length );
+
+        synchronized( this.playBuffer )
+        {
+            System.arraycopy( buff, 0, nbuff, 0, len );
+            for ( int i = len; i < nbuff.length; ++i ) {
+                nbuff[i] = 0;
+            }
+            ab.setWritten ();
+        }
+    }
+
+    /**
+     *  Enqueues frame found between the position and the limit of the buffer
+     *  for playing into de-jitter buffer.
+     */
+    public void writeBuffered( ByteBuffer buff, long timestamp ) throws IOException
+    {
+        AudioBuffer ab = enqueue( timestamp );
+        if ( ab == null ) {
+            return;
+        }
+
+        byte[] nbuff = ab.getByteArray ();
+        int len = Math.min( nbuff.length, buff.remaining () );
+
+        synchronized( this.playBuffer )
+        {
+            int start = buff.position ();
+            buff.get( nbuff, 0, len );
+            buff.position( start );
+            for ( int i = len; i < nbuff.length; ++i ) {
+                nbuff[i] = 0;
+            }
+            ab.setWritten ();
+        }
+    }
+
+    /**
+     *  Marks the talkspurt boundary for the playout policy
+     */
+    public void markTalkspurt ()
+    {
+        this.jitterBuffer.onTalkspurt ();
+    }
+
+    /**
+     *  Fills the missing frames with comfort noise of the given level from the given
+     *  time-stamp until the next received frame
+     */
+    public void writeComfortNoise( int level, long timestamp )
+    {
+        this.jitterBuffer.onFrameArrived( timestamp, this.arrivalClock.getMillis () );
+        this.comfortNoise.setLevel( level );
+
+        synchronized( this.playBuffer )
+        {
+            if ( this.receiving ) {
+                this.noisePlaying = true;
+                this.noiseEnding = false;
+            }
+        }
+    }
+
+    /**
+     *  Accounts for the arrived frame and returns the buffer it should be stored
+     *  into; null if it arrived too late.
+     */
+    private AudioBuffer enqueue( long timestamp )
+    {
+        int fno = (int) ( timestamp / FRAME_INTERVAL );
+
+        this.jitterBuffer.onFrameArrived( timestamp, this.arrivalClock.getMillis () );
+
+        synchronized( this.playBuffer )
+        {
+            if ( ! this.receiving )
+            {
+                this.receiving = true;
+                this.jitBufGet = fno;
+                this.jitBufPut = fno;
+            }
+            else if ( fno - this.jitBufGet < 0 )
+            {
+                return null; // too late; already played (or concealed)
+            }
+            else if ( fno - this.jitBufGet >= this.playBuffer.length )
+            {
+                /* Too far ahead (e.g. the sender was restarted): resynchronize
+                 */
+                for ( int i = 0; i < this.playBuffer.length; ++i ) {
+                    this.playBuffer[i].setRead ();
+                }
+                this.jitBufGet = fno;
+                this.playing = false;
+            }
+
+            if ( fno - this.jitBufPut > 0 ) {
+                this.jitBufPut = fno;
+            }
+
+            /* The comfort noise ends where the voice resumes
+             */
+            if ( this.noisePlaying && ( ! this.noiseEnding || fno - this.noiseEndFrame < 0 ) ) {
+                this.noiseEnding = true;
+                this.noiseEndFrame = fno;
+            }
+
+            AudioBuffer ab = this.playBuffer[ ( fno & 0x7FFFFFFF ) % this.playBuffer.length ];
+            ab.setTimestamp( timestamp );
+
+            return ab;
+        }
+    }
+
+    /**
+     *  Plays one frame: the next frame from the de-jitter buffer if received,
+     *  comfort noise or concealed frame if missing, or silence if the playout
+     *  has not started.
+     */
+    private void playFrame () throws IOException
+    {
+        JitterBuffer policy = this.jitterBuffer;
+        byte[] frame = this.silence;
+        boolean concealed = false;
+
+        synchronized( this.playBuffer )
+        {
+            if ( this.receiving && ! this.playing
+                    && this.jitBufPut - this.jitBufGet + 1 >= policy.getStartDepth () )
+            {
+                this.playing = true;
+            }
+
+            if ( this.playing )
+            {
+                int adjust = policy.adjustPlayout(
+                        Math.max( 0, this.jitBufPut - this.jitBufGet + 1 ) );
+
+                for ( ; adjust < 0 && this.jitBufGet - this.jitBufPut < 0; ++adjust ) {
+                    slot( this.jitBufGet++ ).setRead ();
+                }
+
+                if ( this.noisePlaying && this.noiseEnding 
+                        && this.jitBufGet - this.noiseEndFrame >= 0 ) {
+                    this.noisePlaying = false;
+                }
+
+                if ( adjust <= 0 )
+                {
+                    AudioBuffer ab = slot( this.jitBufGet );
+                    frame = ab.getByteArray ();
+
+                    if ( ab.isWritten () ) {
+                        applyConcealer( frame, false );
+                    } else if ( this.noisePlaying ) {
+                        generateComfortNoise( frame );
+                    } else {
+                        applyConcealer( frame, true );
+                        policy.onUnderrun ();
+                        concealed = true;
+                    }
+
+                    ab.setRead ();
+                    ++this.jitBufGet;
+
+                    /* Stop playing when the sender has stopped
+                     */
+                    if ( concealed && this.jitBufGet - this.jitBufPut > FRAME_COUNT ) {
+                        this.playing = false;
+                        this.receiving = false;
+                    }
+                }
+                else if ( this.noisePlaying ) // noise is inserted to grow the buffer
+                {
+                    frame = this.noiseFrame;
+                    generateComfortNoise( frame );
+                }
+                // else: silence is inserted to grow the buffer
+            }
+
+            if ( this.sink != null ) {
+                this.sink.write( frame, 0, frame.length );
+                ++this.playedFrameCount;
+            }
+        }
+    }
+
+    /**
+     *  Returns the de-jitter buffer slot of the frame number
+     */
+    private AudioBuffer slot( int fno )
+    {
+        return this.playBuffer[ ( fno & 0x7FFFFFFF ) % this.playBuffer.length ];
+    }
+
+    /**
+     *  Generates frame of comfort noise; the noise is passed to the concealer
+     *  as if it were received, so losses after the noise are concealed with noise.
+     */
+    private void generateComfortNoise( byte[] frame )
+    {
+        short[] s = this.concealerSamples;
+        int count = Math.min( s.length, frame.length / 2 );
+
+        this.comfortNoise.generate( s, count );
+
+        PacketLossConcealer plc = this.concealer;
+        if ( plc != null ) {
+            plc.addReceived( s, count );
+        }
+
+        for ( int i = 0; i < count; ++i ) {
+            frame[ 2 * i ] = (byte) ( s[i] >> 8 );
+            frame[ 2 * i + 1 ] = (byte) s[i];
+        }
+    }
+
+    /**
+     *  Passes the received frame through the concealer or conceals the missing one
+     */
+    private void applyConcealer( byte[] frame, boolean missing )
+    {
+        PacketLossConcealer plc = this.concealer;
+
+        if ( plc == null )
+        {
+            if ( missing ) {
+                System.arraycopy( this.silence, 0, frame, 0, frame.length );
+            }
+            return;
+        }
+
+        short[] s = this.concealerSamples;
+        int count = Math.min( s.length, frame.length / 2 );
+
+        for ( int i = 0; i < count; ++i ) {
+            s[i] = (short) ( ( frame[ 2 * i ] << 8 ) | ( frame[ 2 * i + 1 ] & 0xFF ) );
+        }
+
+        if ( missing ) {
+            plc.conceal( s, count );
+        } else {
+            plc.addReceived( s, count );
+        }
+
+        for ( int i = 0; i < count; ++i ) {
+            frame[ 2 * i ] = (byte) ( s[i] >> 8 );
+            frame[ 2 * i + 1 ] = (byte) s[i];
+        }
+    }
+
+    /**
+     *  Writes directly to the sink without buffering
+     */
+    public void writeDirectly( byte[] buff ) throws IOException
+    {
+        if ( this.sink == null ) {
+            return;
+        }
+
+        synchronized( this.playBuffer ) {
+            this.sink.write( buff, 0, buff.length );
+        }
+    }
+
+    /**
+     *  Starts the player (the playout starts with the first received frames)
+     */
+    public void startPlay ()
+    {
+        /* nothing to do */
+    }
+
+    /**
+     *  Stops the player and resets the de-jitter buffer
+     */
+    public void stopPlay ()
+    {
+        synchronized( this.playBuffer )
+        {
+            for ( int i = 0; i < this.playBuffer.length; ++i ) {
+                this.playBuffer[i].setRead ();
+            }
+
+            this.receiving = false;
+            this.playing = false;
+            this.noisePlaying = false;
+        }
+
+        this.jitterBuffer.reset ();
+
+        PacketLossConcealer plc = this.concealer;
+        if ( plc != null ) {
+            plc.reset ();
+        }
+    }
+
+    /**
+     *  Ringing is not simulated
+     */
+    public void startRinging ()
+    {
+        Log.audio( "Ringing (headless)" );
+    }
+
+    /**
+     *  Ringing is not simulated
+     */
+    public void stopRinging ()
+    {
+        /* nothing to do */
+    }
+
+    /**
+     *  Stops ticking and closes the source and the sink
+     */
+    public void cleanUp ()
+    {
+        MediaScheduler.Handle t = this.tick;
+        this.tick = null;
+
+        if ( t != null ) {
+            t.cancel ();
+        }
+
+        this.audioSender = null;
+
+        if ( this.source != null ) {
+            this.source.close ();
+        }
+
+        if ( this.sink != null ) {
+            synchronized( this.playBuffer ) {
+                this.sink.close ();
+            }
+        }
+    }
+
+    /**
+     *  Gets audio interface by VoicePDU format
+     */
+    public AudioInterface getByFormat( Integer format )
+    {
+        AudioInterface ret = null;
+        switch( format.intValue () )
+        {
+            case VoicePDU.ALAW:
+                ret = new AudioCodecAlaw( this );
+                break;
+            case VoicePDU.ULAW:
+                ret = new AudioCodecUlaw( this );
+                break;
+            case VoicePDU.DVI4:
+                ret = new AudioCodecDvi4( this );
+                break;
+            case VoicePDU.LIN16:
+                ret = this;
+                break;
+            default:
+                Log.warn( "Invalid format for Audio " + format.intValue () );
+                Log.warn( "Forced uLaw " );
+                ret = new AudioCodecUlaw( this );
+                break;
+        }
+
+        if ( ret instanceof AbstractCODEC ) {
+            this.concealer = ((AbstractCODEC) ret).createPacketLossConcealer ();
+        }
+
+        return ret;
+    }
+
+    //////////////////////////////////////////////////////////////////////////////////////
+
+    /**
+     *  Sets the playout policy deciding the depth of the dejitter buffer
+     */
+    public void setJitterBuffer( JitterBuffer policy )
+    {
+        if ( policy != null ) {
+            this.jitterBuffer = policy;
+        }
+    }
+
+    /**
+     *  Returns the playout policy (and its metrics)
+     */
+    public JitterBuffer getJitterBuffer ()
+    {
+        return this.jitterBuffer;
+    }
+
+    /**
+     *  Sets the packet loss concealer (null to conceal missing frames by silence)
+     */
+    public void setPacketLossConcealer( PacketLossConcealer plc )
+    {
+        this.concealer = plc;
+    }
+
+    /**
+     *  Returns the packet loss concealer (and its statistics)
+     */
+    public PacketLossConcealer getPacketLossConcealer ()
+    {
+        return this.concealer;
+    }
+
+    /**
+     *  Returns the number of frames written to the sink
+     */
+    public long getPlayedFrameCount ()
+    {
+        return this.playedFrameCount;
+    }
+
+    /**
+     *  Returns the number of captured frames sent
+     */
+    public long getSentFrameCount ()
+    {
+        return this.sentFrameCount;
+    }
+}
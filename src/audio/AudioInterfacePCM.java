@@ -2,6 +2,8 @@
 package audio;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 
 import javax.sound.sampled.AudioFormat;
 import javax.sound.sampled.AudioSystem;
@@ -14,7 +16,10 @@ import javax.sound.sampled.TargetDataLine;
 import protocol.VoicePDU;
 
 import utils.Log;
+import utils.MediaClock;
+import utils.MediaScheduler;
 import utils.OctetBuffer;
+import utils.WorkerThreads;
 
 /**
  *  Implements the audio interface for 16-bit signed linear audio (PCM_SIGNED).
@@ -38,6 +43,12 @@ public class AudioInterfacePCM implements AudioInterface
     /** Frame interval in milliseconds */
     private static final int FRAME_INTERVAL = 20;
 
+    /** Frame interval in microseconds */
+    private static final long FRAME_INTERVAL_MICROS = 1000L * FRAME_INTERVAL;
+
+    /** Playout speed-up or slow-down used to correct the de-jitter buffer drift */
+    private static final double TIME_SCALE_STEP = 0.04;
+
     //////////////////////////////////////////////////////////////////////////////////////
     /* Properties
      */
@@ -53,6 +64,12 @@ public class AudioInterfacePCM implements AudioInterface
     /** Output device name */
     private String propertyOutputDeviceName = null;
     
+    /** Scheduler running the sender, the player and the ringer ticks */
+    private final MediaScheduler scheduler = MediaScheduler.getDefault ();
+
+    /** Monotonic clock time-stamping arrival of frames */
+    private final MediaClock mediaClock = new MediaClock( 8000 );
+
     //////////////////////////////////////////////////////////////////////////////////////
     /* Common file formats
      */
@@ -64,22 +81,30 @@ public class AudioInterfacePCM implements AudioInterface
     /* Audio Input (audio recorder interface from microphone)
      */
     private TargetDataLine targetDataLine = null;
-    private volatile Thread audioSenderThread = null;
+    private volatile MediaScheduler.Handle audioSenderTick = null;
     private volatile Thread micRecorderThread = null;
     private volatile Packetizer audioSender = null;
     
+    /* Audio sender pacing: expected and actual capture positions (microseconds)
+     */
+    private long senderPoint = 0;
+    private long senderSet = 0;
+    private boolean senderAudioTime = false;
+    
     /* Audio input buffer (between microphone recorder and audio sender)
      */
-    private AudioBuffer[] recordBuffer = new AudioBuffer[ FRAME_COUNT ];
-    private int micBufPut = 0;
-    private int micBufGet = 0;
-    private long lastMicTimestamp = 0;
+    private CaptureRing captureRing = null;
+    private volatile long lastMicTimestamp = 0; // also read by the player
+    private long lastReadTimestamp = 0; // of the last frame read by the sender
+    private PolyphaseResampler resampler = null; // from the input format to 8 kHz mono
+    private final VoiceActivityDetector vad = new VoiceActivityDetector ();
+    private int noiseLevel = -1; // of the last read frame; -1 if voice
     
     //////////////////////////////////////////////////////////////////////////////////////
     /* Audio Output (audio player interface to speaker)
      */
     private SourceDataLine sourceDataLine = null;
-    private volatile Thread audioPlayerThread = null;
+    private volatile MediaScheduler.Handle audioPlayerTick = null;
 
     /* Dejitter buffer (between UDP and audio output)
      */
@@ -90,6 +115,26 @@ public class AudioInterfacePCM implements AudioInterface
     private boolean jitBufFirst = true; // flag whether it will be first packet in
     private boolean playerIsEnabled = false; // can write or not to audio output
     private long deltaTimePlayerMinusMic = 0; // used to calculate skew
+    private byte[] playoutSilence = null; // silent frame inserted to grow the buffer
+    private TimeScaleModifier timeScaler = null; // speeds up or slows down playout
+    private byte[] timeScaled = null; // time-scaled audio frame
+    private byte[] pendingOutput = null; // audio not yet accepted by the audio output
+    private int pendingOutputLength = 0;
+    private int playoutScale = 0; // playout is sped up (> 0) or slowed down (< 0)
+
+    /** Packet loss concealment of the played 16-bit samples; null if none */
+    private volatile PacketLossConcealer concealer = new PitchWaveformConcealer ();
+    private short[] concealerSamples = null; // samples of the voice channel
+
+    /** Comfort noise filling the pauses of the remote peer's transmission */
+    private final ComfortNoise comfortNoise = new ComfortNoise ();
+    private volatile boolean noisePlaying = false; // missing frames are filled with noise
+    private volatile boolean noiseEnding = false; // voice resumes with noiseEndFrame
+    private volatile int noiseEndFrame = 0;
+
+    /** The playout policy; decides the depth of the dejitter buffer */
+    private volatile JitterBuffer jitterBuffer = 
+        new AdaptiveJitterBuffer( FRAME_INTERVAL, 1, FRAME_COUNT - 1 );
 
     /** Measured call length in milliseconds */
     private long callLength = 0;
@@ -97,7 +142,7 @@ public class AudioInterfacePCM implements AudioInterface
     /* Ringer tone generator (does not use dejitter buffer; writes directly
      * to audio output).
      */
-    private volatile Thread ringerThread = null;
+    private volatile MediaScheduler.Handle ringerTick = null;
     private byte[] ringSamples = null;
     private byte[] silenceSamples = null;
     
@@ -134,53 +179,43 @@ public class AudioInterfacePCM implements AudioInterface
 
         //////////////////////////////////////////////////////////////////////////////////
         
+        long now = this.scheduler.getTime ();
+
         if ( this.targetDataLine != null ) 
         {
-            Runnable thread = new Runnable() {
-                public void run () {
-                    pduSenderWorker ();
+            MediaScheduler.Task task = new MediaScheduler.Task () {
+                public long run( long deadline ) {
+                    return pduSenderTick( deadline );
                 }
             };
 
-            this.audioSenderThread = new Thread( thread, "Tick-send" );
-            this.audioSenderThread.setDaemon( true );
-            this.audioSenderThread.setPriority( Thread.MAX_PRIORITY - 1 );
-
-            this.audioSenderThread.start();
+            this.audioSenderTick = this.scheduler.schedule( task, now );
         }
 
         //////////////////////////////////////////////////////////////////////////////////
         
         if ( this.sourceDataLine != null ) 
         {
-            Runnable thread = new Runnable () {
-                public void run () {
-                    audioPlayerWorker ();
+            MediaScheduler.Task task = new MediaScheduler.Task () {
+                public long run( long deadline ) {
+                    return audioPlayerTick( deadline );
                 }
             };
 
-            this.audioPlayerThread = new Thread( thread, "Tick-play" );
-            this.audioPlayerThread.setDaemon( true );
-            this.audioPlayerThread.setPriority( Thread.MAX_PRIORITY );
-
-            this.audioPlayerThread.start();
+            this.audioPlayerTick = this.scheduler.schedule( task, now );
         }
 
         //////////////////////////////////////////////////////////////////////////////////
         
         if ( this.sourceDataLine != null ) 
         {
-            Runnable thread = new Runnable () {
-                public void run () {
-                    ringerWorker ();
+            MediaScheduler.Task task = new MediaScheduler.Task () {
+                public long run( long deadline ) {
+                    return ringerTick( deadline );
                 }
             };
     
-            this.ringerThread = new Thread( thread, "Ringer" );
-            this.ringerThread.setDaemon( true );
-            this.ringerThread.setPriority( Thread.MIN_PRIORITY );
-
-            this.ringerThread.start ();
+            this.ringerTick = this.scheduler.schedule( task, now );
         }
 
         //////////////////////////////////////////////////////////////////////////////////
@@ -235,38 +270,33 @@ public class AudioInterfacePCM implements AudioInterface
     @Override
     public void cleanUp ()
     {
-        /* Signal all worker threads to quit
+        /* Cancel scheduled ticks (waits for running ticks to complete) and
+         * signal the recorder thread to quit
          */
-        Thread spkout  = this.audioPlayerThread;
-        Thread ringer  = this.ringerThread;
-        Thread micin   = this.micRecorderThread;
-        Thread sender  = this.audioSenderThread;
-
-        this.audioPlayerThread = null;
-        this.ringerThread      = null;
+        MediaScheduler.Handle spkout = this.audioPlayerTick;
+        MediaScheduler.Handle ringer = this.ringerTick;
+        MediaScheduler.Handle sender = this.audioSenderTick;
+        Thread micin = this.micRecorderThread;
+
+        this.audioPlayerTick   = null;
+        this.ringerTick        = null;
+        this.audioSenderTick   = null;
         this.micRecorderThread = null;
-        this.audioSenderThread   = null;
 
-        /* Wait for worker threads to complete
-         */
         if ( spkout != null ) {
-            try {
-                spkout.interrupt ();
-                spkout.join ();
-            } catch ( InterruptedException e ) {
-                /* ignored */
-            }
+            spkout.cancel ();
         }
 
         if ( ringer != null ) {
-            try {
-                ringer.interrupt ();
-                ringer.join ();
-            } catch ( InterruptedException e ) {
-                /* ignored */
-            }
+            ringer.cancel ();
+        }
+
+        if ( sender != null ) {
+            sender.cancel ();
         }
 
+        /* Wait for the recorder thread to complete
+         */
         if ( micin != null ) {
             try {
                 micin.interrupt ();
@@ -275,15 +305,6 @@ public class AudioInterfacePCM implements AudioInterface
                 /* ignored */
             }
         }
-        
-        if ( sender != null ) {
-            try {
-                sender.interrupt ();
-                sender.join ();
-            } catch ( InterruptedException e ) {
-                /* ignored */
-            }
-        }
 
         /* Be nice and close audio data lines
          */
@@ -303,34 +324,23 @@ public class AudioInterfacePCM implements AudioInterface
     //////////////////////////////////////////////////////////////////////////////////////
     
     /**
-     *  Writes frames to audio output i.e. source data line
+     *  Writes frames to audio output i.e. source data line. Called by the scheduler;
+     *  returns the deadline of the next tick.
      */
-    private void audioPlayerWorker () 
+    private long audioPlayerTick( long deadline ) 
     {
-        Log.trace( "Thread started" );
-        
-        while( this.audioPlayerThread != null ) 
-        {
-            if ( this.sourceDataLine == null ) {
-                break;
-            }
-
-            long next = this.writeBuffersToAudioOutput ();
-            
-            if ( next < 1 ) {
-                next = FRAME_INTERVAL;
-            }
-            
-            try {
-                Thread.sleep( next );
-            } catch( Throwable e ) {
-                /* ignored */
-            }
+        if ( this.sourceDataLine == null ) {
+            return -1;
         }
+
+        long now = this.scheduler.getTime ();
+        long next = this.writeBuffersToAudioOutput ();
         
-        Log.trace( "Thread completed" );
+        if ( next < 1 ) {
+            next = FRAME_INTERVAL;
+        }
         
-        this.audioPlayerThread = null;
+        return now + next * 1000000L;
     }
 
     /**
@@ -343,6 +353,14 @@ public class AudioInterfacePCM implements AudioInterface
         }
         
         int top = this.jitBufPut;
+        
+        /* While the remote peer sends comfort noise, the playout goes on 
+         * beyond the last received frame
+         */
+        if ( this.noisePlaying && ! this.noiseEnding && top - this.jitBufGet < 1 ) {
+            top = this.jitBufGet + 1;
+        }
+        
         if ( top - this.jitBufGet > this.playBuffer.length ) 
         {
             if ( this.jitBufGet == 0 ) {
@@ -352,12 +370,15 @@ public class AudioInterfacePCM implements AudioInterface
             }
         }
 
+        JitterBuffer policy = this.jitterBuffer;
+        
         if ( ! this.playerIsEnabled )
         {
-            /* We start when we have half full the buffers, FRAME_COUNT is 
-             * usable buffer cap, size is twice that to keep history for AEC
+            /* We start when we have buffered as many frames as the playout policy 
+             * requires; FRAME_COUNT is usable buffer cap, size is twice that to keep 
+             * history for AEC
              */
-            if ( top - this.jitBufGet >= ( FRAME_COUNT + LLBS ) / 2 ) 
+            if ( top - this.jitBufGet >= policy.getStartDepth () ) 
             {
                 startPlay ();
 
@@ -371,7 +392,60 @@ public class AudioInterfacePCM implements AudioInterface
 
         int sz = 320;
         boolean fudgeSynch = true;
-        int frameSize = this.sourceDataLine.getFormat().getFrameSize ();
+        
+        /* Audio left over from the previous tick goes first. The tick never blocks
+         * in write, as other media tasks share the scheduler thread.
+         */
+        if ( ! drainPendingOutput () ) {
+            return ( ( sz * LLBS / 2 ) - this.sourceDataLine.available () ) / 8;
+        }
+        
+        /* Let the policy move the buffer depth towards its target: drop the oldest
+         * buffered frames or insert silence into the audio output
+         */
+        int adjust = policy.adjustPlayout( Math.max( 0, top - this.jitBufGet ) );
+        
+        if ( adjust != 0 ) {
+            flushTimeScaler ();
+        }
+
+        for ( ; adjust < 0 && this.jitBufGet < top; ++adjust ) 
+        {
+            this.playBuffer[ this.jitBufGet % this.playBuffer.length ].setRead ();
+            ++this.jitBufGet;
+        }
+        
+        if ( adjust > 0 ) 
+        {
+            byte[] frame = this.playBuffer[0].getByteArray ();
+            if ( this.playoutSilence == null || this.playoutSilence.length != frame.length ) {
+                this.playoutSilence = new byte[ frame.length ];
+            }
+            
+            for ( ; adjust > 0; --adjust ) {
+                if ( this.pendingOutputLength > 0 
+                        || this.sourceDataLine.available () < frame.length ) {
+                    break;
+                }
+                this.sourceDataLine.write( this.playoutSilence, 0, frame.length );
+            }
+        }
+
+        /* Between talkspurt boundaries the depth is moved towards the target
+         * smoothly by time-scaling the playout by a few percent
+         */
+        int depth = top - this.jitBufGet;
+        int target = policy.getTargetDepth ();
+        
+        if ( depth > target + 1 ) {
+            this.playoutScale = 1;
+        } else if ( depth < target ) {
+            this.playoutScale = -1;
+        } else if ( depth == target ) {
+            this.playoutScale = 0;
+        }
+        
+        int scale = this.playoutScale;
 
         for ( ; this.jitBufGet <= top; ++this.jitBufGet ) 
         {
@@ -383,7 +457,7 @@ public class AudioInterfacePCM implements AudioInterface
             /* Take packet this.jitBufGet if available
              * Dejitter capacity: top - this.jitBufGet
              */
-            if ( avail > 0 ) 
+            if ( avail > 0 && this.pendingOutputLength == 0 ) 
             {
                 if ( ! ab.isWritten () ) // Missing packet
                 {
@@ -392,7 +466,7 @@ public class AudioInterfacePCM implements AudioInterface
                      */
                     boolean concealMissingBuffer = false;
                     
-                    if ( avail > LLBS - 2 ) {
+                    if ( LLBS - avail < policy.getConcealDepth () ) {
                         // Running out of sound
                         concealMissingBuffer = true;
                     }
@@ -405,16 +479,23 @@ public class AudioInterfacePCM implements AudioInterface
                         concealMissingBuffer = false;
                     }
                     
-                    /* Now conceal missing data or wait for it
+                    /* Now conceal missing data (or fill the pause with comfort noise)
+                     * or wait for it
                      */
-                    if ( concealMissingBuffer ) {
+                    if ( concealMissingBuffer && isComfortNoiseFrame( this.jitBufGet ) ) {
+                        generateComfortNoise( obuff );
+                    } else if ( concealMissingBuffer ) {
                         concealMissingDataForAudioOutput(this.jitBufGet);
+                        policy.onUnderrun ();
                     } else {
                         break; // Waiting for missing data
                     }
                 }
+                else
+                {
+                    addReceivedDataToConcealer( obuff );
+                }
 
-                int start = 0;
                 int len = obuff.length;
                 
                 /* We do adjustments only if we have a timing reference from mic
@@ -435,11 +516,10 @@ public class AudioInterfacePCM implements AudioInterface
                     else 
                     {
                         /* If diff is positive, this means that the source clock is 
-                         * running faster than the audio clock so we lop a few bytes
-                         * off and make a note of the fudge factor.
+                         * running faster than the audio clock so we speed up the playout.
                          * If diff is negative, this means the audio clock is faster 
-                         * than the source clock so we make up a couple of samples
-                         * and note down the fudge factor.
+                         * than the source clock so we slow down the playout.
+                         * The fudge factor is noted down by the time-scale modifier.
                          */
                         int diff = (int) ( delta - this.deltaTimePlayerMinusMic );
                         
@@ -452,23 +532,22 @@ public class AudioInterfacePCM implements AudioInterface
                         }
 
                         if ( diff > max ) {
-                            start = (diff > (LLBS * FRAME_INTERVAL)) ?
-                                frameSize * 2 : frameSize; // panic ?
-                            len -= start;
-                            // Snip:  start / frameSize  sample(s)
-                            this.jitBufFudge -= start / frameSize;
+                            scale = 1;
                         }
                         if (diff < -1 * FRAME_INTERVAL) {
-                            this.sourceDataLine.write( obuff, 0, frameSize );
-                            // Paste: added a sample
-                            this.jitBufFudge += 1;
+                            scale = -1;
                         }
                     }
                 }
                 
-                /* Now write data to audio output and mark audio buffer 'read'
+                /* Now write (time-scaled) data to audio output and mark audio 
+                 * buffer 'read'
                  */
-                this.sourceDataLine.write( obuff, start, len );
+                this.timeScaler.setRate( 1.0 + scale * TIME_SCALE_STEP );
+                
+                int n = this.timeScaler.process( obuff, 0, len, this.timeScaled );
+                writeToAudioOutput( this.timeScaled, n );
+                this.jitBufFudge = this.timeScaler.getFrameSkew ();
                 this.callLength += FRAME_INTERVAL;
 
                 ab.setRead ();
@@ -484,24 +563,221 @@ public class AudioInterfacePCM implements AudioInterface
     }
 
     /**
-     *  Conceals missing data in the audio output buffer by averaging
-     *  from samples taken from the the previous and next buffer.
+     *  Writes audio held by the time-scale modifier (for its look-ahead)
+     *  to audio output and returns the modifier to pass-through mode
+     */
+    private void flushTimeScaler ()
+    {
+        if ( ! this.timeScaler.isActive () ) {
+            return;
+        }
+        
+        this.timeScaler.setRate( 1.0 );
+        
+        int n = this.timeScaler.process( this.timeScaled, 0, 0, this.timeScaled );
+        writeToAudioOutput( this.timeScaled, n );
+        this.jitBufFudge = this.timeScaler.getFrameSkew ();
+    }
+
+    /**
+     *  Writes audio to audio output without blocking: writes as much as the output
+     *  accepts and keeps the rest, which is written before any later audio
+     *  (see drainPendingOutput)
+     */
+    private void writeToAudioOutput( byte[] data, int length )
+    {
+        int written = 0;
+        
+        if ( this.pendingOutputLength == 0 ) 
+        {
+            written = Math.min( length, getWritableLength () );
+            if ( written > 0 ) {
+                this.sourceDataLine.write( data, 0, written );
+            }
+        }
+        
+        int rest = length - written;
+        if ( rest > 0 )
+        {
+            if ( this.pendingOutput.length < this.pendingOutputLength + rest ) {
+                this.pendingOutput = Arrays.copyOf( this.pendingOutput, 
+                        this.pendingOutputLength + rest );
+            }
+            System.arraycopy( data, written, this.pendingOutput, this.pendingOutputLength, rest );
+            this.pendingOutputLength += rest;
+        }
+    }
+
+    /**
+     *  Writes the audio kept by writeToAudioOutput as far as audio output accepts it
+     *  
+     *  @return true if no audio remains pending
+     */
+    private boolean drainPendingOutput ()
+    {
+        if ( this.pendingOutputLength == 0 ) {
+            return true;
+        }
+        
+        int n = Math.min( this.pendingOutputLength, getWritableLength () );
+        if ( n > 0 )
+        {
+            this.sourceDataLine.write( this.pendingOutput, 0, n );
+            this.pendingOutputLength -= n;
+            System.arraycopy( this.pendingOutput, n, this.pendingOutput, 0, 
+                    this.pendingOutputLength );
+        }
+        
+        return this.pendingOutputLength == 0;
+    }
+
+    /**
+     *  Returns the number of octets (of whole sample frames) that can be written
+     *  to audio output without blocking
+     */
+    private int getWritableLength ()
+    {
+        int frameSize = Math.max( 1, this.sourceDataLine.getFormat ().getFrameSize () );
+        int available = this.sourceDataLine.available ();
+        return available - available % frameSize;
+    }
+
+    /**
+     *  Conceals missing data in the audio output buffer by synthesizing
+     *  the samples with the packet loss concealer (or by silence if there is none).
      */
     private void concealMissingDataForAudioOutput( int n ) 
     {
         byte[] target = this.playBuffer[n % this.playBuffer.length].getByteArray();
-        byte[] prev = this.playBuffer[ (n - 1) % this.playBuffer.length].getByteArray();
-        byte[] next = this.playBuffer[ (n + 1) % this.playBuffer.length].getByteArray();
         
-        /*  Creates a packet by averaging the corresponding bytes 
-         *  in the surrounding packets hoping that new packet will sound better 
-         *  than silence.
-         *  TODO fix for 16-bit samples
-         */
-        for ( int i = 0; i < target.length; ++i ) 
+        PacketLossConcealer plc = this.concealer;
+        if ( plc == null ) 
         {
-            target[i] = (byte) ( 0xFF & ( (prev[ i ] >> 1 ) + ( next[i] >> 1 ) ) );
+            for ( int i = 0; i < target.length; ++i ) {
+                target[i] = 0;
+            }
+            return;
+        }
+        
+        int count = getConcealerSamples( target );
+        plc.conceal( this.concealerSamples, count );
+        putConcealerSamples( target, count );
+    }
+
+    /**
+     *  Returns if the missing frame falls into the pause filled with comfort noise
+     */
+    private boolean isComfortNoiseFrame( int n ) 
+    {
+        if ( this.noisePlaying && this.noiseEnding && n - this.noiseEndFrame >= 0 ) {
+            this.noisePlaying = false;
         }
+        
+        return this.noisePlaying;
+    }
+
+    /**
+     *  Fills the audio output buffer with comfort noise; the noise is passed
+     *  to the packet loss concealer as if it were received
+     */
+    private void generateComfortNoise( byte[] buf ) 
+    {
+        int count = getConcealerSamples( buf );
+        this.comfortNoise.generate( this.concealerSamples, count );
+        
+        PacketLossConcealer plc = this.concealer;
+        if ( plc != null ) {
+            plc.addReceived( this.concealerSamples, count );
+        }
+        
+        putConcealerSamples( buf, count );
+    }
+
+    /**
+     *  Passes received data in the audio output buffer through the packet 
+     *  loss concealer (which keeps the history and smooths the end of the loss)
+     */
+    private void addReceivedDataToConcealer( byte[] buf ) 
+    {
+        PacketLossConcealer plc = this.concealer;
+        if ( plc == null ) {
+            return;
+        }
+        
+        int count = getConcealerSamples( buf );
+        plc.addReceived( this.concealerSamples, count );
+        putConcealerSamples( buf, count );
+    }
+
+    /**
+     *  Extracts big-endian samples of the voice channel (the right one if stereo)
+     *  from the audio output buffer; returns the number of samples
+     */
+    private int getConcealerSamples( byte[] buf ) 
+    {
+        int step = propertyStereoRec ? 4 : 2;
+        int first = propertyStereoRec ? 2 : 0;
+        int count = buf.length / step;
+        
+        if ( this.concealerSamples == null || this.concealerSamples.length < count ) {
+            this.concealerSamples = new short[ count ];
+        }
+        
+        for ( int i = 0, j = first; i < count; ++i, j += step ) {
+            this.concealerSamples[i] = (short) ( ( buf[j] << 8 ) | ( buf[j + 1] & 0xFF ) );
+        }
+        
+        return count;
+    }
+
+    /**
+     *  Stores samples of the voice channel into the audio output buffer
+     */
+    private void putConcealerSamples( byte[] buf, int count ) 
+    {
+        int step = propertyStereoRec ? 4 : 2;
+        int first = propertyStereoRec ? 2 : 0;
+        
+        for ( int i = 0, j = first; i < count; ++i, j += step ) {
+            buf[j] = (byte) ( this.concealerSamples[i] >> 8 );
+            buf[j + 1] = (byte) this.concealerSamples[i];
+        }
+    }
+
+    /**
+     *  Sets the packet loss concealer used by the player (null to conceal 
+     *  missing data by silence)
+     */
+    public void setPacketLossConcealer( PacketLossConcealer plc )
+    {
+        this.concealer = plc;
+    }
+
+    /**
+     *  Returns the packet loss concealer used by the player (and its statistics)
+     */
+    public PacketLossConcealer getPacketLossConcealer ()
+    {
+        return this.concealer;
+    }
+
+    /**
+     *  Sets the playout policy deciding the depth of the dejitter buffer
+     */
+    public void setJitterBuffer( JitterBuffer policy )
+    {
+        if ( policy != null ) {
+            this.jitterBuffer = policy;
+        }
+    }
+
+    /**
+     *  Returns the playout policy (and its metrics: current depth, target depth, 
+     *  jitter and underruns)
+     */
+    public JitterBuffer getJitterBuffer ()
+    {
+        return this.jitterBuffer;
     }
 
     /**
@@ -551,84 +827,158 @@ public class AudioInterfacePCM implements AudioInterface
         ab.setTimestamp( timestamp );
         
         this.jitBufPut = fno;
+        
+        endComfortNoise( fno );
+        
+        this.jitterBuffer.onFrameArrived( timestamp, this.mediaClock.getMillis () );
     }
 
-    //////////////////////////////////////////////////////////// VOICE PDU SENDER ////////
-    
     /**
-     *  Sends audio frames to UDP channel at regular intervals (ticks)
+     *  Enqueue packet found between the position and the limit of the buffer 
+     *  for playing into de-jitter buffer.
      */
-    private void pduSenderWorker () 
+    @Override
+    public void writeBuffered( ByteBuffer buff, long timestamp ) throws IOException 
     {
-        Log.trace( "Thread started" );
+        if ( this.sourceDataLine == null ) {
+            return;
+        }
         
-        long set = 0;
-        long last, point = 0;
-        boolean audioTime = false;
+        int fno = (int) ( timestamp / (AudioInterfacePCM.FRAME_INTERVAL ) );
 
-        while( this.audioSenderThread != null )
+        AudioBuffer ab = this.playBuffer[ fno % this.playBuffer.length ];
+        byte nbuff[] = ab.getByteArray ();
+        
+        int start = buff.position ();
+        
+        if ( propertyStereoRec )
         {
-            if ( this.targetDataLine == null ) {
-                break;
-            }
-
-            /* This should be current time: interval += FRAME_INTERVAL
-             */
-            point += FRAME_INTERVAL;
-            
-            /* Delta time
-             */
-            long delta = point - set + FRAME_INTERVAL;
-            
-            if ( this.targetDataLine.isActive () ) 
-            {
-                if ( ! audioTime ) // Take care of "discontinuous time"
-                {
-                    audioTime = true;
-                    set = this.targetDataLine.getMicrosecondPosition() / 1000;
-                    last = point = set;
-                }
-            }
-            else 
-            {
-                point = 0;
-                delta = FRAME_INTERVAL; // We are live before TDL
-                set = System.currentTimeMillis (); // For ring cadence
-                audioTime = false;
-            }
-            
-            sendAudioFrame( set );
-            
-            // If we are late, set is larger than last so we sleep less
-            // If we are early, set is smaller than last and we sleep longer
-            //
-            if ( delta > 1 ) // Only sleep if it is worth it...
+            int count = Math.min( nbuff.length / 4, buff.remaining () / 2 );
+            for ( int i = 0; i < count; ++i )
             {
-                try {
-                    Thread.sleep( delta );
-                } catch( InterruptedException e ) {
-                    /* ignored */
-                }
+                nbuff[i * 4] = 0; // Left silent
+                nbuff[i * 4 + 1] = 0; // Left silent
+                nbuff[i * 4 + 2] = buff.get( start + i * 2 );
+                nbuff[i * 4 + 3] = buff.get( start + i * 2 + 1 );
             }
+        }
+        else 
+        {
+            buff.get( nbuff, 0, Math.min( nbuff.length, buff.remaining () ) );
+            buff.position( start );
+        }
+        
+        ab.setWritten ();
+        ab.setTimestamp( timestamp );
+        
+        this.jitBufPut = fno;
+        
+        endComfortNoise( fno );
+        
+        this.jitterBuffer.onFrameArrived( timestamp, this.mediaClock.getMillis () );
+    }
 
-            last = set;
-            
-            if ( audioTime ) {
-                set = this.targetDataLine.getMicrosecondPosition() / 1000;
-            }
-            
-            if ( point > 0 ) {
-                Log.audio( "Ticker: slept " + delta + " from " + last + ", now " + set );
+    /**
+     *  Marks the talkspurt boundary for the playout policy
+     */
+    @Override
+    public void markTalkspurt ()
+    {
+        this.jitterBuffer.onTalkspurt ();
+    }
+
+    /**
+     *  Fills the missing frames with comfort noise of the given level from 
+     *  the given time-stamp until the next received frame
+     */
+    @Override
+    public void writeComfortNoise( int level, long timestamp ) 
+    {
+        this.comfortNoise.setLevel( level );
+        
+        if ( this.playerIsEnabled ) {
+            this.noiseEnding = false;
+            this.noisePlaying = true;
+        }
+        
+        this.jitterBuffer.onFrameArrived( timestamp, this.mediaClock.getMillis () );
+    }
+
+    /**
+     *  Ends comfort noise (if playing) where the voice resumes with the frame
+     */
+    private void endComfortNoise( int fno ) 
+    {
+        if ( this.noisePlaying && ( ! this.noiseEnding || fno - this.noiseEndFrame < 0 ) ) {
+            this.noiseEndFrame = fno;
+            this.noiseEnding = true;
+        }
+    }
+
+    //////////////////////////////////////////////////////////// VOICE PDU SENDER ////////
+    
+    /**
+     *  Sends audio frame to UDP channel at regular intervals (ticks). Called by 
+     *  the scheduler; returns the deadline of the next tick.
+     *
+     *  While the capture line is active, ticks follow the capture clock: the next 
+     *  tick is due when the line should reach the next frame position. Otherwise
+     *  (we are live before TDL, e.g. for ring cadence) ticks are due at fixed 
+     *  FRAME_INTERVAL steps from the previous deadline.
+     */
+    private long pduSenderTick( long deadline ) 
+    {
+        if ( this.targetDataLine == null ) {
+            return -1;
+        }
+
+        long now = this.scheduler.getTime ();
+
+        if ( this.senderAudioTime ) {
+            this.senderSet = this.targetDataLine.getMicrosecondPosition ();
+        }
+
+        /* This should be current time: interval += FRAME_INTERVAL
+         */
+        this.senderPoint += FRAME_INTERVAL_MICROS;
+        
+        /* Delta time
+         */
+        long delta = this.senderPoint - this.senderSet + FRAME_INTERVAL_MICROS;
+        
+        if ( this.targetDataLine.isActive () ) 
+        {
+            if ( ! this.senderAudioTime ) // Take care of "discontinuous time"
+            {
+                this.senderAudioTime = true;
+                this.senderSet = this.targetDataLine.getMicrosecondPosition ();
+                this.senderPoint = this.senderSet;
             }
         }
+        else 
+        {
+            this.senderPoint = 0;
+            this.senderSet = now / 1000L; // For ring cadence
+            this.senderAudioTime = false;
+        }
         
-        Log.trace( "Thread completed" );
+        sendAudioFrame( this.senderSet );
+        
+        if ( ! this.senderAudioTime ) {
+            return deadline + FRAME_INTERVAL_MICROS * 1000L;
+        }
 
-        this.audioSenderThread = null;
+        // If we are late, set is larger than point so we wait less
+        // If we are early, set is smaller than point and we wait longer
+        //
+        Log.audio( "Ticker: next in " + delta + " us from " + this.senderSet );
+
+        return now + Math.max( 0, delta ) * 1000L;
     }
 
     /**
-     *  Called every FRAMEINTERVAL ms to send audio frame
+     *  Called every FRAMEINTERVAL ms to send audio frame (set is the tick time 
+     *  in microseconds)
      */
     private void sendAudioFrame( long set )
     {
@@ -674,8 +1024,9 @@ public class AudioInterfacePCM implements AudioInterface
     {
         try 
         {
-            int fresh = this.micBufPut % this.recordBuffer.length;
-            AudioBuffer ab = this.recordBuffer[ fresh ];
+            /* Read into the spare buffer if the sender fell behind
+             */
+            AudioBuffer ab = this.captureRing.acquire ();
             byte[] buff = ab.getByteArray ();
             
             this.targetDataLine.read( buff, 0, buff.length );
@@ -683,18 +1034,9 @@ public class AudioInterfacePCM implements AudioInterface
             long stamp = this.targetDataLine.getMicrosecondPosition () / 1000;
             if ( stamp >= this.lastMicTimestamp )
             {
-                if ( ab.isWritten () ) {
-                    // Overrun audio data: stamp + "/" + got
+                if ( ! this.captureRing.publish( stamp ) ) {
+                    Log.audio( "Overrun audio data: " + stamp );
                 }
-
-                ab.setTimestamp( stamp );
-                ab.setWritten (); // should test for overrun ???
-                
-                /* Out audio data into buffer: 
-                 * fresh + " " + ab.getTimestamp() + "/" + this.micBufPut
-                 */
-                
-                ++this.micBufPut;
             }
             else // Seen at second and subsequent activations, garbage data 
             {
@@ -721,137 +1063,91 @@ public class AudioInterfacePCM implements AudioInterface
     @Override
     public long readWithTimestamp( byte[] buff ) throws IOException
     {
-        int micnext = this.micBufGet % this.recordBuffer.length;
-        int buffCap = (this.micBufPut - this.micBufGet ) % this.recordBuffer.length;
         long timestamp = 0;
         
-        Log.audio( "Getting audio data from buffer " + micnext + "/" + buffCap );
+        Log.audio( "Getting audio data from buffer " + this.captureRing.size () );
 
-        AudioBuffer ab = this.recordBuffer[ micnext ];
-        if ( ab.isWritten () 
-                && ( this.micBufGet > 0 || buffCap >= this.recordBuffer.length / 2 ) ) 
+        /* Starts when the ring is half full; empty ring afterwards is an underrun
+         */
+        AudioBuffer ab = this.captureRing.peek ();
+        if ( ab != null ) 
         {
             timestamp = ab.getTimestamp ();
-            resample( ab.getByteArray(), buff );
-            ab.setRead ();
+            this.resampler.resample( ab.getByteArray(), buff );
+            this.captureRing.release ();
 
-            ++this.micBufGet;
+            this.lastReadTimestamp = timestamp;
         }
         else 
         {
             System.arraycopy( this.silenceSamples, 0, buff, 0, buff.length );
             Log.audio( "Sending silence" );
-            timestamp = ab.getTimestamp (); // or should we warn them ??
+            timestamp = this.lastReadTimestamp;
         }
 
+        this.noiseLevel = this.vad.process( buff, 0, buff.length ) 
+                        ? -1 : this.vad.getNoiseLevel ();
+
         return timestamp;
     }
 
     /**
-     *  Simple PCM down sampler.
-     *
-     * @param src   source buffer with audio samples
-     * @param dest  destination buffer with audio samples
+     *  Returns the level of the background noise if the last frame read 
+     *  by readWithTimestamp() carried no voice; -1 if it carried voice
      */
-    private void resample( byte[] src, byte[] dest ) 
+    @Override
+    public int getNoiseLevel ()
     {
-        if ( src.length == dest.length ) 
-        {
-            /* Nothing to down sample; copy samples as-is to destination
-             */
-            System.arraycopy( src, 0, dest, 0, src.length );
-            return;
-        }
-        else if ( src.length / 2 == dest.length )
-        {
-            /* Source is stereo, send the left channel
-             */
-            for ( int i = 0; i < dest.length / 2; i++ ) 
-            {
-                dest[i * 2] = src[i * 4];
-                dest[i * 2 + 1] = src[i * 4 + 1];
-            }
-            return;
-        }
+        return this.noiseLevel;
+    }
 
-        /* Now real work. We assume that it is 44k stereo 16-bit and will down-sample
-         * it to 8k (but not very clever: no anti-aliasing etc....).
-         */
-        OctetBuffer srcBuffer = OctetBuffer.wrap( src );
-        OctetBuffer destBuffer = OctetBuffer.wrap( dest );
-        
-        /* Iterate over the values we have, add them to the target bucket they fall into
-         * and count the drops....
-         */
-        int drange = dest.length / 2;
-        double v[] = new double[ drange ];
-        double w[] = new double[ drange ];
+    /**
+     *  Returns number of recorded frames discarded because the sender fell behind
+     *  (since recording started)
+     */
+    public long getCaptureOverrunCount ()
+    {
+        return this.captureRing != null ? this.captureRing.getOverrunCount () : 0;
+    }
 
-        double frequencyRatio = 8000.0 / 44100.0;
-        int top = src.length / 2;
-        for ( int eo = 0; eo < top; ++eo ) 
-        {
-            int samp = (int) Math.floor( eo * frequencyRatio );
-            if ( samp >= drange ) {
-                samp = drange - 1;
-            }
-            v[ samp ] += srcBuffer.getShort( eo * 2 );
-            w[ samp ]++;
-        }
-        
-        /* Now re-weight the samples to ensure no volume quirks and move to short
-         */
-        short vw = 0;
-        for ( int ei = 0; ei < drange; ++ei ) 
-        {
-            if ( w[ei] != 0 ) {
-                vw = (short) ( v[ei] / w[ei] );
-            }
-            destBuffer.putShort( ei * 2, vw );
-        }
+    /**
+     *  Returns number of frames sent as silence because the recorder fell behind
+     *  (since recording started)
+     */
+    public long getCaptureUnderrunCount ()
+    {
+        return this.captureRing != null ? this.captureRing.getUnderrunCount () : 0;
     }
 
     //////////////////////////////////////////////////////////// RINGER //////////////////
     
     /**
-     *  Writes ring signal samples to audio output
+     *  Writes ring signal samples to audio output. Called by the scheduler;
+     *  returns the deadline of the next tick.
      */
-    private void ringerWorker ()
+    private long ringerTick( long deadline )
     {
-        Log.trace( "Thread started" );
+        if ( this.sourceDataLine == null ) {
+            return -1;
+        }
+
+        long nap = 100; // default sleep in millis when idle
         
-        while( this.ringerThread != null )
+        if ( this.providingRingBack ) 
         {
-            if ( this.sourceDataLine == null ) {
-                break;
-            }
-
-            long nap = 100; // default sleep in millis when idle
-            
-            if ( this.providingRingBack ) 
+            nap = 0;
+            while( nap < FRAME_INTERVAL ) 
             {
-                nap = 0;
-                while( nap < FRAME_INTERVAL ) 
-                {
-                    boolean inRing = ( ( this.ringTimer++ % 120 ) < 40 );
-                    if ( inRing ) {
-                        nap = this.writeDirectIfAvail( this.ringSamples );
-                    } else {
-                        nap = this.writeDirectIfAvail( this.silenceSamples );
-                    }
+                boolean inRing = ( ( this.ringTimer++ % 120 ) < 40 );
+                if ( inRing ) {
+                    nap = this.writeDirectIfAvail( this.ringSamples );
+                } else {
+                    nap = this.writeDirectIfAvail( this.silenceSamples );
                 }
             }
-
-            try {
-                Thread.sleep( nap );
-            } catch( InterruptedException ex ) {
-                /* ignored */
-            }
         }
-        
-        Log.trace( "Thread completed" );
-        
-        this.ringerThread = null;
+
+        return this.scheduler.getTime () + nap * 1000000L;
     }
 
     /**
@@ -1013,9 +1309,12 @@ public class AudioInterfacePCM implements AudioInterface
             
             Log.trace( "Input Buffer Size = " + inputBufferSize );
             
-            for ( int i = 0; i < this.recordBuffer.length; ++i ) {
-                this.recordBuffer[i] = new AudioBuffer( inputBufferSize );
-            }
+            this.captureRing = new CaptureRing( FRAME_COUNT, inputBufferSize, FRAME_COUNT / 2 );
+            
+            /* Convert the first channel of the raw format to 8 kHz mono
+             */
+            this.resampler = new PolyphaseResampler( 
+                    (int) af.getSampleRate (), 8000, af.getChannels () );
             
             succeded = true;
         }
@@ -1154,6 +1453,12 @@ public class AudioInterfacePCM implements AudioInterface
         this.targetDataLine.stop ();
         this.micRecorderThread = null;
         this.audioSender = null;
+        
+        if ( this.captureRing.getOverrunCount () > 0 
+                || this.captureRing.getUnderrunCount () > 0 ) {
+            Log.audio( "Capture overruns: " + this.captureRing.getOverrunCount ()
+                    + ", underruns: " + this.captureRing.getUnderrunCount () );
+        }
     }
 
     /**
@@ -1183,10 +1488,10 @@ public class AudioInterfacePCM implements AudioInterface
 
         /* Clean receive buffers pointers 
          */
-        this.micBufPut = this.micBufGet = 0;
-        for ( int i = 0; i < this.recordBuffer.length; ++i ) {
-            this.recordBuffer[i].setRead ();
-        }
+        this.resampler.reset ();
+        this.vad.reset ();
+        this.captureRing.reset ();
+        this.lastReadTimestamp = 0;
 
         Runnable thread = new Runnable() {
             public void run () {
@@ -1194,9 +1499,8 @@ public class AudioInterfacePCM implements AudioInterface
             }
         };
 
-        this.micRecorderThread = new Thread( thread, "Tick-rec" );
-        this.micRecorderThread.setDaemon( true );
-        this.micRecorderThread.setPriority( Thread.MAX_PRIORITY - 1 );
+        this.micRecorderThread = WorkerThreads.newThread( thread, "Tick-rec",
+                Thread.MAX_PRIORITY - 1, true );
         this.micRecorderThread.start ();
 
         return this.targetDataLine.getMicrosecondPosition() / 1000;
@@ -1220,6 +1524,17 @@ public class AudioInterfacePCM implements AudioInterface
         this.jitBufGet = 0;
         this.jitBufFudge = 0;
         this.callLength = 0;
+        this.playoutScale = 0;
+
+        /* The time-scale modifier works on the audio output format
+         */
+        AudioFormat af = this.sourceDataLine.getFormat ();
+        this.timeScaler = new TimeScaleModifier( 
+                (int) af.getSampleRate (), af.getChannels () );
+        this.timeScaled = new byte[ this.timeScaler.getMaxOutputSize( 
+                this.playBuffer[0].getByteArray ().length ) ];
+        this.pendingOutput = new byte[ 2 * this.timeScaled.length ];
+        this.pendingOutputLength = 0;
 
         this.sourceDataLine.flush ();
         this.sourceDataLine.start ();
@@ -1237,6 +1552,15 @@ public class AudioInterfacePCM implements AudioInterface
         this.jitBufPut = 0;
         this.jitBufGet = 0;
         this.playerIsEnabled = false;
+        this.noisePlaying = false;
+        this.pendingOutputLength = 0;
+        
+        this.jitterBuffer.reset ();
+        
+        PacketLossConcealer plc = this.concealer;
+        if ( plc != null ) {
+            plc.reset ();
+        }
 
         if ( this.sourceDataLine == null ) {
             return;
@@ -1258,6 +1582,13 @@ public class AudioInterfacePCM implements AudioInterface
             Log.trace( "Total call Length: " + this.callLength + " ms" );
         }
         
+        if ( plc != null && plc.getConcealedFrameCount () > 0 ) {
+            Log.audio( "Concealed frames: " + plc.getConcealedFrameCount ()
+                    + ", loss events: " + plc.getLossEventCount ()
+                    + ", longest: " + plc.getLongestLossEvent ()
+                    + ", muted: " + plc.getMutedFrameCount () );
+        }
+        
         this.sourceDataLine.flush ();
     }
 
@@ -1278,6 +1609,9 @@ public class AudioInterfacePCM implements AudioInterface
             case VoicePDU.ULAW:
                 ret = new AudioCodecUlaw(this);
                 break;
+            case VoicePDU.DVI4:
+                ret = new AudioCodecDvi4(this);
+                break;
             case VoicePDU.LIN16:
                 ret = this;
                 break;
@@ -1288,6 +1622,14 @@ public class AudioInterfacePCM implements AudioInterface
                 break;
         }
         
+        /* Each CODEC selects its own packet loss concealment
+         */
+        if ( ret instanceof AbstractCODEC ) {
+            setPacketLossConcealer( ((AbstractCODEC) ret).createPacketLossConcealer () );
+        } else {
+            setPacketLossConcealer( new PitchWaveformConcealer () );
+        }
+        
         Log.audio( "Using audio Interface of type : " + ret.getClass().getName() );
         
         return ret;
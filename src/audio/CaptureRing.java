@@ -0,0 +1,189 @@
+
+package audio;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ *  Lock-free single-producer/single-consumer ring of preallocated audio buffers
+ *  between the thread recording from the microphone and the thread sending
+ *  the recorded frames.
+ *
+ *  The producer fills the buffer returned by acquire() and hands it over with
+ *  publish(); the consumer takes the oldest published buffer with peek() and
+ *  returns it with release(). A buffer is owned by exactly one side at a time:
+ *  the sequence counters are advanced with release semantics after the buffer has
+ *  been written (or read) and read with acquire semantics before it is touched.
+ *
+ *  If the ring is full, acquire() returns a spare buffer whose frame is discarded
+ *  by publish() and counted as overrun (the consumer falls behind). If the ring is
+ *  empty once the consumer has started, peek() counts an underrun (the producer
+ *  falls behind). The consumer starts only after the ring has been filled
+ *  to the given level, so the capture jitter does not cause underruns.
+ */
+public class CaptureRing
+{
+    /** The ring */
+    private final AudioBuffer[] ring;
+
+    /** The buffer filled by the producer while the ring is full */
+    private final AudioBuffer spare;
+
+    /** Number of published buffers before the consumer starts */
+    private final int startLevel;
+
+    /** Next sequence to be published (written only by the producer) */
+    private final AtomicLong tail = new AtomicLong ();
+
+    /** Next sequence to be read (written only by the consumer) */
+    private final AtomicLong head = new AtomicLong ();
+
+    /** The buffer last returned by acquire() */
+    private AudioBuffer acquired = null;
+
+    /** Indicates that the consumer has started reading (consumer only) */
+    private boolean started = false;
+
+    /** Number of recorded frames discarded because the ring was full */
+    private volatile long overrunCount = 0;
+
+    /** Number of reads that found no recorded frame */
+    private volatile long underrunCount = 0;
+
+    /**
+     *  Creates ring of the given number of buffers of the given size
+     *
+     *  @param startLevel  number of buffers filled before the consumer starts
+     */
+    public CaptureRing( int capacity, int bufferSize, int startLevel )
+    {
+        this.ring = new AudioBuffer[ capacity ];
+        for ( int i = 0; i < capacity; ++i ) {
+            this.ring[i] = new AudioBuffer( bufferSize );
+        }
+
+        this.spare = new AudioBuffer( bufferSize );
+        this.startLevel = Math.max( 1, Math.min( capacity, startLevel ) );
+    }
+
+    /**
+     *  Empties the ring and clears the counters. Must not be called while
+     *  the producer or the consumer use the ring.
+     */
+    public void reset ()
+    {
+        this.acquired = null;
+        this.started = false;
+        this.overrunCount = 0;
+        this.underrunCount = 0;
+        this.head.set( 0 );
+        this.tail.set( 0 );
+    }
+
+    /**
+     *  Returns the buffer to be filled with the next recorded frame (producer only);
+     *  the spare buffer if the ring is full.
+     */
+    public AudioBuffer acquire ()
+    {
+        long t = this.tail.get ();
+
+        if ( t - this.head.get () >= this.ring.length ) {
+            this.acquired = this.spare;
+        } else {
+            this.acquired = this.ring[ (int) ( t % this.ring.length ) ];
+        }
+
+        return this.acquired;
+    }
+
+    /**
+     *  Hands the buffer returned by acquire() over to the consumer
+     *  (producer only).
+     *
+     *  @return false if the ring was full and the frame was discarded
+     */
+    public boolean publish( long timestamp )
+    {
+        if ( this.acquired == null ) {
+            return false;
+        }
+
+        if ( this.acquired == this.spare ) {
+            this.acquired = null;
+            this.overrunCount = this.overrunCount + 1; // single writer
+            return false;
+        }
+
+        this.acquired.setTimestamp( timestamp );
+        this.acquired = null;
+        this.tail.lazySet( this.tail.get () + 1 ); // publishes the buffer
+
+        return true;
+    }
+
+    /**
+     *  Returns the oldest published buffer without removing it (consumer only);
+     *  null if the consumer has not started yet or the ring is empty (underrun).
+     */
+    public AudioBuffer peek ()
+    {
+        long h = this.head.get ();
+        long available = this.tail.get () - h;
+
+        if ( ! this.started )
+        {
+            if ( available < this.startLevel ) {
+                return null;
+            }
+            this.started = true;
+        }
+
+        if ( available <= 0 ) {
+            this.underrunCount = this.underrunCount + 1; // single writer
+            return null;
+        }
+
+        return this.ring[ (int) ( h % this.ring.length ) ];
+    }
+
+    /**
+     *  Returns the buffer obtained by peek() to the producer (consumer only)
+     */
+    public void release ()
+    {
+        this.head.lazySet( this.head.get () + 1 );
+    }
+
+    /**
+     *  Returns number of published frames not read yet
+     */
+    public int size ()
+    {
+        long h = this.head.get ();
+        return (int) Math.max( 0, this.tail.get () - h );
+    }
+
+    /**
+     *  Returns the number of buffers in the ring
+     */
+    public int getCapacity ()
+    {
+        return this.ring.length;
+    }
+
+    /**
+     *  Returns number of recorded frames discarded because the ring was full
+     */
+    public long getOverrunCount ()
+    {
+        return this.overrunCount;
+    }
+
+    /**
+     *  Returns number of reads that found no recorded frame
+     */
+    public long getUnderrunCount ()
+    {
+        return this.underrunCount;
+    }
+}
@@ -0,0 +1,205 @@
+
+package audio;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import protocol.VoicePDU;
+
+/**
+ *  Registry of CODECs supported above the PCM audio interface, used to negotiate
+ *  the CODEC of a call over PBX.
+ *
+ *  The inviting peer offers its CODECs in the order of preference as option
+ *  <code>@codecs=name/size,name/size,...</code> of the INVITE message, where size is
+ *  the length of the coded frame in octets. The accepting peer chooses the first
+ *  CODEC of the offer that it supports with the same frame size and answers it
+ *  as the only CODEC in the same option of the ACCEPT message. Peers that do not
+ *  negotiate CODECs use the default format (A-law), which every peer supports.
+ */
+public class CodecRegistry
+{
+    /**
+     *  The format used if the remote peer does not negotiate CODECs
+     */
+    public final static int DEFAULT_FORMAT = VoicePDU.ALAW;
+
+    /**
+     *  Supported CODEC: VoicePDU subclass, name and coded frame size
+     */
+    private static class Entry
+    {
+        final int format;
+        final String name;
+        final int frameSize;
+
+        Entry( int format, String name, int frameSize )
+        {
+            this.format = format;
+            this.name = name;
+            this.frameSize = frameSize;
+        }
+
+        public String toString ()
+        {
+            return this.name + "/" + this.frameSize;
+        }
+    }
+
+    /**
+     *  All supported CODECs
+     */
+    private final List<Entry> supported = new ArrayList<Entry> ();
+
+    /**
+     *  Enabled CODECs in the order of preference (replaced as a whole; never modified)
+     */
+    private volatile List<Entry> preferred;
+
+    /**
+     *  Creates registry of the CODECs supported above the given PCM audio interface,
+     *  preferring lower bit rates.
+     */
+    public CodecRegistry( AudioInterface pcm )
+    {
+        this.supported.add( new Entry( VoicePDU.DVI4, "dvi4",
+                new AudioCodecDvi4( pcm ).getSampleSize () ) );
+        this.supported.add( new Entry( VoicePDU.ALAW, "alaw",
+                new AudioCodecAlaw( pcm ).getSampleSize () ) );
+        this.supported.add( new Entry( VoicePDU.ULAW, "ulaw",
+                new AudioCodecUlaw( pcm ).getSampleSize () ) );
+        this.supported.add( new Entry( VoicePDU.LIN16, "lin16", pcm.getSampleSize () ) );
+
+        this.preferred = Collections.unmodifiableList( new ArrayList<Entry>( this.supported ) );
+    }
+
+    /**
+     *  Returns the name of the CODEC (VoicePDU subclass); null if unknown
+     */
+    public static String getName( int format )
+    {
+        switch( format )
+        {
+            case VoicePDU.DVI4:  return "dvi4";
+            case VoicePDU.ALAW:  return "alaw";
+            case VoicePDU.ULAW:  return "ulaw";
+            case VoicePDU.LIN16: return "lin16";
+        }
+        return null;
+    }
+
+    /**
+     *  Finds supported CODEC by name (case insensitive); null if not found
+     */
+    private Entry find( String name )
+    {
+        for ( Entry e : this.supported ) {
+            if ( e.name.equalsIgnoreCase( name ) ) {
+                return e;
+            }
+        }
+        return null;
+    }
+
+    /**
+     *  Enables only the named CODECs in the given order of preference.
+     *
+     *  @return false (leaving the preference unchanged) if a name is unknown
+     *          or no name is given
+     */
+    public boolean setPreference( String[] names )
+    {
+        List<Entry> list = new ArrayList<Entry> ();
+
+        for ( String name : names )
+        {
+            Entry e = find( name );
+            if ( e == null ) {
+                return false;
+            }
+            if ( ! list.contains( e ) ) {
+                list.add( e );
+            }
+        }
+
+        if ( list.isEmpty () ) {
+            return false;
+        }
+
+        this.preferred = Collections.unmodifiableList( list );
+        return true;
+    }
+
+    /**
+     *  Returns the enabled CODECs in the order of preference, as value of
+     *  the <code>@codecs</code> option
+     */
+    public String getOffer ()
+    {
+        StringBuilder sb = new StringBuilder ();
+
+        for ( Entry e : this.preferred ) {
+            sb.append( sb.length () > 0 ? "," : "" ).append( e );
+        }
+
+        return sb.toString ();
+    }
+
+    /**
+     *  Returns the answer selecting the given CODEC, as value of
+     *  the <code>@codecs</code> option
+     */
+    public String getAnswer( int format )
+    {
+        for ( Entry e : this.supported ) {
+            if ( e.format == format ) {
+                return e.toString ();
+            }
+        }
+        return getName( DEFAULT_FORMAT );
+    }
+
+    /**
+     *  Chooses the CODEC of the call from the remote peer's <code>@codecs</code>
+     *  option (the offer of INVITE or the answer of ACCEPT): the first listed CODEC
+     *  that is enabled locally with the same frame size. The frame size may be
+     *  omitted by the remote peer.
+     *
+     *  @param codecs  the value of the option; null if the remote peer
+     *                 did not negotiate CODECs
+     *  @return VoicePDU subclass of the CODEC; DEFAULT_FORMAT if there is no
+     *          common CODEC
+     */
+    public int select( String codecs )
+    {
+        if ( codecs == null ) {
+            return DEFAULT_FORMAT;
+        }
+
+        List<Entry> enabled = this.preferred;
+
+        for ( String item : codecs.split( "," ) )
+        {
+            String[] parts = item.trim ().split( "/" );
+
+            int frameSize = -1;
+            if ( parts.length >= 2 ) {
+                try {
+                    frameSize = Integer.parseInt( parts[1] );
+                } catch( NumberFormatException e ) {
+                    continue;
+                }
+            }
+
+            for ( Entry e : enabled ) {
+                if ( e.name.equalsIgnoreCase( parts[0] )
+                        && ( frameSize < 0 || frameSize == e.frameSize ) ) {
+                    return e.format;
+                }
+            }
+        }
+
+        return DEFAULT_FORMAT;
+    }
+}
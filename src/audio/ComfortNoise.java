@@ -0,0 +1,75 @@
+
+package audio;
+
+/**
+ *  Comfort noise generator (CNG) filling the pauses of a discontinuous transmission
+ *  (DTX): while the remote peer does not send voice, it sends only comfort noise
+ *  descriptors (SID) carrying the level of its background noise, and the player
+ *  synthesizes white noise of that level instead of playing silence.
+ *
+ *  The SID payload is the single octet of the RFC 3389 comfort noise payload:
+ *  the level of the noise in -dBov (0 to 127, relative to the full scale).
+ *
+ *  The level may be set by any thread; samples are generated only by the player.
+ */
+public class ComfortNoise
+{
+    /** Length of the comfort noise descriptor payload */
+    public final static int SID_LENGTH = 1;
+
+    /** The gain moves towards the target with this step per sample */
+    private final static double GAIN_SMOOTHING = 0.002;
+
+    /** The level of the noise (0 to 127, in -dBov) */
+    private volatile int level = 127;
+
+    /** The current amplitude of the noise */
+    private double gain = 0;
+
+    /** The state of the pseudo random generator */
+    private int seed = 0x2545F491;
+
+    /**
+     *  Sets the level of the noise (0 to 127, in -dBov)
+     */
+    public void setLevel( int level )
+    {
+        this.level = Math.max( 0, Math.min( 127, level ) );
+    }
+
+    /**
+     *  Returns the level of the noise (0 to 127, in -dBov)
+     */
+    public int getLevel ()
+    {
+        return this.level;
+    }
+
+    /**
+     *  Generates the samples of the noise. The amplitude glides to a new level,
+     *  so the changes of the level do not click.
+     */
+    public void generate( short[] samples, int count )
+    {
+        /* Uniform noise in [-a, a) has RMS a / sqrt(3)
+         */
+        double target = 32768.0 * Math.pow( 10, -this.level / 20.0 ) * Math.sqrt( 3 );
+        double g = this.gain;
+        int x = this.seed;
+
+        for ( int i = 0; i < count; ++i )
+        {
+            g += ( target - g ) * GAIN_SMOOTHING;
+
+            x ^= x << 13; // xorshift
+            x ^= x >>> 17;
+            x ^= x << 5;
+
+            double s = g * ( x / 2147483648.0 );
+            samples[i] = (short) Math.max( -32768, Math.min( 32767, Math.round( s ) ) );
+        }
+
+        this.gain = g;
+        this.seed = x;
+    }
+}
@@ -0,0 +1,77 @@
+
+package audio;
+
+/**
+ *  The playout (de-jitter) policy of the audio interface.
+ *
+ *  The audio interface keeps received frames in its de-jitter buffer and asks
+ *  the policy how deep the buffer should be: how many frames must be buffered
+ *  before the playout starts, when a missing frame should be concealed rather than
+ *  waited for, and whether frames should be added or dropped to move the buffer
+ *  towards its target depth. Otherwise the player moves towards the target depth
+ *  by time-scaling the playout. All depths are expressed in frames.
+ */
+public interface JitterBuffer
+{
+    /**
+     *  Resets the state (e.g. when the call ends)
+     */
+    public abstract void reset ();
+
+    /**
+     *  Notifies the policy that the frame with the given media time-stamp (in ms)
+     *  has arrived at the given local time (in ms).
+     */
+    public abstract void onFrameArrived( long timestamp, long arrivalTime );
+
+    /**
+     *  Notifies the policy that the next arriving frame starts a talkspurt after
+     *  a pause of the sender, where frames may be inserted or dropped inaudibly
+     */
+    public abstract void onTalkspurt ();
+
+    /**
+     *  Returns the number of frames that must be buffered before the playout starts
+     */
+    public abstract int getStartDepth ();
+
+    /**
+     *  Returns the number of frames queued in the audio output below which
+     *  a missing frame is concealed instead of waited for
+     */
+    public abstract int getConcealDepth ();
+
+    /**
+     *  Notifies the policy that a missing frame had to be concealed
+     */
+    public abstract void onUnderrun ();
+
+    /**
+     *  Called by the player on each playout run with the current depth of
+     *  the de-jitter buffer.
+     *
+     *  @return number of silent frames to be inserted (if positive) or
+     *          number of buffered frames to be dropped (if negative)
+     */
+    public abstract int adjustPlayout( int depth );
+
+    /**
+     *  Returns the depth of the de-jitter buffer seen on the last playout run
+     */
+    public abstract int getDepth ();
+
+    /**
+     *  Returns the current target depth
+     */
+    public abstract int getTargetDepth ();
+
+    /**
+     *  Returns the estimated inter-arrival jitter in milliseconds
+     */
+    public abstract double getJitter ();
+
+    /**
+     *  Returns the number of concealed (missing at playout time) frames
+     */
+    public abstract long getUnderrunCount ();
+}
@@ -0,0 +1,53 @@
+
+package audio;
+
+/**
+ *  Packet loss concealment (PLC) applied by the player to 16-bit linear mono samples.
+ *
+ *  The player passes every frame it plays through the concealer: received frames
+ *  are added to the history (and may be modified to smooth the transition after
+ *  concealed frames) and missing frames are synthesized from the history.
+ *  The concealer may delay the audio by a few samples.
+ *
+ *  The concealer is confined to the player thread; only the statistics
+ *  may be read from other threads.
+ */
+public interface PacketLossConcealer
+{
+    /**
+     *  Resets the history (e.g. when the call ends). Statistics are kept.
+     */
+    public abstract void reset ();
+
+    /**
+     *  Adds received samples to the history. The samples are replaced with
+     *  the samples that should be played.
+     */
+    public abstract void addReceived( short[] samples, int count );
+
+    /**
+     *  Synthesizes samples replacing the missing ones.
+     */
+    public abstract void conceal( short[] samples, int count );
+
+    /**
+     *  Returns the number of concealed frames
+     */
+    public abstract long getConcealedFrameCount ();
+
+    /**
+     *  Returns the number of loss events (bursts of consecutive concealed frames)
+     */
+    public abstract long getLossEventCount ();
+
+    /**
+     *  Returns the number of frames in the longest loss event
+     */
+    public abstract long getLongestLossEvent ();
+
+    /**
+     *  Returns the number of concealed frames that were muted completely
+     *  (the loss lasted too long to be concealed)
+     */
+    public abstract long getMutedFrameCount ();
+}
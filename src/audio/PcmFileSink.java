@@ -0,0 +1,157 @@
+
+package audio;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+
+import utils.Log;
+
+/**
+ *  PCM sink writing samples to a WAV file (16-bit little-endian mono at 8 kHz)
+ *  or, for files with other names, to a raw file (16-bit big-endian mono at 8 kHz).
+ *  The WAV header is completed when the sink is closed.
+ */
+public class PcmFileSink implements PcmSink
+{
+    /** Length of the WAV header */
+    private final static int WAV_HEADER_LENGTH = 44;
+
+    /** The file */
+    private final File file;
+
+    /** Indicates that the file is a WAV file */
+    private final boolean wav;
+
+    /** The output stream */
+    private OutputStream output;
+
+    /** Byte-swapped samples (for WAV) */
+    private byte[] swapped = new byte[ 320 ];
+
+    /** Number of octets of samples written */
+    private long dataLength = 0;
+
+    /**
+     *  Creates (or truncates) the file
+     */
+    public PcmFileSink( File file ) throws IOException
+    {
+        this.file = file;
+        this.wav = file.getName ().toLowerCase ().endsWith( ".wav" );
+        this.output = new BufferedOutputStream( new FileOutputStream( file ) );
+
+        if ( this.wav ) {
+            this.output.write( new byte[ WAV_HEADER_LENGTH ] ); // completed by close()
+        }
+    }
+
+    /**
+     *  Writes samples to the file
+     */
+    public synchronized void write( byte[] buff, int offset, int len ) throws IOException
+    {
+        if ( this.output == null ) {
+            return;
+        }
+
+        len -= len % 2;
+
+        if ( this.wav )
+        {
+            if ( this.swapped.length < len ) {
+                this.swapped = new byte[ len ];
+            }
+
+            for ( int i = 0; i < len; i += 2 ) {
+                this.swapped[i] = buff[ offset + i + 1 ];
+                this.swapped[i + 1] = buff[ offset + i ];
+            }
+
+            this.output.write( this.swapped, 0, len );
+        }
+        else
+        {
+            this.output.write( buff, offset, len );
+        }
+
+        this.dataLength += len;
+    }
+
+    /**
+     *  Closes the file and completes the WAV header
+     */
+    public synchronized void close ()
+    {
+        if ( this.output == null ) {
+            return;
+        }
+
+        try
+        {
+            this.output.close ();
+            this.output = null;
+
+            if ( this.wav ) {
+                writeWavHeader ();
+            }
+        }
+        catch( IOException e )
+        {
+            Log.exception( Log.WARN, e );
+        }
+    }
+
+    /**
+     *  Writes the WAV header for the samples written
+     */
+    private void writeWavHeader () throws IOException
+    {
+        byte[] h = new byte[ WAV_HEADER_LENGTH ];
+        int dataLen = (int) Math.min( this.dataLength, Integer.MAX_VALUE - WAV_HEADER_LENGTH );
+
+        putAscii( h, 0, "RIFF" );
+        putLE( h, 4, 4, WAV_HEADER_LENGTH - 8 + dataLen );
+        putAscii( h, 8, "WAVE" );
+        putAscii( h, 12, "fmt " );
+        putLE( h, 16, 4, 16 );        // fmt chunk length
+        putLE( h, 20, 2, 1 );         // PCM
+        putLE( h, 22, 2, 1 );         // mono
+        putLE( h, 24, 4, 8000 );      // sample rate
+        putLE( h, 28, 4, 16000 );     // byte rate
+        putLE( h, 32, 2, 2 );         // block align
+        putLE( h, 34, 2, 16 );        // bits per sample
+        putAscii( h, 36, "data" );
+        putLE( h, 40, 4, dataLen );
+
+        RandomAccessFile raf = new RandomAccessFile( this.file, "rw" );
+        try {
+            raf.write( h );
+        } finally {
+            raf.close ();
+        }
+    }
+
+    /**
+     *  Puts ASCII string into the buffer
+     */
+    private static void putAscii( byte[] h, int offset, String s )
+    {
+        for ( int i = 0; i < s.length (); ++i ) {
+            h[ offset + i ] = (byte) s.charAt( i );
+        }
+    }
+
+    /**
+     *  Puts little-endian integer of the given size into the buffer
+     */
+    private static void putLE( byte[] h, int offset, int size, int value )
+    {
+        for ( int i = 0; i < size; ++i ) {
+            h[ offset + i ] = (byte) ( value >>> ( 8 * i ) );
+        }
+    }
+}
@@ -0,0 +1,128 @@
+
+package audio;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.UnsupportedAudioFileException;
+
+import utils.Log;
+
+/**
+ *  PCM source reading samples from a WAV file or from a raw file.
+ *
+ *  WAV files must be sampled at 8 kHz; 16-bit signed samples of any endianness
+ *  are converted as needed (by the file readers of javax.sound, which do not need
+ *  any sound hardware). Files with other names are read as raw 16-bit signed
+ *  big-endian mono samples at 8 kHz.
+ */
+public class PcmFileSource implements PcmSource
+{
+    /** The file */
+    private final File file;
+
+    /** Indicates that the file is played in a loop */
+    private final boolean loop;
+
+    /** The current input stream */
+    private InputStream input;
+
+    /**
+     *  Opens the file
+     */
+    public PcmFileSource( File file, boolean loop ) throws IOException
+    {
+        this.file = file;
+        this.loop = loop;
+        this.input = open ();
+    }
+
+    /**
+     *  Opens stream of samples in our format
+     */
+    private InputStream open () throws IOException
+    {
+        if ( ! this.file.getName ().toLowerCase ().endsWith( ".wav" ) ) {
+            return new BufferedInputStream( new FileInputStream( this.file ) );
+        }
+
+        AudioFormat mono8k = new AudioFormat(
+                AudioFormat.Encoding.PCM_SIGNED, 8000f, 16, 1, 2, 8000f, true );
+
+        try
+        {
+            AudioInputStream ais = AudioSystem.getAudioInputStream( this.file );
+
+            if ( ! ais.getFormat ().matches( mono8k ) ) {
+                ais = AudioSystem.getAudioInputStream( mono8k, ais );
+            }
+
+            return ais;
+        }
+        catch( UnsupportedAudioFileException e )
+        {
+            throw new IOException( "Unsupported audio file: " + this.file );
+        }
+        catch( IllegalArgumentException e )
+        {
+            throw new IOException( "Cannot convert " + this.file + " to " + mono8k );
+        }
+    }
+
+    /**
+     *  Reads samples into the buffer; reopens the file at its end when looping
+     */
+    public synchronized int read( byte[] buff ) throws IOException
+    {
+        if ( this.input == null ) {
+            return -1;
+        }
+
+        int len = 0;
+        boolean reopened = false;
+
+        while( len < buff.length )
+        {
+            int n = this.input.read( buff, len, buff.length - len );
+            if ( n > 0 ) {
+                len += n;
+                reopened = false;
+                continue;
+            }
+
+            if ( ! this.loop || reopened ) {
+                break; // end of file (or empty file)
+            }
+
+            this.input.close ();
+            this.input = open ();
+            reopened = true;
+        }
+
+        return len > 0 ? len - len % 2 : -1;
+    }
+
+    /**
+     *  Closes the file
+     */
+    public synchronized void close ()
+    {
+        if ( this.input == null ) {
+            return;
+        }
+
+        try {
+            this.input.close ();
+        } catch( IOException e ) {
+            Log.exception( Log.WARN, e );
+        }
+
+        this.input = null;
+    }
+}
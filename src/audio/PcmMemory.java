@@ -0,0 +1,155 @@
+
+package audio;
+
+/**
+ *  In-memory PCM source and sink (16-bit signed big-endian mono at 8 kHz).
+ *
+ *  As a source, it plays the given samples (once or in a loop). As a sink, it keeps
+ *  at most the given number of octets of written samples and counts the rest,
+ *  so many simulated endpoints can run without unbounded memory use.
+ */
+public class PcmMemory implements PcmSource, PcmSink
+{
+    /** Samples played by the source (null if the instance is used only as sink) */
+    private final byte[] samples;
+
+    /** Indicates that the source plays samples in a loop */
+    private final boolean loop;
+
+    /** Read position in samples */
+    private int readPos = 0;
+
+    /** Samples written to the sink */
+    private byte[] written;
+
+    /** Number of octets kept in written */
+    private int writtenLen = 0;
+
+    /** The maximum number of octets kept by the sink */
+    private final int capacity;
+
+    /** Total number of octets written to the sink */
+    private long writtenCount = 0;
+
+    /**
+     *  Creates source playing the given samples; the sink keeps nothing.
+     */
+    public PcmMemory( byte[] samples, boolean loop )
+    {
+        this.samples = samples;
+        this.loop = loop;
+        this.capacity = 0;
+        this.written = new byte[ 0 ];
+    }
+
+    /**
+     *  Creates sink keeping at most the given number of octets; the source
+     *  has no samples.
+     */
+    public PcmMemory( int capacity )
+    {
+        this.samples = null;
+        this.loop = false;
+        this.capacity = Math.max( 0, capacity );
+        this.written = new byte[ Math.min( this.capacity, 16000 ) ];
+    }
+
+    /**
+     *  Reads samples into the buffer
+     */
+    public synchronized int read( byte[] buff )
+    {
+        if ( this.samples == null || this.samples.length == 0 ) {
+            return -1;
+        }
+
+        int len = 0;
+
+        while( len < buff.length )
+        {
+            if ( this.readPos >= this.samples.length )
+            {
+                if ( ! this.loop ) {
+                    break;
+                }
+                this.readPos = 0;
+            }
+
+            int n = Math.min( buff.length - len, this.samples.length - this.readPos );
+            System.arraycopy( this.samples, this.readPos, buff, len, n );
+
+            this.readPos += n;
+            len += n;
+        }
+
+        return len > 0 ? len : -1;
+    }
+
+    /**
+     *  Writes samples into memory
+     */
+    public synchronized void write( byte[] buff, int offset, int len )
+    {
+        this.writtenCount += len;
+
+        int n = Math.min( len, this.capacity - this.writtenLen );
+        if ( n <= 0 ) {
+            return;
+        }
+
+        if ( this.writtenLen + n > this.written.length )
+        {
+            byte[] grown = new byte[ Math.min( this.capacity,
+                    Math.max( this.writtenLen + n, 2 * this.written.length ) ) ];
+            System.arraycopy( this.written, 0, grown, 0, this.writtenLen );
+            this.written = grown;
+        }
+
+        System.arraycopy( buff, offset, this.written, this.writtenLen, n );
+        this.writtenLen += n;
+    }
+
+    /**
+     *  Does nothing; the written samples remain available
+     */
+    public void close ()
+    {
+        /* nothing to release */
+    }
+
+    /**
+     *  Returns the samples kept by the sink
+     */
+    public synchronized byte[] toByteArray ()
+    {
+        byte[] copy = new byte[ this.writtenLen ];
+        System.arraycopy( this.written, 0, copy, 0, this.writtenLen );
+        return copy;
+    }
+
+    /**
+     *  Returns the total number of octets written to the sink
+     */
+    public synchronized long getWrittenCount ()
+    {
+        return this.writtenCount;
+    }
+
+    /**
+     *  Generates sine tone samples with the given frequency, duration and amplitude
+     */
+    public static byte[] tone( double frequency, int millis, int amplitude )
+    {
+        int count = 8 * millis;
+        byte[] buff = new byte[ 2 * count ];
+
+        for ( int i = 0; i < count; ++i )
+        {
+            int s = (int) Math.round( amplitude * Math.sin( 2 * Math.PI * frequency * i / 8000.0 ) );
+            buff[ 2 * i ] = (byte) ( s >> 8 );
+            buff[ 2 * i + 1 ] = (byte) s;
+        }
+
+        return buff;
+    }
+}
@@ -0,0 +1,21 @@
+
+package audio;
+
+import java.io.IOException;
+
+/**
+ *  Sink of 16-bit signed big-endian mono PCM samples at 8 kHz used instead of 
+ *  the speaker by the headless audio interface.
+ */
+public interface PcmSink
+{
+    /**
+     *  Writes <code>len</code> octets of samples from the buffer starting at the offset.
+     */
+    public abstract void write( byte[] buff, int offset, int len ) throws IOException;
+
+    /**
+     *  Flushes and releases resources used by the sink.
+     */
+    public abstract void close ();
+}
@@ -0,0 +1,23 @@
+
+package audio;
+
+import java.io.IOException;
+
+/**
+ *  Source of 16-bit signed big-endian mono PCM samples at 8 kHz used instead of 
+ *  the microphone by the headless audio interface.
+ */
+public interface PcmSource
+{
+    /**
+     *  Reads samples into the buffer (filling it if possible).
+     *
+     *  @return number of octets read; -1 if there are no more samples
+     */
+    public abstract int read( byte[] buff ) throws IOException;
+
+    /**
+     *  Releases resources used by the source.
+     */
+    public abstract void close ();
+}
@@ -0,0 +1,476 @@
+
+package audio;
+
+/**
+ *  Packet loss concealment by pitch waveform replication as specified in
+ *  ITU-T G.711 Appendix I, for 8 kHz samples.
+ *
+ *  On the first missing 10 ms the pitch period is estimated by normalized
+ *  cross-correlation of the history; the last pitch period is then repeated (with
+ *  1/4 period overlap-add at the joints). Consecutive losses replicate up to three
+ *  pitch periods to avoid a buzzy sound and are attenuated by 20% per 10 ms,
+ *  so the output is muted after 60 ms. The first received samples after the loss
+ *  are overlap-added with the synthesized continuation.
+ *
+ *  The output is delayed by 3.75 ms (1/4 of the longest pitch period), which
+ *  allows the overlap-add at the beginning of the loss.
+ */
+public class PitchWaveformConcealer implements PacketLossConcealer
+{
+    /** Length of the subframe the algorithm works on (10 ms) */
+    private final static int FRAMESZ = 80;
+
+    /** Minimum pitch period (200 Hz) */
+    private final static int PITCH_MIN = 40;
+
+    /** Maximum pitch period (66.6 Hz) */
+    private final static int PITCH_MAX = 120;
+
+    /** Range of the pitch search */
+    private final static int PITCHDIFF = PITCH_MAX - PITCH_MIN;
+
+    /** Maximum overlap-add length (1/4 of the longest period); also the delay */
+    private final static int POVERLAPMAX = PITCH_MAX >> 2;
+
+    /** History length: three longest periods and the overlap */
+    private final static int HISTORYLEN = PITCH_MAX * 3 + POVERLAPMAX;
+
+    /** Decimation of the coarse pitch search */
+    private final static int NDEC = 2;
+
+    /** Correlation window length */
+    private final static int CORRLEN = 160;
+
+    /** Correlation buffer length */
+    private final static int CORRBUFLEN = CORRLEN + PITCH_MAX;
+
+    /** Minimum power used to normalize the correlation */
+    private final static float CORRMINPOWER = 250.0f;
+
+    /** Increment of the overlap-add length after the loss per 10 ms lost */
+    private final static int EOVERLAPINCR = 32;
+
+    /** Attenuation per 10 ms */
+    private final static float ATTENFAC = 0.2f;
+
+    /** Attenuation per sample */
+    private final static float ATTENINCR = ATTENFAC / FRAMESZ;
+
+    /** Number of consecutive lost subframes */
+    private int erasecnt = 0;
+
+    /** Overlap-add length (1/4 of the pitch period) */
+    private int poverlap = 0;
+
+    /** Offset in the pitch buffer being replicated */
+    private int poffset = 0;
+
+    /** The estimated pitch period */
+    private int pitch = 0;
+
+    /** Length of the replicated part of the pitch buffer */
+    private int pitchblen = 0;
+
+    /** Start of the replicated part of the pitch buffer */
+    private int pitchbufstart = 0;
+
+    /** Pitch buffer (copy of the history taken on the first lost subframe) */
+    private final float[] pitchbuf = new float[ HISTORYLEN ];
+
+    /** The original last 1/4 period of the history */
+    private final float[] lastq = new float[ POVERLAPMAX ];
+
+    /** History of the played samples */
+    private final short[] history = new short[ HISTORYLEN + FRAMESZ ];
+
+    /** Temporary buffer used for overlap-add */
+    private final short[] overlapbuf = new short[ FRAMESZ ];
+
+    /** Indicates that the previous frame was concealed */
+    private boolean inLossEvent = false;
+
+    /** The length of the current loss event in frames */
+    private long lossEventLength = 0;
+
+    /** Number of concealed frames */
+    private volatile long concealedFrameCount = 0;
+
+    /** Number of loss events */
+    private volatile long lossEventCount = 0;
+
+    /** Number of frames in the longest loss event */
+    private volatile long longestLossEvent = 0;
+
+    /** Number of muted frames */
+    private volatile long mutedFrameCount = 0;
+
+    /**
+     *  Creates the concealer with empty (silent) history
+     */
+    public PitchWaveformConcealer ()
+    {
+        reset ();
+    }
+
+    /**
+     *  Clears the history
+     */
+    public void reset ()
+    {
+        this.erasecnt = 0;
+        this.inLossEvent = false;
+        this.lossEventLength = 0;
+
+        for ( int i = 0; i < this.history.length; ++i ) {
+            this.history[i] = 0;
+        }
+    }
+
+    /**
+     *  Adds received samples to the history; after the loss, overlap-adds the samples
+     *  with the synthesized continuation. Outputs samples delayed by 3.75 ms.
+     */
+    public void addReceived( short[] samples, int count )
+    {
+        this.inLossEvent = false;
+
+        for ( int off = 0; off < count; off += FRAMESZ )
+        {
+            int sz = Math.min( FRAMESZ, count - off );
+
+            if ( this.erasecnt > 0 )
+            {
+                int olen = this.poverlap + ( this.erasecnt - 1 ) * EOVERLAPINCR;
+                olen = Math.min( olen, sz );
+
+                getfespeech( this.overlapbuf, 0, olen );
+                overlapAddAtEnd( samples, off, this.overlapbuf, olen );
+
+                this.erasecnt = 0;
+            }
+
+            saveSpeech( samples, off, sz );
+        }
+    }
+
+    /**
+     *  Synthesizes missing samples from the history.
+     */
+    public void conceal( short[] samples, int count )
+    {
+        if ( ! this.inLossEvent ) {
+            this.inLossEvent = true;
+            this.lossEventLength = 0;
+            ++this.lossEventCount;
+        }
+
+        ++this.concealedFrameCount;
+        if ( ++this.lossEventLength > this.longestLossEvent ) {
+            this.longestLossEvent = this.lossEventLength;
+        }
+
+        for ( int off = 0; off < count; off += FRAMESZ ) {
+            concealSubframe( samples, off, Math.min( FRAMESZ, count - off ) );
+        }
+
+        if ( this.erasecnt > 6 ) {
+            ++this.mutedFrameCount;
+        }
+    }
+
+    /**
+     *  Synthesizes one missing subframe (G.711 Appendix I, dofe).
+     */
+    private void concealSubframe( short[] out, int off, int sz )
+    {
+        if ( this.erasecnt == 0 )
+        {
+            /* Start of the loss: find the pitch period and replicate
+             * the last period, smoothing the joint
+             */
+            for ( int i = 0; i < HISTORYLEN; ++i ) {
+                this.pitchbuf[i] = this.history[i];
+            }
+
+            this.pitch = findPitch ();
+            this.poverlap = this.pitch >> 2;
+
+            System.arraycopy( this.pitchbuf, HISTORYLEN - this.poverlap, this.lastq, 0, this.poverlap );
+
+            this.poffset = 0;
+            this.pitchblen = this.pitch;
+            this.pitchbufstart = HISTORYLEN - this.pitchblen;
+
+            overlapAdd( this.lastq, this.pitchbuf, this.pitchbufstart - this.poverlap,
+                    HISTORYLEN - this.poverlap, this.poverlap );
+
+            /* Update the last 1/4 period in the history (not played yet due to delay)
+             */
+            for ( int i = HISTORYLEN - this.poverlap; i < HISTORYLEN; ++i ) {
+                this.history[i] = clip( this.pitchbuf[i] );
+            }
+
+            getfespeech( out, off, sz );
+        }
+        else if ( this.erasecnt == 1 || this.erasecnt == 2 )
+        {
+            /* Add another period to the replicated part of the pitch buffer
+             */
+            short[] tmp = this.overlapbuf;
+            int saveoffset = this.poffset;
+            getfespeech( tmp, 0, this.poverlap );
+
+            this.poffset = saveoffset;
+            while ( this.poffset > this.pitch ) {
+                this.poffset -= this.pitch;
+            }
+
+            this.pitchblen += this.pitch;
+            this.pitchbufstart = HISTORYLEN - this.pitchblen;
+
+            overlapAdd( this.lastq, this.pitchbuf, this.pitchbufstart - this.poverlap,
+                    HISTORYLEN - this.poverlap, this.poverlap );
+
+            getfespeech( out, off, sz );
+
+            /* Smooth the transition from the old to the new pitch buffer
+             */
+            int olen = Math.min( this.poverlap, sz );
+            float incr = 1.0f / olen;
+            float lw = 1.0f - incr;
+            float rw = incr;
+            for ( int i = 0; i < olen; ++i ) {
+                out[ off + i ] = clip( lw * tmp[i] + rw * out[ off + i ] );
+                lw -= incr;
+                rw += incr;
+            }
+
+            scaleSpeech( out, off, sz );
+        }
+        else if ( this.erasecnt > 5 )
+        {
+            for ( int i = 0; i < sz; ++i ) {
+                out[ off + i ] = 0;
+            }
+        }
+        else
+        {
+            getfespeech( out, off, sz );
+            scaleSpeech( out, off, sz );
+        }
+
+        ++this.erasecnt;
+
+        saveSpeech( out, off, sz );
+    }
+
+    /**
+     *  Estimates the pitch period by normalized cross-correlation; coarse search
+     *  on decimated samples is refined by full resolution search.
+     */
+    private int findPitch ()
+    {
+        float[] p = this.pitchbuf;
+        int l = HISTORYLEN - CORRLEN;
+        int r = HISTORYLEN - CORRBUFLEN;
+
+        /* Coarse search
+         */
+        float energy = 0;
+        float corr = 0;
+        for ( int i = 0; i < CORRLEN; i += NDEC ) {
+            energy += p[ r + i ] * p[ r + i ];
+            corr += p[ r + i ] * p[ l + i ];
+        }
+
+        float bestcorr = corr / (float) Math.sqrt( Math.max( energy, CORRMINPOWER ) );
+        int bestmatch = 0;
+
+        for ( int j = NDEC; j <= PITCHDIFF; j += NDEC )
+        {
+            energy -= p[r] * p[r];
+            energy += p[ r + CORRLEN ] * p[ r + CORRLEN ];
+            r += NDEC;
+
+            corr = 0;
+            for ( int i = 0; i < CORRLEN; i += NDEC ) {
+                corr += p[ r + i ] * p[ l + i ];
+            }
+
+            corr /= (float) Math.sqrt( Math.max( energy, CORRMINPOWER ) );
+            if ( corr >= bestcorr ) {
+                bestcorr = corr;
+                bestmatch = j;
+            }
+        }
+
+        /* Fine search around the coarse match
+         */
+        int j = Math.max( 0, bestmatch - ( NDEC - 1 ) );
+        int k = Math.min( PITCHDIFF, bestmatch + ( NDEC - 1 ) );
+
+        r = HISTORYLEN - CORRBUFLEN + j;
+        energy = 0;
+        corr = 0;
+        for ( int i = 0; i < CORRLEN; ++i ) {
+            energy += p[ r + i ] * p[ r + i ];
+            corr += p[ r + i ] * p[ l + i ];
+        }
+
+        bestcorr = corr / (float) Math.sqrt( Math.max( energy, CORRMINPOWER ) );
+        bestmatch = j;
+
+        for ( ++j; j <= k; ++j )
+        {
+            energy -= p[r] * p[r];
+            energy += p[ r + CORRLEN ] * p[ r + CORRLEN ];
+            ++r;
+
+            corr = 0;
+            for ( int i = 0; i < CORRLEN; ++i ) {
+                corr += p[ r + i ] * p[ l + i ];
+            }
+
+            corr /= (float) Math.sqrt( Math.max( energy, CORRMINPOWER ) );
+            if ( corr > bestcorr ) {
+                bestcorr = corr;
+                bestmatch = j;
+            }
+        }
+
+        return PITCH_MAX - bestmatch;
+    }
+
+    /**
+     *  Copies synthesized samples from the replicated part of the pitch buffer
+     */
+    private void getfespeech( short[] out, int off, int sz )
+    {
+        while ( sz > 0 )
+        {
+            int cnt = Math.min( this.pitchblen - this.poffset, sz );
+
+            for ( int i = 0; i < cnt; ++i ) {
+                out[ off + i ] = clip( this.pitchbuf[ this.pitchbufstart + this.poffset + i ] );
+            }
+
+            this.poffset += cnt;
+            if ( this.poffset == this.pitchblen ) {
+                this.poffset = 0;
+            }
+
+            off += cnt;
+            sz -= cnt;
+        }
+    }
+
+    /**
+     *  Appends samples to the history and replaces them with the samples
+     *  delayed by 1/4 of the longest pitch period.
+     */
+    private void saveSpeech( short[] s, int off, int sz )
+    {
+        System.arraycopy( s, off, this.history, HISTORYLEN, sz );
+        System.arraycopy( this.history, HISTORYLEN - POVERLAPMAX, s, off, sz );
+        System.arraycopy( this.history, sz, this.history, 0, HISTORYLEN );
+    }
+
+    /**
+     *  Attenuates the synthesized samples depending on the length of the loss
+     */
+    private void scaleSpeech( short[] out, int off, int sz )
+    {
+        float g = 1.0f - ( this.erasecnt - 1 ) * ATTENFAC;
+        for ( int i = 0; i < sz; ++i ) {
+            out[ off + i ] = clip( out[ off + i ] * g );
+            g -= ATTENINCR;
+        }
+    }
+
+    /**
+     *  Overlap-adds (with triangular windows) the samples from l with the samples
+     *  from the pitch buffer starting at r into the pitch buffer at o.
+     */
+    private void overlapAdd( float[] l, float[] p, int r, int o, int cnt )
+    {
+        if ( cnt <= 0 ) {
+            return;
+        }
+
+        float incr = 1.0f / cnt;
+        float lw = 1.0f - incr;
+        float rw = incr;
+        for ( int i = 0; i < cnt; ++i ) {
+            p[ o + i ] = Math.max( -32767f, Math.min( 32767f, lw * l[i] + rw * p[ r + i ] ) );
+            lw -= incr;
+            rw += incr;
+        }
+    }
+
+    /**
+     *  Overlap-adds the synthesized samples (attenuated as the last concealed ones)
+     *  with the first received samples after the loss.
+     */
+    private void overlapAddAtEnd( short[] s, int off, short[] f, int cnt )
+    {
+        if ( cnt <= 0 ) {
+            return;
+        }
+
+        float incr = 1.0f / cnt;
+        float gain = Math.max( 0, 1.0f - ( this.erasecnt - 1 ) * ATTENFAC );
+        float incrg = incr * gain;
+        float lw = ( 1.0f - incr ) * gain;
+        float rw = incr;
+        for ( int i = 0; i < cnt; ++i ) {
+            s[ off + i ] = clip( lw * f[i] + rw * s[ off + i ] );
+            lw -= incrg;
+            rw += incr;
+        }
+    }
+
+    /**
+     *  Rounds and saturates the sample
+     */
+    private static short clip( float v )
+    {
+        if ( v >= 32767f ) {
+            return 32767;
+        } else if ( v <= -32768f ) {
+            return -32768;
+        }
+        return (short) Math.round( v );
+    }
+
+    /**
+     *  Returns the number of concealed frames
+     */
+    public long getConcealedFrameCount ()
+    {
+        return this.concealedFrameCount;
+    }
+
+    /**
+     *  Returns the number of loss events
+     */
+    public long getLossEventCount ()
+    {
+        return this.lossEventCount;
+    }
+
+    /**
+     *  Returns the number of frames in the longest loss event
+     */
+    public long getLongestLossEvent ()
+    {
+        return this.longestLossEvent;
+    }
+
+    /**
+     *  Returns the number of muted frames
+     */
+    public long getMutedFrameCount ()
+    {
+        return this.mutedFrameCount;
+    }
+}
@@ -0,0 +1,304 @@
+
+package audio;
+
+import java.util.Arrays;
+
+/**
+ *  Polyphase FIR sample rate converter of 16-bit big-endian PCM streams,
+ *  between any two of the rates used by audio devices and CODECs
+ *  (e.g. 44.1 kHz, 48 kHz, 16 kHz and 8 kHz, in both directions).
+ *
+ *  The conversion ratio is reduced to L/M: the input is conceptually up-sampled
+ *  by L, low-pass filtered below the lower of the two Nyquist frequencies and
+ *  down-sampled by M. Only the outputs actually needed are computed: each one is
+ *  a dot product of the most recent input samples with one of the L phases of
+ *  the filter (the Kaiser windowed sinc), whose coefficients are precomputed
+ *  when the resampler is created.
+ *
+ *  The resampler keeps the tail of the input between calls, so a stream split
+ *  into frames of any length is converted without discontinuities; the filter
+ *  delays the output by half of its length. Apart from growing the work buffer
+ *  to the longest input seen, the conversion does not allocate.
+ *
+ *  The resampler is not thread-safe; it is used by the thread reading the stream.
+ */
+public class PolyphaseResampler
+{
+    /** Zero crossings of the sinc on each side at the lower of the two rates */
+    private final static int ZERO_CROSSINGS = 16;
+
+    /** Kaiser window shape; the stop band attenuation is about 80 dB */
+    private final static double KAISER_BETA = 8.0;
+
+    /** The pass band edge relative to the lower Nyquist frequency */
+    private final static double CUTOFF = 0.9;
+
+    /** Upper bound of the number of coefficients (i.e. of incompatible rates) */
+    private final static int MAX_COEFFICIENTS = 1 << 20;
+
+    /** Input sample rate */
+    private final int inputRate;
+
+    /** Output sample rate */
+    private final int outputRate;
+
+    /** Number of interleaved channels of the input; the first one is converted */
+    private final int channels;
+
+    /** Up-sampling factor (the number of phases) */
+    private final int up;
+
+    /** Down-sampling factor */
+    private final int down;
+
+    /** Number of taps of each phase */
+    private final int taps;
+
+    /** Coefficients of phase p are at p * taps, in the order of the input samples */
+    private final float[] coefficients;
+
+    /** The tail of the previous input (taps - 1 samples) followed by the current input */
+    private float[] history;
+
+    /** The phase of the next output sample */
+    private int phase;
+
+    /** Index of the first input sample (after the tail) of the next output sample */
+    private int position;
+
+    /**
+     *  Creates resampler of the mono input
+     */
+    public PolyphaseResampler( int inputRate, int outputRate )
+    {
+        this( inputRate, outputRate, 1 );
+    }
+
+    /**
+     *  Creates resampler of the first channel of the interleaved input
+     *  into the mono output
+     *
+     *  @throws IllegalArgumentException if the rates or the number of channels
+     *          are not positive or the ratio of the rates needs too large filter
+     */
+    public PolyphaseResampler( int inputRate, int outputRate, int channels )
+    {
+        if ( inputRate <= 0 || outputRate <= 0 || channels <= 0 ) {
+            throw new IllegalArgumentException( "Invalid rates or channels" );
+        }
+
+        int gcd = gcd( inputRate, outputRate );
+
+        this.inputRate = inputRate;
+        this.outputRate = outputRate;
+        this.channels = channels;
+        this.up = outputRate / gcd;
+        this.down = inputRate / gcd;
+
+        if ( this.up == this.down )
+        {
+            this.taps = 1;
+            this.coefficients = new float[] { 1f };
+        }
+        else
+        {
+            /* Filter spans ZERO_CROSSINGS periods of the lower Nyquist frequency
+             * on each side, counted in the input samples
+             */
+            double ratio = (double) inputRate / Math.min( inputRate, outputRate );
+            this.taps = 2 * (int) Math.ceil( ZERO_CROSSINGS * ratio );
+
+            if ( (long) this.taps * this.up > MAX_COEFFICIENTS ) {
+                throw new IllegalArgumentException( "Unsupported conversion "
+                        + inputRate + " -> " + outputRate );
+            }
+
+            this.coefficients = designFilter( this.up, this.taps, CUTOFF / ratio );
+        }
+
+        this.history = new float[ this.taps - 1 ];
+        reset ();
+    }
+
+    /**
+     *  Computes coefficients of all phases of the windowed sinc low-pass filter
+     *
+     *  @param cutoff  the pass band edge relative to the input Nyquist frequency
+     */
+    private static float[] designFilter( int up, int taps, double cutoff )
+    {
+        int length = up * taps;
+        double center = ( length - 1 ) / 2.0;
+        double norm = bessel0( KAISER_BETA );
+
+        float[] c = new float[ length ];
+
+        for ( int n = 0; n < length; ++n )
+        {
+            /* Prototype at the up-sampled rate, with time in the input samples,
+             * so each phase has unity gain at DC
+             */
+            double t = ( n - center ) / up;
+            double x = Math.PI * cutoff * t;
+            double sinc = x == 0 ? 1 : Math.sin( x ) / x;
+            double r = ( n - center ) / center;
+            double window = bessel0( KAISER_BETA * Math.sqrt( Math.max( 0, 1 - r * r ) ) ) / norm;
+
+            /* Tap k of phase p multiplies the input sample k samples before
+             * the current one; store it reversed so the dot product runs forward
+             */
+            int p = n % up;
+            int k = n / up;
+            c[ p * taps + ( taps - 1 - k ) ] = (float) ( cutoff * sinc * window );
+        }
+
+        return c;
+    }
+
+    /**
+     *  Zeroth order modified Bessel function of the first kind
+     */
+    private static double bessel0( double x )
+    {
+        double sum = 1, term = 1;
+        for ( int k = 1; term > 1e-12 * sum; ++k ) {
+            term *= ( x / ( 2 * k ) ) * ( x / ( 2 * k ) );
+            sum += term;
+        }
+        return sum;
+    }
+
+    /**
+     *  Greatest common divisor
+     */
+    private static int gcd( int a, int b )
+    {
+        while( b != 0 ) {
+            int t = a % b;
+            a = b;
+            b = t;
+        }
+        return a;
+    }
+
+    /**
+     *  Forgets the input (e.g. when recording restarts); the stream continues
+     *  as if preceded by silence
+     */
+    public void reset ()
+    {
+        Arrays.fill( this.history, 0f );
+        this.phase = 0;
+        this.position = 0;
+    }
+
+    /**
+     *  Returns the input sample rate
+     */
+    public int getInputRate ()
+    {
+        return this.inputRate;
+    }
+
+    /**
+     *  Returns the output sample rate
+     */
+    public int getOutputRate ()
+    {
+        return this.outputRate;
+    }
+
+    /**
+     *  Returns the number of interleaved channels of the input
+     */
+    public int getChannels ()
+    {
+        return this.channels;
+    }
+
+    /**
+     *  Returns the number of output samples produced from the given number
+     *  of input samples (frames) at the current position of the stream
+     */
+    public int getOutputCount( int inputCount )
+    {
+        long last = (long) inputCount * this.up - 1 - this.position * (long) this.up - this.phase;
+        return last < 0 ? 0 : (int) ( last / this.down + 1 );
+    }
+
+    /**
+     *  Converts the input frames of big-endian 16-bit samples into the mono
+     *  output of big-endian 16-bit samples.
+     *
+     *  @param src        the input
+     *  @param offset     offset of the first input frame
+     *  @param length     length of the input in octets
+     *  @param dest       the output; must hold getOutputCount() samples
+     *  @param destOffset offset of the first output sample
+     *  @return number of octets stored in the output
+     */
+    public int resample( byte[] src, int offset, int length, byte[] dest, int destOffset )
+    {
+        int step = 2 * this.channels;
+        int count = length / step;
+        int tail = this.taps - 1;
+
+        if ( this.up == this.down && this.channels == 1 ) {
+            System.arraycopy( src, offset, dest, destOffset, 2 * count );
+            return 2 * count;
+        }
+
+        if ( this.history.length < tail + count ) {
+            float[] h = new float[ tail + count ];
+            System.arraycopy( this.history, 0, h, 0, tail );
+            this.history = h;
+        }
+
+        float[] x = this.history;
+
+        for ( int i = 0, j = offset; i < count; ++i, j += step ) {
+            x[ tail + i ] = (short) ( ( src[j] << 8 ) | ( src[j + 1] & 0xFF ) );
+        }
+
+        float[] c = this.coefficients;
+        int taps = this.taps;
+        int p = this.phase;
+        int i = this.position;
+        int d = destOffset;
+
+        while( i < count )
+        {
+            float acc = 0f;
+            for ( int k = 0, ck = p * taps; k < taps; ++k, ++ck ) {
+                acc += c[ck] * x[ i + k ];
+            }
+
+            int s = Math.round( acc );
+            s = s > 32767 ? 32767 : ( s < -32768 ? -32768 : s );
+            dest[d++] = (byte) ( s >> 8 );
+            dest[d++] = (byte) s;
+
+            p += this.down;
+            i += p / this.up;
+            p %= this.up;
+        }
+
+        /* Keep the tail of the input for the next call
+         */
+        System.arraycopy( x, count, x, 0, tail );
+        this.phase = p;
+        this.position = i - count;
+
+        return d - destOffset;
+    }
+
+    /**
+     *  Converts the whole input frame into the output (see above)
+     *
+     *  @return number of octets stored in the output
+     */
+    public int resample( byte[] src, byte[] dest )
+    {
+        return resample( src, 0, src.length, dest, 0 );
+    }
+}
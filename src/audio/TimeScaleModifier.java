@@ -0,0 +1,336 @@
+
+package audio;
+
+/**
+ *  Waveform-similarity overlap-add (WSOLA) time-scale modifier for 16-bit
+ *  big-endian PCM audio.
+ *
+ *  The output is synthesized from Hann-windowed input segments overlapped by
+ *  one half of the window. The nominal analysis position advances by <i>rate</i>
+ *  times the synthesis hop, so the playout is sped up (rate &gt; 1, the buffer drains)
+ *  or slowed down (rate &lt; 1, the buffer fills) without changing the pitch.
+ *  Each segment is taken within the tolerance around its nominal position where
+ *  it is the most similar (cross-correlated) to the natural continuation of
+ *  the previous segment, so the waveform stays continuous and no clicks are heard.
+ *
+ *  With the rate 1.0 the modifier passes audio through without any delay; when
+ *  the rate is changed to 1.0 again, the audio buffered for the look-ahead is flushed
+ *  and the modifier returns to the pass-through mode.
+ *
+ *  The modifier is not thread-safe.
+ */
+public class TimeScaleModifier
+{
+    /** Number of interleaved channels */
+    private final int channels;
+
+    /** Synthesis hop (half of the window) in frames */
+    private final int hop;
+
+    /** Window length in frames */
+    private final int window;
+
+    /** Maximum offset of the segment from its nominal position in frames */
+    private final int tolerance;
+
+    /** Hann window */
+    private final float[] win;
+
+    /** Buffered input samples (interleaved) */
+    private short[] input;
+
+    /** Number of buffered input frames */
+    private int inputFrames = 0;
+
+    /** The nominal position of the next segment (relative to input) */
+    private double analysisPos = 0;
+
+    /** The position of the previous segment (relative to input) */
+    private int prevPos = 0;
+
+    /** The second (decaying) half of the previous windowed segment */
+    private final float[] tail;
+
+    /** Indicates that the audio is being time-scaled (not passed through) */
+    private boolean active = false;
+
+    /** The requested rate */
+    private double rate = 1.0;
+
+    /** Total number of frames consumed */
+    private long framesIn = 0;
+
+    /** Total number of frames produced */
+    private long framesOut = 0;
+
+    /**
+     *  Creates modifier for the given sample rate and number of channels.
+     *  The window is 20 ms long and the tolerance is 5 ms.
+     */
+    public TimeScaleModifier( int sampleRate, int channels )
+    {
+        this.channels = Math.max( 1, channels );
+        this.hop = Math.max( 8, sampleRate / 100 );
+        this.window = 2 * this.hop;
+        this.tolerance = Math.max( 4, sampleRate / 200 );
+
+        this.win = new float[ this.window ];
+        for ( int i = 0; i < this.window; ++i ) {
+            this.win[i] = (float) ( 0.5 - 0.5 * Math.cos( 2 * Math.PI * i / this.window ) );
+        }
+
+        this.tail = new float[ this.hop * this.channels ];
+        this.input = new short[ 4 * ( this.window + this.tolerance ) * this.channels ];
+    }
+
+    /**
+     *  Sets the rate: greater than 1.0 speeds up, less than 1.0 slows down the playout.
+     *  The rate is limited to range 0.5 to 2.0.
+     */
+    public void setRate( double rate )
+    {
+        this.rate = Math.max( 0.5, Math.min( 2.0, rate ) );
+    }
+
+    /**
+     *  Returns the requested rate
+     */
+    public double getRate ()
+    {
+        return this.rate;
+    }
+
+    /**
+     *  Returns if the audio is being time-scaled (or passed through)
+     */
+    public boolean isActive ()
+    {
+        return this.active;
+    }
+
+    /**
+     *  Returns the difference between the number of produced and consumed frames
+     *  (positive if the playout has been slowed down)
+     */
+    public long getFrameSkew ()
+    {
+        return this.framesOut - this.framesIn;
+    }
+
+    /**
+     *  Returns the size of the output buffer (in octets) sufficient to process
+     *  input of the given size (in octets) with any rate.
+     */
+    public int getMaxOutputSize( int inputSize )
+    {
+        return 2 * inputSize + 2 * 2 * this.channels * ( this.input.length / this.channels );
+    }
+
+    /**
+     *  Time-scales the input. The output buffer must hold at least
+     *  getMaxOutputSize( len ) octets.
+     *
+     *  @return number of octets written into the output
+     */
+    public int process( byte[] in, int offset, int len, byte[] out )
+    {
+        int frameSize = 2 * this.channels;
+        int frames = len / frameSize;
+
+        this.framesIn += frames;
+
+        if ( ! this.active && this.rate == 1.0 )
+        {
+            System.arraycopy( in, offset, out, 0, frames * frameSize );
+            this.framesOut += frames;
+            return frames * frameSize;
+        }
+
+        append( in, offset, frames );
+
+        int written = 0;
+
+        if ( ! this.active ) {
+            start ();
+        }
+
+        while( this.active )
+        {
+            if ( this.rate == 1.0 ) {
+                written = flush( out, written );
+                break;
+            }
+
+            int nominal = (int) Math.floor( this.analysisPos );
+            if ( nominal + this.tolerance + this.window > this.inputFrames ) {
+                break; // need more input
+            }
+
+            int best = search( nominal );
+
+            /* Overlap-add the first half of the segment to the tail of
+             * the previous one and keep the second half as the new tail
+             */
+            int c = this.channels;
+            for ( int i = 0; i < this.hop; ++i )
+            {
+                for ( int ch = 0; ch < c; ++ch )
+                {
+                    float v = this.tail[ i * c + ch ]
+                            + this.win[i] * this.input[ ( best + i ) * c + ch ];
+                    written = putSample( out, written, v );
+
+                    this.tail[ i * c + ch ] = this.win[ this.hop + i ]
+                            * this.input[ ( best + this.hop + i ) * c + ch ];
+                }
+            }
+
+            this.framesOut += this.hop;
+            this.prevPos = best;
+            this.analysisPos += this.hop * this.rate;
+
+            compact ();
+        }
+
+        return written;
+    }
+
+    /**
+     *  Starts time-scaling from the beginning of the buffered input; the virtual
+     *  previous segment makes the first output samples equal to the input.
+     */
+    private void start ()
+    {
+        int c = this.channels;
+        for ( int i = 0; i < this.hop; ++i ) {
+            for ( int ch = 0; ch < c; ++ch ) {
+                this.tail[ i * c + ch ] = this.win[ this.hop + i ] * this.input[ i * c + ch ];
+            }
+        }
+
+        this.prevPos = -this.hop;
+        this.analysisPos = -this.hop + this.hop * this.rate;
+        this.active = true;
+    }
+
+    /**
+     *  Outputs the rest of the input without time-scaling and returns to
+     *  the pass-through mode. The tail of the previous segment and the first half
+     *  of the natural continuation sum up exactly to the input.
+     */
+    private int flush( byte[] out, int written )
+    {
+        int natural = this.prevPos + this.hop;
+        int c = this.channels;
+
+        for ( int i = natural * c; i < this.inputFrames * c; ++i ) {
+            written = putSample( out, written, this.input[i] );
+        }
+
+        this.framesOut += this.inputFrames - natural;
+        this.inputFrames = 0;
+        this.active = false;
+
+        return written;
+    }
+
+    /**
+     *  Finds the position within the tolerance around the nominal position
+     *  where the segment is most similar to the natural continuation of
+     *  the previous segment.
+     */
+    private int search( int nominal )
+    {
+        int natural = this.prevPos + this.hop;
+        int c = this.channels;
+
+        int from = Math.max( 0, nominal - this.tolerance );
+        int to = nominal + this.tolerance;
+
+        int best = Math.max( 0, nominal );
+        double bestScore = Double.NEGATIVE_INFINITY;
+
+        for ( int pos = from; pos <= to; ++pos )
+        {
+            double corr = 0;
+            double energy = 1e-3;
+
+            for ( int i = 0; i < this.hop * c; i += c )
+            {
+                double a = this.input[ natural * c + i ];
+                double b = this.input[ pos * c + i ];
+                corr += a * b;
+                energy += b * b;
+            }
+
+            double score = corr / Math.sqrt( energy );
+            if ( score > bestScore ) {
+                bestScore = score;
+                best = pos;
+            }
+        }
+
+        return best;
+    }
+
+    /**
+     *  Discards input that will not be used anymore
+     */
+    private void compact ()
+    {
+        int keep = Math.min( this.prevPos + this.hop,
+                (int) Math.floor( this.analysisPos ) - this.tolerance );
+
+        if ( keep <= 0 ) {
+            return;
+        }
+
+        int c = this.channels;
+        System.arraycopy( this.input, keep * c, this.input, 0, ( this.inputFrames - keep ) * c );
+
+        this.inputFrames -= keep;
+        this.prevPos -= keep;
+        this.analysisPos -= keep;
+    }
+
+    /**
+     *  Appends big-endian samples to the input buffer
+     */
+    private void append( byte[] in, int offset, int frames )
+    {
+        int c = this.channels;
+        int needed = ( this.inputFrames + frames ) * c;
+
+        if ( needed > this.input.length )
+        {
+            short[] grown = new short[ Math.max( needed, 2 * this.input.length ) ];
+            System.arraycopy( this.input, 0, grown, 0, this.inputFrames * c );
+            this.input = grown;
+        }
+
+        int j = this.inputFrames * c;
+        for ( int i = 0; i < frames * c; ++i, offset += 2 ) {
+            this.input[ j++ ] = (short) ( ( in[ offset ] << 8 ) | ( in[ offset + 1 ] & 0xFF ) );
+        }
+
+        this.inputFrames += frames;
+    }
+
+    /**
+     *  Writes big-endian sample (with saturation) into the output
+     */
+    private static int putSample( byte[] out, int pos, float v )
+    {
+        int s = Math.round( v );
+        if ( s > Short.MAX_VALUE ) {
+            s = Short.MAX_VALUE;
+        } else if ( s < Short.MIN_VALUE ) {
+            s = Short.MIN_VALUE;
+        }
+
+        out[ pos ] = (byte) ( s >> 8 );
+        out[ pos + 1 ] = (byte) s;
+
+        return pos + 2;
+    }
+}
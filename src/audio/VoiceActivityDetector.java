@@ -0,0 +1,138 @@
+
+package audio;
+
+/**
+ *  Energy based voice activity detector (VAD) of captured 16-bit big-endian frames.
+ *
+ *  The level of each frame (in dBov, i.e. relative to the full scale) is compared
+ *  with the noise floor, the minimum level over the last one to two seconds
+ *  (minimum statistics): the pauses between words are never longer apart, so
+ *  the floor settles on the level of the background noise and follows it both ways.
+ *  A frame louder than the noise floor by the margin carries voice.
+ *  Voice is reported for a few more frames after the level falls (hangover), so
+ *  the trailing low-energy phonemes are not clipped.
+ *
+ *  The detector is used only by the thread capturing the frames.
+ */
+public class VoiceActivityDetector
+{
+    /** Number of frames still reported as voice after the voice has ended */
+    private final static int HANGOVER_FRAMES = 10;
+
+    /** Margin of the voice above the noise floor in dB */
+    private final static double VOICE_MARGIN = 9.0;
+
+    /** Frames quieter than this level (dBov) never carry voice */
+    private final static double MIN_VOICE_LEVEL = -55.0;
+
+    /** Level of the digital silence (dBov) */
+    private final static double SILENCE_LEVEL = -127.0;
+
+    /** Number of frames in the block of the minimum statistics (1 s) */
+    private final static int BLOCK_FRAMES = 50;
+
+    /** The minimum level in the current block (dBov) */
+    private double blockMin;
+
+    /** The minimum level in the previous block (dBov) */
+    private double previousBlockMin;
+
+    /** Number of frames in the current block */
+    private int blockFrames;
+
+    /** The smoothed level of the frames without voice (dBov) */
+    private double noiseLevel;
+
+    /** Number of frames left in the hangover */
+    private int hangover;
+
+    /**
+     *  Creates detector; the first frames are reported as voice
+     */
+    public VoiceActivityDetector ()
+    {
+        reset ();
+    }
+
+    /**
+     *  Resets the detector (e.g. when recording starts); the first frames are
+     *  reported as voice until the noise floor settles.
+     */
+    public void reset ()
+    {
+        this.previousBlockMin = MIN_VOICE_LEVEL - VOICE_MARGIN;
+        this.blockMin = 0;
+        this.blockFrames = 0;
+        this.noiseLevel = SILENCE_LEVEL;
+        this.hangover = HANGOVER_FRAMES;
+    }
+
+    /**
+     *  Returns the level of the big-endian 16-bit samples in dBov
+     */
+    public static double getLevel( byte[] pcm, int offset, int length )
+    {
+        int count = length / 2;
+        if ( count == 0 ) {
+            return SILENCE_LEVEL;
+        }
+
+        double energy = 0;
+
+        for ( int i = 0, j = offset; i < count; ++i, j += 2 ) {
+            int s = (short) ( ( pcm[j] << 8 ) | ( pcm[j + 1] & 0xFF ) );
+            energy += s * s;
+        }
+
+        if ( energy == 0 ) {
+            return SILENCE_LEVEL;
+        }
+
+        return Math.max( SILENCE_LEVEL, 10 * Math.log10( energy / count / ( 32768.0 * 32768.0 ) ) );
+    }
+
+    /**
+     *  Classifies the frame of big-endian 16-bit samples.
+     *
+     *  @return true if the frame carries voice (or it is in the hangover)
+     */
+    public boolean process( byte[] pcm, int offset, int length )
+    {
+        double level = getLevel( pcm, offset, length );
+
+        this.blockMin = Math.min( this.blockMin, level );
+
+        double noiseFloor = Math.min( this.blockMin, this.previousBlockMin );
+
+        if ( ++this.blockFrames >= BLOCK_FRAMES ) {
+            this.previousBlockMin = this.blockMin;
+            this.blockMin = 0;
+            this.blockFrames = 0;
+        }
+
+        if ( level > Math.max( MIN_VOICE_LEVEL, noiseFloor + VOICE_MARGIN ) ) {
+            this.hangover = HANGOVER_FRAMES;
+            return true;
+        }
+
+        /* Background noise
+         */
+        this.noiseLevel += ( level - this.noiseLevel ) * 0.25;
+
+        if ( this.hangover > 0 ) {
+            --this.hangover;
+            return true;
+        }
+
+        return false;
+    }
+
+    /**
+     *  Returns the level of the background noise as the comfort noise level
+     *  of RFC 3389 (0 to 127, in -dBov)
+     */
+    public int getNoiseLevel ()
+    {
+        return (int) Math.max( 0, Math.min( 127, Math.round( -this.noiseLevel ) ) );
+    }
+}
@@ -9,6 +9,7 @@ import java.io.IOException;
 import java.security.SignedObject;
 
 import utils.Log;
+import utils.WorkerThreads;
 
 /**
  *  Common ciphering engine (for the whole application) providing:
@@ -200,7 +201,8 @@ public class CipherEngine
             }
         };
 
-        ( new Thread( nonBlockingInitThread, "CipherEngine" ) ).start ();
+        WorkerThreads.newThread( nonBlockingInitThread, "CipherEngine", 
+                Thread.NORM_PRIORITY, false ).start ();
     }
     
     /**
@@ -0,0 +1,352 @@
+
+package crypto;
+
+import java.nio.ByteBuffer;
+import java.security.spec.AlgorithmParameterSpec;
+import java.util.Random;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.IvParameterSpec;
+
+import utils.Log;
+
+/**
+ *  Packet cipher context: enciphers and deciphers PDUs with the secret key of
+ *  the SymmetricCipher that created it (see SymmetricCipher for the packet modes).
+ *
+ *  The context is not thread-safe and it takes no locks. It is meant to be owned
+ *  by a single thread, e.g. by the sender of a call (see SymmetricCipher.newPacketCipher),
+ *  or by a receiver thread (see SymmetricCipher.decryptPacket). Enciphering and
+ *  deciphering use separate Cipher instances, each bound to the key once, so the key
+ *  schedule is computed only once per context: CBC ciphers are initialized only once
+ *  (the CBC mode resets to the initial all-zero IV after each doFinal()), and AEAD
+ *  ciphers are reinitialized only with the nonce of each PDU (the provider keeps
+ *  the expanded key while the key does not change).
+ */
+public class PacketCipher
+{
+    /**
+     *  Length of the salt following the PDU header in AEAD packet mode
+     */
+    private final static int saltLength = 4;
+
+    /**
+     *  Length of the AEAD nonce
+     */
+    private final static int nonceLength = 12;
+
+    /**
+     *  Length of the AEAD authentication tag in octets
+     */
+    private final static int tagLength = 16;
+
+    /**
+     *  Length of the all-zero IV block prepended to the PDU in CBC packet mode
+     */
+    private final static int ivLength = 8;
+
+    /**
+     *  All-zero IV for the CBC (the random preamble is used instead of random IV)
+     */
+    private final static IvParameterSpec zeroIvSpec = new IvParameterSpec( new byte[ ivLength ] );
+
+    /**
+     *  Zero block prepended to the plain text instead of the IV
+     */
+    private final static byte[] zeroIv = new byte[ ivLength ];
+
+    /**
+     *  Secret key
+     */
+    private final SecretKey secretKey;
+
+    /**
+     *  Cipher transformation
+     */
+    private final String transformation;
+
+    /**
+     *  Indicates AEAD packet mode (otherwise CBC packet mode)
+     */
+    private final boolean aead;
+
+    /**
+     *  Block size of the cipher in CBC mode
+     */
+    private final int blockSize;
+
+    /**
+     *  Cipher used to encrypt PDUs; created on the first use
+     */
+    private Cipher encryptor = null;
+
+    /**
+     *  Cipher used to decrypt PDUs; created on the first use
+     */
+    private Cipher decryptor = null;
+
+    /**
+     *  Source of random preambles and the initial salt
+     */
+    private final Random random;
+
+    /**
+     *  The salt of the next PDU enciphered in AEAD mode. Starts at random value and
+     *  increments, so nonces of the PDUs enciphered by this context never repeat,
+     *  even if their headers do (e.g. in the next call).
+     */
+    private int nextSalt;
+
+    /**
+     *  Reusable nonce of the PDU being enciphered
+     */
+    private final byte[] encryptNonce = new byte[ nonceLength ];
+
+    /**
+     *  Reusable nonce of the PDU being deciphered
+     */
+    private final byte[] decryptNonce = new byte[ nonceLength ];
+
+    /**
+     *  Reusable random preamble of PDUs enciphered in CBC mode
+     */
+    private final byte[] preamble = new byte[ SymmetricCipher.PDU_PREAMBLE_LENGTH ];
+
+    /**
+     *  Reusable input buffer for decrypt()
+     */
+    private byte[] decryptInput = null;
+
+    /**
+     *  Reusable output buffer for decrypt()
+     */
+    private byte[] decryptOutput = null;
+
+    /**
+     *  Creates context for the secret key and the cipher transformation
+     */
+    PacketCipher( SecretKey secretKey, String transformation, boolean aead, int blockSize,
+            long seed )
+    {
+        this.secretKey = secretKey;
+        this.transformation = transformation;
+        this.aead = aead;
+        this.blockSize = Math.max( 1, blockSize );
+        this.random = new Random( seed );
+        this.nextSalt = this.random.nextInt ();
+    }
+
+    /**
+     *  Returns the length of the datagram produced by encrypt() for the PDU
+     *  of the given length.
+     */
+    public int getOutputSize( int pduLen )
+    {
+        if ( this.aead ) {
+            return pduLen + saltLength + tagLength;
+        }
+
+        /* PKCS5 padding always adds at least one octet
+         */
+        int ptLength = ivLength + SymmetricCipher.PDU_PREAMBLE_LENGTH + pduLen;
+        return ( ptLength / this.blockSize + 1 ) * this.blockSize;
+    }
+
+    /**
+     *  Returns algorithm parameters of the AEAD cipher for the given nonce
+     */
+    static AlgorithmParameterSpec getAeadParameters( String transformation, byte[] nonce )
+    {
+        if ( transformation.startsWith( "AES/GCM" ) ) {
+            return new GCMParameterSpec( tagLength * 8, nonce );
+        }
+
+        return new IvParameterSpec( nonce );
+    }
+
+    /**
+     *  Fills in the nonce of the PDU: the salt followed by the source call number,
+     *  the timestamp and the sequence numbers from the PDU header.
+     */
+    private static void setNonce( byte[] nonce, byte[] salt, int saltOffset,
+            byte[] header, int headerOffset )
+    {
+        System.arraycopy( salt, saltOffset, nonce, 0, saltLength );
+        System.arraycopy( header, headerOffset, nonce, saltLength, 2 );     // source call
+        System.arraycopy( header, headerOffset + 4, nonce, saltLength + 2, 6 ); // ts, seq
+    }
+
+    /**
+     *  Enciphers the first pduLen octets of the PDU into the preallocated datagram
+     *  buffer (which must hold at least getOutputSize() octets).
+     *
+     *  @return length of the datagram; -1 in case of error
+     */
+    public int encrypt( byte[] pdu, int pduLen, byte[] datagram )
+    {
+        int headerLen = SymmetricCipher.PDU_HEADER_LENGTH;
+
+        if ( pduLen < headerLen || datagram.length < getOutputSize( pduLen ) ) {
+            return -1;
+        }
+
+        int length = -1;
+
+        try
+        {
+            if ( this.encryptor == null )
+            {
+                Cipher c = Cipher.getInstance( this.transformation );
+                if ( ! this.aead ) {
+                    c.init( Cipher.ENCRYPT_MODE, this.secretKey, zeroIvSpec );
+                }
+                this.encryptor = c;
+            }
+
+            Cipher c = this.encryptor;
+
+            if ( this.aead )
+            {
+                /* Header in clear followed by the salt
+                 */
+                int salt = this.nextSalt++;
+
+                System.arraycopy( pdu, 0, datagram, 0, headerLen );
+                datagram[ headerLen     ] = (byte)( salt >>> 24 );
+                datagram[ headerLen + 1 ] = (byte)( salt >>> 16 );
+                datagram[ headerLen + 2 ] = (byte)( salt >>> 8 );
+                datagram[ headerLen + 3 ] = (byte) salt;
+
+                setNonce( this.encryptNonce, datagram, headerLen, pdu, 0 );
+
+                c.init( Cipher.ENCRYPT_MODE, this.secretKey,
+                        getAeadParameters( this.transformation, this.encryptNonce ) );
+                c.updateAAD( pdu, 0, headerLen );
+
+                int offset = headerLen + saltLength;
+
+                length = offset + c.doFinal( pdu, headerLen, pduLen - headerLen,
+                        datagram, offset );
+            }
+            else
+            {
+                /* Zero IV block, random preamble and the whole PDU
+                 */
+                byte[] p = this.preamble;
+                long r = this.random.nextLong ();
+                for ( int i = 0; i < p.length; ++i, r >>>= 8 ) {
+                    p[i] = (byte) r;
+                }
+
+                int len = c.update( zeroIv, 0, ivLength, datagram, 0 );
+
+                len += c.update( p, 0, p.length, datagram, len );
+
+                len += c.update( pdu, 0, pduLen, datagram, len );
+
+                len += c.doFinal( datagram, len );
+
+                length = len;
+            }
+        }
+        catch( Exception e )
+        {
+            Log.exception( Log.PDU, e );
+            this.encryptor = null; // state unknown; set up new encryptor
+        }
+
+        return length;
+    }
+
+    /**
+     *  Deciphers (and in AEAD mode authenticates) PDU from the datagram found
+     *  between the position and the limit of the source buffer into the destination
+     *  buffer. On success, the destination buffer is flipped (ready to be read).
+     *  Intermediate arrays are allocated only once and reused for later PDUs.
+     *
+     *  @return length of the PDU; -1 in case of error
+     */
+    public int decrypt( ByteBuffer datagram, ByteBuffer pdu )
+    {
+        int headerLen = SymmetricCipher.PDU_HEADER_LENGTH;
+        int length = datagram.remaining ();
+
+        if ( length < ( this.aead ? headerLen + saltLength + tagLength : ivLength ) ) {
+            return -1;
+        }
+
+        int pduLen = -1;
+
+        try
+        {
+            if ( this.decryptor == null )
+            {
+                Cipher c = Cipher.getInstance( this.transformation );
+                if ( ! this.aead ) {
+                    c.init( Cipher.DECRYPT_MODE, this.secretKey, zeroIvSpec );
+                }
+                this.decryptor = c;
+            }
+
+            if ( this.decryptInput == null || this.decryptInput.length < length ) {
+                this.decryptInput = new byte[ length ];
+            }
+            if ( this.decryptOutput == null || this.decryptOutput.length < length ) {
+                this.decryptOutput = new byte[ length ];
+            }
+
+            byte[] in = this.decryptInput;
+            datagram.get( in, 0, length );
+
+            Cipher c = this.decryptor;
+
+            if ( this.aead )
+            {
+                setNonce( this.decryptNonce, in, headerLen, in, 0 );
+
+                c.init( Cipher.DECRYPT_MODE, this.secretKey,
+                        getAeadParameters( this.transformation, this.decryptNonce ) );
+                c.updateAAD( in, 0, headerLen );
+
+                int offset = headerLen + saltLength;
+                int payloadLen = c.doFinal( in, offset, length - offset,
+                        this.decryptOutput, 0 );
+
+                pdu.clear ();
+                pdu.put( in, 0, headerLen );
+                pdu.put( this.decryptOutput, 0, payloadLen );
+                pdu.flip ();
+
+                pduLen = headerLen + payloadLen;
+            }
+            else
+            {
+                int bufLen = c.doFinal( in, 0, length, this.decryptOutput, 0 );
+
+                /* Skip the IV and random preamble from the start of the message
+                 */
+                int skip = ivLength + SymmetricCipher.PDU_PREAMBLE_LENGTH;
+
+                if ( bufLen >= skip )
+                {
+                    pdu.clear ();
+                    pdu.put( this.decryptOutput, skip, bufLen - skip );
+                    pdu.flip ();
+
+                    pduLen = bufLen - skip;
+                }
+            }
+        }
+        catch( Exception e )
+        {
+            Log.exception( Log.PDU, e );
+            if ( ! this.aead ) {
+                this.decryptor = null; // state unknown; set up new decryptor
+            }
+        }
+
+        return pduLen;
+    }
+}
@@ -0,0 +1,361 @@
+
+package crypto;
+
+import java.security.GeneralSecurityException;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import utils.Log;
+
+/**
+ *  Cryptographic context of one direction (one SSRC) of an SRTP session,
+ *  implementing the default SRTP transform of RFC 3711: AES in counter mode
+ *  with 128-bit keys for the payload and HMAC-SHA1 truncated to 80 bits for
+ *  the authentication tag (AES_CM_128_HMAC_SHA1_80). Session keys are derived
+ *  from the master key and the master salt with the key derivation rate 0.
+ *
+ *  The RTP header is sent in clear and it is authenticated together with
+ *  the enciphered payload and the roll-over counter (ROC), which extends the 16-bit
+ *  sequence number to the 48-bit packet index. The receiver estimates the index
+ *  of each packet and rejects replayed packets using 64 packets wide sliding window.
+ *
+ *  The context is not thread-safe: the sending context is owned by the sender
+ *  of the call, and the receiving context by the thread receiving the call's packets.
+ */
+public class SrtpContext
+{
+    /**
+     *  Length of the master key
+     */
+    public final static int MASTER_KEY_LENGTH = 16;
+
+    /**
+     *  Length of the master salt
+     */
+    public final static int MASTER_SALT_LENGTH = 14;
+
+    /**
+     *  Length of the authentication tag
+     */
+    public final static int TAG_LENGTH = 10;
+
+    /**
+     *  Length of the session authentication key
+     */
+    private final static int authKeyLength = 20;
+
+    /**
+     *  Width of the replay window (bits in replayWindow)
+     */
+    private final static int replayWindowSize = 64;
+
+    /**
+     *  Payload cipher (AES in counter mode)
+     */
+    private final Cipher cipher;
+
+    /**
+     *  Session encryption key
+     */
+    private final SecretKeySpec encryptionKey;
+
+    /**
+     *  HMAC-SHA1 with the session authentication key
+     */
+    private final Mac mac;
+
+    /**
+     *  Session salt
+     */
+    private final byte[] sessionSalt;
+
+    /**
+     *  Reusable counter block (IV) of the packet being processed
+     */
+    private final byte[] iv = new byte[ 16 ];
+
+    /**
+     *  Reusable HMAC output
+     */
+    private final byte[] tag = new byte[ 20 ];
+
+    /**
+     *  Reusable ROC in network order (appended to the authenticated portion)
+     */
+    private final byte[] rocOctets = new byte[ 4 ];
+
+    /**
+     *  Roll-over counter
+     */
+    private long roc = 0;
+
+    /**
+     *  The highest sequence number sent or received (s_l); -1 before the first packet
+     */
+    private int lastSeqNo = -1;
+
+    /**
+     *  Bit mask of the received packets preceding the highest received index
+     *  (bit 0 is the highest index)
+     */
+    private long replayWindow = 0;
+
+    /**
+     *  Number of received packets that failed authentication
+     */
+    private volatile long authFailureCount = 0;
+
+    /**
+     *  Number of received packets rejected as replayed
+     */
+    private volatile long replayCount = 0;
+
+    /**
+     *  Creates context with session keys derived from the given master key and salt.
+     */
+    public SrtpContext( byte[] masterKey, byte[] masterSalt ) throws GeneralSecurityException
+    {
+        SecretKeySpec master = new SecretKeySpec( masterKey, 0, MASTER_KEY_LENGTH, "AES" );
+
+        this.encryptionKey = new SecretKeySpec(
+                deriveSessionKey( master, masterSalt, 0x00, MASTER_KEY_LENGTH ), "AES" );
+
+        byte[] authKey = deriveSessionKey( master, masterSalt, 0x01, authKeyLength );
+
+        this.sessionSalt = deriveSessionKey( master, masterSalt, 0x02, MASTER_SALT_LENGTH );
+
+        this.cipher = Cipher.getInstance( "AES/CTR/NoPadding" );
+
+        this.mac = Mac.getInstance( "HmacSHA1" );
+        this.mac.init( new SecretKeySpec( authKey, "HmacSHA1" ) );
+    }
+
+    /**
+     *  Derives session key with the given label (RFC 3711, 4.3): the first octets of
+     *  AES-CM key stream generated by the master key, with the IV made of the master
+     *  salt XOR-ed with the label.
+     */
+    private static byte[] deriveSessionKey( SecretKeySpec master, byte[] masterSalt,
+            int label, int length ) throws GeneralSecurityException
+    {
+        byte[] x = new byte[ 16 ];
+        System.arraycopy( masterSalt, 0, x, 0, MASTER_SALT_LENGTH );
+        x[7] ^= (byte) label;
+
+        Cipher prf = Cipher.getInstance( "AES/CTR/NoPadding" );
+        prf.init( Cipher.ENCRYPT_MODE, master, new IvParameterSpec( x ) );
+
+        return prf.doFinal( new byte[ length ] );
+    }
+
+    /**
+     *  Returns the length of the RTP header (with CSRCs and the header extension);
+     *  -1 if the packet is too short.
+     */
+    public static int getHeaderLength( byte[] packet, int length )
+    {
+        if ( length < 12 ) {
+            return -1;
+        }
+
+        int headerLen = 12 + 4 * ( packet[0] & 0x0F );
+
+        if ( ( packet[0] & 0x10 ) != 0 ) // header extension
+        {
+            if ( length < headerLen + 4 ) {
+                return -1;
+            }
+            int extLen = ( ( packet[ headerLen + 2 ] & 0xFF ) << 8 ) | ( packet[ headerLen + 3 ] & 0xFF );
+            headerLen += 4 + 4 * extLen;
+        }
+
+        return headerLen <= length ? headerLen : -1;
+    }
+
+    /**
+     *  Sets up the counter block for the packet with the given SSRC and index
+     */
+    private void setIv( byte[] packet, long index )
+    {
+        byte[] v = this.iv;
+
+        System.arraycopy( this.sessionSalt, 0, v, 0, MASTER_SALT_LENGTH );
+        v[14] = 0;
+        v[15] = 0;
+
+        for ( int i = 0; i < 4; ++i ) {
+            v[ 4 + i ] ^= packet[ 8 + i ]; // SSRC
+        }
+        for ( int i = 0; i < 6; ++i ) {
+            v[ 8 + i ] ^= (byte)( index >>> ( 40 - 8 * i ) );
+        }
+    }
+
+    /**
+     *  Computes the authentication tag of the first length octets of the packet
+     *  with the given ROC into the tag buffer.
+     */
+    private void computeTag( byte[] packet, int length, long rocValue ) throws GeneralSecurityException
+    {
+        this.rocOctets[0] = (byte)( rocValue >>> 24 );
+        this.rocOctets[1] = (byte)( rocValue >>> 16 );
+        this.rocOctets[2] = (byte)( rocValue >>> 8 );
+        this.rocOctets[3] = (byte) rocValue;
+
+        this.mac.update( packet, 0, length );
+        this.mac.update( this.rocOctets );
+        this.mac.doFinal( this.tag, 0 );
+    }
+
+    /**
+     *  Protects RTP packet: enciphers the payload and appends the authentication
+     *  tag. The output buffer (which may be the same as the packet) must hold at least
+     *  length + TAG_LENGTH octets.
+     *
+     *  @return length of the SRTP packet; -1 in case of error
+     */
+    public int protect( byte[] packet, int length, byte[] out )
+    {
+        int headerLen = getHeaderLength( packet, length );
+        if ( headerLen < 0 || out.length < length + TAG_LENGTH ) {
+            return -1;
+        }
+
+        int seqNo = ( ( packet[2] & 0xFF ) << 8 ) | ( packet[3] & 0xFF );
+
+        /* The sequence number wrapped around: increment the ROC
+         */
+        if ( this.lastSeqNo >= 0 && seqNo < this.lastSeqNo && this.lastSeqNo - seqNo > 0x8000 ) {
+            this.roc = ( this.roc + 1 ) & 0xFFFFFFFFL;
+        }
+        this.lastSeqNo = seqNo;
+
+        long index = ( this.roc << 16 ) | seqNo;
+
+        try
+        {
+            setIv( packet, index );
+            this.cipher.init( Cipher.ENCRYPT_MODE, this.encryptionKey, new IvParameterSpec( this.iv ) );
+
+            if ( out != packet ) {
+                System.arraycopy( packet, 0, out, 0, headerLen );
+            }
+
+            this.cipher.doFinal( packet, headerLen, length - headerLen, out, headerLen );
+
+            computeTag( out, length, this.roc );
+            System.arraycopy( this.tag, 0, out, length, TAG_LENGTH );
+        }
+        catch( Exception e )
+        {
+            Log.exception( Log.PDU, e );
+            return -1;
+        }
+
+        return length + TAG_LENGTH;
+    }
+
+    /**
+     *  Verifies and deciphers SRTP packet in place.
+     *
+     *  @return length of the RTP packet (without the tag); -1 if the packet
+     *          is malformed, fails authentication or is replayed
+     */
+    public int unprotect( byte[] packet, int length )
+    {
+        int rtpLength = length - TAG_LENGTH;
+
+        int headerLen = getHeaderLength( packet, rtpLength );
+        if ( headerLen < 0 ) {
+            return -1;
+        }
+
+        int seqNo = ( ( packet[2] & 0xFF ) << 8 ) | ( packet[3] & 0xFF );
+
+        /* Estimate the ROC of the packet (RFC 3711, Appendix A)
+         */
+        long v = this.roc;
+
+        if ( this.lastSeqNo >= 0x8000 ) {
+            if ( this.lastSeqNo - 0x8000 > seqNo ) {
+                v = ( this.roc + 1 ) & 0xFFFFFFFFL;
+            }
+        } else if ( this.lastSeqNo >= 0 && seqNo - this.lastSeqNo > 0x8000 ) {
+            v = ( this.roc - 1 ) & 0xFFFFFFFFL;
+        }
+
+        long index = ( v << 16 ) | seqNo;
+        long highest = ( this.roc << 16 ) | Math.max( 0, this.lastSeqNo );
+
+        /* Replay check
+         */
+        long delta = index - highest;
+
+        if ( this.lastSeqNo >= 0 && delta <= 0 )
+        {
+            if ( -delta >= replayWindowSize || ( this.replayWindow & ( 1L << -delta ) ) != 0 ) {
+                ++this.replayCount;
+                return -1;
+            }
+        }
+
+        try
+        {
+            computeTag( packet, rtpLength, v );
+
+            int diff = 0;
+            for ( int i = 0; i < TAG_LENGTH; ++i ) {
+                diff |= this.tag[i] ^ packet[ rtpLength + i ];
+            }
+
+            if ( diff != 0 ) {
+                ++this.authFailureCount;
+                return -1;
+            }
+
+            setIv( packet, index );
+            this.cipher.init( Cipher.DECRYPT_MODE, this.encryptionKey, new IvParameterSpec( this.iv ) );
+            this.cipher.doFinal( packet, headerLen, rtpLength - headerLen, packet, headerLen );
+        }
+        catch( Exception e )
+        {
+            Log.exception( Log.PDU, e );
+            return -1;
+        }
+
+        /* Update the replay window, the ROC and the highest sequence number
+         */
+        if ( this.lastSeqNo < 0 ) {
+            this.replayWindow = 1;
+            this.roc = v;
+            this.lastSeqNo = seqNo;
+        } else if ( delta > 0 ) {
+            this.replayWindow = delta < replayWindowSize ? ( this.replayWindow << delta ) | 1 : 1;
+            this.roc = v;
+            this.lastSeqNo = seqNo;
+        } else {
+            this.replayWindow |= 1L << -delta;
+        }
+
+        return rtpLength;
+    }
+
+    /**
+     *  Returns number of received packets that failed authentication
+     */
+    public long getAuthFailureCount ()
+    {
+        return this.authFailureCount;
+    }
+
+    /**
+     *  Returns number of received packets rejected as replayed
+     */
+    public long getReplayCount ()
+    {
+        return this.replayCount;
+    }
+}
@@ -3,14 +3,18 @@ package crypto;
 
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
 import java.security.InvalidParameterException;
 import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
 
 import javax.crypto.Cipher;
 import javax.crypto.KeyGenerator;
+import javax.crypto.Mac;
 import javax.crypto.NoSuchPaddingException;
 import javax.crypto.SecretKey;
 import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
 
 import utils.Base64;
 import utils.Log;
@@ -19,6 +23,23 @@ import utils.Log;
  *  Instances of the Symmetric cipher class arew used to cipher peer-to-peer datagram 
  *  packets. Cipher's secret key is exchanged using asymmetric cipher.
  *  
+ *  The packet mode is selected by the algorithm of the secret key, so both peers
+ *  (sharing the same key) always agree on it:
+ *  
+ *   - Block ciphers without AEAD mode (e.g. Blowfish): the whole PDU is enciphered
+ *     in CBC mode with PKCS5 padding, prepended with all-zero IV block and random
+ *     preamble (see encrypt( int, byte[] )).
+ *     
+ *   - AES and ChaCha20 keys: AEAD packet mode (AES/GCM/NoPadding, respectively
+ *     ChaCha20-Poly1305). The PDU header is sent in clear and authenticated as 
+ *     additional data; the payload is enciphered without padding and followed 
+ *     by the authentication tag. The nonce is not sent; it is derived from 
+ *     the 4-octet salt that follows the header and from the source call number,
+ *     the timestamp and the sequence numbers found in the header.
+ *     The datagram is: header (12) + salt (4) + cipher text + tag (16).
+ *     AES-GCM is hardware-accelerated by the JCE provider where the CPU supports it
+ *     (AES-NI and carry-less multiplication intrinsics).
+ *  
  *  @author Mikica B Kocic
  */
 public class SymmetricCipher
@@ -36,7 +57,43 @@ public class SymmetricCipher
     private final static String padding = "/PKCS5Padding";
 
     /**
-     *  Instance of the cipher used to encrypt/decrypt data.
+     *  Length of the IV (prepended to the plain text as the first block)
+     */
+    private final static int ivLength = 8;
+
+    /**
+     *  Length of the PDU header (sent in clear by the AEAD packet mode)
+     */
+    public final static int PDU_HEADER_LENGTH = 12;
+
+    /**
+     *  Length of the random preamble of PDUs enciphered in CBC packet mode
+     */
+    public final static int PDU_PREAMBLE_LENGTH = 8;
+
+    /**
+     *  Length of the AEAD nonce
+     */
+    private final static int nonceLength = 12;
+
+    /**
+     *  Length of the AEAD authentication tag in octets
+     */
+    private final static int tagLength = 16;
+
+    /**
+     *  Source of random nonces and seeds of packet cipher contexts
+     */
+    private final static SecureRandom random = new SecureRandom ();
+
+    /**
+     *  AEAD transformation used for PDUs; null if PDUs are enciphered in CBC mode
+     */
+    private String aeadTransformation = null;
+
+    /**
+     *  Instance of the cipher used to encrypt/decrypt data (PDUs are enciphered
+     *  by the packet cipher contexts).
      */
     private Cipher cipher = null;
     
@@ -45,6 +102,16 @@ public class SymmetricCipher
      */
     private SecretKey secretKey = null;
 
+    /**
+     *  Packet cipher contexts of the threads enciphering or deciphering PDUs
+     *  with this cipher (see encryptPacket and decryptPacket)
+     */
+    private final ThreadLocal<PacketCipher> packetCiphers = new ThreadLocal<PacketCipher> () {
+        protected PacketCipher initialValue () {
+            return newPacketCipher ();
+        }
+    };
+
     /**
      *  Contains name of the verificator (i.e the name associated with authorized public
      *  key that has verified this public key). Not null indicates that the public key 
@@ -62,7 +129,7 @@ public class SymmetricCipher
         
         try
         {
-            this.cipher = Cipher.getInstance( secretKey.getAlgorithm () + mode + padding );
+            this.cipher = newCipher ();
             
             Log.trace( "New remote symmetric cipher: " + this.cipher.getAlgorithm () );
         }
@@ -93,7 +160,7 @@ public class SymmetricCipher
             keyGen.init( keySize );
             this.secretKey = keyGen.generateKey ();
             
-            this.cipher = Cipher.getInstance( secretKey.getAlgorithm () + mode + padding );
+            this.cipher = newCipher ();
             
             Log.trace( "New local symmetric cipher: " + this.cipher.getAlgorithm () );
             
@@ -128,6 +195,36 @@ public class SymmetricCipher
         }
     }
 
+    /**
+     *  Returns the AEAD transformation for keys of the given algorithm; 
+     *  null if there is no AEAD mode for the algorithm.
+     */
+    private static String getAeadTransformation( String algorithm )
+    {
+        if ( algorithm.equalsIgnoreCase( "AES" ) ) {
+            return "AES/GCM/NoPadding";
+        } else if ( algorithm.equalsIgnoreCase( "ChaCha20" ) ) {
+            return "ChaCha20-Poly1305";
+        }
+        
+        return null;
+    }
+
+    /**
+     *  Creates cipher for the secret key: either AEAD cipher or block cipher
+     *  in CBC mode with PKCS5 padding.
+     */
+    private Cipher newCipher () throws NoSuchAlgorithmException, NoSuchPaddingException
+    {
+        this.aeadTransformation = getAeadTransformation( secretKey.getAlgorithm () );
+        
+        if ( this.aeadTransformation != null ) {
+            return Cipher.getInstance( this.aeadTransformation );
+        }
+        
+        return Cipher.getInstance( secretKey.getAlgorithm () + mode + padding );
+    }
+
     /**
      *  Returns secret key.
      */
@@ -144,6 +241,14 @@ public class SymmetricCipher
         return this.cipher != null;
     }
 
+    /**
+     *  Returns if PDUs are enciphered in AEAD packet mode
+     */
+    public boolean isAead ()
+    {
+        return this.aeadTransformation != null;
+    }
+
     /**
      *  Returns if public key was verified
      */
@@ -171,17 +276,24 @@ public class SymmetricCipher
             return "[Inactive]";
         }
         
+        if ( this.aeadTransformation != null ) {
+            return this.aeadTransformation;
+        }
+        
         return this.secretKey.getAlgorithm ();
     }
 
     /**
      *  Encrypts random preamble of the given length appended with
-     *  the input plain text.
+     *  the input plain text. In AEAD mode, the plain text is enciphered with
+     *  random nonce (prepended to the cipher text) instead of random preamble.
      */
     public byte[] encrypt( int randomPreambleLen, byte[] plainText )
     {
         if ( this.cipher == null ) {
             return null;
+        } else if ( this.aeadTransformation != null ) {
+            return encryptWithRandomNonce( plainText );
         }
         
         /* Generate random preamble */
@@ -222,13 +334,101 @@ public class SymmetricCipher
         return cipherText;
     }
 
+    /**
+     *  Returns the length of the cipher text produced by encrypt() for the random 
+     *  preamble and the plain text of the given lengths.
+     */
+    public int getOutputSize( int randomPreambleLen, int plainTextLen )
+    {
+        if ( this.cipher == null ) {
+            return 0;
+        } else if ( this.aeadTransformation != null ) {
+            return nonceLength + plainTextLen + tagLength;
+        }
+        
+        int blockSize = Math.max( 1, this.cipher.getBlockSize () );
+        int ptLength = ivLength + randomPreambleLen + plainTextLen;
+        
+        /* PKCS5 padding always adds at least one octet */
+        return ( ptLength / blockSize + 1 ) * blockSize;
+    }
+
+    /**
+     *  Encrypts plain text with AEAD cipher using random nonce. The nonce is 
+     *  prepended to the cipher text.
+     */
+    private byte[] encryptWithRandomNonce( byte[] plainText )
+    {
+        byte[] nonce = new byte[ nonceLength ];
+        random.nextBytes( nonce );
+        
+        byte[] cipherText = null;
+
+        synchronized( this.cipher )
+        {
+            try
+            {
+                this.cipher.init( Cipher.ENCRYPT_MODE, this.secretKey, 
+                        PacketCipher.getAeadParameters( this.aeadTransformation, nonce ) );
+                
+                cipherText = new byte[ nonceLength + cipher.getOutputSize( plainText.length ) ];
+                System.arraycopy( nonce, 0, cipherText, 0, nonceLength );
+                
+                cipher.doFinal( plainText, 0, plainText.length, cipherText, nonceLength );
+            }
+            catch( Exception e )
+            {
+                Log.exception( Log.PDU, e );
+                cipherText = null;
+            }
+        }
+        
+        return cipherText;
+    }
+
+    /**
+     *  Decrypts and authenticates cipher text produced by encryptWithRandomNonce().
+     */
+    private byte[] decryptWithRandomNonce( byte[] cipherText )
+    {
+        if ( cipherText.length < nonceLength + tagLength ) {
+            return null;
+        }
+        
+        byte[] plainText = null;
+        
+        synchronized( this.cipher )
+        {
+            try
+            {
+                byte[] nonce = new byte[ nonceLength ];
+                System.arraycopy( cipherText, 0, nonce, 0, nonceLength );
+                
+                this.cipher.init( Cipher.DECRYPT_MODE, this.secretKey, 
+                        PacketCipher.getAeadParameters( this.aeadTransformation, nonce ) );
+                
+                plainText = cipher.doFinal( cipherText, nonceLength, 
+                        cipherText.length - nonceLength );
+            }
+            catch( Exception e )
+            {
+                Log.exception( Log.PDU, e );
+            }
+        }
+        
+        return plainText;
+    }
+
     /**
      *  Decrypts cipher text first then discards random preamble of the given length.
+     *  In AEAD mode, the cipher text is deciphered with the nonce found in front of it.
      */
     public byte[] decrypt( int randomPreambleLen, byte[] cipherText )
     {
         if ( this.cipher == null ) {
             return null;
+        } else if ( this.aeadTransformation != null ) {
+            return decryptWithRandomNonce( cipherText );
         }
 
         byte[] plainText = null;
@@ -263,6 +463,158 @@ public class SymmetricCipher
         return plainText;
     }
     
+    /**
+     *  Creates new packet cipher context for this cipher's secret key. The context
+     *  may be used only by one thread at a time, e.g. by the sender of a call.
+     *  
+     *  @return new context; null if the cipher is not active
+     */
+    public PacketCipher newPacketCipher ()
+    {
+        if ( this.cipher == null ) {
+            return null;
+        }
+        
+        String transformation = this.aeadTransformation != null 
+                ? this.aeadTransformation : this.cipher.getAlgorithm ();
+        
+        return new PacketCipher( this.secretKey, transformation, 
+                this.aeadTransformation != null, this.cipher.getBlockSize (), 
+                random.nextLong () );
+    }
+
+    /**
+     *  Returns the length of the datagram produced by encryptPacket() for the PDU
+     *  of the given length.
+     */
+    public int getPacketOutputSize( int pduLen )
+    {
+        if ( this.cipher == null ) {
+            return 0;
+        }
+        
+        return this.packetCiphers.get ().getOutputSize( pduLen );
+    }
+
+    /**
+     *  Enciphers the first pduLen octets of the PDU into the preallocated datagram
+     *  buffer (which must hold at least getPacketOutputSize() octets), using
+     *  the packet cipher context of the current thread.
+     *  
+     *  @return length of the datagram; -1 in case of error
+     */
+    public int encryptPacket( byte[] pdu, int pduLen, byte[] datagram )
+    {
+        if ( this.cipher == null ) {
+            return -1;
+        }
+        
+        return this.packetCiphers.get ().encrypt( pdu, pduLen, datagram );
+    }
+
+    /**
+     *  Enciphers the PDU into newly allocated datagram.
+     */
+    public byte[] encryptPacket( byte[] pdu )
+    {
+        if ( this.cipher == null ) {
+            return null;
+        }
+
+        PacketCipher pc = this.packetCiphers.get ();
+        
+        byte[] datagram = new byte[ pc.getOutputSize( pdu.length ) ];
+        
+        int length = pc.encrypt( pdu, pdu.length, datagram );
+        if ( length < 0 ) {
+            return null;
+        } else if ( length < datagram.length ) {
+            byte[] result = new byte[ length ];
+            System.arraycopy( datagram, 0, result, 0, length );
+            return result;
+        }
+        
+        return datagram;
+    }
+
+    /**
+     *  Deciphers (and in AEAD mode authenticates) PDU from the received datagram.
+     *  
+     *  @return PDU; null in case of error
+     */
+    public byte[] decryptPacket( byte[] datagram )
+    {
+        if ( this.cipher == null ) {
+            return null;
+        }
+        
+        ByteBuffer pdu = ByteBuffer.allocate( datagram.length );
+        
+        if ( decryptPacket( ByteBuffer.wrap( datagram ), pdu ) < 0 ) {
+            return null;
+        }
+        
+        byte[] plainText = new byte[ pdu.remaining () ];
+        pdu.get( plainText );
+        
+        return plainText;
+    }
+
+    /**
+     *  Deciphers (and in AEAD mode authenticates) PDU from the datagram found between 
+     *  the position and the limit of the source buffer into the destination buffer, 
+     *  using the packet cipher context of the current thread. On success, 
+     *  the destination buffer is flipped (ready to be read).
+     *  
+     *  @return length of the PDU; -1 in case of error
+     */
+    public int decryptPacket( ByteBuffer datagram, ByteBuffer pdu )
+    {
+        if ( this.cipher == null ) {
+            return -1;
+        }
+        
+        return this.packetCiphers.get ().decrypt( datagram, pdu );
+    }
+
+    /**
+     *  Creates SRTP context protecting RTP packets sent with the given SSRC.
+     *  The master key and the master salt are the HMAC-SHA256 of the SSRC keyed 
+     *  with the secret key, so both peers derive the same context for each
+     *  direction of the call, and directions (and calls) with distinct SSRCs
+     *  never share the key stream.
+     *  
+     *  @return SRTP context; null in case of error
+     */
+    public SrtpContext newSrtpContext( int ssrc )
+    {
+        if ( this.cipher == null ) {
+            return null;
+        }
+        
+        try
+        {
+            Mac mac = Mac.getInstance( "HmacSHA256" );
+            mac.init( new SecretKeySpec( this.secretKey.getEncoded (), "HmacSHA256" ) );
+            mac.update( "kryptofon SRTP".getBytes( "US-ASCII" ) );
+            mac.update( new byte[] { (byte)( ssrc >>> 24 ), (byte)( ssrc >>> 16 ), 
+                                     (byte)( ssrc >>> 8 ), (byte) ssrc } );
+            
+            byte[] master = mac.doFinal ();
+            byte[] masterSalt = new byte[ SrtpContext.MASTER_SALT_LENGTH ];
+            System.arraycopy( master, SrtpContext.MASTER_KEY_LENGTH, 
+                    masterSalt, 0, masterSalt.length );
+            
+            return new SrtpContext( master, masterSalt );
+        }
+        catch( Exception e )
+        {
+            Log.exception( Log.ERROR, e );
+        }
+        
+        return null;
+    }
+
     /**
      *  Encrypts text message with random preamble and returns Base64 encoded
      *  cipher text.
@@ -0,0 +1,615 @@
+
+package loadgen;
+
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.OperatingSystemMXBean;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import audio.AudioInterface;
+import audio.AudioInterfaceHeadless;
+import audio.PcmMemory;
+import crypto.SymmetricCipher;
+import protocol.CallContext;
+import protocol.DatagramChannel;
+import protocol.RemotePeer;
+import protocol.RtpSession;
+import protocol.SelectorEngine;
+import protocol.VoicePDU;
+import utils.Histogram;
+import utils.Log;
+import utils.MediaScheduler;
+import utils.WorkerThreads;
+
+/**
+ *  Load generator finding the per-host call capacity.
+ *
+ *  Creates pairs of calls between two UDP channels over the loopback interface.
+ *  Each call streams synthetic PCM (a tone) at 50 PDUs per second through the
+ *  real media path: headless audio interface, CODEC, voice PDU encoder, cipher,
+ *  UDP channel, selector engine, reorder window and de-jitter buffer.
+ *  The number of calls is ramped up in steps; for each step the generator reports
+ *  CPU used per call, one-way PDU latency percentiles (from capture to
+ *  the de-jitter buffer), PDU loss, lateness of the media scheduler ticks
+ *  and GC activity.
+ *
+ *  Usage:
+ *  <pre>
+ *  java loadgen.LoadGenerator [ maxCalls [ step [ seconds [ format [ cipher [ threads [ framing [ dtx [ hist ]]]]]]]]]
+ *  </pre>
+ *  where format is alaw, ulaw, dvi4 or lin16, cipher is a symmetric cipher algorithm
+ *  (e.g. Blowfish; AES or ChaCha20 for AEAD packet mode) or none, threads is the number of selector engine threads
+ *  (0 to use a receiver thread per channel and peer) and framing is iax (IAX-style PDUs)
+ *  or rtp (RTP packets, protected as SRTP if there is a cipher). With dtx, the tone
+ *  alternates with silence (one second each) and the calls use discontinuous
+ *  transmission; the report then shows the share of captured frames that were 
+ *  not sent. With hist, each report row is followed by the histogram of datagrams
+ *  received per channel wake-up of the selector engine. Workers run on virtual threads if started with -Dkryptofon.threads=virtual
+ *  (see WorkerThreads).
+ */
+public class LoadGenerator
+{
+    /** Frame interval in milliseconds */
+    private final static int FRAME_INTERVAL = 20;
+
+    /** Time to settle after adding calls, before measuring (ms) */
+    private final static long SETTLE_MILLIS = 2000;
+
+    /** The first call number; call pair i is tagged with call numbers FIRST_CALL_NUMBER + i */
+    private final static int FIRST_CALL_NUMBER = 1;
+
+    /** The selector engine; null if channels and peers use their own threads */
+    private final SelectorEngine engine;
+
+    /** The UDP channel of the calling side */
+    private final DatagramChannel channelA;
+
+    /** The UDP channel of the called side */
+    private final DatagramChannel channelB;
+
+    /** The VoicePDU format (CODEC) of the calls */
+    private final int format;
+
+    /** Indicates that the calls use RTP framing */
+    private final boolean rtp;
+
+    /** Indicates that the calls use discontinuous transmission */
+    private final boolean dtx;
+
+    /** Indicates that the report rows are followed by the receive batch histogram */
+    private final boolean batchReport;
+
+    /** Synthetic PCM streamed by all calls (followed by silence if DTX is used) */
+    private final byte[] tone;
+
+    /** The call pairs */
+    private final List<CallPair> calls = new ArrayList<CallPair> ();
+
+    /** One-way PDU latency in microseconds */
+    private final Histogram latency = new Histogram( "Latency us" );
+
+    /** Number of captured frames (of all calls) */
+    private final AtomicLong capturedCount = new AtomicLong ();
+
+    /** Number of sent voice PDUs (of all calls) */
+    private final AtomicLong sentCount = new AtomicLong ();
+
+    /** Number of received voice PDUs (of all calls) */
+    private final AtomicLong receivedCount = new AtomicLong ();
+
+    /**
+     *  Binds two UDP channels on the loopback interface and sets their cipher
+     *
+     *  @param format       VoicePDU format (CODEC) of the calls
+     *  @param cipherName   symmetric cipher algorithm; null for plain PDUs
+     *  @param threadCount  selector engine threads; 0 for thread per channel and peer
+     *  @param rtp          true if the calls use RTP framing
+     *  @param dtx          true if the calls use discontinuous transmission
+     *  @param batchReport  true if the report rows are followed by the receive batch histogram
+     */
+    public LoadGenerator( int format, String cipherName, int threadCount, boolean rtp,
+            boolean dtx, boolean batchReport ) throws IOException
+    {
+        this.format = format;
+        this.rtp = rtp;
+        this.dtx = dtx;
+        this.batchReport = batchReport;
+
+        byte[] t = PcmMemory.tone( 440.0, 1000, 8000 );
+        this.tone = dtx ? Arrays.copyOf( t, 2 * t.length ) : t;
+
+        this.engine = threadCount > 0 ? new SelectorEngine( threadCount ) : null;
+
+        this.channelA = new DatagramChannel( 47000, this.engine );
+        this.channelB = new DatagramChannel( this.channelA.getLocalPort () + 1, this.engine );
+
+        if ( cipherName != null )
+        {
+            int keySize = cipherName.equalsIgnoreCase( "ChaCha20" ) ? 256 : 128;
+            
+            SymmetricCipher cipherA = new SymmetricCipher( cipherName, keySize, false );
+            if ( ! cipherA.isActive () ) {
+                throw new IOException( "Unsupported cipher " + cipherName );
+            }
+
+            this.channelA.useSymmetricCipher( cipherA );
+            this.channelB.useSymmetricCipher(
+                    new SymmetricCipher( cipherA.getSecretKey (), null ) );
+        }
+    }
+
+    /**
+     *  Establishes new calls until there are the given number of call pairs
+     */
+    public void setCallCount( int count ) throws IOException
+    {
+        InetAddress loopback = InetAddress.getByName( "127.0.0.1" );
+
+        while( this.calls.size () < count ) {
+            this.calls.add( new CallPair( this.calls.size (), loopback ) );
+        }
+    }
+
+    /**
+     *  Returns the number of call pairs
+     */
+    public int getCallCount ()
+    {
+        return this.calls.size ();
+    }
+
+    /**
+     *  Measures the given time and returns one row of the report
+     */
+    public String measure( long millis ) throws InterruptedException
+    {
+        OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean ();
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean ();
+
+        long wall0 = System.nanoTime ();
+        long cpu0 = getProcessCpuTime( os );
+        long gcCount0 = getGcCount ();
+        long gcTime0 = getGcTime ();
+        long captured0 = this.capturedCount.get ();
+        long sent0 = this.sentCount.get ();
+        long received0 = this.receivedCount.get ();
+        MediaScheduler scheduler = MediaScheduler.getDefault ();
+        long overruns0 = scheduler.getOverrunCount ();
+        this.latency.reset ();
+        scheduler.getLatenessHistogram ().reset ();
+        if ( this.engine != null ) {
+            this.engine.getReceiveBatchHistogram ().reset ();
+        }
+
+        Thread.sleep( millis );
+
+        long wall = System.nanoTime () - wall0;
+        long cpu = getProcessCpuTime( os ) - cpu0;
+        long captured = this.capturedCount.get () - captured0;
+        long sent = this.sentCount.get () - sent0;
+        long lost = Math.max( 0, sent - ( this.receivedCount.get () - received0 ) );
+        int n = this.calls.size ();
+
+        double cpuPerCall = cpu0 < 0 || n == 0 ? -1 : 100.0 * cpu / wall / n;
+
+        return String.format( "%6d %9.3f %8d %8d %8d %8d %8.3f %9d %8d %6d %7d %8d %7.1f",
+                n, cpuPerCall,
+                this.latency.getPercentile( 50 ), this.latency.getPercentile( 99 ),
+                this.latency.getPercentile( 99.9 ), this.latency.getMax (),
+                sent == 0 ? 0.0 : 100.0 * lost / sent,
+                scheduler.getLatenessHistogram ().getPercentile( 99 ),
+                scheduler.getOverrunCount () - overruns0,
+                getGcCount () - gcCount0, getGcTime () - gcTime0,
+                memory.getHeapMemoryUsage ().getUsed () >> 20,
+                captured == 0 ? 0.0 : 100.0 * ( captured - sent ) / captured );
+    }
+
+    /**
+     *  Returns the histogram of datagrams received per channel wake-up of the selector
+     *  engine as the report line following the row returned by measure(); empty if
+     *  not requested or the selector engine is not used
+     */
+    public String getBatchReport ()
+    {
+        if ( ! this.batchReport || this.engine == null ) {
+            return "";
+        }
+
+        return "    " + this.engine.getReceiveBatchHistogram () + "\n";
+    }
+
+    /**
+     *  Returns the report header matching rows returned by measure()
+     */
+    public static String getReportHeader ()
+    {
+        return " calls  cpu%/call  p50(us)  p99(us) p999(us)  max(us)   loss% tick99(us) overruns    gcs  gc(ms) heap(MB)  unsent%";
+    }
+
+    /**
+     *  Hangs up all calls and releases the channels
+     */
+    public void cleanUp ()
+    {
+        for ( CallPair pair : this.calls ) {
+            pair.cleanUp ();
+        }
+        this.calls.clear ();
+
+        this.channelA.stop ();
+        this.channelB.stop ();
+
+        if ( this.engine != null ) {
+            this.engine.shutdown ();
+        }
+    }
+
+    /**
+     *  Returns CPU time used by the process in nanoseconds; -1 if not supported
+     *  by the JVM
+     */
+    private static long getProcessCpuTime( OperatingSystemMXBean os )
+    {
+        if ( os instanceof com.sun.management.OperatingSystemMXBean ) {
+            return ((com.sun.management.OperatingSystemMXBean) os).getProcessCpuTime ();
+        }
+        return -1;
+    }
+
+    /**
+     *  Returns the total number of garbage collections
+     */
+    private static long getGcCount ()
+    {
+        long count = 0;
+        for ( GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans () ) {
+            count += Math.max( 0, gc.getCollectionCount () );
+        }
+        return count;
+    }
+
+    /**
+     *  Returns the total time spent in garbage collections (ms)
+     */
+    private static long getGcTime ()
+    {
+        long time = 0;
+        for ( GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans () ) {
+            time += Math.max( 0, gc.getCollectionTime () );
+        }
+        return time;
+    }
+
+    //////////////////////////////////////////////////////////////////////////////////////
+
+    /**
+     *  Two ends of a call carried between the channels: the calling side on
+     *  the channel A and the called side on the channel B. Both ends capture
+     *  the tone and play what they receive.
+     */
+    private class CallPair
+    {
+        private final RemotePeer peerA;
+        private final RemotePeer peerB;
+        private final AudioInterfaceHeadless audioA;
+        private final AudioInterfaceHeadless audioB;
+
+        /**
+         *  Establishes the call tagged with the call number FIRST_CALL_NUMBER + index
+         */
+        CallPair( int index, InetAddress loopback )
+        {
+            int callNumber = FIRST_CALL_NUMBER + index;
+
+            this.audioA = new AudioInterfaceHeadless( new PcmMemory( tone, true ), new PcmMemory( 0 ) );
+            this.audioB = new AudioInterfaceHeadless( new PcmMemory( tone, true ), new PcmMemory( 0 ) );
+
+            Probe probeA = new Probe( this.audioA.getByFormat( format ) );
+            Probe probeB = new Probe( this.audioB.getByFormat( format ) );
+            probeA.peer = probeB;
+            probeB.peer = probeA;
+
+            this.peerA = new RemotePeer( channelA, "B" + callNumber, loopback, channelB.getLocalPort () );
+            this.peerB = new RemotePeer( channelB, "A" + callNumber, loopback, channelA.getLocalPort () );
+
+            CallContext callA = new CallContext( this.peerA, probeA, callNumber, callNumber );
+            CallContext callB = new CallContext( this.peerB, probeB, callNumber, callNumber );
+            probeA.call = callA;
+            probeB.call = callB;
+
+            if ( rtp )
+            {
+                int ssrcA = RtpSession.newSsrc( callNumber );
+                int ssrcB = ssrcA;
+                while( ssrcB == ssrcA ) {
+                    ssrcB = RtpSession.newSsrc( callNumber );
+                }
+
+                callA.useRtpFraming( ssrcA, ssrcB, channelA.getUsedSymmetricCipher () );
+                callB.useRtpFraming( ssrcB, ssrcA, channelB.getUsedSymmetricCipher () );
+            }
+
+            callA.useDiscontinuousTransmission( dtx );
+            callB.useDiscontinuousTransmission( dtx );
+
+            callB.setCallEstablished( true );
+            callA.setCallEstablished( true );
+        }
+
+        /**
+         *  Hangs up the call
+         */
+        void cleanUp ()
+        {
+            channelA.removePeer( this.peerA );
+            channelB.removePeer( this.peerB );
+            this.audioA.cleanUp ();
+            this.audioB.cleanUp ();
+        }
+    }
+
+    //////////////////////////////////////////////////////////////////////////////////////
+
+    /**
+     *  Audio interface wrapping the CODEC of a call end. Time-stamps captured frames
+     *  as they are sent and measures latency of frames received from the other end
+     *  as they are written into the de-jitter buffer.
+     */
+    private class Probe implements AudioInterface
+    {
+        /** Number of remembered send times (a power of two; about 5 s of frames) */
+        private final static int RING_SIZE = 256;
+
+        /** The wrapped CODEC */
+        private final AudioInterface codec;
+
+        /** The call of this end */
+        CallContext call = null;
+
+        /** The probe of the other end of the call */
+        Probe peer = null;
+
+        /** The time-stamp of the first sent PDU (in call's time) */
+        private volatile int firstTimestamp = 0;
+
+        /** Send times (System.nanoTime) of the recently sent frames */
+        private final long[] sendTimes = new long[ RING_SIZE ];
+
+        /** Number of sent frames */
+        private volatile int sent = 0;
+
+        /**
+         *  Wraps the CODEC
+         */
+        Probe( AudioInterface codec )
+        {
+            this.codec = codec;
+        }
+
+        /**
+         *  Wraps the audio sender (VoicePDUSender) to time-stamp sent frames.
+         *  The sender time-stamps its first PDU with the call's current time.
+         */
+        public void setAudioSender( final AudioInterface.Packetizer as )
+        {
+            if ( as == null ) {
+                this.codec.setAudioSender( null );
+                return;
+            }
+
+            this.firstTimestamp = this.call.getTimestamp ();
+
+            this.codec.setAudioSender( new AudioInterface.Packetizer () {
+                public void send () throws IOException {
+                    long suppressed = call.getSuppressedFrameCount ();
+                    sendTimes[ sent & ( RING_SIZE - 1 ) ] = System.nanoTime ();
+                    as.send ();
+                    ++sent; // single writer
+                    capturedCount.incrementAndGet ();
+                    if ( call.getSuppressedFrameCount () == suppressed ) {
+                        sentCount.incrementAndGet ();
+                    }
+                }
+            } );
+        }
+
+        /**
+         *  Records latency of the frame sent by the other end
+         */
+        private void onReceived( long timestamp )
+        {
+            long now = System.nanoTime ();
+
+            receivedCount.incrementAndGet ();
+
+            /* RTP time-stamps are received relative to the first packet
+             */
+            Probe p = this.peer;
+            int first = rtp ? 0 : p.firstTimestamp;
+            int k = Math.round( (int) ( timestamp - first ) / (float) FRAME_INTERVAL );
+            int sentByPeer = p.sent;
+
+            if ( k >= 0 && k < sentByPeer && sentByPeer - k < RING_SIZE ) {
+                latency.record( ( now - p.sendTimes[ k & ( RING_SIZE - 1 ) ] ) / 1000 );
+            }
+        }
+
+        public void writeBuffered( byte[] buff, long timestamp ) throws IOException
+        {
+            onReceived( timestamp );
+            this.codec.writeBuffered( buff, timestamp );
+        }
+
+        public void writeBuffered( ByteBuffer buff, long timestamp ) throws IOException
+        {
+            onReceived( timestamp );
+            this.codec.writeBuffered( buff, timestamp );
+        }
+
+        public void writeComfortNoise( int level, long timestamp ) throws IOException
+        {
+            onReceived( timestamp );
+            this.codec.writeComfortNoise( level, timestamp );
+        }
+
+        public int getSampleSize () { return this.codec.getSampleSize (); }
+        public int getNoiseLevel () { return this.codec.getNoiseLevel (); }
+        public void markTalkspurt () { this.codec.markTalkspurt (); }
+        public long readWithTimestamp( byte[] buff ) throws IOException { return this.codec.readWithTimestamp( buff ); }
+        public void stopRecording () { this.codec.stopRecording (); }
+        public long startRecording () { return this.codec.startRecording (); }
+        public void startPlay () { this.codec.startPlay (); }
+        public void stopPlay () { this.codec.stopPlay (); }
+        public void startRinging () { this.codec.startRinging (); }
+        public void stopRinging () { this.codec.stopRinging (); }
+        public void writeDirectly( byte[] buff ) throws IOException { this.codec.writeDirectly( buff ); }
+        public int getVoicePduSubclass () { return this.codec.getVoicePduSubclass (); }
+        public void cleanUp () { this.codec.cleanUp (); }
+        public AudioInterface getByFormat( Integer format ) { return this.codec.getByFormat( format ); }
+    }
+
+    //////////////////////////////////////////////////////////////////////////////////////
+
+    /**
+     *  Ramps up the number of calls and reports the load at each step
+     */
+    public static void main( String args[] ) throws Exception
+    {
+        int maxCalls = 500;
+        int step = 50;
+        int seconds = 10;
+        int format = VoicePDU.ALAW;
+        String cipherName = "Blowfish";
+        int threadCount = Math.min( 4, Runtime.getRuntime().availableProcessors () );
+        boolean rtp = false;
+        boolean dtx = false;
+        boolean batchReport = false;
+
+        try
+        {
+            if ( args.length >= 1 ) maxCalls = Integer.parseInt( args[0] );
+            if ( args.length >= 2 ) step = Integer.parseInt( args[1] );
+            if ( args.length >= 3 ) seconds = Integer.parseInt( args[2] );
+            if ( args.length >= 4 ) format = parseFormat( args[3] );
+            if ( args.length >= 5 ) cipherName = args[4].equalsIgnoreCase( "none" ) ? null : args[4];
+            if ( args.length >= 6 ) threadCount = Integer.parseInt( args[5] );
+            if ( args.length >= 7 ) rtp = parseFraming( args[6] );
+            if ( args.length >= 8 ) dtx = parseDtx( args[7] );
+            if ( args.length >= 9 ) batchReport = parseBatchReport( args[8] );
+        }
+        catch( IllegalArgumentException e )
+        {
+            System.err.println( "Usage: java loadgen.LoadGenerator [ maxCalls [ step "
+                    + "[ seconds [ alaw|ulaw|dvi4|lin16 [ cipher|none [ threads [ iax|rtp [ dtx|nodtx [ hist|nohist ]]]]]]]]]" );
+            System.exit( 1 );
+        }
+
+        Log.setEnabled( Log.TRACE, false );
+
+        LoadGenerator gen = new LoadGenerator( format, cipherName, threadCount, rtp, dtx, batchReport );
+
+        System.out.println( "Calls over loopback; format " + formatName( format )
+                + ", cipher " + ( cipherName != null ? cipherName : "none" )
+                + ", " + ( rtp ? "RTP" : "IAX" ) + " framing"
+                + ( dtx ? ", DTX" : "" )
+                + ", " + ( threadCount > 0 ? threadCount + " selector threads" : "thread per peer" )
+                + ", " + WorkerThreads.getMode ().toString ().toLowerCase () + " workers"
+                + ", " + Runtime.getRuntime ().availableProcessors () + " CPUs" );
+        System.out.println( getReportHeader () );
+
+        try
+        {
+            for ( int n = Math.min( step, maxCalls ); n <= maxCalls; n += step )
+            {
+                gen.setCallCount( n );
+                Thread.sleep( SETTLE_MILLIS );
+                System.out.println( gen.measure( 1000L * seconds ) );
+                System.out.print( gen.getBatchReport () );
+            }
+        }
+        finally
+        {
+            gen.cleanUp ();
+        }
+
+        System.exit( 0 );
+    }
+
+    /**
+     *  Parses the framing name; returns true for RTP framing
+     */
+    private static boolean parseFraming( String name )
+    {
+        if ( name.equalsIgnoreCase( "rtp" ) ) {
+            return true;
+        } else if ( name.equalsIgnoreCase( "iax" ) ) {
+            return false;
+        }
+        throw new IllegalArgumentException( "Unknown framing " + name );
+    }
+
+    /**
+     *  Parses the DTX argument; returns true for discontinuous transmission
+     */
+    private static boolean parseDtx( String name )
+    {
+        if ( name.equalsIgnoreCase( "dtx" ) ) {
+            return true;
+        } else if ( name.equalsIgnoreCase( "nodtx" ) ) {
+            return false;
+        }
+        throw new IllegalArgumentException( "Unknown DTX mode " + name );
+    }
+
+    /**
+     *  Parses the histogram argument; returns true for the receive batch histogram
+     */
+    private static boolean parseBatchReport( String name )
+    {
+        if ( name.equalsIgnoreCase( "hist" ) ) {
+            return true;
+        } else if ( name.equalsIgnoreCase( "nohist" ) ) {
+            return false;
+        }
+        throw new IllegalArgumentException( "Unknown histogram mode " + name );
+    }
+
+    /**
+     *  Parses the VoicePDU format name
+     */
+    private static int parseFormat( String name )
+    {
+        if ( name.equalsIgnoreCase( "alaw" ) ) {
+            return VoicePDU.ALAW;
+        } else if ( name.equalsIgnoreCase( "ulaw" ) ) {
+            return VoicePDU.ULAW;
+        } else if ( name.equalsIgnoreCase( "dvi4" ) ) {
+            return VoicePDU.DVI4;
+        } else if ( name.equalsIgnoreCase( "lin16" ) ) {
+            return VoicePDU.LIN16;
+        }
+        throw new IllegalArgumentException( "Unknown format " + name );
+    }
+
+    /**
+     *  Returns the name of the VoicePDU format
+     */
+    private static String formatName( int format )
+    {
+        switch( format )
+        {
+            case VoicePDU.ALAW:  return "alaw";
+            case VoicePDU.ULAW:  return "ulaw";
+            case VoicePDU.DVI4:  return "dvi4";
+            case VoicePDU.LIN16: return "lin16";
+        }
+        return String.valueOf( format );
+    }
+}
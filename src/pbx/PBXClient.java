@@ -11,9 +11,12 @@ import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.net.Socket;
 import java.net.UnknownHostException;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.regex.Pattern;
 
 import utils.Log;
+import utils.WorkerThreads;
 
 /**
  *  Encapsulates rudimentary functionality of a PBX to list and invite users (peers)
@@ -25,10 +28,13 @@ import utils.Log;
  *  
  *  Communication with the upper layer (which owns instance of the PBXClient) is done
  *  using call-backs over the PBXClient.Context interface. 
+ *  
+ *  The connection is served by a worker thread created by WorkerThreads (platform 
+ *  or virtual thread depending on the execution mode).
  *
  *  @author Mikica B Kocic
  */
-public class PBXClient extends Thread 
+public class PBXClient implements Runnable 
 {
     /**
      *  PBX Signaling Messages' Types
@@ -71,6 +77,7 @@ public class PBXClient extends Thread
         public String peerAddr;     // remote peer's IP address
         public int    peerPort;     // remote peer's UDP port
         public String secret;       // remote peer's public or secret key
+        public Map<String,String> options = new HashMap<String,String> (); // @name=value
         
         public ControlMessage( CMType msgToken, String peerUserId, String localUserId, 
                 String peerAddr, int peerPort, String secret ) 
@@ -90,6 +97,11 @@ public class PBXClient extends Thread
                 return "'" + peerUserId + "' at " + peerAddr + ":" + peerPort;
             }
         }
+
+        public String getOption( String name, String defaultValue ) {
+            String value = options.get( name.toLowerCase () );
+            return value != null ? value : defaultValue;
+        }
     }
 
     //////////////////////////////////////////////////////////////////////////////////////
@@ -183,6 +195,11 @@ public class PBXClient extends Thread
      */
     private Socket socket = null;
     
+    /**
+     *  The worker thread serving the connection
+     */
+    private Thread thread = null;
+    
     /**
      *  Indicates/enables the thread to be running
      */
@@ -205,8 +222,6 @@ public class PBXClient extends Thread
      */
     public PBXClient( String host, int port, Context context )
     {
-        super( "Chat-" + host + ":" + port );
-
         this.host        = host;
         this.port        = port;
         this.context     = context;
@@ -225,15 +240,25 @@ public class PBXClient extends Thread
     /**
      * Starts the thread.
      */
-    @Override
-    public void start ()
+    public synchronized void start ()
     {
         if ( isAlive () || running ) {
             return;  // Allow only one thread per instance
         }
 
         running = true;
-        super.start ();
+        thread = WorkerThreads.newThread( this, "Chat-" + host + ":" + port, 
+                Thread.NORM_PRIORITY, false );
+        thread.start ();
+    }
+
+    /**
+     *  Returns if the worker thread is alive
+     */
+    public boolean isAlive ()
+    {
+        Thread t = thread;
+        return t != null && t.isAlive ();
     }
 
     /**
@@ -365,14 +390,17 @@ public class PBXClient extends Thread
      *  
      *  Syntax:
      *  <pre>
-     *     [$] INVITE    local-name   remote-ip-address   remote-udp-port  [ public-key ]   
-     *     [$] RING      local-name   remote-ip-address   remote-udp-port  [ public-key ]
-     *     [$] ACCEPT    local-name   remote-ip-address   remote-udp-port  [ secret-key ]
+     *     [$] INVITE    local-name   remote-ip-address   remote-udp-port  [ public-key ] [ options ]
+     *     [$] RING      local-name   remote-ip-address   remote-udp-port  [ public-key ] [ options ]
+     *     [$] ACCEPT    local-name   remote-ip-address   remote-udp-port  [ secret-key ] [ options ]
      *     [$] BYE       local-name [ remote-ip-address [ remote-udp-port ] ]
      *     [$] IMSG      local-name   encrypted-message
      *     [$] LIST    [ username-regex ]
      *     [$] ALIVE
      *  </pre>   
+     *  where options are words in form <code>@name=value</code> that negotiate
+     *  call features (e.g. <code>@framing=rtp</code>, <code>@dtx=on</code> or the CODECs
+     *  offered as <code>@codecs=dvi4/84,alaw/160</code>); unknown options are ignored.
      */
     private void parseControlMessage( String remoteUserId, String[] args, String original )
     {
@@ -422,14 +450,14 @@ public class PBXClient extends Thread
          */
         if ( args.length >= 5  && args[1].equalsIgnoreCase( "invite" ) )
         {
-            String publicKey = args.length >= 6 ? args[5] : null;
+            String publicKey = getKeyArgument( args );
 
             try
             {
                 int port = Integer.parseInt( args[4] ); // remote port
 
-                context.onInvite( new ControlMessage( CMType.INVITE,
-                        remoteUserId, destinationUserId, args[3], port, publicKey ) );
+                context.onInvite( parseOptions( args, new ControlMessage( CMType.INVITE,
+                        remoteUserId, destinationUserId, args[3], port, publicKey ) ) );
             }
             catch( NumberFormatException e )
             {
@@ -442,14 +470,14 @@ public class PBXClient extends Thread
          */
         else if ( args.length >= 5 && args[1].equalsIgnoreCase( "ring" ) ) 
         {
-            String publicKey = args.length >= 6 ? args[5] : null;
+            String publicKey = getKeyArgument( args );
 
             try
             {
                 int port = Integer.parseInt( args[4] ); // remote port
 
-                context.onRing( new ControlMessage( CMType.RING,
-                        remoteUserId, destinationUserId, args[3], port, publicKey ) );
+                context.onRing( parseOptions( args, new ControlMessage( CMType.RING,
+                        remoteUserId, destinationUserId, args[3], port, publicKey ) ) );
             }
             catch( NumberFormatException e )
             {
@@ -462,14 +490,14 @@ public class PBXClient extends Thread
          */
         else if ( args.length >= 5 && args[1].equalsIgnoreCase( "accept" ) ) 
         {
-            String secretKey = args.length >= 6 ? args[5] : null;
+            String secretKey = getKeyArgument( args );
 
             try
             {
                 int port = Integer.parseInt( args[4] ); // remote port
                 
-                context.onAccept( new ControlMessage( CMType.ACCEPT, 
-                        remoteUserId, destinationUserId, args[3], port, secretKey ) );
+                context.onAccept( parseOptions( args, new ControlMessage( CMType.ACCEPT, 
+                        remoteUserId, destinationUserId, args[3], port, secretKey ) ) );
             }
             catch( NumberFormatException e )
             {
@@ -553,15 +581,58 @@ public class PBXClient extends Thread
         }
     }
 
+    /**
+     *  Returns the public or secret key argument of INVITE, RING or ACCEPT message
+     *  (the first argument after the remote UDP port that is not an option);
+     *  null if there is no key.
+     */
+    private static String getKeyArgument( String[] args )
+    {
+        for ( int i = 5; i < args.length; ++i ) {
+            if ( ! args[i].startsWith( "@" ) ) {
+                return args[i];
+            }
+        }
+        return null;
+    }
+
+    /**
+     *  Parses options (<code>@name=value</code> arguments following the remote 
+     *  UDP port) of INVITE, RING or ACCEPT message into the control message.
+     */
+    private static ControlMessage parseOptions( String[] args, ControlMessage m )
+    {
+        for ( int i = 5; i < args.length; ++i ) 
+        {
+            int eq = args[i].indexOf( '=' );
+            if ( args[i].startsWith( "@" ) && eq > 1 ) {
+                m.options.put( args[i].substring( 1, eq ).toLowerCase (), 
+                        args[i].substring( eq + 1 ) );
+            }
+        }
+        return m;
+    }
+
     /**
      *  Broadcasts INVITE message
      */
     public void sendInvite( String remoteUserId, 
             String localIpAddress, int localUdpPort, String publicKey )
+    {
+        sendInvite( remoteUserId, localIpAddress, localUdpPort, publicKey, null );
+    }
+
+    /**
+     *  Broadcasts INVITE message offering the call features given as options 
+     *  (<code>@name=value</code> words separated by spaces; may be null)
+     */
+    public void sendInvite( String remoteUserId, 
+            String localIpAddress, int localUdpPort, String publicKey, String options )
     {
         this.send( "[$] INVITE " + remoteUserId + " " 
                 + localIpAddress + " "  + localUdpPort 
-                + ( publicKey != null ? " " + publicKey : "" ),
+                + ( publicKey != null ? " " + publicKey : "" )
+                + ( options != null ? " " + options : "" ),
                 context.getUserId () );
     }
 
@@ -582,10 +653,21 @@ public class PBXClient extends Thread
      */
     public void sendAccept( String remoteUserId, 
             String localIpAddress, int localUdpPort, String publicKey )
+    {
+        sendAccept( remoteUserId, localIpAddress, localUdpPort, publicKey, null );
+    }
+
+    /**
+     *  Broadcasts ACCEPT message answering the offered call features with options
+     *  (<code>@name=value</code> words separated by spaces; may be null)
+     */
+    public void sendAccept( String remoteUserId, 
+            String localIpAddress, int localUdpPort, String publicKey, String options )
     {
         this.send( "[$] ACCEPT " + remoteUserId + " " 
                 + localIpAddress + " "  + localUdpPort 
-                + ( publicKey != null ? " " + publicKey : "" ),
+                + ( publicKey != null ? " " + publicKey : "" )
+                + ( options != null ? " " + options : "" ),
                 context.getUserId () );
     }
 
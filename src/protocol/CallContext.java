@@ -2,11 +2,19 @@
 package protocol;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import crypto.SymmetricCipher;
 
 import utils.Log;
+import utils.MediaClock;
+import utils.MediaScheduler;
 import utils.OctetBuffer;
 
+import audio.AudioCodecAlaw;
+import audio.AudioCodecUlaw;
 import audio.AudioInterface;
+import audio.ComfortNoise;
 
 /**
  *  CallContext deals with all the packets that are part of a specific call.
@@ -32,8 +40,14 @@ public class CallContext
     /** The inbound stream sequence number */
     private int inSeqNo = 0;
     
-    /** The start time-stamp of the call */
-    private long startTimestamp = 0;
+    /** The sample rate of the media clock */
+    public final static int SAMPLE_RATE = 8000;
+
+    /** The start time-stamp of the call (wall-clock time) */
+    private long startTimestamp = System.currentTimeMillis ();
+
+    /** The monotonic media clock of the call; zero when the call started */
+    private final MediaClock mediaClock = new MediaClock( SAMPLE_RATE );
 
     /** The remote peer; owner of the call */
     private RemotePeer remotePeer = null;
@@ -44,9 +58,34 @@ public class CallContext
     /** The flag that indicates that the call is established */
     private boolean callEstablished = false;
     
-    /** Used by onReceivedVoicePDU() to stop ringing */
+    /** Used by playVoiceSample() to stop ringing */
     private boolean receivedFirstVoicePDU = false;
 
+    /** Indicates that comfort noise is played, i.e. the remote peer is silent */
+    private boolean playingComfortNoise = false;
+
+    /** Puts inbound voice PDUs into sequence before they are played */
+    private volatile ReorderWindow reorderWindow = new ReorderWindow( this, 
+            ReorderWindow.DEFAULT_DEPTH, ReorderWindow.DEFAULT_MAX_HOLD_MILLIS );
+
+    /** The period of releasing expired PDUs held by the reorder window (one frame) */
+    private final static long REORDER_TICK_NANOS = 20000000L;
+
+    /** Releases expired PDUs of the reorder window while the call is established */
+    private MediaScheduler.Handle reorderTick = null;
+
+    /** RTP framing of voice PDUs; null if the call uses IAX-style voice PDUs */
+    private volatile RtpSession rtpSession = null;
+
+    /** Indicates that voice PDUs are not sent during silence (DTX) */
+    private volatile boolean discontinuousTransmission = false;
+
+    /** Number of captured frames not sent because of silence */
+    private volatile long suppressedFrameCount = 0;
+
+    /** Number of sent comfort noise descriptors */
+    private volatile long sentComfortNoiseCount = 0;
+
     /**
      * The outbound constructor for Call. We know nothing except where to send it.
      */
@@ -61,6 +100,121 @@ public class CallContext
         }
     }
 
+    /**
+     * The outbound constructor for Call tagged with the given call numbers.
+     * Used when many calls are carried between the same pair of UDP endpoints.
+     */
+    public CallContext( RemotePeer remotePeer, AudioInterface audioInterface,
+            int sourceCallNumber, int destinationCallNumber ) 
+    {
+        this.audioInterface = audioInterface;
+        
+        synchronized( remotePeer )
+        {
+            this.remotePeer = remotePeer;
+            this.remotePeer.addNewCall( this, sourceCallNumber, destinationCallNumber );
+        }
+    }
+
+    /**
+     *  Returns the remote peer owning the call (null if the call is cleaned-up)
+     */
+    RemotePeer getRemotePeer ()
+    {
+        return this.remotePeer;
+    }
+
+    /**
+     *  Switches the call to RTP framing of voice PDUs with the given local and remote
+     *  SSRC (see RtpSession). If the cipher is not null, packets are protected as SRTP.
+     *  Should be called before the call is established.
+     *
+     *  @return false if the RTP session could not be set up
+     */
+    public boolean useRtpFraming( int localSsrc, int remoteSsrc, SymmetricCipher cipher )
+    {
+        RtpSession session = null;
+
+        try {
+            session = new RtpSession( localSsrc, remoteSsrc, cipher );
+        } catch( IllegalArgumentException e ) {
+            Log.warn( "RTP framing not used: " + e.getMessage () );
+            return false;
+        }
+
+        ReorderWindow old = this.reorderWindow;
+        this.reorderWindow = new ReorderWindow( this, old.getDepth (), 
+                old.getMaxHoldMillis (), 16 );
+
+        this.rtpSession = session;
+
+        RemotePeer peer = this.remotePeer;
+        if ( peer != null ) {
+            peer.onRtpFraming( this );
+        }
+
+        return true;
+    }
+
+    /**
+     *  Enables or disables discontinuous transmission (DTX): while the audio
+     *  interface detects no voice, only comfort noise descriptors are sent from time
+     *  to time instead of voice PDUs (see VoicePDUSender). The remote peer must
+     *  support comfort noise (negotiated over PBX).
+     */
+    public void useDiscontinuousTransmission( boolean enabled )
+    {
+        this.discontinuousTransmission = enabled;
+    }
+
+    /**
+     *  Returns if voice PDUs are not sent during silence
+     */
+    public boolean isDiscontinuousTransmission ()
+    {
+        return this.discontinuousTransmission;
+    }
+
+    /**
+     *  Accounts for a captured frame that was not sent (only VoicePDUSender calls this)
+     */
+    void onFrameSuppressed ()
+    {
+        ++this.suppressedFrameCount; // single writer
+    }
+
+    /**
+     *  Accounts for a sent comfort noise descriptor (only VoicePDUSender calls this)
+     */
+    void onComfortNoiseSent ()
+    {
+        ++this.sentComfortNoiseCount; // single writer
+    }
+
+    /**
+     *  Returns the number of captured frames not sent because of silence
+     */
+    public long getSuppressedFrameCount ()
+    {
+        return this.suppressedFrameCount;
+    }
+
+    /**
+     *  Returns the number of sent comfort noise descriptors
+     */
+    public long getSentComfortNoiseCount ()
+    {
+        return this.sentComfortNoiseCount;
+    }
+
+    /**
+     *  Returns the RTP session of the call; null if the call uses IAX-style voice PDUs
+     */
+    public RtpSession getRtpSession ()
+    {
+        return this.rtpSession;
+    }
+
     /**
      *  Generates a new outbound stream sequence number.
      */
@@ -105,14 +259,32 @@ public class CallContext
         }
     }
 
+    /**
+     *  Sends a voice PDU encoded by the encoder to our peer.
+     */
+    void send( VoicePDUEncoder encoder )
+    {
+        RemotePeer peer = this.remotePeer;
+        if ( peer != null ) {
+            peer.send( encoder );
+        }
+    }
+
     /**
      *  Returns the timestamp of this call. This is the number of milliseconds 
-     *  since the call started.
+     *  since the call started (measured by the monotonic media clock).
      */
     public int getTimestamp () 
     {
-        long now = System.currentTimeMillis ();
-        return (int) ( now - this.startTimestamp );
+        return (int) this.mediaClock.getMillis ();
+    }
+
+    /**
+     *  Returns the monotonic media clock of the call
+     */
+    public MediaClock getMediaClock ()
+    {
+        return this.mediaClock;
     }
 
     /**
@@ -157,6 +329,41 @@ public class CallContext
         }
 
         this.callEstablished = established;
+
+        if ( established ) {
+            startReorderTick ();
+        } else {
+            stopReorderTick ();
+        }
+    }
+
+    /**
+     *  Starts releasing expired PDUs held by the reorder window every frame,
+     *  so the maximum hold time holds even if no more PDUs arrive
+     */
+    private synchronized void startReorderTick ()
+    {
+        if ( this.reorderTick != null ) {
+            return;
+        }
+
+        this.reorderTick = MediaScheduler.getDefault ().scheduleAtFixedRate( 
+            new Runnable () {
+                public void run () {
+                    reorderWindow.expire ();
+                }
+            }, REORDER_TICK_NANOS );
+    }
+
+    /**
+     *  Stops releasing expired PDUs held by the reorder window
+     */
+    private synchronized void stopReorderTick ()
+    {
+        if ( this.reorderTick != null ) {
+            this.reorderTick.cancel ();
+            this.reorderTick = null;
+        }
     }
 
     /**
@@ -183,9 +390,37 @@ public class CallContext
     }
 
     /**
-     *  Notifies us that a Voice PDU has been received.
+     *  Notifies us that a Voice PDU with the given sequence number has been received.
+     *  The PDU is played when it is in sequence (see ReorderWindow).
+     */
+    public void onReceivedVoicePDU( int seqNo, long timestamp, byte[] audioSample )
+    {
+        this.reorderWindow.offer( seqNo, timestamp, audioSample );
+    }
+
+    /**
+     *  Notifies us that a Voice PDU with the given sequence number has been received.
+     *  The audio sample is found between the position and the limit of the buffer.
+     *  The sample is either played or copied before the method returns, so the caller 
+     *  may reuse the buffer afterwards.
+     */
+    public void onReceivedVoicePDU( int seqNo, long timestamp, ByteBuffer audioSample )
+    {
+        this.reorderWindow.offer( seqNo, timestamp, audioSample );
+    }
+
+    /**
+     *  Returns the reordering window of inbound voice PDUs
+     */
+    public ReorderWindow getReorderWindow ()
+    {
+        return this.reorderWindow;
+    }
+
+    /**
+     *  Plays audio sample of the voice PDU that is in sequence.
      */
-    public void onReceivedVoicePDU( long timestamp, byte[] audioSample )
+    void playVoiceSample( long timestamp, byte[] audioSample )
     {
         if ( ( this.audioInterface != null ) && ( ! this.receivedFirstVoicePDU ) )
         {
@@ -195,6 +430,13 @@ public class CallContext
             this.audioInterface.stopRinging ();
         }
 
+        if ( audioSample.length == ComfortNoise.SID_LENGTH ) {
+            playComfortNoise( timestamp, audioSample[0] );
+            return;
+        }
+
+        endComfortNoise ();
+
         /* write samples to audio interface 
          */
         try {
@@ -204,6 +446,90 @@ public class CallContext
         }
     }
 
+    /**
+     *  Plays audio sample of the voice PDU that is in sequence. The audio sample 
+     *  is found between the position and the limit of the buffer. The sample is
+     *  written to the audio interface before the method returns.
+     */
+    void playVoiceSample( long timestamp, ByteBuffer audioSample )
+    {
+        if ( ( this.audioInterface != null ) && ( ! this.receivedFirstVoicePDU ) )
+        {
+            /* Stop ringing audio interface
+             */
+            this.receivedFirstVoicePDU = true;
+            this.audioInterface.stopRinging ();
+        }
+
+        if ( this.audioInterface == null ) {
+            return;
+        }
+        
+        if ( audioSample.remaining () == ComfortNoise.SID_LENGTH ) {
+            playComfortNoise( timestamp, audioSample.get( audioSample.position () ) );
+            return;
+        }
+        
+        endComfortNoise ();
+        
+        /* Limit the payload to the audio sample size
+         */
+        int audioSampleSize = this.audioInterface.getSampleSize ();
+        if ( audioSample.remaining () > audioSampleSize ) {
+            audioSample.limit( audioSample.position () + audioSampleSize );
+        }
+        
+        /* write samples to audio interface 
+         */
+        try {
+            this.audioInterface.writeBuffered( audioSample, timestamp );
+        } catch( IOException e ) {
+            Log.exception( Log.WARN, e );
+        }
+    }
+
+    /**
+     *  Plays comfort noise described by the SID (the noise level) of the voice PDU
+     *  that is in sequence, until the next voice sample arrives.
+     */
+    void playComfortNoise( long timestamp, byte level )
+    {
+        if ( this.audioInterface == null ) {
+            return;
+        }
+        
+        this.playingComfortNoise = true;
+        
+        try {
+            this.audioInterface.writeComfortNoise( level & 0x7F, timestamp );
+        } catch( IOException e ) {
+            Log.exception( Log.WARN, e );
+        }
+    }
+
+    /**
+     *  Marks the talkspurt boundary if voice resumes after comfort noise
+     */
+    private void endComfortNoise ()
+    {
+        if ( this.playingComfortNoise ) {
+            this.playingComfortNoise = false;
+            markTalkspurt ();
+        }
+    }
+
+    /**
+     *  Notifies the audio interface that the next voice sample starts a talkspurt
+     *  after a pause of the remote peer
+     */
+    void markTalkspurt ()
+    {
+        AudioInterface ai = this.audioInterface;
+        if ( ai != null ) {
+            ai.markTalkspurt ();
+        }
+    }
+
     /**
      *  Sets the local call number as a character.
      */
@@ -251,10 +577,11 @@ public class CallContext
     public void resetClock ()
     {
         this.startTimestamp = System.currentTimeMillis ();
+        this.mediaClock.reset ();
     }
 
     /**
-     *  Returns the start time-stamp of the call.
+     *  Returns the start time-stamp of the call (wall-clock time in milliseconds).
      */
     public long getStartTimestamp () 
     {
@@ -284,6 +611,8 @@ public class CallContext
      */
     public void cleanUp ()
     {
+        stopReorderTick ();
+        
         if ( this.audioInterface != null ) 
         {
             this.audioInterface.setAudioSender( null );
@@ -294,6 +623,22 @@ public class CallContext
         this.remotePeer = null;
     }
 
+    /**
+     *  Returns the octet of silence of the audio sample of the call's CODEC
+     */
+    byte getSilenceOctet ()
+    {
+        AudioInterface ai = this.audioInterface;
+        int format = ai != null ? ai.getVoicePduSubclass () : VoicePDU.LIN16;
+
+        switch( format )
+        {
+            case VoicePDU.ALAW: return AudioCodecAlaw.linear2alaw( (short) 0 );
+            case VoicePDU.ULAW: return AudioCodecUlaw.linear2ulaw( 0 );
+            default:            return 0; // linear PCM; zero ADPCM steps
+        }
+    }
+
     /**
      * Returns the audio interface sample size (used to determine size of the VoicePDU).
      */
@@ -0,0 +1,202 @@
+
+package protocol;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+
+/**
+ *  Demultiplexing table that maps the source call number and the remote address
+ *  (IP address and UDP port) of inbound PDUs to instances of the CallContext.
+ *
+ *  The table is an open-addressing hash table with primitive <code>long</code> keys.
+ *  It is replaced as a whole (copy-on-write) on every modification, so that the
+ *  receiver thread performs a lookup by reading a single volatile reference and
+ *  probing plain arrays, without any locking. Modifications are rare (they happen
+ *  only on call setup and clear down) and they are serialized on the table monitor.
+ */
+class CallTable
+{
+    /**
+     *  Snapshot of the table contents; never modified once published.
+     */
+    private static final class Snapshot
+    {
+        final long[] keys;
+        final InetAddress[] addrs;
+        final CallContext[] calls;
+        final int mask;
+        int size;
+
+        Snapshot( int capacity )
+        {
+            this.keys  = new long[ capacity ];
+            this.addrs = new InetAddress[ capacity ];
+            this.calls = new CallContext[ capacity ];
+            this.mask  = capacity - 1;
+        }
+    }
+
+    /** The current snapshot; never null */
+    private volatile Snapshot snapshot = new Snapshot( 16 );
+
+    /**
+     *  Builds the lookup key from the call number, IP address and UDP port.
+     *  For IPv4 addresses the key is exact; for IPv6 addresses the address
+     *  part is a hash, so the address must be additionally compared.
+     */
+    private static long makeKey( int callNumber, InetAddress addr, int port )
+    {
+        return ( (long) addr.hashCode () << 32 )
+             | ( ( port & 0xFFFFL ) << 16 )
+             | ( callNumber & 0x7FFFL );
+    }
+
+    /**
+     *  Returns the initial probe position for the key.
+     */
+    private static int hash( long key, int mask )
+    {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) ( h ^ ( h >>> 32 ) ) & mask;
+    }
+
+    /**
+     *  Finds the call that owns PDUs with the given source call number,
+     *  received from the given remote address and port.
+     *
+     *  @return the call context or null if there is no such call
+     */
+    CallContext lookup( int sourceCallNumber, InetAddress addr, int port )
+    {
+        Snapshot s = this.snapshot;
+
+        long key = makeKey( sourceCallNumber, addr, port );
+        boolean exact = addr instanceof Inet4Address;
+
+        for ( int i = hash( key, s.mask ); s.calls[i] != null; i = ( i + 1 ) & s.mask )
+        {
+            if ( s.keys[i] == key && ( exact || s.addrs[i].equals( addr ) ) ) {
+                return s.calls[i];
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     *  Adds (or replaces) the call associated with the given source call number
+     *  and remote address.
+     */
+    synchronized void put( int sourceCallNumber, InetAddress addr, int port,
+            CallContext call )
+    {
+        Snapshot s = this.snapshot;
+        Snapshot n = new Snapshot( capacityFor( s.size + 1 ) );
+
+        int size = 0;
+        long key = makeKey( sourceCallNumber, addr, port );
+
+        for ( int i = 0; i < s.calls.length; ++i )
+        {
+            if ( s.calls[i] == null || s.calls[i] == call ) {
+                continue;
+            }
+            if ( s.keys[i] == key && s.addrs[i].equals( addr ) ) {
+                continue; // replaced by the new call
+            }
+            insert( n, s.keys[i], s.addrs[i], s.calls[i] );
+            ++size;
+        }
+
+        insert( n, key, addr, call );
+        n.size = size + 1;
+
+        this.snapshot = n;
+    }
+
+    /**
+     *  Removes the call from the table.
+     *
+     *  @return true if the call was found in the table
+     */
+    synchronized boolean remove( CallContext call )
+    {
+        Snapshot s = this.snapshot;
+        Snapshot n = new Snapshot( capacityFor( s.size ) );
+
+        int size = 0;
+        boolean found = false;
+
+        for ( int i = 0; i < s.calls.length; ++i )
+        {
+            if ( s.calls[i] == null ) {
+                continue;
+            } else if ( s.calls[i] == call ) {
+                found = true;
+                continue;
+            }
+            insert( n, s.keys[i], s.addrs[i], s.calls[i] );
+            ++size;
+        }
+
+        if ( found ) {
+            n.size = size;
+            this.snapshot = n;
+        }
+
+        return found;
+    }
+
+    /**
+     *  Returns the number of calls in the table.
+     */
+    int size ()
+    {
+        return this.snapshot.size;
+    }
+
+    /**
+     *  Returns the calls in the table (in no particular order).
+     */
+    CallContext[] getCalls ()
+    {
+        Snapshot s = this.snapshot;
+        CallContext[] result = new CallContext[ s.size ];
+
+        int n = 0;
+        for ( int i = 0; i < s.calls.length; ++i ) {
+            if ( s.calls[i] != null ) {
+                result[ n++ ] = s.calls[i];
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     *  Inserts entry into the (not yet published) snapshot.
+     */
+    private static void insert( Snapshot s, long key, InetAddress addr, CallContext call )
+    {
+        int i = hash( key, s.mask );
+        while ( s.calls[i] != null ) {
+            i = ( i + 1 ) & s.mask;
+        }
+
+        s.keys[i]  = key;
+        s.addrs[i] = addr;
+        s.calls[i] = call;
+    }
+
+    /**
+     *  Returns the power-of-two capacity that keeps load factor below 1/2.
+     */
+    private static int capacityFor( int size )
+    {
+        int capacity = 16;
+        while ( capacity < size * 2 ) {
+            capacity <<= 1;
+        }
+        return capacity;
+    }
+}
@@ -8,16 +8,23 @@ import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.SocketException;
+import java.nio.ByteBuffer;
 import java.net.UnknownHostException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import crypto.SymmetricCipher;
 
+import utils.ByteBufferPool;
 import utils.Log;
 import utils.OctetBuffer;
+import utils.WorkerThreads;
 
 /**
- *  Binds the UDP port. Each peer is associated with one DatagramChannel object.
+ *  Binds the UDP port. A single DatagramChannel may carry calls of many remote peers;
+ *  inbound PDUs are dispatched to their calls using the call table keyed by
+ *  the source call number and the remote address of the PDU.
  *  
  *  @author Mikica B Kocic
  */
@@ -32,6 +39,12 @@ public class DatagramChannel implements Runnable
     /** The UDP receiver socket */
     private DatagramSocket udpReceiver;
     
+    /** The non-blocking UDP channel; used instead of udpReceiver thread with engine */
+    private java.nio.channels.DatagramChannel nioChannel;
+    
+    /** The selector engine serving nioChannel; null if using own receiver thread */
+    private SelectorEngine engine;
+    
     /** The UDP receiver worker thread */
     private Thread pduReceiverThread;
     
@@ -41,8 +54,14 @@ public class DatagramChannel implements Runnable
     /** Current remote peer receiving datagrams from UDP socket*/
     private RemotePeer remotePeer;
     
+    /** Calls carried by this channel, keyed by source call number and remote address */
+    private final CallTable calls = new CallTable ();
+    
+    /** Number of calls carried by this channel that use RTP framing */
+    private final AtomicInteger rtpCallCount = new AtomicInteger ();
+    
     /** Currently used symmetric cipher */
-    private SymmetricCipher usedPduCipher;
+    private volatile SymmetricCipher usedPduCipher;
 
     /**
      *  Constructor for the DatagramChannel object
@@ -54,6 +73,19 @@ public class DatagramChannel implements Runnable
      */
     public DatagramChannel( int localPort )
     {
+        this( localPort, null );
+    }
+
+    /**
+     *  Constructor for the DatagramChannel object served by the selector engine.
+     *  If the engine is null, the channel starts its own receiver thread.
+     *
+     *  @param localPort  local UDP port receiving peer's PDUs
+     *  @param engine     selector engine receiving PDUs; may be null
+     */
+    public DatagramChannel( int localPort, SelectorEngine engine )
+    {
+        this.engine = engine;
         this.remotePeer = null;
         this.usedPduCipher = null;
 
@@ -63,26 +95,71 @@ public class DatagramChannel implements Runnable
         for( int i = localPort; i < localPort + 100; ++i )
         {
             try {
-                this.udpReceiver = new DatagramSocket( i );
+                if ( engine != null ) {
+                    this.nioChannel = java.nio.channels.DatagramChannel.open ();
+                    this.udpReceiver = this.nioChannel.socket ();
+                    this.udpReceiver.bind( new InetSocketAddress( i ) );
+                } else {
+                    this.udpReceiver = new DatagramSocket( i );
+                }
                 this.localPort = i;
                 break;
-            } catch( SocketException e ) {
+            } catch( IOException e ) {
                 /* ignore error and continue search for unbound port */
+                closeQuietly ();
             }
         }
         
-        /* If binded UDP port, start worker thread.
+        /* If binded UDP port, register channel with the engine or
+         * start the worker thread.
          */
-        if ( this.localPort > 0 ) 
+        if ( this.localPort > 0 && engine != null ) 
+        {
+            Log.trace( "Bound to UDP port " + this.localPort + " (selector engine)" );
+            this.running = true;
+            try {
+                this.nioChannel.configureBlocking( false );
+                engine.register( this, this.nioChannel );
+            } catch( IOException e ) {
+                Log.exception( Log.ERROR, e );
+            }
+        }
+        else if ( this.localPort > 0 ) 
         {
             Log.trace( "Bound to UDP port " + this.localPort );
             this.running = true;
-            pduReceiverThread = new Thread( this, "UDP" );
-            pduReceiverThread.setPriority( Thread.MAX_PRIORITY - 1 );
+            pduReceiverThread = WorkerThreads.newThread( this, "UDP", 
+                    Thread.MAX_PRIORITY - 1, false );
             pduReceiverThread.start ();
         }
     }
 
+    /**
+     *  Closes partially opened socket (while searching for unbound port)
+     */
+    private void closeQuietly ()
+    {
+        if ( this.nioChannel != null ) {
+            try {
+                this.nioChannel.close ();
+            } catch( IOException e ) {
+                /* ignored */
+            }
+        }
+        this.nioChannel = null;
+        this.udpReceiver = null;
+    }
+
+    /**
+     *  Returns if the channel is served by the selector engine, i.e. if inbound 
+     *  PDUs are delivered on the engine's event loop thread (instead of
+     *  the channel's own receiver thread).
+     */
+    boolean isEventDriven ()
+    {
+        return this.engine != null;
+    }
+
     /**
      *  Returns used local UDP port.
      */
@@ -112,13 +189,53 @@ public class DatagramChannel implements Runnable
     }
 
     /**
-     *  Adds new peer to receive incoming PDUs
+     *  Adds new peer to receive incoming PDUs. The peer becomes the current peer
+     *  of the channel (see getRemotePeer()).
      */
     public void addNewPeer( RemotePeer remotePeer )
     {
         this.remotePeer = remotePeer;
     }
 
+    /**
+     *  Registers the call to receive PDUs tagged with the given source call number
+     *  coming from the given remote address and port.
+     */
+    void registerCall( CallContext call, int sourceCallNumber, 
+            InetAddress remoteAddr, int remotePort )
+    {
+        this.calls.put( sourceCallNumber, remoteAddr, remotePort, call );
+    }
+
+    /**
+     *  Unregisters the call from the call table
+     */
+    void unregisterCall( CallContext call )
+    {
+        this.calls.remove( call );
+        
+        if ( call.getRtpSession () != null ) {
+            this.rtpCallCount.decrementAndGet ();
+        }
+    }
+
+    /**
+     *  Notifies the channel that the registered call switched to RTP framing,
+     *  so the channel recognizes its RTP packets (see findRtpPeer).
+     */
+    void onRtpFraming( CallContext call )
+    {
+        this.rtpCallCount.incrementAndGet ();
+    }
+
+    /**
+     *  Returns the number of calls carried by this channel
+     */
+    public int getCallCount ()
+    {
+        return this.calls.size ();
+    }
+
     /**
      *  Returns if there is active remote peer
      */
@@ -161,6 +278,23 @@ public class DatagramChannel implements Runnable
         }
     }
 
+    /**
+     *  Detaches the given peer and all its calls from the UDP receiver
+     *  leaving other peers intact.
+     */
+    public void removePeer( RemotePeer peer )
+    {
+        if ( peer == null ) {
+            return;
+        }
+        
+        peer.cleanUp ();
+
+        if ( this.remotePeer == peer ) {
+            this.remotePeer = null;
+        }
+    }
+
     /**
      *  Stops PDU receiver thread
      */
@@ -168,6 +302,13 @@ public class DatagramChannel implements Runnable
     {
         running = false;
         
+        if ( engine != null && nioChannel != null )
+        {
+            engine.unregister( nioChannel );
+            Log.debug( "Closed Channel" );
+            nioChannel = null;
+        }
+        
         if ( pduReceiverThread != null )
         {
             udpReceiver.close ();
@@ -212,23 +353,7 @@ public class DatagramChannel implements Runnable
                 byte[] pdu = new byte[ packet.getLength () ];
                 System.arraycopy( buff, 0, pdu, 0, pdu.length );
 
-                InetAddress peerAddr = packet.getAddress ();
-                int peerPort = packet.getPort ();
-
-                // packetDump( pdu, pdu.length, peerAddr, peerPort, true );
-                
-                if ( usedPduCipher != null ) {
-                    pdu = usedPduCipher.decrypt( /*randomPreambleLen*/ 8, pdu );
-                }
-
-                if ( pdu != null ) 
-                {
-                    packetDump( pdu, pdu.length, peerAddr, peerPort, true );
-    
-                    if ( remotePeer != null ) {
-                        remotePeer.addIncomingPDU( pdu );
-                    }
-                }
+                onReceivedDatagram( pdu, packet.getAddress (), packet.getPort () );
             }
             catch( IOException e )
             {
@@ -239,6 +364,172 @@ public class DatagramChannel implements Runnable
         }
     }
 
+    /**
+     *  Deciphers received datagram and dispatches PDU to the remote peer.
+     *  Called either from the receiver thread or from the selector engine.
+     */
+    void onReceivedDatagram( byte[] pdu, InetAddress peerAddr, int peerPort )
+    {
+        // packetDump( pdu, pdu.length, peerAddr, peerPort, true );
+        
+        if ( pdu.length >= RtpSession.HEADER_LENGTH )
+        {
+            int ssrc = ( ( pdu[8] & 0xFF ) << 24 ) | ( ( pdu[9] & 0xFF ) << 16 )
+                     | ( ( pdu[10] & 0xFF ) << 8 ) | ( pdu[11] & 0xFF );
+            
+            RemotePeer rtpPeer = findRtpPeer( pdu[0], ssrc, peerAddr, peerPort );
+            if ( rtpPeer != null ) {
+                rtpPeer.addIncomingPDU( pdu ); // (S)RTP packet bypasses the cipher
+                return;
+            }
+        }
+        
+        SymmetricCipher cipher = usedPduCipher;
+        if ( cipher != null ) {
+            pdu = cipher.decryptPacket( pdu );
+        }
+
+        if ( pdu != null ) 
+        {
+            packetDump( pdu, pdu.length, peerAddr, peerPort, true );
+
+            dispatch( pdu, peerAddr, peerPort );
+        }
+    }
+
+    /**
+     *  Deciphers datagram found between the position and the limit of the buffer
+     *  and dispatches PDU to the remote peer. The PDU is deciphered into a buffer 
+     *  taken from the pool and it is handled in place (see RemotePeer.addIncomingPDU).
+     *  All buffers may be reused (returned to the pool) when the method returns.
+     *  Called from the selector engine.
+     */
+    void onReceivedDatagram( ByteBuffer datagram, InetAddress peerAddr, int peerPort,
+            ByteBufferPool pool )
+    {
+        ByteBuffer pdu = datagram;
+        ByteBuffer plainText = null;
+        
+        if ( datagram.remaining () >= RtpSession.HEADER_LENGTH )
+        {
+            int start = datagram.position ();
+            
+            RemotePeer rtpPeer = findRtpPeer( datagram.get( start ), 
+                    datagram.getInt( start + 8 ), peerAddr, peerPort );
+            if ( rtpPeer != null ) {
+                rtpPeer.addIncomingPDU( datagram ); // (S)RTP packet bypasses the cipher
+                return;
+            }
+        }
+        
+        SymmetricCipher cipher = usedPduCipher;
+        if ( cipher != null ) 
+        {
+            plainText = pool.acquire ();
+            if ( cipher.decryptPacket( datagram, plainText ) < 0 ) {
+                pool.release( plainText );
+                return;
+            }
+            pdu = plainText;
+        }
+
+        if ( Log.isEnabled( Log.PDU ) ) 
+        {
+            byte[] octets = new byte[ pdu.remaining () ];
+            pdu.duplicate().get( octets );
+            packetDump( octets, octets.length, peerAddr, peerPort, true );
+        }
+
+        RemotePeer peer = null;
+        
+        if ( pdu.remaining () >= 12 ) 
+        {
+            int sourceCallNumber = pdu.getShort( pdu.position () ) & 0x7FFF;
+            peer = findPeer( sourceCallNumber, peerAddr, peerPort );
+        }
+        else
+        {
+            peer = findPeer( -1, peerAddr, peerPort );
+        }
+        
+        if ( peer != null ) {
+            peer.addIncomingPDU( pdu );
+        }
+
+        pool.release( plainText );
+    }
+
+    /**
+     *  Dispatches deciphered PDU to the remote peer owning the call. 
+     *  The call is looked up by the source call number found in the PDU header 
+     *  and the address the PDU came from.
+     */
+    private void dispatch( byte[] pdu, InetAddress peerAddr, int peerPort )
+    {
+        int sourceCallNumber = -1;
+        
+        if ( pdu.length >= 12 ) {
+            sourceCallNumber = ( ( pdu[0] & 0x7F ) << 8 ) | ( pdu[1] & 0xFF );
+        }
+        
+        RemotePeer peer = findPeer( sourceCallNumber, peerAddr, peerPort );
+        
+        if ( peer != null ) {
+            peer.addIncomingPDU( pdu );
+        }
+    }
+
+    /**
+     *  Finds the remote peer owning the call with the given source call number
+     *  (-1 if unknown) receiving PDUs from the given remote address.
+     */
+    private RemotePeer findPeer( int sourceCallNumber, InetAddress peerAddr, int peerPort )
+    {
+        RemotePeer peer = null;
+        
+        if ( sourceCallNumber >= 0 )
+        {
+            CallContext call = calls.lookup( sourceCallNumber, peerAddr, peerPort );
+            if ( call != null ) {
+                peer = call.getRemotePeer ();
+            }
+        }
+
+        /* Single call channel: the peer may be sending from other address than 
+         * advertised (e.g. behind NAT), so let the peer filter PDUs by call numbers.
+         */
+        if ( peer == null && calls.size () <= 1 ) {
+            peer = this.remotePeer;
+        }
+        
+        return peer;
+    }
+
+    /**
+     *  Finds the remote peer owning the RTP call that sent the datagram with 
+     *  the given first octet and SSRC; null if the datagram is not RTP packet 
+     *  of a call carried by this channel. The call is looked up by the call number 
+     *  found in the low 15 bits of the SSRC and it must use RTP framing with 
+     *  the same remote SSRC.
+     */
+    private RemotePeer findRtpPeer( int firstOctet, int ssrc, 
+            InetAddress peerAddr, int peerPort )
+    {
+        if ( this.rtpCallCount.get () <= 0 || ( firstOctet & 0xC0 ) != 0x80 ) {
+            return null; // no RTP calls or not RTP version 2
+        }
+        
+        RemotePeer peer = findPeer( ssrc & 0x7FFF, peerAddr, peerPort );
+        CallContext call = peer != null ? peer.getCall () : null;
+        RtpSession rtp = call != null ? call.getRtpSession () : null;
+        
+        if ( rtp == null || rtp.getRemoteSsrc () != ssrc ) {
+            return null;
+        }
+        
+        return peer;
+    }
+
     /**
      *  Encrypts and sends PDUs to remote peer
      */
@@ -252,10 +543,15 @@ public class DatagramChannel implements Runnable
             System.arraycopy( pdu.getStore (), 0, datagram, 0, datagram.length );
             
             if ( usedPduCipher != null ) {
-                datagram = usedPduCipher.encrypt( /*randomPreambleLen*/ 8, datagram );
+                datagram = usedPduCipher.encryptPacket( datagram );
             }
 
-            if ( datagram != null ) 
+            if ( datagram != null && this.nioChannel != null ) 
+            {
+                this.nioChannel.send( ByteBuffer.wrap( datagram ), 
+                        new InetSocketAddress( peerAddr, peerPort ) );
+            }
+            else if ( datagram != null ) 
             {
                 // packetDump( datagram, datagram.length, peerAddr, peerPort, false );
                 
@@ -271,6 +567,49 @@ public class DatagramChannel implements Runnable
         }
     }
     
+    /**
+     *  Encrypts and sends voice PDU encoded by the encoder to remote peer. 
+     *  Unlike send( OctetBuffer, ... ), the PDU is enciphered and sent from
+     *  the encoder's preallocated buffers. RTP packets are protected by the call's
+     *  SRTP context (if any) instead of the channel's cipher.
+     */
+    void send( VoicePDUEncoder encoder, InetAddress peerAddr, int peerPort )
+    {
+        try
+        {
+            if ( encoder.isRtp () )
+            {
+                if ( ! encoder.protect () ) {
+                    return;
+                }
+            }
+            else
+            {
+                byte[] frame = encoder.getFrame ();
+                packetDump( frame, encoder.getFrameLength (), peerAddr, peerPort, false );
+                
+                SymmetricCipher cipher = usedPduCipher;
+                if ( cipher != null && ! encoder.encrypt( cipher ) ) {
+                    return;
+                }
+            }
+
+            if ( this.nioChannel != null ) 
+            {
+                this.nioChannel.send( encoder.getBuffer (), 
+                        encoder.getSocketAddress( peerAddr, peerPort ) );
+            }
+            else
+            {
+                this.udpReceiver.send( encoder.getPacket( peerAddr, peerPort ) );
+            }
+        }
+        catch( Exception e )
+        {
+            Log.exception( Log.WARN, e );
+        }
+    }
+    
     /**
      * Dumps information of a frame (in bytes) to standard error.
      *
@@ -1,6 +1,8 @@
 
 package protocol;
 
+import java.nio.ByteBuffer;
+
 import utils.Log;
 import utils.OctetBuffer;
 
@@ -147,6 +149,50 @@ public abstract class ProtocolDataUnit
         return pdu;
     }
 
+    /**
+     *  Dispatches inbound voice PDU directly from the buffer, i.e. without 
+     *  creating instance of the PDU and without copying its payload. 
+     *  The PDU is found between the position and the limit of the buffer.
+     *  The header is parsed in place and the payload is handed down to the call
+     *  as the window of the same buffer.
+     *
+     * @param call Call
+     * @param pdu  The buffer holding the PDU
+     * @return false if the PDU cannot be dispatched in place, and
+     *         it should rather be parsed with create()
+     */
+    static boolean dispatchInPlace( CallContext call, ByteBuffer pdu ) 
+    {
+        int start = pdu.position ();
+
+        if ( pdu.remaining () < 12 || Log.isEnabled( Log.VERB ) ) {
+            return false;
+        }
+        
+        if ( OctetBuffer.toInt( pdu.get( start + 10 ) ) != VOICE ) {
+            return false;
+        }
+        
+        int sourceCallNumber = pdu.getShort( start ) & 0x7FFF; // strip F bit
+        int destinationCallNumber = pdu.getShort( start + 2 ) & 0x7FFF; // strip R bit
+        
+        if ( sourceCallNumber != call.getSourceCallNumber ()
+                || destinationCallNumber != call.getDestinationCallNumber () )
+        {
+            Log.warn( "Ignored PDU with destCall# " + destinationCallNumber
+                    + ", srcCalL# " + sourceCallNumber );
+            return true;
+        }
+        
+        long timestamp = pdu.getInt( start + 4 ) & 0xFFFFFFFFL;
+        int outSeqNo = OctetBuffer.toInt( pdu.get( start + 8 ) );
+        
+        pdu.position( start + 12 );
+        call.onReceivedVoicePDU( outSeqNo, timestamp, pdu );
+        
+        return true;
+    }
+
     /**
      *  Sends a specified payload. Payload represents the data field in
      *  the frame.
@@ -2,22 +2,30 @@
 package protocol;
 
 import java.net.InetAddress;
-import java.util.Vector;
-
+import java.nio.ByteBuffer;
 import utils.Log;
 import utils.OctetBuffer;
+import utils.SpscQueue;
+import utils.WorkerThreads;
 
 /**
  *  Encapsulates the link between the UDP channel and a CallContext.
  *  UDP channel receives packets from all remote peers and dispatches them 
- *  to particular RemotePeer handler. RemotePeer might have multiple calls
- *  in real PBX, howerever, this implementation allows only single CallContext
- *  per RemotePeer.
+ *  to particular RemotePeer handler (looking up the call by its source call number
+ *  and the remote address). RemotePeer might have multiple calls in real PBX, 
+ *  howerever, this implementation allows only single CallContext per RemotePeer;
+ *  multiple calls are carried by multiple RemotePeers sharing the same UDP channel.
  *  
  *  @author Mikica B Kocic
  */
 public class RemotePeer implements Runnable
 {
+    /** The default source call number used to tag the calls */
+    public final static int DEFAULT_SOURCE_CALL_NUMBER = 0x3141;
+    
+    /** The default destination call number used to tag the calls */
+    public final static int DEFAULT_DESTINATION_CALL_NUMBER = 0x5926;
+
     /** The UDP channel */
     private DatagramChannel socket = null;
     
@@ -33,17 +41,28 @@ public class RemotePeer implements Runnable
     /** Remote UDP port where to send PDUs */
     private int remotePort = -1;
 
-    /** The queue of incoming PDUs from remote peer via our UDP channel */
-    protected Vector<byte[]> inboundPDUs = null;
+    /** The capacity of the inbound PDUs queue (about 5 seconds of voice PDUs) */
+    private final static int INBOUND_QUEUE_CAPACITY = 256;
+
+    /** The time the receiver thread waits for PDUs before checking if still running */
+    private final static long RECEIVER_POLL_NANOS = 100000000L; // 100 ms
+
+    /** The queue of incoming PDUs from remote peer via our UDP channel.
+     *  The UDP channel's receiver thread is the only producer and 
+     *  the peer's receiver thread is the only consumer. */
+    protected SpscQueue<byte[]> inboundPDUs = null;
     
     /** The receiving process thread. */
     protected Thread pduReceiverThread = null;
 
+    /** Indicates that PDUs are parsed on the UDP channel's event loop thread */
+    private boolean eventDriven = false;
+
     /** Indicates whether communication with peer is active or not */
     private volatile boolean transmitting = false;
 
     /** The time-stamp of the last received PDU */
-    private long lastReceiverTimestamp = 0;
+    private volatile long lastReceiverTimestamp = 0;
 
     /**
      *  Constructor for the RemotePeer object
@@ -62,11 +81,12 @@ public class RemotePeer implements Runnable
         
         this.call = null;
 
-        this.inboundPDUs = new Vector<byte[]> ();
+        this.inboundPDUs = new SpscQueue<byte[]>( INBOUND_QUEUE_CAPACITY );
         
         synchronized( socket )
         {
             this.socket = socket;
+            this.eventDriven = socket.isEventDriven ();
             this.socket.addNewPeer( this );
             
             if ( this.remoteAddr != null 
@@ -94,22 +114,28 @@ public class RemotePeer implements Runnable
 
         this.lastReceiverTimestamp = System.currentTimeMillis ();
             
-        this.pduReceiverThread = new Thread( this, 
-                "Peer-" + remoteAddr.getHostAddress() + ":" + remotePort );
-        
-        this.pduReceiverThread.setPriority( Thread.MAX_PRIORITY - 1 );
-        
         if ( this.call != null ) {
             this.call.resetClock ();
         }
         
+        /* The UDP channel served by the selector engine delivers PDUs on its 
+         * event loop thread, so there is no need for the receiver thread.
+         */
+        if ( this.eventDriven ) {
+            return;
+        }
+        
+        this.pduReceiverThread = WorkerThreads.newThread( this, 
+                "Peer-" + remoteAddr.getHostAddress() + ":" + remotePort,
+                Thread.MAX_PRIORITY - 1, false );
+        
         this.pduReceiverThread.start ();
     }
 
     /**
      *  Returns elapsed time since last received packet
      */
-    synchronized public long receiverIdleTime ()
+    public long receiverIdleTime ()
     {
         return System.currentTimeMillis () - this.lastReceiverTimestamp;
     }
@@ -120,18 +146,91 @@ public class RemotePeer implements Runnable
      * passed to us via friend. The PDUs are stored in the queue and
      * we deal with them on our own thread to relief the recv thread.
      * In other words, this is the last thing we do on the recv thread!
+     * 
+     * If the UDP channel is served by the selector engine, the PDU is parsed
+     * immediately on the engine's event loop thread.
      *
      * @param data  The PDU octets
      */
-    synchronized public void addIncomingPDU( byte[] data ) 
+    public void addIncomingPDU( byte[] data ) 
     {
+        if ( this.eventDriven )
+        {
+            if ( ! this.transmitting || data == null ) {
+                return;
+            }
+
+            this.lastReceiverTimestamp = System.currentTimeMillis ();
+            
+            try {
+                parsePDU( data );
+            }
+            catch( Throwable e ) {
+                Log.error( "ParsePDU failed; " + e.toString () );
+                Log.where ();
+            }
+            return;
+        }
+        
         if ( ! this.transmitting || data == null ) {
             return;
         }
 
         this.lastReceiverTimestamp = System.currentTimeMillis ();
-        this.inboundPDUs.addElement( data );
-        this.notifyAll ();
+        
+        /* If the queue is full, the PDU is dropped and only counted (logging
+         * each drop would add to the overload)
+         */
+        this.inboundPDUs.offer( data );
+    }
+
+    /**
+     *  Handles an incoming PDU found between the position and the limit of 
+     *  the buffer. If the UDP channel is served by the selector engine, the PDU 
+     *  is handled in place (without copying) on the engine's event loop thread; 
+     *  otherwise, it is copied and queued as any other PDU. In either case 
+     *  the caller may reuse the buffer when the method returns.
+     */
+    void addIncomingPDU( ByteBuffer pdu )
+    {
+        CallContext call = this.call;
+        
+        if ( ! this.eventDriven || call == null )
+        {
+            byte[] data = new byte[ pdu.remaining () ];
+            pdu.get( data );
+            addIncomingPDU( data );
+            return;
+        }
+        
+        if ( ! this.transmitting ) {
+            return;
+        }
+
+        this.lastReceiverTimestamp = System.currentTimeMillis ();
+        
+        try 
+        {
+            int start = pdu.position ();
+            
+            RtpSession rtp = call.getRtpSession ();
+            
+            if ( rtp != null && rtp.isFromRemote( pdu ) ) 
+            {
+                rtp.receive( call, pdu );
+            }
+            else if ( ! ProtocolDataUnit.dispatchInPlace( call, pdu ) )
+            {
+                byte[] data = new byte[ pdu.limit () - start ];
+                pdu.position( start );
+                pdu.get( data );
+                parsePDU( data );
+            }
+        }
+        catch( Throwable e ) {
+            Log.error( "ParsePDU failed; " + e.toString () );
+            Log.where ();
+        }
     }
 
     /**
@@ -145,49 +244,32 @@ public class RemotePeer implements Runnable
         
         while ( this.transmitting )
         {
-            Object[] pdusToSend = new Object[0];
+            byte[] pdu = this.inboundPDUs.poll( RECEIVER_POLL_NANOS );
             
-            synchronized( this ) 
-            {
-                try {
-                    this.wait ();
-                }
-                catch( InterruptedException e ) {
-                    /* ignored */
-                }
-                
-                int pduCount = this.inboundPDUs.size ();
-                
-                // Do some smart stuff here? (limit the take to only 20 PDUs?)
-                // You'd hope that normally we'd get 1 or maybe 2 PDUs here.
-                //
-                if ( pduCount > 0 )
-                {
-                    pdusToSend = new Object[ pduCount ];
-                    for ( int i = 0; i < pduCount; ++i ) {
-                        pdusToSend[i] = this.inboundPDUs.elementAt(i);
-                    }
-                    this.inboundPDUs.removeAllElements ();
-                }
-            }
-            
-            // After releasing the lock, let's deal with the list...
-            // we are now on the thread of the call, any time we waste is
-            // our own.
-            // should really sort these into sequence before we dispose of them.
+            // We are now on the thread of the call, any time we waste is
+            // our own. Deal with all PDUs queued since the last wake-up.
             
-            for( int i = 0; i < pdusToSend.length; ++i )
+            while( pdu != null && this.transmitting )
             {
                 try {
-                    parsePDU( (byte[]) pdusToSend[i] );
+                    parsePDU( pdu );
                 }
                 catch( Throwable e ) {
                     Log.error( "ParsePDU failed; " + e.toString () );
                     Log.where ();
                 }
+                
+                pdu = this.inboundPDUs.poll ();
             }
         }
         
+        this.inboundPDUs.clear ();
+        
+        if ( this.inboundPDUs.getDropCount () > 0 ) {
+            Log.warn( "Inbound PDU queue full; dropped " 
+                    + this.inboundPDUs.getDropCount () + " PDUs" );
+        }
+        
         this.socket = null;
         this.call = null;
     }
@@ -199,18 +281,26 @@ public class RemotePeer implements Runnable
      */
     void parsePDU( byte[] octets ) 
     {
-        if ( this.call != null && octets != null ) 
+        CallContext rtpCall = this.call;
+        RtpSession rtp = rtpCall != null ? rtpCall.getRtpSession () : null;
+        
+        if ( rtp != null && octets != null && rtp.isFromRemote( octets, octets.length ) ) 
+        {
+            /* RTP packet (see DatagramChannel.findRtpPeer)
+             */
+            rtp.receive( rtpCall, octets, octets.length );
+        }
+        else if ( this.call != null && octets != null ) 
         {
             /* Parse PDU
              */
             ProtocolDataUnit pdu = ProtocolDataUnit.create( this.call, octets );
 
-            /* Dispatch PDU if it is tagged with valid call numbers.
-             * Note: Dispatching is hard-coded here, but this place might be
-             * a core for real PBX call-id handling.
+            /* Dispatch PDU if it is tagged with call numbers of our call.
              */
-            if ( pdu != null && pdu.destinationCallNumber == 0x5926 
-                             && pdu.sourceCallNumber == 0x3141 )
+            if ( pdu != null 
+                    && pdu.destinationCallNumber == this.call.getDestinationCallNumber ()
+                    && pdu.sourceCallNumber == this.call.getSourceCallNumber () )
             {
                 pdu.onArrivedPDU ();
             }
@@ -223,18 +313,51 @@ public class RemotePeer implements Runnable
     }
 
     /**
-     *  Adds the new (not owned) call to the peer.
+     *  Adds the new (not owned) call to the peer tagged with the default call numbers.
      */
     public void addNewCall( CallContext call )
+    {
+        addNewCall( call, DEFAULT_SOURCE_CALL_NUMBER, DEFAULT_DESTINATION_CALL_NUMBER );
+    }
+
+    /**
+     *  Adds the new (not owned) call to the peer and tags it with the given 
+     *  call numbers. Both parties tag the call with the same call numbers, so 
+     *  the call is registered in the UDP channel's call table to receive PDUs with 
+     *  our source call number coming from the peer's address.
+     */
+    public void addNewCall( CallContext call, int sourceCallNumber, 
+            int destinationCallNumber )
     {
         this.call = call;
         
-        /* Tag the call with call numbers. 
-         * Note: Tagging is hard-coded here, but this place might be a core 
-         * for real PBX call-id handling.
-         */
-        this.call.setSourceCallNumber( 0x3141 );
-        this.call.setDestinationCallNumber( 0x5926 );
+        this.call.setSourceCallNumber( sourceCallNumber );
+        this.call.setDestinationCallNumber( destinationCallNumber );
+        
+        DatagramChannel channel = this.socket;
+        if ( channel != null && this.remoteAddr != null ) {
+            channel.registerCall( call, call.getSourceCallNumber (),
+                    this.remoteAddr, this.remotePort );
+        }
+    }
+
+    /**
+     *  Returns the call owned by the peer; null if there is no call
+     */
+    CallContext getCall ()
+    {
+        return this.call;
+    }
+
+    /**
+     *  Notifies the UDP channel that the call switched to RTP framing
+     */
+    void onRtpFraming( CallContext call )
+    {
+        DatagramChannel channel = this.socket;
+        if ( channel != null ) {
+            channel.onRtpFraming( call );
+        }
     }
 
     /**
@@ -244,11 +367,41 @@ public class RemotePeer implements Runnable
     {
         if ( this.call != null )
         {
+            DatagramChannel channel = this.socket;
+            if ( channel != null ) {
+                channel.unregisterCall( this.call );
+            }
+            
             this.call.cleanUp ();
             this.transmitting = false;
+            this.inboundPDUs.wakeup ();
         }
     }
 
+    /**
+     *  Returns current number of PDUs waiting in the inbound queue
+     */
+    public int getInboundQueueDepth ()
+    {
+        return this.inboundPDUs.size ();
+    }
+
+    /**
+     *  Returns the maximum observed number of PDUs waiting in the inbound queue
+     */
+    public int getInboundQueueMaxDepth ()
+    {
+        return this.inboundPDUs.getMaxDepth ();
+    }
+
+    /**
+     *  Returns number of inbound PDUs dropped because the queue was full
+     */
+    public long getInboundDropCount ()
+    {
+        return this.inboundPDUs.getDropCount ();
+    }
+
     /**
      *  Sends packet to remote peer over datagram channel
      */
@@ -259,4 +412,15 @@ public class RemotePeer implements Runnable
             this.socket.send( pdu, this.remoteAddr, this.remotePort );
         }
     }
+
+    /**
+     *  Sends voice PDU encoded by the encoder to the remote peer.
+     */
+    void send( VoicePDUEncoder encoder )
+    {
+        if ( this.transmitting ) 
+        {
+            this.socket.send( encoder, this.remoteAddr, this.remotePort );
+        }
+    }
 }
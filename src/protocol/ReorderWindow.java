@@ -0,0 +1,531 @@
+
+package protocol;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import audio.ComfortNoise;
+
+/**
+ *  Reordering window for inbound voice PDUs of a call.
+ *
+ *  Voice PDUs are keyed by their outbound sequence number with wraparound: 8-bit
+ *  for IAX-style PDUs, 16-bit for RTP packets.
+ *  A PDU carrying the expected sequence number is played immediately (the payload is
+ *  not copied); a PDU that arrives ahead of the expected one is copied into the window
+ *  and held until the missing PDUs arrive or until it has been held for the maximum
+ *  hold time, when the missing PDUs are declared lost. PDUs that arrive after their
+ *  sequence number has been passed are dropped and counted as late (if they were
+ *  declared lost) or duplicate (if they were already played). PDUs behind the window
+ *  that are newer than the last played one, or several of them in a row, mean that
+ *  the stream has moved on by more than half of the sequence number range (e.g. after
+ *  an outage); the window is then resynchronized to the arrived PDU.
+ *
+ *  PDUs are offered by the thread delivering inbound PDUs of the call; expired PDUs
+ *  are released when the next PDU arrives or by expire(), which the call runs
+ *  periodically on the media scheduler, so the window is guarded by its monitor.
+ */
+public class ReorderWindow
+{
+    /** The default number of PDUs that can be held (160 ms of 20 ms frames) */
+    public final static int DEFAULT_DEPTH = 8;
+
+    /** The default maximum time a PDU may wait for missing PDUs */
+    public final static long DEFAULT_MAX_HOLD_MILLIS = 60;
+
+    /** Sequence number history: not seen yet */
+    private final static byte NONE = 0;
+
+    /** Sequence number history: played */
+    private final static byte RELEASED = 1;
+
+    /** Sequence number history: declared lost */
+    private final static byte SKIPPED = 2;
+
+    /** Number of PDUs behind the window in a row that resynchronize the window */
+    private final static int RESYNC_COUNT = 8;
+
+    /** A larger time-stamp step between consecutive PDUs (two 20 ms frames) means
+     *  that the sender suppressed frames, i.e. a talkspurt starts */
+    private final static long TALKSPURT_GAP_MILLIS = 40;
+
+    /** The call owning the window */
+    private final CallContext call;
+
+    /** Mask of the sequence number (0xFF or 0xFFFF) */
+    private final int seqMask;
+
+    /** Sequence numbers this far ahead of the expected one are behind the window */
+    private final int halfRange;
+
+    /** The number of PDUs that can be held (power of two) */
+    private final int depth;
+
+    /** The maximum time a PDU may wait for missing PDUs */
+    private volatile long maxHoldNanos;
+
+    /** Sequence numbers of held PDUs; -1 if slot is empty */
+    private final int[] heldSeqNo;
+
+    /** Time-stamps of held PDUs */
+    private final long[] heldTimestamp;
+
+    /** Arrival times of held PDUs (System.nanoTime) */
+    private final long[] heldArrival;
+
+    /** Audio samples of held PDUs (allocated on first use) */
+    private final byte[][] heldSample;
+
+    /** Payload lengths of held PDUs */
+    private final int[] heldLength;
+
+    /** Number of held PDUs (read by expire() without the monitor) */
+    private volatile int heldCount = 0;
+
+    /** What happened with the passed sequence numbers up to half of the range behind
+     *  (indexed by the sequence number; 64 kB for 16-bit sequence numbers) */
+    private final byte[] history;
+
+    /** Indicates that the first PDU has been received */
+    private boolean started = false;
+
+    /** The next expected sequence number */
+    private int expected = 0;
+
+    /** The time-stamp of the last played PDU */
+    private long lastTimestamp = 0;
+
+    /** Number of PDUs behind the window that arrived in a row */
+    private int behindCount = 0;
+
+    /** Number of PDUs that arrived after their sequence number was declared lost */
+    private volatile long lateCount = 0;
+
+    /** Number of PDUs that were already received */
+    private volatile long duplicateCount = 0;
+
+    /** Number of PDUs that arrived out of order and were played in order */
+    private volatile long reorderedCount = 0;
+
+    /** Number of sequence numbers declared lost */
+    private volatile long lostCount = 0;
+
+    /** Number of times the window was resynchronized to the arrived PDU */
+    private volatile long resyncCount = 0;
+
+    /**
+     *  Creates window of 8-bit sequence numbers holding up to given number of PDUs
+     *  (rounded up to the power of two, at most 128).
+     */
+    ReorderWindow( CallContext call, int depth, long maxHoldMillis )
+    {
+        this( call, depth, maxHoldMillis, 8 );
+    }
+
+    /**
+     *  Creates window of sequence numbers with the given number of bits (8 or 16)
+     *  holding up to given number of PDUs (rounded up to the power of two, at most 128).
+     */
+    ReorderWindow( CallContext call, int depth, long maxHoldMillis, int sequenceBits )
+    {
+        this.seqMask = sequenceBits >= 16 ? 0xFFFF : 0xFF;
+        this.halfRange = ( this.seqMask + 1 ) / 2;
+        this.history = new byte[ this.seqMask + 1 ];
+
+        int d = 1;
+        while ( d < depth && d < 128 ) {
+            d <<= 1;
+        }
+
+        this.call = call;
+        this.depth = d;
+        this.maxHoldNanos = maxHoldMillis * 1000000L;
+
+        this.heldSeqNo = new int[ d ];
+        this.heldTimestamp = new long[ d ];
+        this.heldArrival = new long[ d ];
+        this.heldSample = new byte[ d ][];
+        this.heldLength = new int[ d ];
+
+        for ( int i = 0; i < d; ++i ) {
+            this.heldSeqNo[i] = -1;
+        }
+    }
+
+    /**
+     *  Accepts inbound voice PDU with the audio sample found between the position
+     *  and the limit of the buffer.
+     */
+    synchronized void offer( int seqNo, long timestamp, ByteBuffer audioSample )
+    {
+        long now = System.nanoTime ();
+        expireHeld( now );
+
+        seqNo &= this.seqMask;
+
+        if ( admit( seqNo, timestamp ) )
+        {
+            this.lastTimestamp = timestamp;
+            this.call.playVoiceSample( timestamp, audioSample );
+            releaseInOrder ();
+        }
+        else if ( isHoldable( seqNo ) )
+        {
+            byte[] sample = slotSample( seqNo );
+            int len = Math.min( sample.length, audioSample.remaining () );
+            audioSample.get( sample, 0, len );
+            hold( seqNo, timestamp, len, now );
+        }
+    }
+
+    /**
+     *  Accepts inbound voice PDU with the given audio sample.
+     */
+    synchronized void offer( int seqNo, long timestamp, byte[] audioSample )
+    {
+        long now = System.nanoTime ();
+        expireHeld( now );
+
+        seqNo &= this.seqMask;
+
+        if ( admit( seqNo, timestamp ) )
+        {
+            this.lastTimestamp = timestamp;
+            this.call.playVoiceSample( timestamp, audioSample );
+            releaseInOrder ();
+        }
+        else if ( isHoldable( seqNo ) )
+        {
+            byte[] sample = slotSample( seqNo );
+            int len = Math.min( sample.length, audioSample.length );
+            System.arraycopy( audioSample, 0, sample, 0, len );
+            hold( seqNo, timestamp, len, now );
+        }
+    }
+
+    /**
+     *  Releases held PDUs whose maximum hold time has passed, even if no PDU
+     *  arrives (e.g. during a pause of the remote peer's transmission).
+     *  Called periodically by the call.
+     */
+    void expire ()
+    {
+        if ( this.heldCount == 0 ) {
+            return;
+        }
+
+        synchronized( this ) {
+            expireHeld( System.nanoTime () );
+        }
+    }
+
+    /**
+     *  Classifies the arrived sequence number.
+     *
+     *  @return true if the PDU should be played immediately
+     */
+    private boolean admit( int seqNo, long timestamp )
+    {
+        if ( ! this.started ) {
+            this.started = true;
+            this.expected = seqNo;
+            this.lastTimestamp = timestamp;
+        }
+
+        int delta = ( seqNo - this.expected ) & this.seqMask;
+
+        if ( delta >= this.halfRange ) // behind the window
+        {
+            /* Late and duplicate PDUs are older than the last played one
+             */
+            if ( ++this.behindCount < RESYNC_COUNT && timestamp - this.lastTimestamp <= 0 )
+            {
+                if ( this.history[ seqNo ] == RELEASED ) {
+                    ++this.duplicateCount;
+                } else {
+                    ++this.lateCount;
+                }
+                return false;
+            }
+
+            resync( seqNo );
+            delta = 0;
+        }
+
+        this.behindCount = 0;
+
+        if ( delta >= this.depth )
+        {
+            /* Too far ahead: give up waiting for the missing PDUs, so the
+             * arrived PDU fits into the window.
+             */
+            skipTo( ( seqNo - this.depth + 1 ) & this.seqMask );
+            delta = ( seqNo - this.expected ) & this.seqMask;
+        }
+
+        if ( delta == 0 ) {
+            checkTalkspurt( seqNo, timestamp );
+            pass( seqNo, RELEASED );
+            return true;
+        }
+
+        return false;
+    }
+
+    /**
+     *  Plays the held PDUs and restarts the window at the given sequence number,
+     *  forgetting the history of the passed sequence numbers.
+     */
+    private void resync( int seqNo )
+    {
+        int base = this.expected;
+        for ( int k = 0; k < this.depth && this.heldCount > 0; ++k )
+        {
+            int i = ( base + k ) & ( this.depth - 1 );
+            if ( this.heldSeqNo[i] == ( ( base + k ) & this.seqMask ) ) {
+                release( i );
+            }
+        }
+
+        Arrays.fill( this.history, NONE );
+
+        this.expected = seqNo;
+        this.behindCount = 0;
+        ++this.resyncCount;
+    }
+
+    /**
+     *  Returns if the PDU (that is ahead of the expected one) may be held,
+     *  counting duplicates of already held PDUs.
+     */
+    private boolean isHoldable( int seqNo )
+    {
+        int delta = ( seqNo - this.expected ) & this.seqMask;
+        if ( delta == 0 || delta >= this.depth ) {
+            return false;
+        }
+
+        if ( this.heldSeqNo[ seqNo & ( this.depth - 1 ) ] == seqNo ) {
+            ++this.duplicateCount;
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     *  Returns the sample buffer of the slot for the sequence number
+     */
+    private byte[] slotSample( int seqNo )
+    {
+        int i = seqNo & ( this.depth - 1 );
+        int size = this.call.getAudioSampleSize ();
+
+        if ( this.heldSample[i] == null || this.heldSample[i].length != size ) {
+            this.heldSample[i] = new byte[ size ];
+        }
+
+        return this.heldSample[i];
+    }
+
+    /**
+     *  Stores the PDU into the slot; pads the sample with silence of the CODEC
+     */
+    private void hold( int seqNo, long timestamp, int len, long now )
+    {
+        int i = seqNo & ( this.depth - 1 );
+
+        byte[] sample = this.heldSample[i];
+        Arrays.fill( sample, len, sample.length, this.call.getSilenceOctet () );
+
+        this.heldSeqNo[i] = seqNo;
+        this.heldLength[i] = len;
+        this.heldTimestamp[i] = timestamp;
+        this.heldArrival[i] = now;
+        ++this.heldCount;
+    }
+
+    /**
+     *  Marks the talkspurt boundary if the PDU about to be played follows the last
+     *  played one without a gap in sequence numbers but with a gap in time-stamps
+     */
+    private void checkTalkspurt( int seqNo, long timestamp )
+    {
+        if ( this.history[ ( seqNo - 1 ) & this.seqMask ] == RELEASED
+                && timestamp - this.lastTimestamp > TALKSPURT_GAP_MILLIS ) {
+            this.call.markTalkspurt ();
+        }
+    }
+
+    /**
+     *  Marks the expected sequence number as passed and advances the window
+     */
+    private void pass( int seqNo, byte what )
+    {
+        this.history[ seqNo ] = what;
+        this.history[ ( seqNo + this.halfRange ) & this.seqMask ] = NONE;
+
+        this.expected = ( seqNo + 1 ) & this.seqMask;
+        this.call.setInSeqNo( this.expected );
+    }
+
+    /**
+     *  Plays held PDUs that follow the expected sequence number without gaps
+     */
+    private void releaseInOrder ()
+    {
+        while( this.heldCount > 0 )
+        {
+            int i = this.expected & ( this.depth - 1 );
+            if ( this.heldSeqNo[i] != this.expected ) {
+                return;
+            }
+
+            release( i );
+        }
+    }
+
+    /**
+     *  Plays held PDU from the slot
+     */
+    private void release( int i )
+    {
+        int seqNo = this.heldSeqNo[i];
+
+        this.heldSeqNo[i] = -1;
+        --this.heldCount;
+        ++this.reorderedCount;
+
+        checkTalkspurt( seqNo, this.heldTimestamp[i] );
+        pass( seqNo, RELEASED );
+        this.lastTimestamp = this.heldTimestamp[i];
+
+        if ( this.heldLength[i] == ComfortNoise.SID_LENGTH ) {
+            this.call.playComfortNoise( this.heldTimestamp[i], this.heldSample[i][0] );
+        } else {
+            this.call.playVoiceSample( this.heldTimestamp[i], this.heldSample[i] );
+        }
+    }
+
+    /**
+     *  Advances the window up to (not including) the given sequence number,
+     *  playing held PDUs and declaring missing PDUs lost.
+     */
+    private void skipTo( int seqNo )
+    {
+        while( this.expected != seqNo )
+        {
+            int i = this.expected & ( this.depth - 1 );
+
+            if ( this.heldSeqNo[i] == this.expected ) {
+                release( i );
+            } else {
+                ++this.lostCount;
+                pass( this.expected, SKIPPED );
+            }
+        }
+    }
+
+    /**
+     *  Declares lost the missing PDUs that held PDUs have been waiting for too long.
+     */
+    private void expireHeld( long now )
+    {
+        while( this.heldCount > 0 )
+        {
+            /* Find the first held PDU and the oldest arrival time
+             */
+            int first = -1;
+            int firstDelta = this.seqMask + 1;
+            long oldest = now;
+
+            for ( int i = 0; i < this.depth; ++i )
+            {
+                if ( this.heldSeqNo[i] < 0 ) {
+                    continue;
+                }
+
+                int delta = ( this.heldSeqNo[i] - this.expected ) & this.seqMask;
+                if ( delta < firstDelta ) {
+                    firstDelta = delta;
+                    first = this.heldSeqNo[i];
+                }
+                if ( this.heldArrival[i] - oldest < 0 ) {
+                    oldest = this.heldArrival[i];
+                }
+            }
+
+            if ( now - oldest <= this.maxHoldNanos ) {
+                return;
+            }
+
+            skipTo( first );
+            releaseInOrder ();
+        }
+    }
+
+    /**
+     *  Sets the maximum time a PDU may wait for missing PDUs
+     */
+    public void setMaxHoldMillis( long millis )
+    {
+        this.maxHoldNanos = Math.max( 0, millis ) * 1000000L;
+    }
+
+    /**
+     *  Returns the maximum time a PDU may wait for missing PDUs
+     */
+    public long getMaxHoldMillis ()
+    {
+        return this.maxHoldNanos / 1000000L;
+    }
+
+    /**
+     *  Returns the number of PDUs that can be held
+     */
+    public int getDepth ()
+    {
+        return this.depth;
+    }
+
+    /**
+     *  Returns number of PDUs that arrived after they were declared lost
+     */
+    public long getLateCount ()
+    {
+        return this.lateCount;
+    }
+
+    /**
+     *  Returns number of duplicate PDUs
+     */
+    public long getDuplicateCount ()
+    {
+        return this.duplicateCount;
+    }
+
+    /**
+     *  Returns number of PDUs that arrived out of order and were played in order
+     */
+    public long getReorderedCount ()
+    {
+        return this.reorderedCount;
+    }
+
+    /**
+     *  Returns number of PDUs declared lost
+     */
+    public long getLostCount ()
+    {
+        return this.lostCount;
+    }
+
+    /**
+     *  Returns number of times the window was resynchronized after the stream
+     *  moved on beyond the window
+     */
+    public long getResyncCount ()
+    {
+        return this.resyncCount;
+    }
+}
@@ -0,0 +1,363 @@
+
+package protocol;
+
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
+
+import crypto.SrtpContext;
+import crypto.SymmetricCipher;
+
+/**
+ *  RTP framing of voice PDUs of a call (RFC 3550), used instead of the IAX-style
+ *  PDU header when both peers negotiate it (see PBXClient options).
+ *
+ *  Each voice PDU is sent as RTP packet: the 12-octet RTP header (version 2,
+ *  the payload type of the CODEC, 16-bit sequence number, 32-bit time-stamp in
+ *  units of the 8 kHz sampling clock and the SSRC of the sender) followed by
+ *  the audio sample. If the call is secured, packets are protected as SRTP
+ *  (see SrtpContext) with a context derived from the call's secret key for each
+ *  direction, instead of being enciphered by the UDP channel's packet cipher.
+ *
+ *  The low 15 bits of the SSRC are the call number of the call, so the UDP channel
+ *  finds the call of an RTP packet in the same call table as for IAX-style PDUs.
+ *  The initial sequence number and time-stamp are random.
+ *
+ *  The sending half is used only by the call's VoicePDUEncoder, the receiving half
+ *  only by the thread delivering inbound PDUs of the call.
+ */
+public class RtpSession
+{
+    /** Length of the RTP header without CSRCs */
+    public final static int HEADER_LENGTH = 12;
+
+    /** Payload type: G.711 mu-law */
+    public final static int PT_PCMU = 0;
+
+    /** Payload type: IMA ADPCM (DVI4) at 8 kHz */
+    public final static int PT_DVI4 = 5;
+
+    /** Payload type: G.711 A-law */
+    public final static int PT_PCMA = 8;
+
+    /** Payload type: comfort noise (RFC 3389) */
+    public final static int PT_CN = 13;
+
+    /** Payload type: 16-bit linear PCM at 8 kHz (dynamic payload type) */
+    public final static int PT_L16 = 96;
+
+    /** Source of SSRCs, initial sequence numbers and time-stamps */
+    private final static SecureRandom random = new SecureRandom ();
+
+    /** Sampling clock ticks per millisecond */
+    private final static int TICKS_PER_MILLI = CallContext.SAMPLE_RATE / 1000;
+
+    /** SSRC of the local end (sender) */
+    private final int localSsrc;
+
+    /** SSRC of the remote end */
+    private final int remoteSsrc;
+
+    /** SRTP context protecting sent packets; null if not secured */
+    private final SrtpContext sender;
+
+    /** SRTP context verifying received packets; null if not secured */
+    private final SrtpContext receiver;
+
+    /** The next outbound sequence number */
+    private int outSeqNo;
+
+    /** RTP time-stamp corresponding to the call time-stamp 0 */
+    private final int timestampBase;
+
+    /** Indicates that the first packet (carrying the marker bit) has been sent */
+    private boolean sentFirst = false;
+
+    /** Indicates that the first packet has been received */
+    private boolean receivedFirst = false;
+
+    /** The highest received RTP time-stamp */
+    private int lastTimestamp = 0;
+
+    /** The highest received time-stamp extended and relative to the first packet */
+    private long lastExtTimestamp = 0;
+
+    /** Reusable copy of the packet received in a byte buffer */
+    private byte[] inbound = new byte[ 0 ];
+
+    /** Wraps inbound */
+    private ByteBuffer inboundView = ByteBuffer.wrap( inbound );
+
+    /** Number of dropped received packets (malformed, foreign SSRC, failed SRTP) */
+    private volatile long droppedCount = 0;
+
+    /**
+     *  Creates RTP session with the given local and remote SSRC. If the cipher
+     *  is not null, packets are protected by SRTP contexts derived from its key.
+     *
+     *  @throws IllegalArgumentException if SRTP contexts could not be created
+     */
+    RtpSession( int localSsrc, int remoteSsrc, SymmetricCipher cipher )
+    {
+        if ( localSsrc == remoteSsrc ) {
+            throw new IllegalArgumentException( "Local and remote SSRC must differ" );
+        }
+
+        this.localSsrc = localSsrc;
+        this.remoteSsrc = remoteSsrc;
+
+        if ( cipher != null && cipher.isActive () )
+        {
+            this.sender = cipher.newSrtpContext( localSsrc );
+            this.receiver = cipher.newSrtpContext( remoteSsrc );
+
+            if ( this.sender == null || this.receiver == null ) {
+                throw new IllegalArgumentException( "Failed to create SRTP context" );
+            }
+        }
+        else
+        {
+            this.sender = null;
+            this.receiver = null;
+        }
+
+        this.outSeqNo = random.nextInt( 0x10000 );
+        this.timestampBase = random.nextInt ();
+    }
+
+    /**
+     *  Returns new random SSRC of the call with the given call number
+     *  (the low 15 bits of the SSRC are the call number).
+     */
+    public static int newSsrc( int callNumber )
+    {
+        return ( random.nextInt () & ~0x7FFF ) | ( callNumber & 0x7FFF );
+    }
+
+    /**
+     *  Returns RTP payload type for the VoicePDU subclass (CODEC)
+     */
+    public static int getPayloadType( int voicePduSubclass )
+    {
+        switch( voicePduSubclass )
+        {
+            case VoicePDU.ULAW: return PT_PCMU;
+            case VoicePDU.ALAW: return PT_PCMA;
+            case VoicePDU.DVI4: return PT_DVI4;
+            default:            return PT_L16;
+        }
+    }
+
+    /**
+     *  Returns SSRC of the local end
+     */
+    public int getLocalSsrc ()
+    {
+        return this.localSsrc;
+    }
+
+    /**
+     *  Returns SSRC of the remote end
+     */
+    public int getRemoteSsrc ()
+    {
+        return this.remoteSsrc;
+    }
+
+    /**
+     *  Returns if packets are protected by SRTP
+     */
+    public boolean isSecure ()
+    {
+        return this.sender != null;
+    }
+
+    /**
+     *  Returns number of dropped received packets
+     */
+    public long getDroppedCount ()
+    {
+        return this.droppedCount;
+    }
+
+    /**
+     *  Returns number of received packets that failed SRTP authentication
+     */
+    public long getAuthFailureCount ()
+    {
+        return this.receiver != null ? this.receiver.getAuthFailureCount () : 0;
+    }
+
+    /**
+     *  Writes RTP header of the next packet with the given payload type and 
+     *  time-stamp (the call time-stamp in milliseconds) into the frame. The marker
+     *  bit is set on the first packet and on the first packet of each talkspurt.
+     *
+     *  @param talkspurt  true if the packet starts a talkspurt after silence
+     *  @return the sequence number of the packet
+     */
+    int writeHeader( byte[] f, int payloadType, int timestamp, boolean talkspurt )
+    {
+        int seqNo = this.outSeqNo;
+        this.outSeqNo = ( seqNo + 1 ) & 0xFFFF;
+
+        int rtpTimestamp = this.timestampBase + timestamp * TICKS_PER_MILLI;
+        int marker = this.sentFirst && ! talkspurt ? 0 : 0x80;
+        this.sentFirst = true;
+
+        f[0]  = (byte) 0x80; // V=2, P=0, X=0, CC=0
+        f[1]  = (byte) ( marker | payloadType );
+        f[2]  = (byte) ( seqNo >>> 8 );
+        f[3]  = (byte) seqNo;
+        f[4]  = (byte) ( rtpTimestamp >>> 24 );
+        f[5]  = (byte) ( rtpTimestamp >>> 16 );
+        f[6]  = (byte) ( rtpTimestamp >>> 8 );
+        f[7]  = (byte) rtpTimestamp;
+        f[8]  = (byte) ( this.localSsrc >>> 24 );
+        f[9]  = (byte) ( this.localSsrc >>> 16 );
+        f[10] = (byte) ( this.localSsrc >>> 8 );
+        f[11] = (byte) this.localSsrc;
+
+        return seqNo;
+    }
+
+    /**
+     *  Protects the RTP packet as SRTP into the output buffer (which must hold
+     *  at least length + SrtpContext.TAG_LENGTH octets).
+     *
+     *  @return length of the SRTP packet; -1 in case of error
+     */
+    int protect( byte[] packet, int length, byte[] out )
+    {
+        if ( this.sender == null ) {
+            return -1;
+        }
+
+        return this.sender.protect( packet, length, out );
+    }
+
+    /**
+     *  Returns if the first length octets of the datagram look like RTP packet
+     *  sent by the remote end (version 2 and the remote SSRC).
+     */
+    boolean isFromRemote( byte[] packet, int length )
+    {
+        if ( length < HEADER_LENGTH || ( packet[0] & 0xC0 ) != 0x80 ) {
+            return false;
+        }
+
+        int ssrc = ( ( packet[8] & 0xFF ) << 24 ) | ( ( packet[9] & 0xFF ) << 16 )
+                 | ( ( packet[10] & 0xFF ) << 8 ) | ( packet[11] & 0xFF );
+
+        return ssrc == this.remoteSsrc;
+    }
+
+    /**
+     *  Returns if the datagram found between the position and the limit
+     *  of the buffer looks like RTP packet sent by the remote end.
+     */
+    boolean isFromRemote( ByteBuffer packet )
+    {
+        int start = packet.position ();
+
+        return packet.remaining () >= HEADER_LENGTH 
+            && ( packet.get( start ) & 0xC0 ) == 0x80
+            && packet.getInt( start + 8 ) == this.remoteSsrc;
+    }
+
+    /**
+     *  Handles received (S)RTP packet found between the position and the limit
+     *  of the buffer. The packet is copied, so the caller may reuse the buffer
+     *  when the method returns.
+     */
+    void receive( CallContext call, ByteBuffer packet )
+    {
+        int length = packet.remaining ();
+
+        if ( length > this.inbound.length ) {
+            this.inbound = new byte[ length ];
+            this.inboundView = ByteBuffer.wrap( this.inbound );
+        }
+
+        packet.get( this.inbound, 0, length );
+
+        receive( call, this.inbound, length, this.inboundView );
+    }
+
+    /**
+     *  Handles received (S)RTP packet (the packet is deciphered in place).
+     */
+    void receive( CallContext call, byte[] packet, int length )
+    {
+        receive( call, packet, length, null );
+    }
+
+    /**
+     *  Verifies and deciphers the packet in place and hands its payload
+     *  to the call with the packet's sequence number and time-stamp. The time-stamp
+     *  is converted to milliseconds since the first received packet. The marker bit
+     *  is passed to the call as the start of a talkspurt.
+     *
+     *  @param view  the buffer wrapping the packet; null to wrap it
+     */
+    private void receive( CallContext call, byte[] packet, int length, ByteBuffer view )
+    {
+        if ( ! isFromRemote( packet, length ) ) {
+            ++this.droppedCount;
+            return;
+        }
+
+        if ( this.receiver != null )
+        {
+            length = this.receiver.unprotect( packet, length );
+            if ( length < 0 ) {
+                ++this.droppedCount;
+                return;
+            }
+        }
+
+        int headerLen = SrtpContext.getHeaderLength( packet, length );
+
+        if ( ( packet[0] & 0x20 ) != 0 && headerLen >= 0 ) { // strip padding
+            length -= packet[ length - 1 ] & 0xFF;
+        }
+
+        if ( headerLen < 0 || length < headerLen ) {
+            ++this.droppedCount;
+            return;
+        }
+
+        int seqNo = ( ( packet[2] & 0xFF ) << 8 ) | ( packet[3] & 0xFF );
+
+        int rtpTimestamp = ( ( packet[4] & 0xFF ) << 24 ) | ( ( packet[5] & 0xFF ) << 16 )
+                         | ( ( packet[6] & 0xFF ) << 8 ) | ( packet[7] & 0xFF );
+
+        if ( ! this.receivedFirst ) {
+            this.receivedFirst = true;
+            this.lastTimestamp = rtpTimestamp;
+        }
+
+        int delta = rtpTimestamp - this.lastTimestamp; // with wraparound
+        long extTimestamp = this.lastExtTimestamp + delta;
+
+        if ( delta > 0 ) {
+            this.lastTimestamp = rtpTimestamp;
+            this.lastExtTimestamp = extTimestamp;
+        }
+
+        if ( view == null ) {
+            view = ByteBuffer.wrap( packet );
+        }
+
+        view.clear ();
+        view.position( headerLen );
+        view.limit( length );
+
+        /* The marker bit starts a talkspurt
+         */
+        if ( ( packet[1] & 0x80 ) != 0 ) {
+            call.markTalkspurt ();
+        }
+
+        call.onReceivedVoicePDU( seqNo, extTimestamp / TICKS_PER_MILLI, view );
+    }
+}
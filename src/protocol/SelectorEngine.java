@@ -0,0 +1,305 @@
+
+package protocol;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import utils.ByteBufferPool;
+import utils.Histogram;
+import utils.Log;
+import utils.WorkerThreads;
+
+/**
+ *  Receive engine built on non-blocking <code>java.nio</code> datagram channels and
+ *  selectors. A small fixed pool of event loop threads serves any number of
+ *  bound UDP ports; each port is assigned to one event loop, so all PDUs of a port
+ *  (and therefore of a remote peer) are handled sequentially by the same thread.
+ *
+ *  The engine is plugged into the DatagramChannel by its constructor;
+ *  the channel keeps the same send() and RemotePeer.addIncomingPDU() contract,
+ *  but neither the channel nor its remote peers start threads of their own.
+ *
+ *  Datagrams are received into direct buffers taken from the event loop's pool.
+ *  They are deciphered and parsed in place and the voice payload is handed down 
+ *  to the call as a window of the pooled buffer; buffers are returned to the pool
+ *  as soon as the payload is copied into the playout (de-jitter) buffer.
+ */
+public class SelectorEngine
+{
+    /** The default size for the inbound UDP buffer */
+    private final static int INBOUND_UDP_BUFFER_SIZE = 4096;
+
+    /** The number of preallocated inbound buffers per event loop */
+    private final static int INBOUND_POOL_SIZE = 8;
+
+    /** The maximum number of datagrams drained from a channel per wake-up */
+    private final static int MAX_RECEIVE_BATCH = 256;
+
+    /** The event loops */
+    private final EventLoop[] loops;
+
+    /** Round-robin counter used to assign channels to event loops */
+    private final AtomicInteger nextLoop = new AtomicInteger ();
+
+    /** Indicates that event loops should be running */
+    private volatile boolean running;
+
+    /** Number of datagrams drained per wake-up (of all channels) */
+    private final Histogram receiveBatchSizes = new Histogram( "UDP receive batch" );
+
+    /**
+     *  Creates the engine with the default number of event loop threads
+     *  (number of available processors, but at most 4).
+     */
+    public SelectorEngine () throws IOException
+    {
+        this( Math.min( 4, Runtime.getRuntime().availableProcessors () ) );
+    }
+
+    /**
+     *  Creates the engine with the given number of event loop threads.
+     */
+    public SelectorEngine( int threadCount ) throws IOException
+    {
+        if ( threadCount < 1 ) {
+            threadCount = 1;
+        }
+
+        this.running = true;
+        this.loops = new EventLoop[ threadCount ];
+
+        for ( int i = 0; i < threadCount; ++i ) {
+            this.loops[i] = new EventLoop( i );
+        }
+
+        for ( int i = 0; i < threadCount; ++i ) {
+            this.loops[i].start ();
+        }
+
+        Log.trace( "Started selector engine with " + threadCount + " event loop(s)" );
+    }
+
+    /**
+     *  Returns the number of event loop threads.
+     */
+    public int getThreadCount ()
+    {
+        return this.loops.length;
+    }
+
+    /**
+     *  Returns the histogram of the number of datagrams drained per wake-up
+     *  of the event loops.
+     */
+    public Histogram getReceiveBatchHistogram ()
+    {
+        return this.receiveBatchSizes;
+    }
+
+    /**
+     *  Registers non-blocking datagram channel owned by the DatagramChannel.
+     *  The channel will be served by one of the event loops.
+     */
+    void register( DatagramChannel owner, java.nio.channels.DatagramChannel channel )
+    {
+        int n = ( this.nextLoop.getAndIncrement () & 0x7FFFFFFF ) % this.loops.length;
+        this.loops[n].register( owner, channel );
+    }
+
+    /**
+     *  Unregisters and closes the datagram channel.
+     */
+    void unregister( java.nio.channels.DatagramChannel channel )
+    {
+        try {
+            channel.close (); // implicitly cancels the selection key
+        } catch( IOException e ) {
+            Log.exception( Log.WARN, e );
+        }
+
+        for ( EventLoop loop : this.loops ) {
+            loop.selector.wakeup ();
+        }
+    }
+
+    /**
+     *  Stops event loop threads and closes their selectors.
+     */
+    public void shutdown ()
+    {
+        this.running = false;
+
+        for ( EventLoop loop : this.loops )
+        {
+            loop.selector.wakeup ();
+
+            try {
+                loop.thread.join ();
+            } catch( InterruptedException e ) {
+                Log.exception( Log.WARN, e );
+            }
+        }
+
+        Log.debug( "Stopped selector engine" );
+    }
+
+    /**
+     *  The event loop: waits for readable channels and drains received datagrams.
+     */
+    private class EventLoop implements Runnable
+    {
+        /** The selector of the event loop */
+        final Selector selector;
+
+        /** The event loop thread */
+        final Thread thread;
+
+        /** Channels waiting to be registered with the selector */
+        final ConcurrentLinkedQueue<Object[]> pending = new ConcurrentLinkedQueue<Object[]> ();
+
+        /** The pool of receive buffers (confined to the event loop thread) */
+        final ByteBufferPool pool = 
+            new ByteBufferPool( INBOUND_UDP_BUFFER_SIZE, INBOUND_POOL_SIZE );
+
+        EventLoop( int index ) throws IOException
+        {
+            this.selector = Selector.open ();
+            this.thread = WorkerThreads.newPlatformThread( this, "UDP-loop-" + index,
+                    Thread.MAX_PRIORITY - 1, true );
+        }
+
+        void start ()
+        {
+            this.thread.start ();
+        }
+
+        void register( DatagramChannel owner, java.nio.channels.DatagramChannel channel )
+        {
+            this.pending.add( new Object[] { owner, channel } );
+            this.selector.wakeup ();
+        }
+
+        /**
+         *  Registers pending channels with the selector (on the event loop thread).
+         */
+        private void registerPending ()
+        {
+            Object[] entry;
+            while( ( entry = this.pending.poll () ) != null )
+            {
+                java.nio.channels.DatagramChannel channel =
+                    (java.nio.channels.DatagramChannel) entry[1];
+                try {
+                    channel.register( this.selector, SelectionKey.OP_READ, entry[0] );
+                } catch( IOException e ) {
+                    Log.exception( Log.WARN, e );
+                }
+            }
+        }
+
+        /**
+         *  Drains datagrams waiting in the readable channel (at most the given 
+         *  number, so a flooded channel cannot starve the others).
+         *  
+         *  @return number of drained datagrams
+         */
+        private int receive( SelectionKey key, int maxCount )
+        {
+            DatagramChannel owner = (DatagramChannel) key.attachment ();
+            java.nio.channels.DatagramChannel channel =
+                (java.nio.channels.DatagramChannel) key.channel ();
+
+            for ( int count = 0; ; ++count )
+            {
+                if ( count >= maxCount ) {
+                    return count; // the key remains ready for the next select
+                }
+                
+                InetSocketAddress peer = null;
+                ByteBuffer datagram = this.pool.acquire ();
+
+                try
+                {
+                    peer = (InetSocketAddress) channel.receive( datagram );
+                }
+                catch( IOException e )
+                {
+                    this.pool.release( datagram );
+                    if ( channel.isOpen () ) {
+                        Log.exception( Log.WARN, e );
+                    }
+                    return count;
+                }
+
+                if ( peer == null ) {
+                    this.pool.release( datagram );
+                    return count; // drained
+                }
+
+                datagram.flip ();
+
+                try {
+                    owner.onReceivedDatagram( datagram, peer.getAddress (), peer.getPort (), 
+                            this.pool );
+                } finally {
+                    this.pool.release( datagram );
+                }
+            }
+        }
+
+        /**
+         *  Selects readable channels and dispatches received datagrams
+         *  to their owners.
+         */
+        public void run ()
+        {
+            Log.trace( "Thread started" );
+
+            while( running )
+            {
+                try
+                {
+                    this.selector.select ();
+
+                    registerPending ();
+
+                    int received = 0;
+                    
+                    Iterator<SelectionKey> it = this.selector.selectedKeys().iterator ();
+                    while( it.hasNext () )
+                    {
+                        SelectionKey key = it.next ();
+                        it.remove ();
+
+                        if ( key.isValid () && key.isReadable () ) {
+                            received += receive( key, MAX_RECEIVE_BATCH );
+                        }
+                    }
+                    
+                    if ( received > 0 ) {
+                        receiveBatchSizes.record( received );
+                    }
+                }
+                catch( Throwable e )
+                {
+                    Log.error( "Event loop failed; " + e.toString () );
+                    Log.where ();
+                }
+            }
+
+            try {
+                this.selector.close ();
+            } catch( IOException e ) {
+                Log.exception( Log.WARN, e );
+            }
+
+            Log.trace( "Thread completed" );
+        }
+    }
+}
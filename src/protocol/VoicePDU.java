@@ -1,6 +1,8 @@
 
 package protocol;
 
+import audio.ComfortNoise;
+
 /**
  *  VoicePDU - The PDU that carries voice payload.
  *  
@@ -23,6 +25,11 @@ public class VoicePDU extends ProtocolDataUnit
      */
     public final static int ULAW = 0x03;
 
+    /**
+     *  Voice PDU Subclass: IMA ADPCM framed as DVI4 (32 kbit/s)
+     */
+    public final static int DVI4 = 0x04;
+
     /**
      *  The constructor for outbound Voice PDUs.
      */
@@ -57,7 +64,10 @@ public class VoicePDU extends ProtocolDataUnit
     {
         dump( "Inbound Voice" );
         
-        int audioSampleSize = this.call.getAudioSampleSize ();
+        /* The comfort noise descriptor is shorter than the audio sample
+         */
+        int audioSampleSize = payload.getFreeSpace () == ComfortNoise.SID_LENGTH 
+                            ? ComfortNoise.SID_LENGTH : this.call.getAudioSampleSize ();
         
         byte[] audioSample = new byte[ audioSampleSize ];
         payload.get( audioSample );
@@ -65,7 +75,7 @@ public class VoicePDU extends ProtocolDataUnit
         long ts = this.getTimestamp ();
         
         if ( this.call != null ) {
-            this.call.onReceivedVoicePDU( ts, audioSample );
+            this.call.onReceivedVoicePDU( this.outSeqNo, ts, audioSample );
         }
     }
 }
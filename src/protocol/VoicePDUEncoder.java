@@ -0,0 +1,339 @@
+
+package protocol;
+
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+
+import crypto.PacketCipher;
+import crypto.SrtpContext;
+import crypto.SymmetricCipher;
+
+import audio.ComfortNoise;
+
+import utils.Log;
+
+/**
+ *  Encodes outbound voice PDUs of a call into preallocated buffers.
+ *
+ *  The encoder writes the PDU header (or the RTP header if the call uses RTP framing,
+ *  see RtpSession) and the audio payload into a single frame
+ *  buffer, enciphers the frame into a single datagram buffer and hands the datagram
+ *  to the UDP channel using the reusable DatagramPacket (or ByteBuffer and socket
+ *  address). Once the buffers are sized for the first frame, encoding and sending
+ *  a voice PDU does not allocate any objects.
+ *
+ *  The encoder is used only by the call's VoicePDUSender, i.e. by a single thread.
+ */
+class VoicePDUEncoder
+{
+    /** Length of the PDU header */
+    private final static int HEADER_LENGTH = 12;
+
+    /** The call owning the encoder */
+    private final CallContext call;
+
+    /** Voice PDU subclass (codec) */
+    private final int voicePduSubclass;
+
+    /** The RTP session the frame was encoded for; null if the frame is IAX-style PDU */
+    private RtpSession rtpSession = null;
+
+    /** The plain PDU: header followed by the audio payload */
+    private final byte[] frame;
+
+    /** The length of the encoded PDU (shorter than the frame if it carries SID) */
+    private int frameLength;
+
+    /** The cipher context enciphering PDUs of the call (used only by the encoder) */
+    private PacketCipher packetCipher = null;
+
+    /** The cipher that created the packetCipher */
+    private SymmetricCipher packetCipherSource = null;
+
+    /** The enciphered PDU */
+    private byte[] cipherText = new byte[ 0 ];
+
+    /** Wraps cipherText (used by the non-blocking UDP channels) */
+    private ByteBuffer cipherTextView = ByteBuffer.wrap( cipherText );
+
+    /** Wraps frame (used by the non-blocking UDP channels) */
+    private final ByteBuffer frameView;
+
+    /** The datagram packet being sent (used by the blocking UDP channels) */
+    private final DatagramPacket packet;
+
+    /** Cached remote socket address */
+    private InetSocketAddress peerSocketAddr = null;
+
+    /** The datagram (either frame or cipherText) */
+    private byte[] datagram;
+
+    /** The length of the datagram */
+    private int datagramLength;
+
+    /**
+     *  Creates encoder for voice PDUs of the given subclass carrying
+     *  audio samples of the given size.
+     */
+    VoicePDUEncoder( CallContext call, int voicePduSubclass, int audioSampleSize )
+    {
+        this.call = call;
+        this.voicePduSubclass = voicePduSubclass;
+
+        this.frame = new byte[ HEADER_LENGTH + audioSampleSize ];
+        this.frameView = ByteBuffer.wrap( this.frame );
+        this.packet = new DatagramPacket( this.frame, this.frame.length );
+
+        this.frameLength = this.frame.length;
+        this.datagram = this.frame;
+        this.datagramLength = this.frame.length;
+    }
+
+    /**
+     *  Encodes the voice PDU with the given timestamp and audio sample.
+     *  The audio sample is truncated (or padded with zeros) to the payload size.
+     *
+     *  @param talkspurt  true if the sample is the first one after silence
+     *                    (i.e. after comfort noise descriptors)
+     */
+    void encode( int timestamp, byte[] audioSample, boolean talkspurt )
+    {
+        byte[] f = this.frame;
+
+        this.rtpSession = this.call.getRtpSession ();
+
+        if ( this.rtpSession != null ) {
+            encodeRtpHeader( timestamp, RtpSession.getPayloadType( this.voicePduSubclass ), 
+                    talkspurt );
+        } else {
+            encodeHeader( timestamp );
+        }
+
+        int len = Math.min( audioSample.length, f.length - HEADER_LENGTH );
+        System.arraycopy( audioSample, 0, f, HEADER_LENGTH, len );
+
+        for ( int i = HEADER_LENGTH + len; i < f.length; ++i ) {
+            f[i] = 0;
+        }
+
+        this.frameLength = this.frame.length;
+        this.datagram = this.frame;
+        this.datagramLength = this.frame.length;
+    }
+
+    /**
+     *  Encodes the comfort noise descriptor (SID) with the given timestamp and
+     *  the noise level (see ComfortNoise): the PDU header followed by the single 
+     *  octet of the level. In RTP framing, the SID is sent with the comfort noise 
+     *  payload type.
+     */
+    void encodeComfortNoise( int timestamp, int level )
+    {
+        this.rtpSession = this.call.getRtpSession ();
+
+        if ( this.rtpSession != null ) {
+            encodeRtpHeader( timestamp, RtpSession.PT_CN, false );
+        } else {
+            encodeHeader( timestamp );
+        }
+
+        this.frame[ HEADER_LENGTH ] = (byte) ( level & 0x7F );
+
+        this.frameLength = HEADER_LENGTH + ComfortNoise.SID_LENGTH;
+        this.datagram = this.frame;
+        this.datagramLength = this.frameLength;
+    }
+
+    /**
+     *  Writes the IAX-style PDU header into the frame
+     */
+    private void encodeHeader( int timestamp )
+    {
+        int outSeqNo = this.call.getOutSeqNoInc ();
+        int inSeqNo = this.call.getInSeqNo ();
+
+        int sourceCallNumber = this.call.getSourceCallNumber () | 0x8000; // F bit
+        int destinationCallNumber = this.call.getDestinationCallNumber ();
+
+        byte[] f = this.frame;
+
+        f[0]  = (byte) ( sourceCallNumber >>> 8 );
+        f[1]  = (byte) sourceCallNumber;
+        f[2]  = (byte) ( destinationCallNumber >>> 8 );
+        f[3]  = (byte) destinationCallNumber;
+        f[4]  = (byte) ( timestamp >>> 24 );
+        f[5]  = (byte) ( timestamp >>> 16 );
+        f[6]  = (byte) ( timestamp >>> 8 );
+        f[7]  = (byte) timestamp;
+        f[8]  = (byte) outSeqNo;
+        f[9]  = (byte) inSeqNo;
+        f[10] = (byte) ProtocolDataUnit.VOICE;
+        f[11] = (byte) this.voicePduSubclass;
+
+        if ( Log.isEnabled( Log.DEBUG ) )
+        {
+            Log.debug( "Time: " + this.call.getTimestamp () + ", Sent"
+                    + ", Timestamp: " + ( timestamp & 0xFFFFFFFFL )
+                    + ", iseq: " + inSeqNo + ", oseq: " + outSeqNo );
+        }
+    }
+
+    /**
+     *  Writes the RTP header into the frame (the RTP header has the same length
+     *  as the IAX-style PDU header)
+     */
+    private void encodeRtpHeader( int timestamp, int payloadType, boolean talkspurt )
+    {
+        int seqNo = this.rtpSession.writeHeader( this.frame, payloadType, timestamp, talkspurt );
+
+        if ( Log.isEnabled( Log.DEBUG ) )
+        {
+            Log.debug( "Time: " + this.call.getTimestamp () + ", Sent RTP"
+                    + ", Timestamp: " + ( timestamp & 0xFFFFFFFFL )
+                    + ", seq: " + seqNo );
+        }
+    }
+
+    /**
+     *  Returns if the encoded frame is RTP packet
+     */
+    boolean isRtp ()
+    {
+        return this.rtpSession != null;
+    }
+
+    /**
+     *  Protects the encoded RTP packet as SRTP if the call's RTP session is secured
+     *  (otherwise the RTP packet is sent as is). The cipher text buffer is reallocated 
+     *  only if it is too small (i.e. only for the first PDU).
+     *
+     *  @return false if the packet could not be protected
+     */
+    boolean protect ()
+    {
+        if ( ! this.rtpSession.isSecure () ) {
+            return true;
+        }
+
+        int size = this.frameLength + SrtpContext.TAG_LENGTH;
+
+        if ( size > this.cipherText.length ) {
+            this.cipherText = new byte[ size ];
+            this.cipherTextView = ByteBuffer.wrap( this.cipherText );
+        }
+
+        int len = this.rtpSession.protect( this.frame, this.frameLength, this.cipherText );
+
+        if ( len < 0 ) {
+            return false;
+        }
+
+        this.datagram = this.cipherText;
+        this.datagramLength = len;
+
+        return true;
+    }
+
+    /**
+     *  Enciphers the encoded PDU with the encoder's own packet cipher context
+     *  (created again only if the cipher changes), so senders of different calls 
+     *  do not share cipher state. The cipher text buffer is reallocated only
+     *  if it is too small (i.e. only for the first PDU).
+     *
+     *  @return false if the PDU could not be enciphered
+     */
+    boolean encrypt( SymmetricCipher cipher )
+    {
+        if ( cipher != this.packetCipherSource ) {
+            this.packetCipher = cipher.newPacketCipher ();
+            this.packetCipherSource = cipher;
+        }
+        
+        if ( this.packetCipher == null ) {
+            return false;
+        }
+        
+        int size = this.packetCipher.getOutputSize( this.frameLength );
+
+        if ( size > this.cipherText.length ) {
+            this.cipherText = new byte[ size ];
+            this.cipherTextView = ByteBuffer.wrap( this.cipherText );
+        }
+
+        int len = this.packetCipher.encrypt( this.frame, this.frameLength, this.cipherText );
+
+        if ( len < 0 ) {
+            return false;
+        }
+
+        this.datagram = this.cipherText;
+        this.datagramLength = len;
+
+        return true;
+    }
+
+    /**
+     *  Returns the plain PDU
+     */
+    byte[] getFrame ()
+    {
+        return this.frame;
+    }
+
+    /**
+     *  Returns the length of the plain PDU
+     */
+    int getFrameLength ()
+    {
+        return this.frameLength;
+    }
+
+    /**
+     *  Returns the datagram packet (plain or enciphered PDU) addressed
+     *  to the remote peer.
+     */
+    DatagramPacket getPacket( InetAddress peerAddr, int peerPort )
+    {
+        this.packet.setData( this.datagram, 0, this.datagramLength );
+
+        if ( this.packet.getAddress () != peerAddr ) {
+            this.packet.setAddress( peerAddr );
+        }
+        if ( this.packet.getPort () != peerPort ) {
+            this.packet.setPort( peerPort );
+        }
+
+        return this.packet;
+    }
+
+    /**
+     *  Returns the datagram (plain or enciphered PDU) wrapped in the byte buffer.
+     */
+    ByteBuffer getBuffer ()
+    {
+        ByteBuffer buf = this.datagram == this.frame ? this.frameView : this.cipherTextView;
+
+        buf.clear ();
+        buf.limit( this.datagramLength );
+
+        return buf;
+    }
+
+    /**
+     *  Returns the socket address of the remote peer. The address is cached
+     *  and it is recreated only if the remote peer changes its address.
+     */
+    InetSocketAddress getSocketAddress( InetAddress peerAddr, int peerPort )
+    {
+        InetSocketAddress addr = this.peerSocketAddr;
+
+        if ( addr == null || addr.getAddress () != peerAddr || addr.getPort () != peerPort ) {
+            addr = new InetSocketAddress( peerAddr, peerPort );
+            this.peerSocketAddr = addr;
+        }
+
+        return addr;
+    }
+}
@@ -2,13 +2,27 @@
 package protocol;
 
 import java.io.IOException;
+import java.util.Arrays;
 
 import utils.Log;
+import utils.MediaClock;
 
 import audio.AudioInterface;
 
 /**
- *  Takes captured audio and sends it to the remote peer via UDP channel
+ *  Takes captured audio and sends it to the remote peer via UDP channel.
+ *
+ *  PDUs are time-stamped in media time: the first PDU carries the call's media clock
+ *  at the moment the sender was created, and each following PDU advances by
+ *  the exact number of samples in the frame (converted to milliseconds without
+ *  accumulating rounding errors), independent of when the send tick actually ran.
+ *
+ *  If the call uses discontinuous transmission (DTX), frames in which the audio
+ *  interface detects no voice are not sent: the first silent frame, and then every
+ *  SID_INTERVAL frames (or sooner if the noise level changes), is replaced by
+ *  the comfort noise descriptor (SID) carrying the level of the background noise,
+ *  from which the remote peer synthesizes comfort noise. Time-stamps keep running
+ *  during the silence, while sequence numbers advance only with sent PDUs.
  *  
  *  @author Mikica B Kocic
  */
@@ -19,10 +33,28 @@ public class VoicePDUSender implements AudioInterface.Packetizer
     
     private int voicePduSubclass;
     private byte[] audioBuffer;
-    private long callStartTimestamp;
-    private long nextDueTimestamp;
+    private VoicePDUEncoder encoder;
+    private MediaClock clock;
+    private long callStartSamples;
+    private long sentSamples;
+    private int samplesPerFrame;
     private int timestamp;
 
+    /** Number of consecutive silent frames; 0 while sending voice */
+    private int silentFrames = 0;
+
+    /** The noise level in the last sent comfort noise descriptor */
+    private int sentNoiseLevel = -1;
+
+    /** Frame interval in milliseconds */
+    private final static int FRAME_INTERVAL = 20;
+
+    /** Comfort noise descriptors are repeated after this number of silent frames */
+    private final static int SID_INTERVAL = 8;
+
+    /** Change of the noise level (in dB) that is sent before SID_INTERVAL expires */
+    private final static int SID_LEVEL_CHANGE = 3;
+
     /**
      * Constructor for the VoicePDUSender object
      *
@@ -36,29 +68,61 @@ public class VoicePDUSender implements AudioInterface.Packetizer
         
         this.voicePduSubclass = audioInterface.getVoicePduSubclass ();
         this.audioBuffer = new byte[ this.audio.getSampleSize () ];
+        this.encoder = new VoicePDUEncoder( call, this.voicePduSubclass, 
+                this.audioBuffer.length );
 
-        this.callStartTimestamp = this.call.getTimestamp ();
-        this.nextDueTimestamp = this.callStartTimestamp;
+        this.clock = this.call.getMediaClock ();
+        this.samplesPerFrame = this.clock.getSampleRate () * FRAME_INTERVAL / 1000;
+        this.callStartSamples = this.clock.getSamples ();
+        this.sentSamples = 0;
     }
 
     /**
-     *  Sends audio as payload encapsulated in VoicePDU
+     *  Sends audio as payload encapsulated in VoicePDU (or the comfort noise 
+     *  descriptor, or nothing during silence if the call uses DTX). The PDU is
+     *  encoded and enciphered in the preallocated buffers of the encoder, so sending 
+     *  a frame does not allocate any objects.
      */
     public void send () throws IOException
     {
         this.audio.readWithTimestamp( this.audioBuffer );
-        this.timestamp = (int) this.nextDueTimestamp;
+        this.timestamp = (int) this.clock.toMillis( this.callStartSamples + this.sentSamples );
+        
+        /* The next frame starts right after the samples of this one
+         */
+        this.sentSamples += this.samplesPerFrame;
         
-        VoicePDU vf = new VoicePDU( this.call, this.voicePduSubclass );
-        vf.setTimestamp( this.timestamp );
-        vf.sendPayload( this.audioBuffer );
+        int noiseLevel = this.call.isDiscontinuousTransmission () 
+                       ? this.audio.getNoiseLevel () : -1;
         
-        vf.dump( "Outbound Voice" );
-        Log.audio( "Sent voice PDU" );
+        if ( noiseLevel < 0 ) // voice
+        {
+            this.encoder.encode( this.timestamp, this.audioBuffer, this.silentFrames > 0 );
+            this.silentFrames = 0;
+        }
+        else if ( this.silentFrames % SID_INTERVAL == 0
+                || Math.abs( noiseLevel - this.sentNoiseLevel ) >= SID_LEVEL_CHANGE )
+        {
+            this.encoder.encodeComfortNoise( this.timestamp, noiseLevel );
+            this.sentNoiseLevel = noiseLevel;
+            this.silentFrames = 1;
+            this.call.onComfortNoiseSent ();
+        }
+        else
+        {
+            ++this.silentFrames;
+            this.call.onFrameSuppressed ();
+            return;
+        }
         
-        /* Now work out how long to wait...
-         */
-        this.nextDueTimestamp += 20;
+        this.call.send( this.encoder );
+        
+        if ( Log.isEnabled( Log.VERB ) ) {
+            new VoicePDU( this.call, Arrays.copyOf( this.encoder.getFrame (), 
+                    this.encoder.getFrameLength () ) ).dump( "Outbound Voice" );
+        }
+        
+        Log.audio( "Sent voice PDU" );
     }
 
 }
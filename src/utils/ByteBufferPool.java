@@ -0,0 +1,115 @@
+package utils;
+
+import java.nio.ByteBuffer;
+
+/**
+ *  Pool of equally sized direct byte buffers.
+ *
+ *  The pool is not thread-safe: it is meant to be confined to a single thread
+ *  (like an event loop) that both acquires and releases the buffers. Buffers are
+ *  allocated only when the pool is empty, so in the steady state acquiring and
+ *  releasing buffers does not create any garbage.
+ */
+public class ByteBufferPool
+{
+    /**
+     *  The capacity of pooled buffers
+     */
+    private final int bufferSize;
+
+    /**
+     *  Stack of free buffers
+     */
+    private ByteBuffer[] free;
+
+    /**
+     *  Number of free buffers on the stack
+     */
+    private int freeCount = 0;
+
+    /**
+     *  Total number of buffers allocated by the pool
+     */
+    private int allocatedCount = 0;
+
+    /**
+     *  Creates the pool with the given number of preallocated buffers.
+     */
+    public ByteBufferPool( int bufferSize, int initialCount )
+    {
+        this.bufferSize = bufferSize;
+        this.free = new ByteBuffer[ Math.max( 4, initialCount ) ];
+
+        for ( int i = 0; i < initialCount; ++i ) {
+            release( allocate () );
+        }
+    }
+
+    /**
+     *  Allocates a new direct buffer
+     */
+    private ByteBuffer allocate ()
+    {
+        ++this.allocatedCount;
+        return ByteBuffer.allocateDirect( this.bufferSize );
+    }
+
+    /**
+     *  Takes (cleared) buffer from the pool. Allocates new buffer if the pool is empty.
+     */
+    public ByteBuffer acquire ()
+    {
+        if ( this.freeCount == 0 ) {
+            return allocate ();
+        }
+
+        ByteBuffer buf = this.free[ --this.freeCount ];
+        this.free[ this.freeCount ] = null;
+
+        buf.clear ();
+        return buf;
+    }
+
+    /**
+     *  Returns the buffer to the pool. Buffers not allocated by the pool are ignored.
+     */
+    public void release( ByteBuffer buf )
+    {
+        if ( buf == null || ! buf.isDirect () || buf.capacity () != this.bufferSize ) {
+            return;
+        }
+
+        if ( this.freeCount == this.free.length )
+        {
+            ByteBuffer[] grown = new ByteBuffer[ this.free.length * 2 ];
+            System.arraycopy( this.free, 0, grown, 0, this.freeCount );
+            this.free = grown;
+        }
+
+        this.free[ this.freeCount++ ] = buf;
+    }
+
+    /**
+     *  Returns the capacity of pooled buffers
+     */
+    public int getBufferSize ()
+    {
+        return this.bufferSize;
+    }
+
+    /**
+     *  Returns the number of free buffers in the pool
+     */
+    public int getFreeCount ()
+    {
+        return this.freeCount;
+    }
+
+    /**
+     *  Returns the total number of buffers allocated by the pool
+     */
+    public int getAllocatedCount ()
+    {
+        return this.allocatedCount;
+    }
+}
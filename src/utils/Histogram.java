@@ -0,0 +1,214 @@
+package utils;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ *  Histogram of non-negative values with power-of-two buckets.
+ *
+ *  Bucket 0 counts zeros, bucket 1 counts ones, and bucket <i>k</i> counts
+ *  values in range [ 2<sup>k-1</sup>, 2<sup>k</sup>-1 ]. Recording a value is
+ *  lock-free and does not allocate, so histograms may be updated from the media path.
+ */
+public class Histogram
+{
+    /**
+     *  Number of buckets (covers all non-negative long values)
+     */
+    private final static int BUCKET_COUNT = 64;
+
+    /**
+     *  The name of the histogram (used in reports)
+     */
+    private final String name;
+
+    /**
+     *  Bucket counters
+     */
+    private final AtomicLongArray buckets = new AtomicLongArray( BUCKET_COUNT );
+
+    /**
+     *  Number of recorded values
+     */
+    private final AtomicLong count = new AtomicLong ();
+
+    /**
+     *  Sum of recorded values
+     */
+    private final AtomicLong total = new AtomicLong ();
+
+    /**
+     *  Maximum recorded value
+     */
+    private final AtomicLong max = new AtomicLong ();
+
+    /**
+     *  Creates a named histogram
+     */
+    public Histogram( String name )
+    {
+        this.name = name;
+    }
+
+    /**
+     *  Returns the bucket index of the value
+     */
+    private static int bucketOf( long value )
+    {
+        if ( value <= 0 ) {
+            return 0;
+        }
+        return Math.min( BUCKET_COUNT - 1, 64 - Long.numberOfLeadingZeros( value ) );
+    }
+
+    /**
+     *  Records value. Negative values are recorded as zeros.
+     */
+    public void record( long value )
+    {
+        if ( value < 0 ) {
+            value = 0;
+        }
+
+        this.buckets.incrementAndGet( bucketOf( value ) );
+        this.count.incrementAndGet ();
+        this.total.addAndGet( value );
+
+        long m = this.max.get ();
+        while( value > m && ! this.max.compareAndSet( m, value ) ) {
+            m = this.max.get ();
+        }
+    }
+
+    /**
+     *  Clears all counters
+     */
+    public void reset ()
+    {
+        for ( int i = 0; i < BUCKET_COUNT; ++i ) {
+            this.buckets.set( i, 0 );
+        }
+        this.count.set( 0 );
+        this.total.set( 0 );
+        this.max.set( 0 );
+    }
+
+    /**
+     *  Returns the name of the histogram
+     */
+    public String getName ()
+    {
+        return this.name;
+    }
+
+    /**
+     *  Returns number of recorded values
+     */
+    public long getCount ()
+    {
+        return this.count.get ();
+    }
+
+    /**
+     *  Returns sum of recorded values
+     */
+    public long getTotal ()
+    {
+        return this.total.get ();
+    }
+
+    /**
+     *  Returns maximum recorded value
+     */
+    public long getMax ()
+    {
+        return this.max.get ();
+    }
+
+    /**
+     *  Returns mean of recorded values
+     */
+    public double getMean ()
+    {
+        long n = this.count.get ();
+        return n == 0 ? 0.0 : (double) this.total.get () / n;
+    }
+
+    /**
+     *  Returns number of values recorded in the bucket with the given index
+     */
+    public long getBucketCount( int bucket )
+    {
+        return this.buckets.get( bucket );
+    }
+
+    /**
+     *  Returns the lower bound of the bucket with the given index
+     */
+    public static long getBucketLowerBound( int bucket )
+    {
+        return bucket == 0 ? 0 : 1L << ( bucket - 1 );
+    }
+
+    /**
+     *  Returns the upper bound of the bucket with the given index
+     */
+    public static long getBucketUpperBound( int bucket )
+    {
+        return bucket == 0 ? 0 : ( 1L << bucket ) - 1;
+    }
+
+    /**
+     *  Returns the approximate value at the given percentile (0-100), i.e.
+     *  the upper bound of the bucket where the percentile falls.
+     */
+    public long getPercentile( double percentile )
+    {
+        long n = this.count.get ();
+        if ( n == 0 ) {
+            return 0;
+        }
+
+        long rank = (long) Math.ceil( n * percentile / 100.0 );
+        long seen = 0;
+
+        for ( int i = 0; i < BUCKET_COUNT; ++i )
+        {
+            seen += this.buckets.get( i );
+            if ( seen >= rank ) {
+                return Math.min( getBucketUpperBound( i ), this.max.get () );
+            }
+        }
+
+        return this.max.get ();
+    }
+
+    /**
+     *  Returns summary with non-empty buckets
+     */
+    @Override
+    public String toString ()
+    {
+        StringBuffer sb = new StringBuffer ();
+
+        sb.append( this.name ).append( ": n=" ).append( getCount () )
+          .append( ", mean=" ).append( Math.round( getMean () * 100 ) / 100.0 )
+          .append( ", max=" ).append( getMax () );
+
+        for ( int i = 0; i < BUCKET_COUNT; ++i )
+        {
+            long c = this.buckets.get( i );
+            if ( c == 0 ) {
+                continue;
+            }
+
+            sb.append( ", [" ).append( getBucketLowerBound( i ) );
+            if ( getBucketUpperBound( i ) != getBucketLowerBound( i ) ) {
+                sb.append( "-" ).append( getBucketUpperBound( i ) );
+            }
+            sb.append( "]=" ).append( c );
+        }
+
+        return sb.toString ();
+    }
+}
@@ -0,0 +1,163 @@
+package utils;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ *  Monotonic media clock based on <code>System.nanoTime</code>.
+ *
+ *  The clock counts time elapsed since its origin (set when the clock is created or
+ *  reset), so it is not affected by wall-clock adjustments. Time can be read in
+ *  nanoseconds, milliseconds or samples at the clock's sample rate, and periodic
+ *  tasks can be paced against deadlines in media time without accumulating
+ *  the rounding errors of millisecond sleeps.
+ */
+public class MediaClock
+{
+    /**
+     *  Nanoseconds per second
+     */
+    private final static long NANOS_PER_SECOND = 1000000000L;
+
+    /**
+     *  Sleeps shorter than this are spun (yielding) rather than parked
+     */
+    private final static long SPIN_NANOS = 50000L; // 50 us
+
+    /**
+     *  The sample rate (samples per second)
+     */
+    private final int sampleRate;
+
+    /**
+     *  The origin of the clock (System.nanoTime)
+     */
+    private volatile long origin;
+
+    /**
+     *  Creates clock with the given sample rate starting at zero now
+     */
+    public MediaClock( int sampleRate )
+    {
+        this.sampleRate = sampleRate;
+        this.origin = System.nanoTime ();
+    }
+
+    /**
+     *  Restarts the clock from zero
+     */
+    public void reset ()
+    {
+        this.origin = System.nanoTime ();
+    }
+
+    /**
+     *  Returns the sample rate of the clock
+     */
+    public int getSampleRate ()
+    {
+        return this.sampleRate;
+    }
+
+    /**
+     *  Returns the elapsed time in nanoseconds
+     */
+    public long getNanos ()
+    {
+        return System.nanoTime () - this.origin;
+    }
+
+    /**
+     *  Returns the elapsed time in milliseconds
+     */
+    public long getMillis ()
+    {
+        return getNanos () / 1000000L;
+    }
+
+    /**
+     *  Returns the number of samples elapsed at the clock's sample rate
+     */
+    public long getSamples ()
+    {
+        return toSamples( getNanos () );
+    }
+
+    /**
+     *  Converts nanoseconds to number of samples at the clock's sample rate
+     */
+    public long toSamples( long nanos )
+    {
+        /* Split to avoid overflow of nanos * sampleRate for long uptimes
+         */
+        long seconds = nanos / NANOS_PER_SECOND;
+        long rest = nanos % NANOS_PER_SECOND;
+        return seconds * this.sampleRate + rest * this.sampleRate / NANOS_PER_SECOND;
+    }
+
+    /**
+     *  Converts number of samples at the clock's sample rate to nanoseconds
+     */
+    public long toNanos( long samples )
+    {
+        long seconds = samples / this.sampleRate;
+        long rest = samples % this.sampleRate;
+        return seconds * NANOS_PER_SECOND + rest * NANOS_PER_SECOND / this.sampleRate;
+    }
+
+    /**
+     *  Converts number of samples at the clock's sample rate to milliseconds
+     *  (rounded down)
+     */
+    public long toMillis( long samples )
+    {
+        return toNanos( samples ) / 1000000L;
+    }
+
+    /**
+     *  Sleeps until the clock reaches the given time (in nanoseconds since
+     *  the origin). Returns immediately if the deadline has already passed.
+     *
+     *  @return lateness in nanoseconds, i.e. how long after the deadline the method
+     *          returned (negative if interrupted before the deadline)
+     */
+    public long sleepUntil( long deadlineNanos )
+    {
+        return sleepUntilNanoTime( this.origin + deadlineNanos );
+    }
+
+    /**
+     *  Sleeps the given number of nanoseconds (not affected by the clock's origin).
+     */
+    public static void sleep( long nanos )
+    {
+        sleepUntilNanoTime( System.nanoTime () + nanos );
+    }
+
+    /**
+     *  Sleeps until System.nanoTime reaches the deadline. Parks the thread
+     *  for most of the time and yields for the last few tens of microseconds.
+     *
+     *  @return lateness in nanoseconds
+     */
+    private static long sleepUntilNanoTime( long deadline )
+    {
+        long remaining = deadline - System.nanoTime ();
+
+        while( remaining > 0 )
+        {
+            if ( Thread.currentThread ().isInterrupted () ) {
+                break;
+            }
+
+            if ( remaining > SPIN_NANOS ) {
+                LockSupport.parkNanos( remaining - SPIN_NANOS );
+            } else {
+                Thread.yield ();
+            }
+
+            remaining = deadline - System.nanoTime ();
+        }
+
+        return -remaining;
+    }
+}
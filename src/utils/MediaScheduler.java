@@ -0,0 +1,507 @@
+package utils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ *  Scheduler of media ticks (frame sending, playout, ringing) of all calls.
+ *
+ *  Tasks are run at absolute deadlines of the scheduler's monotonic media clock,
+ *  so the cadence does not drift with the time spent in tasks or with sleep
+ *  granularity. Each task returns its next deadline. Tasks are spread round-robin
+ *  over a small fixed pool of threads; every thread keeps its tasks in a hashed
+ *  timing wheel with 1 ms slots and parks (LockSupport.parkNanos) until the earliest
+ *  deadline found in the wheel, or until a task is added if it has no tasks,
+ *  so thousands of periodic tasks need neither a thread nor a priority queue
+ *  operation each.
+ *
+ *  The lateness of every tick (the time between the deadline and the moment
+ *  the task started) and the run time of every tick are recorded in histograms;
+ *  ticks late more than OVERRUN_NANOS are counted as overruns.
+ */
+public class MediaScheduler
+{
+    /**
+     *  Task run by the scheduler
+     */
+    public interface Task
+    {
+        /**
+         *  Runs the task due at the given deadline (scheduler time in nanoseconds).
+         *
+         *  @return the next deadline; negative to stop running the task
+         */
+        public abstract long run( long deadline );
+    }
+
+    /**
+     *  Handle of a scheduled task
+     */
+    public static class Handle
+    {
+        /** The task */
+        private final Task task;
+
+        /** The worker running the task */
+        private final Worker worker;
+
+        /** The deadline of the next run (scheduler time in nanoseconds) */
+        private long deadline;
+
+        /** The next handle in the same slot of the timing wheel */
+        private Handle next = null;
+
+        /** Indicates that the task should not run anymore */
+        private volatile boolean cancelled = false;
+
+        /**
+         *  Creates handle of the task assigned to the worker
+         */
+        private Handle( Task task, Worker worker, long deadline )
+        {
+            this.task = task;
+            this.worker = worker;
+            this.deadline = deadline;
+        }
+
+        /**
+         *  Cancels the task. If the task is running, waits for it to complete
+         *  (unless called from the task itself).
+         */
+        public void cancel ()
+        {
+            synchronized( this ) {
+                this.cancelled = true;
+            }
+            this.worker.wakeup ();
+        }
+
+        /**
+         *  Returns if the task is cancelled (or it has stopped itself)
+         */
+        public boolean isCancelled ()
+        {
+            return this.cancelled;
+        }
+    }
+
+    //////////////////////////////////////////////////////////////////////////////////////
+
+    /** Resolution of the timing wheel (the length of a slot) in nanoseconds */
+    private final static long SLOT_NANOS = 1000000L;
+
+    /** Number of slots of the timing wheel (a power of two) */
+    private final static int WHEEL_SIZE = 256;
+
+    /** Ticks late more than this are counted as overruns */
+    public final static long OVERRUN_NANOS = 10000000L; // half a frame
+
+    /** Periodic tasks more late than this number of periods skip the missed ticks */
+    private final static int MAX_CATCH_UP_PERIODS = 5;
+
+    /** The default scheduler */
+    private static MediaScheduler defaultScheduler = null;
+
+    /** The clock */
+    private final MediaClock clock = new MediaClock( 8000 );
+
+    /** The workers */
+    private final Worker[] workers;
+
+    /** Round-robin counter used to assign tasks to workers */
+    private final AtomicInteger nextWorker = new AtomicInteger ();
+
+    /** Indicates that workers should be running */
+    private volatile boolean running = true;
+
+    /** Tick lateness in microseconds */
+    private final Histogram lateness = new Histogram( "Tick lateness us" );
+
+    /** Tick run time in microseconds */
+    private final Histogram runTimes = new Histogram( "Tick run time us" );
+
+    /** Number of ticks late more than OVERRUN_NANOS */
+    private final AtomicLong overrunCount = new AtomicLong ();
+
+    /** Number of ticks of periodic tasks skipped because the task fell behind */
+    private final AtomicLong skippedCount = new AtomicLong ();
+
+    /**
+     *  Returns the scheduler shared by all audio interfaces, created on the first
+     *  use with a thread per processor (but at most 4)
+     */
+    public static synchronized MediaScheduler getDefault ()
+    {
+        if ( defaultScheduler == null ) {
+            defaultScheduler = new MediaScheduler( "Tick",
+                    Math.min( 4, Runtime.getRuntime ().availableProcessors () ) );
+        }
+        return defaultScheduler;
+    }
+
+    /**
+     *  Creates scheduler with the given number of (daemon) threads
+     */
+    public MediaScheduler( String name, int threadCount )
+    {
+        if ( threadCount < 1 ) {
+            threadCount = 1;
+        }
+
+        this.workers = new Worker[ threadCount ];
+
+        for ( int i = 0; i < threadCount; ++i )
+        {
+            this.workers[i] = new Worker ();
+
+            Thread t = WorkerThreads.newPlatformThread( this.workers[i], name + "-" + i,
+                    Thread.MAX_PRIORITY - 1, true );
+            this.workers[i].thread = t;
+            t.start ();
+        }
+    }
+
+    /**
+     *  Returns the current scheduler time in nanoseconds
+     */
+    public long getTime ()
+    {
+        return this.clock.getNanos ();
+    }
+
+    /**
+     *  Schedules the task to run first at the given deadline (scheduler time
+     *  in nanoseconds)
+     */
+    public Handle schedule( Task task, long deadline )
+    {
+        Worker w = this.workers[ ( this.nextWorker.getAndIncrement () & 0x7FFFFFFF )
+                                 % this.workers.length ];
+
+        Handle h = new Handle( task, w, deadline );
+        w.add( h );
+
+        return h;
+    }
+
+    /**
+     *  Schedules the runnable to run periodically, first after one period.
+     *  Late ticks are caught up, unless the task falls behind more than
+     *  MAX_CATCH_UP_PERIODS periods (then missed ticks are skipped).
+     */
+    public Handle scheduleAtFixedRate( final Runnable runnable, final long periodNanos )
+    {
+        Task task = new Task () {
+            public long run( long deadline ) {
+                runnable.run ();
+                long next = deadline + periodNanos;
+                long behind = getTime () - next;
+                if ( behind > MAX_CATCH_UP_PERIODS * periodNanos ) {
+                    long skipped = behind / periodNanos;
+                    skippedCount.addAndGet( skipped );
+                    next += skipped * periodNanos;
+                }
+                return next;
+            }
+        };
+
+        return schedule( task, getTime () + periodNanos );
+    }
+
+    /**
+     *  Returns the histogram of tick lateness (in microseconds)
+     */
+    public Histogram getLatenessHistogram ()
+    {
+        return this.lateness;
+    }
+
+    /**
+     *  Returns the histogram of tick run time (in microseconds)
+     */
+    public Histogram getRunTimeHistogram ()
+    {
+        return this.runTimes;
+    }
+
+    /**
+     *  Returns the number of ticks late more than OVERRUN_NANOS
+     */
+    public long getOverrunCount ()
+    {
+        return this.overrunCount.get ();
+    }
+
+    /**
+     *  Returns the number of ticks skipped by periodic tasks that fell behind
+     */
+    public long getSkippedCount ()
+    {
+        return this.skippedCount.get ();
+    }
+
+    /**
+     *  Returns the number of scheduled tasks
+     */
+    public int getTaskCount ()
+    {
+        int count = 0;
+        for ( Worker w : this.workers ) {
+            count += w.taskCount;
+        }
+        return count;
+    }
+
+    /**
+     *  Stops the worker threads (tasks are not run anymore)
+     */
+    public void shutdown ()
+    {
+        this.running = false;
+
+        for ( Worker w : this.workers )
+        {
+            w.wakeup ();
+            try {
+                w.thread.join ();
+            } catch( InterruptedException e ) {
+                /* ignored */
+            }
+        }
+    }
+
+    //////////////////////////////////////////////////////////////////////////////////////
+
+    /**
+     *  Scheduler thread with its own timing wheel
+     */
+    private class Worker implements Runnable
+    {
+        /** The thread */
+        private Thread thread;
+
+        /** Handles added by other threads, not yet in the wheel */
+        private final ConcurrentLinkedQueue<Handle> added = new ConcurrentLinkedQueue<Handle> ();
+
+        /** The timing wheel; the slot of a deadline is ( deadline / SLOT_NANOS ) % WHEEL_SIZE */
+        private final Handle[] wheel = new Handle[ WHEEL_SIZE ];
+
+        /** The slot (in absolute slot numbers) being processed */
+        private long currentSlot = -1;
+
+        /** Handles due in the current pass */
+        private final List<Handle> due = new ArrayList<Handle> ();
+
+        /** Number of tasks in the wheel */
+        private volatile int taskCount = 0;
+
+        /**
+         *  Adds handle (from any thread)
+         */
+        void add( Handle h )
+        {
+            this.added.offer( h );
+            LockSupport.unpark( this.thread );
+        }
+
+        /**
+         *  Wakes up the thread (e.g. to remove cancelled tasks)
+         */
+        void wakeup ()
+        {
+            LockSupport.unpark( this.thread );
+        }
+
+        /**
+         *  Inserts handle into the wheel
+         */
+        private void insert( Handle h )
+        {
+            long slot = Math.max( h.deadline / SLOT_NANOS, this.currentSlot );
+            int index = (int) ( slot & ( WHEEL_SIZE - 1 ) );
+
+            h.next = this.wheel[ index ];
+            this.wheel[ index ] = h;
+        }
+
+        /**
+         *  Runs tasks at their deadlines
+         */
+        public void run ()
+        {
+            this.currentSlot = getTime () / SLOT_NANOS;
+
+            while( running )
+            {
+                Handle h;
+                while( ( h = this.added.poll () ) != null ) {
+                    insert( h );
+                    ++this.taskCount;
+                }
+
+                long now = getTime ();
+                long nowSlot = now / SLOT_NANOS;
+
+                /* Collect due tasks from all slots passed since the last pass 
+                 * (including the last one, which may still hold tasks due later)
+                 */
+                if ( nowSlot - this.currentSlot >= WHEEL_SIZE )
+                {
+                    /* Fell behind more than the whole wheel
+                     */
+                    for ( int i = 0; i < WHEEL_SIZE; ++i ) {
+                        collectDue( i, now );
+                    }
+                    this.currentSlot = nowSlot;
+                }
+                else
+                {
+                    for ( ;; )
+                    {
+                        collectDue( (int) ( this.currentSlot & ( WHEEL_SIZE - 1 ) ), now );
+                        if ( this.currentSlot >= nowSlot ) {
+                            break;
+                        }
+                        ++this.currentSlot;
+                    }
+                }
+
+                /* Run due tasks and put them back into the wheel
+                 */
+                for ( int i = 0; i < this.due.size (); ++i ) {
+                    runTask( this.due.get( i ) );
+                }
+                this.due.clear ();
+
+                /* Sleep until the earliest deadline, or until a task is added
+                 * if there are no tasks
+                 */
+                long wake = getEarliestDeadline ();
+
+                if ( ! this.added.isEmpty () ) {
+                    continue;
+                } else if ( wake == Long.MAX_VALUE ) {
+                    LockSupport.park( this );
+                } else {
+                    long sleep = wake - getTime ();
+                    if ( sleep > 0 ) {
+                        LockSupport.parkNanos( this, sleep );
+                    }
+                }
+            }
+        }
+
+        /**
+         *  Returns the earliest deadline in the wheel; Long.MAX_VALUE if empty.
+         *  Slots are scanned from the current one and the scan stops at the first
+         *  slot holding a deadline within the slot (later slots hold later deadlines).
+         */
+        private long getEarliestDeadline ()
+        {
+            long earliest = Long.MAX_VALUE;
+
+            for ( int i = 0; i < WHEEL_SIZE; ++i )
+            {
+                long slot = this.currentSlot + i;
+
+                for ( Handle h = this.wheel[ (int) ( slot & ( WHEEL_SIZE - 1 ) ) ];
+                        h != null; h = h.next )
+                {
+                    if ( h.deadline < earliest ) {
+                        earliest = h.deadline;
+                    }
+                }
+
+                if ( earliest < ( slot + 1 ) * SLOT_NANOS ) {
+                    break;
+                }
+            }
+
+            return earliest;
+        }
+
+        /**
+         *  Unlinks due and cancelled tasks from the slot; due tasks are added to
+         *  the list of due tasks
+         */
+        private void collectDue( int index, long now )
+        {
+            Handle prev = null;
+            Handle h = this.wheel[ index ];
+
+            while( h != null )
+            {
+                Handle next = h.next;
+
+                if ( h.cancelled || h.deadline <= now )
+                {
+                    if ( prev == null ) {
+                        this.wheel[ index ] = next;
+                    } else {
+                        prev.next = next;
+                    }
+                    h.next = null;
+
+                    if ( h.cancelled ) {
+                        --this.taskCount;
+                    } else {
+                        this.due.add( h );
+                    }
+                }
+                else
+                {
+                    prev = h;
+                }
+
+                h = next;
+            }
+        }
+
+        /**
+         *  Runs the due task and reinserts it at its next deadline
+         */
+        private void runTask( Handle h )
+        {
+            long start = getTime ();
+            long late = start - h.deadline;
+
+            lateness.record( late / 1000 );
+            if ( late > OVERRUN_NANOS ) {
+                overrunCount.incrementAndGet ();
+            }
+
+            long next = -1;
+
+            synchronized( h )
+            {
+                if ( ! h.cancelled )
+                {
+                    try {
+                        next = h.task.run( h.deadline );
+                    } catch( Exception e ) {
+                        Log.exception( Log.WARN, e );
+                        next = -1;
+                    }
+                }
+
+                if ( next < 0 ) {
+                    h.cancelled = true;
+                }
+            }
+
+            runTimes.record( ( getTime () - start ) / 1000 );
+
+            if ( h.cancelled ) {
+                --this.taskCount;
+                return;
+            }
+
+            h.deadline = next;
+            insert( h );
+        }
+    }
+}
@@ -0,0 +1,206 @@
+package utils;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ *  Bounded lock-free single-producer/single-consumer queue (ring buffer).
+ *
+ *  Exactly one thread may call offer() and exactly one (other) thread may call
+ *  poll(); the consumer may block in poll( timeout ), in which case it is parked
+ *  and unparked by the producer (or by wakeup()). If the queue is full, offered
+ *  elements are dropped and counted rather than blocking the producer.
+ */
+public class SpscQueue<E>
+{
+    /**
+     *  The ring; capacity is a power of two
+     */
+    private final AtomicReferenceArray<E> ring;
+
+    /**
+     *  Mask used to convert sequence to ring index
+     */
+    private final int mask;
+
+    /**
+     *  Next sequence to be written (written only by the producer)
+     */
+    private final AtomicLong tail = new AtomicLong ();
+
+    /**
+     *  Next sequence to be read (written only by the consumer)
+     */
+    private final AtomicLong head = new AtomicLong ();
+
+    /**
+     *  The consumer thread parked in poll( timeout ); null if not parked
+     */
+    private volatile Thread waiter = null;
+
+    /**
+     *  Number of elements dropped because the queue was full
+     */
+    private volatile long dropCount = 0;
+
+    /**
+     *  The maximum observed queue depth
+     */
+    private volatile int maxDepth = 0;
+
+    /**
+     *  Creates queue with capacity of at least given number of elements
+     *  (rounded up to the power of two).
+     */
+    public SpscQueue( int capacity )
+    {
+        int c = 2;
+        while ( c < capacity ) {
+            c <<= 1;
+        }
+
+        this.ring = new AtomicReferenceArray<E>( c );
+        this.mask = c - 1;
+    }
+
+    /**
+     *  Appends the element to the queue (producer only).
+     *
+     *  @return false if the queue was full and the element was dropped
+     */
+    public boolean offer( E element )
+    {
+        long t = this.tail.get ();
+        int depth = (int) ( t - this.head.get () );
+
+        if ( depth > this.mask ) {
+            this.dropCount = this.dropCount + 1; // single writer
+            return false;
+        }
+
+        this.ring.lazySet( (int) t & this.mask, element );
+        this.tail.set( t + 1 ); // full fence: orders the publish before reading waiter
+
+        if ( depth + 1 > this.maxDepth ) {
+            this.maxDepth = depth + 1; // single writer
+        }
+
+        Thread w = this.waiter;
+        if ( w != null ) {
+            LockSupport.unpark( w );
+        }
+
+        return true;
+    }
+
+    /**
+     *  Removes the head of the queue (consumer only).
+     *
+     *  @return the element; null if the queue is empty
+     */
+    public E poll ()
+    {
+        long h = this.head.get ();
+        if ( h == this.tail.get () ) {
+            return null;
+        }
+
+        int i = (int) h & this.mask;
+        E element = this.ring.get( i );
+        this.ring.lazySet( i, null );
+        this.head.lazySet( h + 1 );
+
+        return element;
+    }
+
+    /**
+     *  Removes the head of the queue, waiting up to the given time for
+     *  an element to become available (consumer only).
+     *
+     *  @return the element; null if timed out or woken up by wakeup()
+     */
+    public E poll( long timeoutNanos )
+    {
+        E element = poll ();
+        if ( element != null || timeoutNanos <= 0 ) {
+            return element;
+        }
+
+        this.waiter = Thread.currentThread ();
+
+        /* Re-check after publishing the waiter, so offer() cannot be missed
+         */
+        element = poll ();
+        if ( element == null ) {
+            LockSupport.parkNanos( this, timeoutNanos );
+            element = poll ();
+        }
+
+        this.waiter = null;
+
+        return element;
+    }
+
+    /**
+     *  Wakes up the consumer parked in poll( timeout ).
+     */
+    public void wakeup ()
+    {
+        Thread w = this.waiter;
+        if ( w != null ) {
+            LockSupport.unpark( w );
+        }
+    }
+
+    /**
+     *  Removes all elements (consumer only).
+     */
+    public void clear ()
+    {
+        while( poll () != null ) {
+            /* discard */
+        }
+    }
+
+    /**
+     *  Returns current number of elements in the queue
+     */
+    public int size ()
+    {
+        long h = this.head.get ();
+        return (int) Math.max( 0, this.tail.get () - h );
+    }
+
+    /**
+     *  Returns if the queue is empty
+     */
+    public boolean isEmpty ()
+    {
+        return size () == 0;
+    }
+
+    /**
+     *  Returns the capacity of the queue
+     */
+    public int getCapacity ()
+    {
+        return this.mask + 1;
+    }
+
+    /**
+     *  Returns number of elements dropped because the queue was full
+     */
+    public long getDropCount ()
+    {
+        return this.dropCount;
+    }
+
+    /**
+     *  Returns the maximum observed queue depth
+     */
+    public int getMaxDepth ()
+    {
+        return this.maxDepth;
+    }
+}
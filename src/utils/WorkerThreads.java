@@ -0,0 +1,153 @@
+package utils;
+
+import java.lang.reflect.Method;
+
+/**
+ *  The factory of all worker threads.
+ *
+ *  Workers that may exist in large numbers and spend most of their time blocked
+ *  (per-peer PDU receivers, per-call recorders, PBX signalling sessions) are created
+ *  by newThread() according to the execution mode: either as platform threads,
+ *  or as virtual threads, so one JVM can host thousands of sessions and peers
+ *  without thousands of OS threads. The mode is read from the system property
+ *  <code>kryptofon.threads</code> (<code>platform</code> or <code>virtual</code>)
+ *  or set by setMode() before the workers are created.
+ *
+ *  Latency-critical workers of fixed pools (event loops, schedulers) are created
+ *  by newPlatformThread() and always run on platform threads.
+ *
+ *  Virtual threads are created by reflection (Thread.ofVirtual), so the code also
+ *  builds and runs on JVMs without them; there, the virtual mode falls back
+ *  to platform threads.
+ */
+public class WorkerThreads
+{
+    /**
+     *  Execution mode of the workers
+     */
+    public enum Mode
+    {
+        /** Each worker runs on its own platform (OS) thread */  PLATFORM,
+        /** Each worker runs on a virtual thread */               VIRTUAL
+    }
+
+    /**
+     *  The name of the system property selecting the mode
+     */
+    public final static String MODE_PROPERTY = "kryptofon.threads";
+
+    /**
+     *  The current execution mode
+     */
+    private static volatile Mode mode = parseMode( System.getProperty( MODE_PROPERTY ) );
+
+    /**
+     *  Thread.ofVirtual(); null if virtual threads are not supported
+     */
+    private static Method ofVirtual = null;
+
+    /**
+     *  Thread.Builder.name( String )
+     */
+    private static Method builderName = null;
+
+    /**
+     *  Thread.Builder.unstarted( Runnable )
+     */
+    private static Method builderUnstarted = null;
+
+    static
+    {
+        try
+        {
+            Class<?> builder = Class.forName( "java.lang.Thread$Builder" );
+            builderName = builder.getMethod( "name", String.class );
+            builderUnstarted = builder.getMethod( "unstarted", Runnable.class );
+            ofVirtual = Thread.class.getMethod( "ofVirtual" );
+        }
+        catch( Exception e )
+        {
+            ofVirtual = null; // not supported by this JVM
+        }
+    }
+
+    /**
+     *  Private constructor that forbids instantiation
+     */
+    private WorkerThreads ()
+    {
+    }
+
+    /**
+     *  Parses the mode name; defaults to PLATFORM
+     */
+    private static Mode parseMode( String name )
+    {
+        if ( name != null && name.trim ().equalsIgnoreCase( "virtual" ) ) {
+            return Mode.VIRTUAL;
+        }
+        return Mode.PLATFORM;
+    }
+
+    /**
+     *  Sets the execution mode of workers created from now on
+     */
+    public static void setMode( Mode newMode )
+    {
+        if ( newMode == Mode.VIRTUAL && ! isVirtualSupported () ) {
+            Log.warn( "Virtual threads are not supported; using platform threads" );
+        }
+        mode = newMode;
+    }
+
+    /**
+     *  Returns the execution mode
+     */
+    public static Mode getMode ()
+    {
+        return mode;
+    }
+
+    /**
+     *  Returns if the JVM supports virtual threads
+     */
+    public static boolean isVirtualSupported ()
+    {
+        return ofVirtual != null;
+    }
+
+    /**
+     *  Creates (unstarted) worker thread according to the execution mode.
+     *  The priority and the daemon flag apply to platform threads only
+     *  (virtual threads are always daemon threads of normal priority).
+     */
+    public static Thread newThread( Runnable r, String name, int priority, boolean daemon )
+    {
+        if ( mode == Mode.VIRTUAL && ofVirtual != null )
+        {
+            try
+            {
+                Object builder = ofVirtual.invoke( null );
+                builder = builderName.invoke( builder, name );
+                return (Thread) builderUnstarted.invoke( builder, r );
+            }
+            catch( Exception e )
+            {
+                Log.exception( Log.WARN, e ); // fall back to platform thread
+            }
+        }
+
+        return newPlatformThread( r, name, priority, daemon );
+    }
+
+    /**
+     *  Creates (unstarted) platform thread regardless of the execution mode
+     */
+    public static Thread newPlatformThread( Runnable r, String name, int priority, boolean daemon )
+    {
+        Thread t = new Thread( r, name );
+        t.setPriority( priority );
+        t.setDaemon( daemon );
+        return t;
+    }
+}